@@ -0,0 +1,85 @@
+package com.eagerlogic.entitydb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Thread-safe pool of heap ByteBuffers, used by the read path to avoid allocating a new buffer for every record.
+ * Buffers are pooled in power of two size classes, larger buffers are not pooled.
+ *
+ * @author dipacs
+ */
+final class BufferPool {
+
+	private static final int MIN_SIZE_SHIFT = 8;
+	private static final int MAX_SIZE_SHIFT = 20;
+	private static final int MAX_POOLED_PER_CLASS = 64;
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] pools;
+	private final AtomicIntegerArray pooledCounts;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	BufferPool() {
+		pools = new ConcurrentLinkedQueue[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+		for (int i = 0; i < pools.length; i++) {
+			pools[i] = new ConcurrentLinkedQueue<>();
+		}
+		pooledCounts = new AtomicIntegerArray(pools.length);
+	}
+
+	/**
+	 * Returns a buffer which has at least the given capacity. The position of the returned buffer is 0 and the limit
+	 * is the given size.
+	 *
+	 * @param size
+	 * The required size of the buffer.
+	 *
+	 * @return
+	 * A buffer which can be given back to the pool using the <code>release(ByteBuffer)</code> method.
+	 */
+	ByteBuffer acquire(int size) {
+		int sizeClass = getSizeClass(size);
+		if (sizeClass < 0) {
+			return ByteBuffer.allocate(size);
+		}
+		ByteBuffer res = pools[sizeClass].poll();
+		if (res == null) {
+			res = ByteBuffer.allocate(1 << (sizeClass + MIN_SIZE_SHIFT));
+		} else {
+			pooledCounts.decrementAndGet(sizeClass);
+		}
+		res.clear();
+		res.limit(size);
+		return res;
+	}
+
+	/**
+	 * Gives back the given buffer to the pool. The buffer can't be used after this call.
+	 *
+	 * @param buffer
+	 * The buffer which was returned by the <code>acquire(int)</code> method.
+	 */
+	void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		int sizeClass = getSizeClass(capacity);
+		if (sizeClass < 0 || capacity != (1 << (sizeClass + MIN_SIZE_SHIFT))) {
+			return;
+		}
+		if (pooledCounts.incrementAndGet(sizeClass) > MAX_POOLED_PER_CLASS) {
+			pooledCounts.decrementAndGet(sizeClass);
+			return;
+		}
+		pools[sizeClass].offer(buffer);
+	}
+
+	private static int getSizeClass(int size) {
+		if (size > (1 << MAX_SIZE_SHIFT)) {
+			return -1;
+		}
+		if (size <= (1 << MIN_SIZE_SHIFT)) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+	}
+}
@@ -0,0 +1,560 @@
+package com.eagerlogic.entitydb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * The in-memory composite indexes, which index an ordered tuple of attributes of a kind together.
+ *
+ * The keys of a composite index are the values of the attributes of the tuple (the string values in lower case), and
+ * they are sorted by the first attribute, than by the second one, and so on. The values of an attribute are grouped
+ * by their type (null, boolean, long, string), so the values of a type are next to each other. An AND filter group,
+ * which checks the equality of the first attributes of a tuple, and optionally the range of the next attribute, is
+ * answered by a single range of the keys, instead of intersecting the results of the attributes.
+ *
+ * The entities which first attribute of the tuple is null aren't indexed, because they can't match any filter which
+ * is answered by the index.
+ *
+ * @author dipacs
+ */
+final class CompositeIndex {
+
+	/**
+	 * A key component which is greater than every value.
+	 */
+	private static final Object HIGHEST = new Object();
+
+	private static final Comparator<Object[]> KEY_COMPARATOR = new Comparator<Object[]>() {
+
+		@Override
+		public int compare(Object[] o1, Object[] o2) {
+			int length = Math.min(o1.length, o2.length);
+			for (int i = 0; i < length; i++) {
+				int res = compareComponents(o1[i], o2[i]);
+				if (res != 0) {
+					return res;
+				}
+			}
+			// a prefix is smaller than the keys which start with it
+			return Integer.compare(o1.length, o2.length);
+		}
+	};
+
+	/**
+	 * The index of a tuple of attributes.
+	 */
+	private static final class Tuple {
+
+		private final String[] attributeNames;
+		private final TreeMap<Object[], IdSet> keys = new TreeMap<>(KEY_COMPARATOR);
+		private final LongObjectMap<Object[]> entityKeys = new LongObjectMap<>();
+
+		Tuple(String[] attributeNames) {
+			this.attributeNames = attributeNames;
+		}
+
+		void put(long entityId, Object[] key) {
+			Object[] oldKey = entityKeys.put(entityId, key);
+			if (oldKey != null) {
+				if (KEY_COMPARATOR.compare(oldKey, key) == 0) {
+					return;
+				}
+				removePosting(oldKey, entityId);
+			}
+			IdSet entityList = keys.get(key);
+			if (entityList == null) {
+				entityList = new IdSet();
+				keys.put(key, entityList);
+			}
+			entityList.add(entityId);
+		}
+
+		void remove(long entityId) {
+			Object[] oldKey = entityKeys.remove(entityId);
+			if (oldKey != null) {
+				removePosting(oldKey, entityId);
+			}
+		}
+
+		private void removePosting(Object[] key, long entityId) {
+			IdSet entityList = keys.get(key);
+			if (entityList == null) {
+				return;
+			}
+			entityList.remove(entityId);
+			if (entityList.isEmpty()) {
+				keys.remove(key);
+			}
+		}
+	}
+
+	private final HashMap<String, ArrayList<Tuple>> index = new HashMap<>();
+	private final IndexDefinitions definitions;
+
+	/**
+	 * Creates a new index, which holds the composite indexes of the given definitions.
+	 */
+	CompositeIndex(IndexDefinitions definitions) {
+		this.definitions = definitions;
+		for (String kind : definitions.getCompositeKinds()) {
+			applyDefinitions(kind);
+		}
+	}
+
+	private static int getTypeOrder(Object component) {
+		if (component == null) {
+			return 0;
+		} else if (component instanceof Boolean) {
+			return 1;
+		} else if (component instanceof Long) {
+			return 2;
+		} else if (component instanceof String) {
+			return 3;
+		} else if (component == HIGHEST) {
+			return 4;
+		}
+		throw new IllegalArgumentException("Invalid index value type: " + component.getClass().getName());
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static int compareComponents(Object c1, Object c2) {
+		int t1 = getTypeOrder(c1);
+		int t2 = getTypeOrder(c2);
+		if (t1 != t2) {
+			return Integer.compare(t1, t2);
+		}
+		if (c1 == null || c1 == HIGHEST) {
+			return 0;
+		}
+		return ((Comparable) c1).compareTo(c2);
+	}
+
+	/**
+	 * Returns the key of the given entity in the index of the given tuple.
+	 *
+	 * @return
+	 * The key, or null if the entity isn't indexed by the tuple.
+	 */
+	private static Object[] getKey(Entity entity, String[] attributeNames) {
+		Object[] res = new Object[attributeNames.length];
+		for (int i = 0; i < attributeNames.length; i++) {
+			Object value = entity.getAttribute(attributeNames[i]);
+			if (value instanceof String) {
+				value = ((String) value).toLowerCase();
+			} else if (value != null && !(value instanceof Long) && !(value instanceof Boolean)) {
+				throw new RuntimeException("Invalid value in database.");
+			}
+			res[i] = value;
+		}
+		return res[0] == null ? null : res;
+	}
+
+	private static void put(Tuple tuple, Entity entity) {
+		Object[] key = getKey(entity, tuple.attributeNames);
+		if (key == null) {
+			tuple.remove(entity.getId());
+		} else {
+			tuple.put(entity.getId(), key);
+		}
+	}
+
+	/**
+	 * Adds the given entity to the composite indexes of its kind. The previous version of the entity needs to be
+	 * removed first.
+	 */
+	void put(Entity entity) {
+		ArrayList<Tuple> tuples = index.get(entity.getKind());
+		if (tuples != null) {
+			for (Tuple tuple : tuples) {
+				put(tuple, entity);
+			}
+		}
+	}
+
+	/**
+	 * Adds the given entity to the composite index of the given tuple, or updates its key. It's used when the index
+	 * of the tuple is built.
+	 */
+	void put(Entity entity, String[] attributeNames) {
+		Tuple tuple = findTuple(entity.getKind(), attributeNames);
+		if (tuple != null) {
+			put(tuple, entity);
+		}
+	}
+
+	/**
+	 * Removes the given entity from the composite indexes of the given kind.
+	 */
+	void remove(String kind, long entityId) {
+		ArrayList<Tuple> tuples = index.get(kind);
+		if (tuples != null) {
+			for (Tuple tuple : tuples) {
+				tuple.remove(entityId);
+			}
+		}
+	}
+
+	private Tuple findTuple(String kind, String[] attributeNames) {
+		ArrayList<Tuple> tuples = index.get(kind);
+		if (tuples != null) {
+			for (Tuple tuple : tuples) {
+				if (Arrays.equals(tuple.attributeNames, attributeNames)) {
+					return tuple;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Applies the current index definitions to the composite indexes of the given kind. The empty indexes of the new
+	 * tuples are created, and the indexes of the dropped tuples are removed.
+	 */
+	void applyDefinitions(String kind) {
+		ArrayList<Tuple> newTuples = new ArrayList<>();
+		for (String[] attributeNames : definitions.getComposites(kind)) {
+			Tuple tuple = findTuple(kind, attributeNames);
+			newTuples.add(tuple == null ? new Tuple(attributeNames) : tuple);
+		}
+		if (newTuples.isEmpty()) {
+			index.remove(kind);
+		} else {
+			index.put(kind, newTuples);
+		}
+	}
+
+	/**
+	 * Moves the content of the given index in to this index. The two indexes must have the same definitions, and
+	 * they must not contain the same entity.
+	 *
+	 * @param other
+	 * The index to merge, which mustn't be used after this call.
+	 */
+	void merge(CompositeIndex other) {
+		for (Entry<String, ArrayList<Tuple>> kindEntry : other.index.entrySet()) {
+			for (Tuple otherTuple : kindEntry.getValue()) {
+				Tuple tuple = findTuple(kindEntry.getKey(), otherTuple.attributeNames);
+				for (Entry<Object[], IdSet> keyEntry : otherTuple.keys.entrySet()) {
+					IdSet entityList = tuple.keys.get(keyEntry.getKey());
+					if (entityList == null) {
+						tuple.keys.put(keyEntry.getKey(), keyEntry.getValue());
+					} else {
+						entityList.addAll(keyEntry.getValue());
+					}
+				}
+				tuple.entityKeys.putAll(otherTuple.entityKeys);
+			}
+		}
+	}
+
+	/**
+	 * Removes every entity from this index. The defined tuples are kept.
+	 */
+	void clear() {
+		index.clear();
+		for (String kind : definitions.getCompositeKinds()) {
+			applyDefinitions(kind);
+		}
+	}
+
+	/**
+	 * Writes the content of this index to the given stream.
+	 *
+	 * @param out
+	 * The stream to write.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		int tupleCount = 0;
+		for (ArrayList<Tuple> tuples : index.values()) {
+			tupleCount += tuples.size();
+		}
+		out.writeInt(tupleCount);
+		for (Entry<String, ArrayList<Tuple>> kindEntry : index.entrySet()) {
+			for (Tuple tuple : kindEntry.getValue()) {
+				Index.writeString(out, kindEntry.getKey());
+				out.writeInt(tuple.attributeNames.length);
+				for (String attributeName : tuple.attributeNames) {
+					Index.writeString(out, attributeName);
+				}
+				out.writeInt(tuple.keys.size());
+				for (Entry<Object[], IdSet> keyEntry : tuple.keys.entrySet()) {
+					for (Object component : keyEntry.getKey()) {
+						writeComponent(out, component);
+					}
+					long[] entityIds = keyEntry.getValue().toArray();
+					out.writeInt(entityIds.length);
+					for (long entityId : entityIds) {
+						out.writeLong(entityId);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the content written by the <code>writeTo(DataOutputStream)</code> method to this index. The tuples which
+	 * aren't defined any more are skipped.
+	 *
+	 * @param in
+	 * The stream to read.
+	 */
+	void readFrom(DataInputStream in) throws IOException {
+		int tupleCount = in.readInt();
+		for (int i = 0; i < tupleCount; i++) {
+			String kind = Index.readString(in);
+			String[] attributeNames = new String[in.readInt()];
+			for (int j = 0; j < attributeNames.length; j++) {
+				attributeNames[j] = Index.readString(in);
+			}
+			Tuple tuple = findTuple(kind, attributeNames);
+			int keyCount = in.readInt();
+			for (int j = 0; j < keyCount; j++) {
+				Object[] key = new Object[attributeNames.length];
+				for (int k = 0; k < key.length; k++) {
+					key[k] = readComponent(in);
+				}
+				int entityCount = in.readInt();
+				for (int k = 0; k < entityCount; k++) {
+					long entityId = in.readLong();
+					if (tuple != null) {
+						tuple.put(entityId, key);
+					}
+				}
+			}
+		}
+	}
+
+	private static void writeComponent(DataOutputStream out, Object component) throws IOException {
+		if (component == null) {
+			out.writeByte(0);
+		} else if (component instanceof Boolean) {
+			out.writeByte(1);
+			out.writeBoolean((Boolean) component);
+		} else if (component instanceof Long) {
+			out.writeByte(2);
+			out.writeLong((Long) component);
+		} else {
+			out.writeByte(3);
+			Index.writeString(out, (String) component);
+		}
+	}
+
+	private static Object readComponent(DataInputStream in) throws IOException {
+		int tag = in.readByte();
+		switch (tag) {
+			case 0:
+				return null;
+			case 1:
+				return in.readBoolean();
+			case 2:
+				return in.readLong();
+			case 3:
+				return Index.readString(in);
+			default:
+				throw new IOException("Invalid index value tag: " + tag);
+		}
+	}
+
+	/**
+	 * Answers the filters of an AND group with the composite index which covers the most of them. The index can be
+	 * used if the group checks the equality of the first attributes of its tuple, and it can check the range of the
+	 * next attribute too.
+	 *
+	 * @param kind
+	 * The kind of the entities.
+	 *
+	 * @param filters
+	 * The filters of the AND group. The filters which are answered by the index are removed from the list.
+	 *
+	 * @return
+	 * The ids of the entities which match the removed filters, or null if no composite index can be used.
+	 */
+	IdSet query(String kind, List<AFilterItem> filters) {
+		ArrayList<Tuple> tuples = index.get(kind);
+		if (tuples == null) {
+			return null;
+		}
+		Tuple bestTuple = null;
+		AFilterItem[] bestFilters = null;
+		int bestCount = 0;
+		for (Tuple tuple : tuples) {
+			if (definitions.isCompositeBuilding(kind, tuple.attributeNames)) {
+				continue;
+			}
+			AFilterItem[] used = new AFilterItem[tuple.attributeNames.length];
+			int count = 0;
+			while (count < used.length && (used[count] = findFilter(filters, tuple.attributeNames[count], true)) != null) {
+				count++;
+			}
+			if (count > 0 && count < used.length
+					&& (used[count] = findFilter(filters, tuple.attributeNames[count], false)) != null) {
+				count++;
+			}
+			if (count > bestCount) {
+				bestTuple = tuple;
+				bestFilters = used;
+				bestCount = count;
+			}
+		}
+		// a single filter is answered by the index of its attribute, if it has one
+		if (bestTuple == null || (bestCount == 1
+				&& definitions.isQueryable(kind, FilterMatcher.getAttributeName(bestFilters[0])))) {
+			return null;
+		}
+
+		Object[] prefix = new Object[bestCount];
+		int prefixLength = 0;
+		while (prefixLength < bestCount && isEquality(bestFilters[prefixLength])) {
+			prefix[prefixLength] = getEqualityValue(bestFilters[prefixLength]);
+			prefixLength++;
+		}
+		prefix = Arrays.copyOf(prefix, prefixLength);
+		// a prefix is smaller, and a key which ends with HIGHEST is greater than every key which starts with it
+		Object[] lower;
+		Object[] upper;
+		boolean upperInclusive = true;
+		if (prefixLength == bestCount) {
+			lower = prefix;
+			upper = append(prefix, HIGHEST);
+		} else {
+			Object[] range = getRange(bestFilters[prefixLength]);
+			lower = range[2] == Boolean.TRUE ? append(prefix, range[0]) : append(prefix, range[0], HIGHEST);
+			if (range[1] == HIGHEST) {
+				upper = append(prefix, HIGHEST);
+			} else if (range[3] == Boolean.TRUE) {
+				upper = append(prefix, range[1], HIGHEST);
+			} else {
+				upper = append(prefix, range[1]);
+				upperInclusive = false;
+			}
+		}
+
+		IdSet res = new IdSet();
+		if (KEY_COMPARATOR.compare(lower, upper) <= 0) {
+			for (IdSet entityList : bestTuple.keys.subMap(lower, true, upper, upperInclusive).values()) {
+				res.addAll(entityList);
+			}
+		}
+		for (int i = 0; i < bestCount; i++) {
+			filters.remove(bestFilters[i]);
+		}
+		return res;
+	}
+
+	private static Object[] append(Object[] prefix, Object... components) {
+		Object[] res = Arrays.copyOf(prefix, prefix.length + components.length);
+		System.arraycopy(components, 0, res, prefix.length, components.length);
+		return res;
+	}
+
+	/**
+	 * Finds a filter on the given attribute, which can be answered by a composite index.
+	 *
+	 * @param equality
+	 * True to find an equality check, false to find a range check.
+	 */
+	private static AFilterItem findFilter(List<AFilterItem> filters, String attributeName, boolean equality) {
+		for (AFilterItem filter : filters) {
+			if (attributeName.equals(FilterMatcher.getAttributeName(filter))
+					&& (equality ? isEquality(filter) : isRange(filter))) {
+				return filter;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isEquality(AFilterItem filter) {
+		if (filter instanceof LongFilterItem) {
+			return ((LongFilterItem) filter).getOperator() == LongFilterItem.EOperator.EQUALS;
+		} else if (filter instanceof StringFilterItem) {
+			return ((StringFilterItem) filter).getOperator() == StringFilterItem.EOperator.EQUALS;
+		}
+		return filter instanceof BooleanFilterItem;
+	}
+
+	private static boolean isRange(AFilterItem filter) {
+		Enum<?> operator;
+		if (filter instanceof LongFilterItem) {
+			operator = ((LongFilterItem) filter).getOperator();
+		} else if (filter instanceof StringFilterItem) {
+			operator = ((StringFilterItem) filter).getOperator();
+		} else {
+			return false;
+		}
+		switch (operator.name()) {
+			case "GREATER":
+			case "GREATER_OR_EQUALS":
+			case "SMALLER":
+			case "SMALLER_OR_EQUALS":
+			case "BETWEEN":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static Object getEqualityValue(AFilterItem filter) {
+		if (filter instanceof LongFilterItem) {
+			return ((LongFilterItem) filter).getReferenceValue();
+		} else if (filter instanceof StringFilterItem) {
+			return ((StringFilterItem) filter).getReferenceValue();
+		}
+		return ((BooleanFilterItem) filter).getReferenceValue();
+	}
+
+	/**
+	 * Returns the range of the values which match the given range filter: the lower bound, the upper bound (HIGHEST
+	 * if the strings aren't limited), and if the lower and the upper bounds are inclusive.
+	 */
+	private static Object[] getRange(AFilterItem filter) {
+		Object from;
+		Object to;
+		boolean fromInclusive = true;
+		boolean toInclusive = true;
+		if (filter instanceof LongFilterItem) {
+			LongFilterItem longFilter = (LongFilterItem) filter;
+			long[] referenceValues = longFilter.getSharedReferenceValues();
+			LongFilterItem.EOperator operator = longFilter.getOperator();
+			from = Long.MIN_VALUE;
+			to = Long.MAX_VALUE;
+			if (operator == LongFilterItem.EOperator.BETWEEN) {
+				from = referenceValues[0];
+				to = referenceValues[1];
+			} else if (operator == LongFilterItem.EOperator.GREATER
+					|| operator == LongFilterItem.EOperator.GREATER_OR_EQUALS) {
+				from = referenceValues[0];
+				fromInclusive = operator == LongFilterItem.EOperator.GREATER_OR_EQUALS;
+			} else {
+				to = referenceValues[0];
+				toInclusive = operator == LongFilterItem.EOperator.SMALLER_OR_EQUALS;
+			}
+		} else {
+			StringFilterItem stringFilter = (StringFilterItem) filter;
+			String[] referenceValues = stringFilter.getSharedReferenceValues();
+			StringFilterItem.EOperator operator = stringFilter.getOperator();
+			// the empty string is the smallest string, and the strings are the greatest values
+			from = "";
+			to = HIGHEST;
+			if (operator == StringFilterItem.EOperator.BETWEEN) {
+				from = referenceValues[0];
+				to = referenceValues[1];
+			} else if (operator == StringFilterItem.EOperator.GREATER
+					|| operator == StringFilterItem.EOperator.GREATER_OR_EQUALS) {
+				from = referenceValues[0];
+				fromInclusive = operator == StringFilterItem.EOperator.GREATER_OR_EQUALS;
+			} else {
+				to = referenceValues[0];
+				toInclusive = operator == StringFilterItem.EOperator.SMALLER_OR_EQUALS;
+			}
+		}
+		return new Object[]{from, to, fromInclusive, toInclusive};
+	}
+}
@@ -1,5 +1,6 @@
 package com.eagerlogic.entitydb;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -26,6 +27,18 @@ public final class DB {
 		entityDB.put(entity);
 	}
 	
+	/**
+	 * Puts the given entities in to the database, like the <code>put(Entity)</code> method, but the whole batch is
+	 * written with one lock acquisition and one commit, so it's much faster than putting the entities one by one.
+	 * If an entity can't be found by its id, an IllegalArgumentException is thrown and nothing is stored.
+	 * 
+	 * @param entities 
+	 * The entities which will be stored.
+	 */
+	public void putAll(Collection<Entity> entities) {
+		entityDB.putAll(entities);
+	}
+	
 	/**
 	 * Removes an entity from the database by it's id.
 	 * 
@@ -36,6 +49,32 @@ public final class DB {
 		entityDB.remove(id);
 	}
 	
+	/**
+	 * Removes the entities with the given ids from the database with one lock acquisition and one commit. If an id
+	 * can't be found, an IllegalArgumentException is thrown and nothing is removed.
+	 * 
+	 * @param ids 
+	 * The ids of the entities which will be removed.
+	 */
+	public void removeAll(Collection<Long> ids) {
+		entityDB.removeAll(ids);
+	}
+	
+	/**
+	 * Reads the entities with the given ids from the database. The records are read in the order of their locations
+	 * in the database file, and the records which are next to each other are read together, so it's much faster than
+	 * reading the entities one by one.
+	 * 
+	 * @param ids
+	 * The ids of the entities.
+	 * 
+	 * @return 
+	 * The entities in the order of the ids, with null for the ids which can't be found.
+	 */
+	public List<Entity> getAll(Collection<Long> ids) {
+		return entityDB.getAll(ids);
+	}
+	
 	/**
 	 * Reads an entity from the database by it's id.
 	 * 
@@ -56,12 +95,27 @@ public final class DB {
 	 * The filter which will be used to query the database.
 	 * 
 	 * @return 
-	 * The keys of the matching entities.
+	 * The keys of the matching entities, in the order of the filter.
 	 */
 	public List<Long> queryKeys(Filter filter) {
 		return entityDB.queryKeys(filter);
 	}
 	
+	/**
+	 * Queryes the database using the given filter. This is the same as <code>queryKeys(Filter)</code>, but the keys
+	 * are returned in a compact set instead of a list of boxed values.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @return 
+	 * The keys of the matching entities in ascending order (if the filter selects a page of the results, the keys of
+	 * the page in ascending order).
+	 */
+	public IdSet queryIds(Filter filter) {
+		return entityDB.queryIds(filter);
+	}
+	
 	/**
 	 * Queryes the database using the given filter.
 	 * 
@@ -69,12 +123,59 @@ public final class DB {
 	 * The filter which will be used to query the database.
 	 * 
 	 * @return 
-	 * The matching entities.
+	 * The matching entities, in the order of the filter.
 	 */
 	public List<Entity> query(Filter filter) {
 		return entityDB.query(filter);
 	}
 
+	/**
+	 * Queryes the database using the given filter, and returns the values of the given attributes of the matching
+	 * entities. The values of the indexed attributes are read from the in-memory indexes, so if every attribute is
+	 * indexed, the entities aren't read from the disk.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @param attributeNames
+	 * The names of the projected attributes.
+	 * 
+	 * @return 
+	 * The projections of the matching entities, in the order of the filter.
+	 */
+	public List<Projection> queryProjection(Filter filter, String... attributeNames) {
+		return entityDB.queryProjection(filter, attributeNames);
+	}
+
+	/**
+	 * Queryes the database using the given filter, and returns an iterator which reads the matching entities only when
+	 * they are pulled. The iterator should be closed when it's not needed any more.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @return 
+	 * The iterator of the matching entities, in the order of the filter.
+	 */
+	public IQueryIterator queryIterator(Filter filter) {
+		return entityDB.queryIterator(filter);
+	}
+
+	/**
+	 * Queryes the database using the given filter, and returns the matching entities as a stream, which can be iterated
+	 * once with a for-each loop, and reads the entities only when they are pulled. The stream should be closed when
+	 * it's not needed any more, for example with a try-with-resources statement.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @return 
+	 * The stream of the matching entities, in the order of the filter.
+	 */
+	public IQueryStream queryStream(Filter filter) {
+		return entityDB.queryStream(filter);
+	}
+
 	/**
 	 * Executes a query based on the given filter and returns the only one result returned by the query.
 	 * The query must return exectly one element, otherwise this method throws a RuntimeException.
@@ -135,4 +236,91 @@ public final class DB {
 		return entityDB.queryFirstKey(filter);
 	}
 
+	/**
+	 * Counts the results of the given filter. The results are counted from the indexes, without reading the
+	 * entities (except when the filter needs to read them, because an attribute isn't indexed).
+	 * 
+	 * @param filter
+	 * The filter.
+	 * 
+	 * @return 
+	 * The count of the matching entities.
+	 */
+	public long count(Filter filter) {
+		return entityDB.count(filter);
+	}
+
+	/**
+	 * Returns the smallest long value of the given attribute of the results of the given filter. If the attribute
+	 * has an ORDERED or NGRAM index, the values are read from the index in ascending order, until a value of a
+	 * matching entity is found. The other values of the attribute (booleans and strings) are ignored.
+	 * 
+	 * @param filter
+	 * The filter.
+	 * 
+	 * @param attributeName
+	 * The name of the attribute.
+	 * 
+	 * @return 
+	 * The smallest value, or null if no matching entity has a long value for the attribute.
+	 */
+	public Long min(Filter filter, String attributeName) {
+		return entityDB.min(filter, attributeName);
+	}
+
+	/**
+	 * Returns the greatest long value of the given attribute of the results of the given filter. If the attribute
+	 * has an ORDERED or NGRAM index, the values are read from the index in descending order, until a value of a
+	 * matching entity is found. The other values of the attribute (booleans and strings) are ignored.
+	 * 
+	 * @param filter
+	 * The filter.
+	 * 
+	 * @param attributeName
+	 * The name of the attribute.
+	 * 
+	 * @return 
+	 * The greatest value, or null if no matching entity has a long value for the attribute.
+	 */
+	public Long max(Filter filter, String attributeName) {
+		return entityDB.max(filter, attributeName);
+	}
+
+	/**
+	 * Returns the sum of the long values of the given attribute of the results of the given filter. The values are
+	 * looked up in the index of the attribute, so the entities are read only if the attribute isn't indexed. The
+	 * other values of the attribute (booleans and strings) are ignored. The sum overflows silently like the long
+	 * arithmetic of Java.
+	 * 
+	 * @param filter
+	 * The filter.
+	 * 
+	 * @param attributeName
+	 * The name of the attribute.
+	 * 
+	 * @return 
+	 * The sum of the values, or 0 if no matching entity has a long value for the attribute.
+	 */
+	public long sum(Filter filter, String attributeName) {
+		return entityDB.sum(filter, attributeName);
+	}
+
+	/**
+	 * Returns the distinct values of the given attribute of the entities of the given kind. The values are read from
+	 * the index of the attribute, so the entities are read only if the attribute isn't indexed.
+	 * 
+	 * @param kind
+	 * The kind of the entities.
+	 * 
+	 * @param attributeName
+	 * The name of the attribute.
+	 * 
+	 * @return 
+	 * The distinct values (Booleans, Longs and Strings), in the ascending order of the filters. The strings are in
+	 * lower case, because the strings are compared case insensitive.
+	 */
+	public List<Object> distinctValues(String kind, String attributeName) {
+		return entityDB.distinctValues(kind, attributeName);
+	}
+
 }
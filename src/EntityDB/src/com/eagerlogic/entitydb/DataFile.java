@@ -0,0 +1,580 @@
+package com.eagerlogic.entitydb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The data file of the database. All the reads and writes are positional, so they don't use a shared file pointer,
+ * and any number of threads can read the file at the same time.
+ *
+ * In memory mapped mode the file is mapped in fixed size read-only segments, and the reads are served from the
+ * mapped memory. The mapping grows lazily when a read hits a region which is written after the last mapping.
+ *
+ * Writes are not written to the file directly. They are applied to in-memory copies of the changed pages, and they
+ * are collected until <code>commit()</code> is called, which appends them to the write-ahead log as one entry. The
+ * changed pages are written to the file at the next checkpoint. Besides the writes, an entry contains the puts and
+ * removes of entities, in the order they happened, so the log can be replayed on a snapshot of the indexes. When the
+ * file is opened, the entries of the log are applied to the file by <code>recover(LogHandler)</code>.
+ *
+ * @author dipacs
+ */
+final class DataFile {
+
+	// a mapped segment can't be bigger than 2 GB
+	private static final int MAX_SEGMENT_SHIFT = 30;
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+	private static final int OP_WRITE = 1;
+	private static final int OP_PUT = 2;
+	private static final int OP_REMOVE = 3;
+
+	/**
+	 * Handles the puts and removes of entities when the write-ahead log is replayed. When a method is called, the
+	 * file contains every write which is logged before the operation.
+	 */
+	static interface LogHandler {
+
+		void put(long id, long offset, int length) throws IOException;
+
+		void remove(long id) throws IOException;
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final FileLock fileLock;
+	private final BufferPool bufferPool = new BufferPool();
+	private final boolean memoryMapped;
+	private final int segmentShift;
+	private final long segmentSize;
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private volatile long mappedLength = 0;
+
+	private final WriteAheadLog wal;
+	private final long checkpointSize;
+	private final ConcurrentHashMap<Long, byte[]> dirtyPages = new ConcurrentHashMap<>();
+	private final ByteArrayOutputStream pendingWrites = new ByteArrayOutputStream();
+	private final DataOutputStream pendingOut = new DataOutputStream(pendingWrites);
+	private long logSizeAtCheckpoint = 0;
+	private volatile long length;
+
+	DataFile(File dbFile, EntityDBConfig config) throws IOException {
+		this.file = new RandomAccessFile(dbFile, "rw");
+		this.channel = file.getChannel();
+		this.memoryMapped = config.isMemoryMapped();
+		// the size of the mapped segments is the segment size of the config, rounded down to a power of two
+		this.segmentShift = Math.max(PAGE_SHIFT, Math.min(MAX_SEGMENT_SHIFT, 63 - Long.numberOfLeadingZeros(
+				config.getSegmentSize())));
+		this.segmentSize = 1l << segmentShift;
+		this.checkpointSize = config.getCheckpointSize();
+		try {
+			fileLock = channel.lock();
+		} catch (IOException ex) {
+			file.close();
+			throw new IOException("The file is in use.", ex);
+		}
+		try {
+			this.wal = new WriteAheadLog(new File(dbFile.getPath() + ".wal"), config);
+		} catch (IOException | RuntimeException ex) {
+			fileLock.release();
+			file.close();
+			throw ex;
+		}
+		this.length = channel.size();
+	}
+
+	/**
+	 * Applies the writes of the write-ahead log to the file. Must be called once, before any other operation.
+	 *
+	 * @param handler
+	 * The handler of the logged puts and removes, or null if only the writes need to be applied.
+	 */
+	void recover(final LogHandler handler) throws IOException {
+		final boolean[] changed = new boolean[1];
+		wal.recover(new WriteAheadLog.EntryHandler() {
+
+			@Override
+			public void handle(ByteBuffer in) throws IOException {
+				while (in.hasRemaining()) {
+					int op = in.get();
+					if (op == OP_WRITE) {
+						long position = in.getLong();
+						int count = in.getInt();
+						ByteBuffer src = in.slice();
+						src.limit(count);
+						in.position(in.position() + count);
+						while (src.hasRemaining()) {
+							position += channel.write(src, position);
+						}
+						changed[0] = true;
+					} else if (op == OP_PUT) {
+						long id = in.getLong();
+						long offset = in.getLong();
+						int count = in.getInt();
+						if (handler != null) {
+							handler.put(id, offset, count);
+						}
+					} else if (op == OP_REMOVE) {
+						long id = in.getLong();
+						if (handler != null) {
+							handler.remove(id);
+						}
+					} else {
+						throw new IOException("Invalid write-ahead log entry.");
+					}
+				}
+			}
+		});
+		if (changed[0]) {
+			channel.force(true);
+		}
+		length = channel.size();
+		logSizeAtCheckpoint = wal.size();
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the length of the file, including the writes which aren't checkpointed yet.
+	 *
+	 * @return
+	 * The length of the file.
+	 */
+	long length() {
+		return length;
+	}
+
+	/**
+	 * Reads the given number of bytes from the given position of the file. The returned buffer is a pooled buffer,
+	 * which needs to be given back with the <code>release(ByteBuffer)</code> method when it's not used anymore.
+	 *
+	 * @param position
+	 * The position of the first byte in the file.
+	 *
+	 * @param length
+	 * The count of bytes to read.
+	 *
+	 * @return
+	 * A buffer which position is 0, and limit is length.
+	 *
+	 * @throws IOException
+	 * If an I/O error occurs, or the file ends before the given range.
+	 */
+	ByteBuffer read(long position, int length) throws IOException {
+		if (isDirty(position, length)) {
+			return readDirty(position, length);
+		}
+		if (memoryMapped) {
+			return readMapped(position, length);
+		}
+		ByteBuffer res = bufferPool.acquire(length);
+		try {
+			readFully(res, position);
+		} catch (IOException | RuntimeException ex) {
+			bufferPool.release(res);
+			throw ex;
+		}
+		res.flip();
+		return res;
+	}
+
+	/**
+	 * Gives back a buffer returned by the <code>read(long, int)</code> method.
+	 *
+	 * @param buffer
+	 * The buffer to release.
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer.isReadOnly()) {
+			// slice of a mapped segment
+			return;
+		}
+		bufferPool.release(buffer);
+	}
+
+	private boolean isDirty(long position, int length) {
+		if (dirtyPages.isEmpty() || length == 0) {
+			return false;
+		}
+		long lastPage = (position + length - 1) >>> PAGE_SHIFT;
+		for (long page = position >>> PAGE_SHIFT; page <= lastPage; page++) {
+			if (dirtyPages.containsKey(page)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private ByteBuffer readDirty(long position, int length) throws IOException {
+		ByteBuffer res = bufferPool.acquire(length);
+		try {
+			long end = position + length;
+			while (position < end) {
+				long page = position >>> PAGE_SHIFT;
+				long pageStart = page << PAGE_SHIFT;
+				int count = (int) (Math.min(end, pageStart + PAGE_SIZE) - position);
+				byte[] dirtyPage = dirtyPages.get(page);
+				if (dirtyPage != null) {
+					res.put(dirtyPage, (int) (position - pageStart), count);
+				} else if (memoryMapped) {
+					ByteBuffer src = readMapped(position, count);
+					res.put(src);
+					release(src);
+				} else {
+					ByteBuffer dst = res.duplicate();
+					dst.limit(dst.position() + count);
+					readFully(dst, position);
+					res.position(dst.position());
+				}
+				position += count;
+			}
+		} catch (IOException | RuntimeException ex) {
+			bufferPool.release(res);
+			throw ex;
+		}
+		res.flip();
+		return res;
+	}
+
+	private ByteBuffer readMapped(long position, int length) throws IOException {
+		long end = position + length;
+		if (end > mappedLength) {
+			map(end);
+			if (end > mappedLength) {
+				throw new EOFException("Unexpected end of the db file at: " + position);
+			}
+		}
+		if (length == 0) {
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		}
+		MappedByteBuffer[] mapped = segments;
+		int first = (int) (position >>> segmentShift);
+		int last = (int) ((end - 1) >>> segmentShift);
+		if (first == last) {
+			ByteBuffer res = mapped[first].duplicate();
+			int start = (int) (position & (segmentSize - 1));
+			res.limit(start + length);
+			res.position(start);
+			return res.slice();
+		}
+
+		// the range is crossing a segment boundary, so it's copied
+		ByteBuffer res = bufferPool.acquire(length);
+		for (int i = first; i <= last; i++) {
+			ByteBuffer src = mapped[i].duplicate();
+			long segmentStart = (long) i << segmentShift;
+			int from = (int) (Math.max(position, segmentStart) - segmentStart);
+			int to = (int) (Math.min(end, segmentStart + src.capacity()) - segmentStart);
+			src.limit(to);
+			src.position(from);
+			res.put(src);
+		}
+		res.flip();
+		return res;
+	}
+
+	private synchronized void map(long minLength) throws IOException {
+		if (minLength <= mappedLength) {
+			return;
+		}
+		long size = channel.size();
+		MappedByteBuffer[] mapped = segments;
+		int count = (int) ((size + segmentSize - 1) >>> segmentShift);
+		MappedByteBuffer[] res = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long segmentStart = (long) i << segmentShift;
+			long segmentLength = Math.min(segmentSize, size - segmentStart);
+			if (i < mapped.length && mapped[i].capacity() == segmentLength) {
+				res[i] = mapped[i];
+			} else {
+				res[i] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentLength);
+			}
+		}
+		segments = res;
+		mappedLength = size;
+	}
+
+	long readLong(long position) throws IOException {
+		ByteBuffer buffer = read(position, 8);
+		try {
+			return buffer.getLong(0);
+		} finally {
+			release(buffer);
+		}
+	}
+
+	/**
+	 * Reads bytes from the file starting at the given position, until the given buffer has remaining space. This
+	 * method doesn't see the writes which aren't checkpointed yet.
+	 *
+	 * @param dst
+	 * The buffer to fill.
+	 *
+	 * @param position
+	 * The position of the first byte in the file.
+	 *
+	 * @throws IOException
+	 * If an I/O error occurs, or the file ends before the buffer is filled.
+	 */
+	private void readFully(ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int count = channel.read(dst, position);
+			if (count < 0) {
+				throw new EOFException("Unexpected end of the db file at: " + position);
+			}
+			position += count;
+		}
+	}
+
+	/**
+	 * Writes the given bytes to the given position. The write becomes durable after it's committed.
+	 *
+	 * @param position
+	 * The position of the first byte in the file.
+	 *
+	 * @param bytes
+	 * The bytes to write.
+	 */
+	void write(long position, byte[] bytes) throws IOException {
+		long end = position + bytes.length;
+		int offset = 0;
+		while (offset < bytes.length) {
+			long current = position + offset;
+			long page = current >>> PAGE_SHIFT;
+			long pageStart = page << PAGE_SHIFT;
+			int count = (int) (Math.min(end, pageStart + PAGE_SIZE) - current);
+			System.arraycopy(bytes, offset, getDirtyPage(page), (int) (current - pageStart), count);
+			offset += count;
+		}
+		if (end > length) {
+			length = end;
+		}
+
+		pendingOut.writeByte(OP_WRITE);
+		pendingOut.writeLong(position);
+		pendingOut.writeInt(bytes.length);
+		pendingOut.write(bytes);
+	}
+
+	void writeLong(long position, long value) throws IOException {
+		byte[] bytes = new byte[8];
+		ByteBuffer.wrap(bytes).putLong(value);
+		write(position, bytes);
+	}
+
+	/**
+	 * Writes the given value to the file without logging it, and forces it to the disk. The write isn't replayed by
+	 * the recovery, so it must not be part of the content described by the write-ahead log. The writes must be
+	 * locked while this method is running.
+	 *
+	 * @param position
+	 * The position of the value in the file, which must be before the end of the file.
+	 *
+	 * @param value
+	 * The value to write.
+	 */
+	void writeLongUnlogged(long position, long value) throws IOException {
+		byte[] bytes = new byte[8];
+		ByteBuffer.wrap(bytes).putLong(value);
+		// the changed pages are written to the file at the next checkpoint, so they need to contain the value too
+		for (int offset = 0; offset < bytes.length; offset++) {
+			long current = position + offset;
+			byte[] dirtyPage = dirtyPages.get(current >>> PAGE_SHIFT);
+			if (dirtyPage != null) {
+				dirtyPage[(int) (current & (PAGE_SIZE - 1))] = bytes[offset];
+			}
+		}
+		ByteBuffer src = ByteBuffer.wrap(bytes);
+		while (src.hasRemaining()) {
+			position += channel.write(src, position);
+		}
+		channel.force(true);
+	}
+
+	private byte[] getDirtyPage(long page) throws IOException {
+		byte[] res = dirtyPages.get(page);
+		if (res == null) {
+			res = new byte[PAGE_SIZE];
+			long pageStart = page << PAGE_SHIFT;
+			long available = channel.size() - pageStart;
+			if (available > 0) {
+				readFully(ByteBuffer.wrap(res, 0, (int) Math.min(PAGE_SIZE, available)), pageStart);
+			}
+			dirtyPages.put(page, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Logs that the entity with the given id is put to the given position. Must be called after writing the record.
+	 *
+	 * @param id
+	 * The id of the entity.
+	 *
+	 * @param offset
+	 * The position of the record.
+	 *
+	 * @param length
+	 * The length of the record.
+	 */
+	void logPut(long id, long offset, int length) throws IOException {
+		pendingOut.writeByte(OP_PUT);
+		pendingOut.writeLong(id);
+		pendingOut.writeLong(offset);
+		pendingOut.writeInt(length);
+	}
+
+	/**
+	 * Logs that the entity with the given id is removed. Must be called before overwriting any part of the record.
+	 *
+	 * @param id
+	 * The id of the entity.
+	 */
+	void logRemove(long id) throws IOException {
+		pendingOut.writeByte(OP_REMOVE);
+		pendingOut.writeLong(id);
+	}
+
+	/**
+	 * Appends the writes since the last commit to the write-ahead log as one entry.
+	 *
+	 * @return
+	 * The log sequence number which needs to be passed to <code>awaitDurable(long)</code>, or -1 if there was no
+	 * write.
+	 */
+	long commit() {
+		if (pendingWrites.size() < 1) {
+			return -1;
+		}
+		byte[] payload = pendingWrites.toByteArray();
+		pendingWrites.reset();
+		return wal.append(payload);
+	}
+
+	/**
+	 * Waits until the given commit is durable. This doesn't need to be called while the writes are locked, so
+	 * concurrent commits can be forced to the disk together.
+	 *
+	 * @param lsn
+	 * The value returned by <code>commit()</code>.
+	 */
+	void awaitDurable(long lsn) {
+		if (lsn > -1) {
+			wal.commit(lsn);
+		}
+	}
+
+	/**
+	 * Indicates if the write-ahead log grew too much since the last checkpoint, or the changed pages in the memory
+	 * are too big, and a checkpoint is needed.
+	 *
+	 * @return
+	 * True if a checkpoint is needed.
+	 */
+	boolean isCheckpointNeeded() {
+		return wal.size() - logSizeAtCheckpoint > checkpointSize || (long) dirtyPages.size() * PAGE_SIZE > checkpointSize;
+	}
+
+	/**
+	 * Returns the size of the write-ahead log.
+	 *
+	 * @return
+	 * The size of the write-ahead log in bytes.
+	 */
+	long getLogSize() {
+		return wal.size();
+	}
+
+	/**
+	 * Returns the generation of the write-ahead log.
+	 *
+	 * @return
+	 * The generation of the write-ahead log.
+	 */
+	long getLogGeneration() {
+		return wal.getGeneration();
+	}
+
+	/**
+	 * Empties the write-ahead log. Must be called after a checkpoint, when the state of the database is persisted in
+	 * a snapshot with the given generation.
+	 *
+	 * @param generation
+	 * The generation of the snapshot.
+	 */
+	void resetLog(long generation) throws IOException {
+		wal.reset(generation);
+		logSizeAtCheckpoint = 0;
+	}
+
+	/**
+	 * Writes the changed pages to the file, and forces the file to the disk. The write-ahead log is kept, because
+	 * it's needed to replay the changes on the last snapshot. The writes must be locked while this method is
+	 * running.
+	 */
+	void checkpoint() throws IOException {
+		wal.sync();
+		if (!dirtyPages.isEmpty()) {
+			List<Long> pages = new ArrayList<>(dirtyPages.keySet());
+			Collections.sort(pages);
+			for (Long page : pages) {
+				long pageStart = page << PAGE_SHIFT;
+				ByteBuffer src = ByteBuffer.wrap(dirtyPages.get(page), 0, (int) Math.min(PAGE_SIZE, length - pageStart));
+				long position = pageStart;
+				while (src.hasRemaining()) {
+					position += channel.write(src, position);
+				}
+			}
+			channel.force(true);
+			dirtyPages.clear();
+		}
+		logSizeAtCheckpoint = wal.size();
+	}
+
+	/**
+	 * Cuts the end of the file. The cut part must not contain live data, and the write-ahead log must not contain
+	 * writes into it, so this must be called right after a snapshot. The writes must be locked while this method is
+	 * running.
+	 *
+	 * @param newLength
+	 * The new length of the file.
+	 */
+	void truncate(long newLength) throws IOException {
+		if (newLength >= length) {
+			return;
+		}
+		checkpoint();
+		// the mapped segments must not be used beyond the end of the file, they are mapped again on the next read
+		segments = new MappedByteBuffer[0];
+		mappedLength = 0;
+		channel.truncate(newLength);
+		channel.force(true);
+		length = newLength;
+	}
+
+	void close() throws IOException {
+		// the mapped segments are unmapped when they are garbage collected
+		segments = new MappedByteBuffer[0];
+		mappedLength = 0;
+		try {
+			wal.close();
+			fileLock.release();
+		} finally {
+			file.close();
+		}
+	}
+}
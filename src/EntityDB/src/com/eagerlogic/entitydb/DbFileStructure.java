@@ -1,9 +1,17 @@
 package com.eagerlogic.entitydb;
 
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
+ * The layout of the records (pieces) in the data file.
+ *
+ * The holes between the pieces are tracked as free extents, indexed both by offset and by size, so finding the
+ * best fitting hole, and the neighbours of a piece are O(log n) operations. The space after the last piece is
+ * always free, and it isn't tracked as an extent.
  *
  * @author dipacs
  */
@@ -18,8 +26,33 @@ final class DbFileStructure implements Iterable<DbFileStructure.Piece> {
 			this.offset = start;
 			this.length = length;
 		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
 	}
+
+	private static final Comparator<Piece> SIZE_COMPARATOR = new Comparator<Piece>() {
+
+		@Override
+		public int compare(Piece o1, Piece o2) {
+			if (o1.length != o2.length) {
+				return o1.length < o2.length ? -1 : 1;
+			}
+			if (o1.offset != o2.offset) {
+				return o1.offset < o2.offset ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
 	private final TreeMap<Long, Piece> pieces = new TreeMap<>();
+	private final TreeMap<Long, Piece> freeByOffset = new TreeMap<>();
+	private final TreeSet<Piece> freeBySize = new TreeSet<>(SIZE_COMPARATOR);
 	private final long headerSize;
 
 	DbFileStructure(long headerSize) {
@@ -27,56 +60,162 @@ final class DbFileStructure implements Iterable<DbFileStructure.Piece> {
 	}
 
 	public void addPiece(long offset, long length) {
+		if (offset < headerSize) {
+			throw new IllegalArgumentException("The piece overlaps the header: " + offset);
+		}
+		Map.Entry<Long, Piece> prev = pieces.floorEntry(offset);
+		Map.Entry<Long, Piece> next = pieces.higherEntry(offset);
+		long gapStart = prev == null ? headerSize : end(prev.getValue());
+		if (offset < gapStart || (next != null && offset + length > next.getKey())) {
+			throw new RuntimeException("Internal error. The piece overlaps an other piece: " + offset);
+		}
+
+		if (next != null) {
+			removeFree(gapStart);
+			addFree(offset + length, next.getKey() - offset - length);
+		}
+		addFree(gapStart, offset - gapStart);
+
 		pieces.put(offset, new Piece(offset, length));
 	}
 
 	public void removePiece(long offset) {
-		if (pieces.remove(offset) == null) {
+		Piece piece = pieces.remove(offset);
+		if (piece == null) {
 			throw new RuntimeException("Internal error. Can't find piece with offset: " + offset);
 		}
+		Map.Entry<Long, Piece> prev = pieces.lowerEntry(offset);
+		Map.Entry<Long, Piece> next = pieces.higherEntry(offset);
+		long gapStart = prev == null ? headerSize : end(prev.getValue());
+
+		removeFree(gapStart);
+		removeFree(end(piece));
+		if (next != null) {
+			addFree(gapStart, next.getKey() - gapStart);
+		}
 	}
 
 	public Piece getPiece(long offset) {
 		return pieces.get(offset);
 	}
 
+	/**
+	 * Returns the number of pieces.
+	 *
+	 * @return
+	 * The number of pieces.
+	 */
+	public int size() {
+		return pieces.size();
+	}
+
+	/**
+	 * Finds the smallest hole which can hold the given size. If there are more equal holes, the first one is used.
+	 * If there is no such hole, the space after the last piece is used.
+	 *
+	 * @param size
+	 * The needed size.
+	 *
+	 * @return
+	 * The offset of the previous piece (or -1), the offset of the free space, and the offset of the next piece (or
+	 * -1).
+	 */
 	public long[] getEmptySpace(long size) {
-		long lastFreeByte = headerSize;
-		long prevOffset = -1;
-		long nextOffset = -1;
-		for (Piece piece : pieces.values()) {
-			if (piece.offset - lastFreeByte >= size) {
-				nextOffset = piece.offset;
-				break;
-			}
-			prevOffset = piece.offset;
-			lastFreeByte = piece.offset + piece.length;
+		Piece hole = freeBySize.ceiling(new Piece(Long.MIN_VALUE, size));
+		long freeOffset;
+		if (hole != null) {
+			freeOffset = hole.offset;
+		} else {
+			Map.Entry<Long, Piece> last = pieces.lastEntry();
+			freeOffset = last == null ? headerSize : end(last.getValue());
 		}
-		return new long[]{prevOffset, lastFreeByte, nextOffset};
+		return new long[]{orMinusOne(pieces.lowerKey(freeOffset)), freeOffset, orMinusOne(pieces.higherKey(freeOffset))};
 	}
 
 	public long[] getPieceSurround(long offset) {
-		long prevOffset = -1;
-		long exactOffset = -1;
-		long nextOffset = -1;
-		for (Piece piece : pieces.values()) {
-			if (piece.offset < offset) {
-				prevOffset = piece.offset;
-			} else if (piece.offset > offset) {
-				nextOffset = piece.offset;
-				break;
-			} else {
-				exactOffset = piece.offset;
-			}
-		}
-
-		if (exactOffset < 0) {
+		if (!pieces.containsKey(offset)) {
 			throw new IllegalArgumentException("No piece can be found with the given offset: " + offset);
 		}
-		return new long[] {prevOffset, exactOffset, nextOffset};
+		return new long[]{orMinusOne(pieces.lowerKey(offset)), offset, orMinusOne(pieces.higherKey(offset))};
+	}
+
+	/**
+	 * Returns the first piece which starts at or after the given offset.
+	 *
+	 * @param offset
+	 * The offset to search from.
+	 *
+	 * @return
+	 * The found piece, or null if there is no piece after the given offset.
+	 */
+	public Piece getNextPiece(long offset) {
+		Map.Entry<Long, Piece> res = pieces.ceilingEntry(offset);
+		return res == null ? null : res.getValue();
+	}
+
+	/**
+	 * Returns the start of the free space before the given piece, which is the end of the previous piece, or the end
+	 * of the header. If there is no hole before the piece, this is the offset of the piece.
+	 *
+	 * @param offset
+	 * The offset of the piece.
+	 *
+	 * @return
+	 * The start of the free space before the piece.
+	 */
+	public long getFreeSpaceBefore(long offset) {
+		Map.Entry<Long, Piece> prev = pieces.lowerEntry(offset);
+		return prev == null ? headerSize : end(prev.getValue());
+	}
+
+	/**
+	 * Returns the surround of the given free offset in the same format as <code>getEmptySpace(long)</code>.
+	 *
+	 * @param offset
+	 * An offset which isn't used by any piece.
+	 *
+	 * @return
+	 * The offset of the previous piece (or -1), the given offset, and the offset of the next piece (or -1).
+	 */
+	public long[] getEmptySpaceAt(long offset) {
+		return new long[]{orMinusOne(pieces.lowerKey(offset)), offset, orMinusOne(pieces.higherKey(offset))};
+	}
+
+	/**
+	 * Returns the end of the last piece, or the end of the header if there is no piece.
+	 *
+	 * @return
+	 * The end of the used space.
+	 */
+	public long getEnd() {
+		Map.Entry<Long, Piece> last = pieces.lastEntry();
+		return last == null ? headerSize : end(last.getValue());
 	}
 
 	public Iterator<Piece> iterator() {
 		return pieces.values().iterator();
 	}
+
+	private void addFree(long offset, long length) {
+		if (length > 0) {
+			Piece hole = new Piece(offset, length);
+			freeByOffset.put(offset, hole);
+			freeBySize.add(hole);
+		}
+	}
+
+	private void removeFree(long offset) {
+		Piece hole = freeByOffset.remove(offset);
+		if (hole != null) {
+			freeBySize.remove(hole);
+		}
+	}
+
+	private static long end(Piece piece) {
+		return piece.offset + piece.length;
+	}
+
+	private static long orMinusOne(Long offset) {
+		return offset == null ? -1 : offset;
+	}
 }
@@ -12,6 +12,9 @@ import java.util.Set;
  */
 public final class Entity implements Serializable {
 
+    // records written before the binary record format are Java serialized entities
+    private static final long serialVersionUID = -1791648914058999765L;
+
     private long id = -1;
     private String kind;
     private Object value;
@@ -33,6 +36,20 @@ public final class Entity implements Serializable {
         this.id = id;
     }
 
+    /**
+     * Returns a copy of this entity, which can be changed independently. The
+     * value is shared, except if it's a byte array.
+     *
+     * @return The copy of this entity.
+     */
+    Entity copy() {
+        Entity res = new Entity(kind);
+        res.id = id;
+        res.value = value instanceof byte[] ? ((byte[]) value).clone() : value;
+        res.attributes.putAll(attributes);
+        return res;
+    }
+
     /**
      * Returns the id of this entity. The id is filled automatically after
      * storing it in the database first, using the <code>DB.put(Entity)</code>
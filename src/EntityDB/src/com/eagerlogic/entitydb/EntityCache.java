@@ -0,0 +1,237 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded cache of the decoded entities, keyed by id.
+ *
+ * The eviction policy is segmented LRU: a new entity is put in to the probation segment, and it's promoted to the
+ * protected segment when it's read again. The least recently used entities of the protected segment are moved back
+ * to the probation segment, and the entities are evicted from the probation segment, so a burst of entities which
+ * are read only once can't evict the frequently read ones. The cache is split in to stripes by id, so concurrent
+ * readers rarely wait for each other.
+ *
+ * The cached entities are shared, so they must not be changed. Only the entities which value is immutable (or a byte
+ * array) can be cached, so a copy of a cached entity can be made cheaply.
+ *
+ * @author dipacs
+ */
+final class EntityCache {
+
+	private static final int STRIPE_COUNT = 16;
+	// with a smaller budget the stripes would be too small to hold the frequently read entities
+	private static final long MIN_ENTRIES_TO_STRIPE = 1024;
+	private static final long MIN_BYTES_TO_STRIPE = 1024 * 1024;
+	private static final double PROTECTED_RATIO = 0.8;
+
+	private static final class Node {
+
+		private final Entity entity;
+		private final long weight;
+
+		Node(Entity entity, long weight) {
+			this.entity = entity;
+			this.weight = weight;
+		}
+	}
+
+	private static final class Stripe {
+
+		private final LinkedHashMap<Long, Node> probation = new LinkedHashMap<>(16, 0.75f, true);
+		private final LinkedHashMap<Long, Node> protectedNodes = new LinkedHashMap<>(16, 0.75f, true);
+		private final long maxEntries;
+		private final long maxBytes;
+		private long probationBytes = 0;
+		private long protectedBytes = 0;
+		private long hits = 0;
+		private long misses = 0;
+
+		Stripe(long maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized Entity get(long id) {
+			Node node = protectedNodes.get(id);
+			if (node != null) {
+				hits++;
+				return node.entity;
+			}
+			node = probation.remove(id);
+			if (node == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			probationBytes -= node.weight;
+			protectedNodes.put(id, node);
+			protectedBytes += node.weight;
+			// the least recently used protected entities get an other chance in the probation segment
+			Iterator<Map.Entry<Long, Node>> it = protectedNodes.entrySet().iterator();
+			while (protectedNodes.size() > 1 && isOverLimit(protectedNodes.size(), protectedBytes, PROTECTED_RATIO)) {
+				Map.Entry<Long, Node> eldest = it.next();
+				it.remove();
+				protectedBytes -= eldest.getValue().weight;
+				probation.put(eldest.getKey(), eldest.getValue());
+				probationBytes += eldest.getValue().weight;
+			}
+			return node.entity;
+		}
+
+		synchronized void put(long id, Entity entity, long weight) {
+			if (maxBytes > 0 && weight > maxBytes) {
+				return;
+			}
+			invalidate(id);
+			probation.put(id, new Node(entity, weight));
+			probationBytes += weight;
+			while (isOverLimit(probation.size() + protectedNodes.size(), probationBytes + protectedBytes, 1)) {
+				if (!probation.isEmpty()) {
+					probationBytes -= evictEldest(probation);
+				} else {
+					protectedBytes -= evictEldest(protectedNodes);
+				}
+			}
+		}
+
+		synchronized void invalidate(long id) {
+			Node node = probation.remove(id);
+			if (node != null) {
+				probationBytes -= node.weight;
+			}
+			node = protectedNodes.remove(id);
+			if (node != null) {
+				protectedBytes -= node.weight;
+			}
+		}
+
+		private boolean isOverLimit(long entries, long bytes, double ratio) {
+			return (maxEntries > 0 && entries > maxEntries * ratio) || (maxBytes > 0 && bytes > maxBytes * ratio);
+		}
+
+		private static long evictEldest(LinkedHashMap<Long, Node> segment) {
+			Iterator<Node> it = segment.values().iterator();
+			long res = it.next().weight;
+			it.remove();
+			return res;
+		}
+	}
+
+	private final Stripe[] stripes;
+
+	/**
+	 * Creates a new cache. At least one of the limits must be positive.
+	 *
+	 * @param maxEntries
+	 * The maximum count of the cached entities, or 0 if it's unlimited.
+	 *
+	 * @param maxBytes
+	 * The maximum size of the cached entities in bytes (the size of an entity is the size of its record), or 0 if
+	 * it's unlimited.
+	 */
+	EntityCache(long maxEntries, long maxBytes) {
+		int stripeCount = STRIPE_COUNT;
+		if ((maxEntries > 0 && maxEntries < MIN_ENTRIES_TO_STRIPE) || (maxBytes > 0 && maxBytes < MIN_BYTES_TO_STRIPE)) {
+			stripeCount = 1;
+		}
+		stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe(divide(maxEntries, stripeCount), divide(maxBytes, stripeCount));
+		}
+	}
+
+	private static long divide(long limit, int stripeCount) {
+		return limit > 0 ? Math.max(1, limit / stripeCount) : 0;
+	}
+
+	private Stripe getStripe(long id) {
+		long hash = id * 0x9e3779b97f4a7c15l;
+		return stripes[(int) (hash >>> 32) & (stripes.length - 1)];
+	}
+
+	/**
+	 * Indicates if the given entity can be cached. An entity can be cached if it can be copied without serializing
+	 * its value.
+	 *
+	 * @param entity
+	 * The entity to check.
+	 *
+	 * @return
+	 * True if the entity can be cached.
+	 */
+	static boolean isCacheable(Entity entity) {
+		Object value = entity.getValue();
+		return value == null || value instanceof String || value instanceof Long || value instanceof Boolean
+				|| value instanceof byte[];
+	}
+
+	/**
+	 * Returns the cached entity with the given id. The returned entity must not be changed.
+	 *
+	 * @param id
+	 * The id of the entity.
+	 *
+	 * @return
+	 * The cached entity, or null if it isn't cached.
+	 */
+	Entity get(long id) {
+		return getStripe(id).get(id);
+	}
+
+	/**
+	 * Puts an entity in to the cache. The entity must not be changed after this call.
+	 *
+	 * @param entity
+	 * The entity to cache.
+	 *
+	 * @param weight
+	 * The size of the entity in bytes.
+	 */
+	void put(Entity entity, long weight) {
+		getStripe(entity.getId()).put(entity.getId(), entity, weight);
+	}
+
+	/**
+	 * Removes an entity from the cache.
+	 *
+	 * @param id
+	 * The id of the entity.
+	 */
+	void invalidate(long id) {
+		getStripe(id).invalidate(id);
+	}
+
+	/**
+	 * Returns the count of the reads which are served from the cache.
+	 *
+	 * @return
+	 * The count of hits.
+	 */
+	long getHits() {
+		long res = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				res += stripe.hits;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the count of the reads which aren't served from the cache.
+	 *
+	 * @return
+	 * The count of misses.
+	 */
+	long getMisses() {
+		long res = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				res += stripe.misses;
+			}
+		}
+		return res;
+	}
+}
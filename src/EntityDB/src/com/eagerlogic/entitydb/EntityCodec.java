@@ -0,0 +1,419 @@
+package com.eagerlogic.entitydb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Binary codec of the Entity records.
+ *
+ * A record starts with a fixed length header (magic byte, format version, payload length), followed by the payload:
+ * the id, the kind, the tagged attributes and the value. Lengths and numbers are stored as varints. The value is
+ * stored natively if it's a String, Long, Boolean or byte[], otherwise it's stored using Java serialization.
+ *
+ * Records written by older versions (plain Java serialized Entity objects) are still readable.
+ *
+ * @author dipacs
+ */
+final class EntityCodec {
+
+	static final int MAGIC = 0xee;
+	static final int VERSION = 1;
+	/**
+	 * The length of the record header: magic, version and the 4 bytes long payload length.
+	 */
+	static final int HEADER_LENGTH = 6;
+
+	private static final int LEGACY_MAGIC = 0xac;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_LONG = 1;
+	private static final int TAG_TRUE = 2;
+	private static final int TAG_FALSE = 3;
+	private static final int TAG_STRING = 4;
+
+	private static final int VALUE_NULL = 0;
+	private static final int VALUE_STRING = 1;
+	private static final int VALUE_LONG = 2;
+	private static final int VALUE_BOOLEAN = 3;
+	private static final int VALUE_BYTES = 4;
+	private static final int VALUE_SERIALIZED = 5;
+
+	private EntityCodec() {
+	}
+
+	/**
+	 * Encodes the given entity to a record.
+	 *
+	 * @param entity
+	 * The entity to encode.
+	 *
+	 * @return
+	 * The bytes of the record, including the header.
+	 */
+	static byte[] encode(Entity entity) {
+		Output out = new Output();
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(0);
+
+		out.writeVarLong(zigZag(entity.getId()));
+		out.writeString(entity.getKind());
+		out.writeVarInt(entity.getAttributeNames().size());
+		for (String attributeName : entity.getAttributeNames()) {
+			out.writeString(attributeName);
+			Object value = entity.getAttribute(attributeName);
+			if (value == null) {
+				out.writeByte(TAG_NULL);
+			} else if (value instanceof Long) {
+				out.writeByte(TAG_LONG);
+				out.writeVarLong(zigZag((Long) value));
+			} else if (value instanceof Boolean) {
+				out.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+			} else if (value instanceof String) {
+				out.writeByte(TAG_STRING);
+				out.writeString((String) value);
+			} else {
+				throw new IllegalArgumentException("Invalid attribute value type: " + value.getClass().getName());
+			}
+		}
+		writeValue(out, entity.getValue());
+
+		out.setInt(2, out.size() - HEADER_LENGTH);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the full length of the record which header is at the current position of the given buffer. The position
+	 * of the buffer isn't changed.
+	 *
+	 * @param header
+	 * A buffer which contains at least HEADER_LENGTH bytes.
+	 *
+	 * @return
+	 * The length of the record including the header, or -1 if the record is stored in the legacy format, which
+	 * length can't be determined from the header.
+	 */
+	static int getRecordLength(ByteBuffer header) {
+		int pos = header.position();
+		int magic = header.get(pos) & 0xff;
+		if (magic == LEGACY_MAGIC) {
+			return -1;
+		}
+		if (magic != MAGIC) {
+			throw new RuntimeException("Invalid record format.");
+		}
+		int version = header.get(pos + 1) & 0xff;
+		if (version != VERSION) {
+			throw new RuntimeException("Unsupported record version: " + version);
+		}
+		return HEADER_LENGTH + header.getInt(pos + 2);
+	}
+
+	/**
+	 * Returns the id of the entity which record starts at the current position of the given buffer, without decoding
+	 * the whole record. The position of the buffer isn't changed.
+	 *
+	 * @param in
+	 * The buffer which contains the record.
+	 *
+	 * @return
+	 * The id of the entity.
+	 */
+	static long readId(ByteBuffer in) {
+		ByteBuffer bb = in.duplicate();
+		if (getRecordLength(bb) < 0) {
+			return decodeLegacy(bb).getId();
+		}
+		bb.position(bb.position() + HEADER_LENGTH);
+		return unZigZag(readVarLong(bb));
+	}
+
+	/**
+	 * Decodes the record which starts at the current position of the given buffer. After this call the position of
+	 * the buffer is at the end of the record.
+	 *
+	 * @param in
+	 * The buffer which contains the record.
+	 *
+	 * @return
+	 * The decoded entity.
+	 */
+	static Entity decode(ByteBuffer in) {
+		if ((in.get(in.position()) & 0xff) == LEGACY_MAGIC) {
+			return decodeLegacy(in);
+		}
+		int length = getRecordLength(in);
+		int end = in.position() + length;
+		in.position(in.position() + HEADER_LENGTH);
+
+		long id = unZigZag(readVarLong(in));
+		Entity res = new Entity(readString(in));
+		res.setId(id);
+		int attributeCount = readVarInt(in);
+		for (int i = 0; i < attributeCount; i++) {
+			String name = readString(in);
+			int tag = in.get() & 0xff;
+			switch (tag) {
+				case TAG_NULL:
+					res.putAttribute(name, (String) null);
+					break;
+				case TAG_LONG:
+					res.putAttribute(name, unZigZag(readVarLong(in)));
+					break;
+				case TAG_TRUE:
+					res.putAttribute(name, true);
+					break;
+				case TAG_FALSE:
+					res.putAttribute(name, false);
+					break;
+				case TAG_STRING:
+					res.putAttribute(name, readString(in));
+					break;
+				default:
+					throw new RuntimeException("Invalid attribute tag: " + tag);
+			}
+		}
+		res.setValue(readValue(in));
+
+		if (in.position() != end) {
+			throw new RuntimeException("Invalid record length.");
+		}
+		return res;
+	}
+
+	private static Entity decodeLegacy(ByteBuffer in) {
+		try {
+			ObjectInputStream ois = new ObjectInputStream(new ByteBufferInputStream(in));
+			return (Entity) ois.readObject();
+		} catch (IOException | ClassNotFoundException ex) {
+			throw new RuntimeException("Can't read legacy record.", ex);
+		}
+	}
+
+	private static void writeValue(Output out, Object value) {
+		if (value == null) {
+			out.writeByte(VALUE_NULL);
+		} else if (value instanceof String) {
+			out.writeByte(VALUE_STRING);
+			out.writeString((String) value);
+		} else if (value instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeVarLong(zigZag((Long) value));
+		} else if (value instanceof Boolean) {
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeByte(((Boolean) value) ? 1 : 0);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(VALUE_BYTES);
+			out.writeVarInt(bytes.length);
+			out.write(bytes, 0, bytes.length);
+		} else {
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(baos);
+				oos.writeObject(value);
+				oos.flush();
+				byte[] bytes = baos.toByteArray();
+				out.writeByte(VALUE_SERIALIZED);
+				out.writeVarInt(bytes.length);
+				out.write(bytes, 0, bytes.length);
+			} catch (IOException ex) {
+				throw new RuntimeException("Can't serialize the value of the entity.", ex);
+			}
+		}
+	}
+
+	private static Object readValue(ByteBuffer in) {
+		int tag = in.get() & 0xff;
+		switch (tag) {
+			case VALUE_NULL:
+				return null;
+			case VALUE_STRING:
+				return readString(in);
+			case VALUE_LONG:
+				return unZigZag(readVarLong(in));
+			case VALUE_BOOLEAN:
+				return in.get() != 0;
+			case VALUE_BYTES: {
+				byte[] bytes = new byte[readVarInt(in)];
+				in.get(bytes);
+				return bytes;
+			}
+			case VALUE_SERIALIZED: {
+				int length = readVarInt(in);
+				ByteBuffer slice = in.slice();
+				slice.limit(length);
+				in.position(in.position() + length);
+				try {
+					ObjectInputStream ois = new ObjectInputStream(new ByteBufferInputStream(slice));
+					return ois.readObject();
+				} catch (IOException | ClassNotFoundException ex) {
+					throw new RuntimeException("Can't deserialize the value of the entity.", ex);
+				}
+			}
+			default:
+				throw new RuntimeException("Invalid value tag: " + tag);
+		}
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = readVarInt(in) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (in.hasArray()) {
+			String res = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+			in.position(in.position() + length);
+			return res;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static int readVarInt(ByteBuffer in) {
+		return (int) readVarLong(in);
+	}
+
+	private static long readVarLong(ByteBuffer in) {
+		long res = 0;
+		int shift = 0;
+		while (true) {
+			int b = in.get() & 0xff;
+			res |= (long) (b & 0x7f) << shift;
+			if (b < 0x80) {
+				return res;
+			}
+			shift += 7;
+			if (shift > 63) {
+				throw new RuntimeException("Invalid varint.");
+			}
+		}
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Growable byte array which is used to build the records.
+	 */
+	private static final class Output {
+
+		private byte[] buf = new byte[256];
+		private int size = 0;
+
+		void writeByte(int b) {
+			ensureCapacity(1);
+			buf[size++] = (byte) b;
+		}
+
+		void writeInt(int value) {
+			ensureCapacity(4);
+			setInt(size, value);
+			size += 4;
+		}
+
+		void setInt(int pos, int value) {
+			buf[pos] = (byte) (value >>> 24);
+			buf[pos + 1] = (byte) (value >>> 16);
+			buf[pos + 2] = (byte) (value >>> 8);
+			buf[pos + 3] = (byte) value;
+		}
+
+		void writeVarInt(int value) {
+			writeVarLong(value & 0xffffffffL);
+		}
+
+		void writeVarLong(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7fL) != 0) {
+				buf[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buf[size++] = (byte) value;
+		}
+
+		void writeString(String value) {
+			if (value == null) {
+				writeVarInt(0);
+				return;
+			}
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarInt(bytes.length + 1);
+			write(bytes, 0, bytes.length);
+		}
+
+		void write(byte[] bytes, int offset, int length) {
+			ensureCapacity(length);
+			System.arraycopy(bytes, offset, buf, size, length);
+			size += length;
+		}
+
+		int size() {
+			return size;
+		}
+
+		byte[] toByteArray() {
+			byte[] res = new byte[size];
+			System.arraycopy(buf, 0, res, 0, size);
+			return res;
+		}
+
+		private void ensureCapacity(int length) {
+			if (size + length > buf.length) {
+				byte[] newBuf = new byte[Math.max(buf.length * 2, size + length)];
+				System.arraycopy(buf, 0, newBuf, 0, size);
+				buf = newBuf;
+			}
+		}
+	}
+
+	/**
+	 * InputStream view of a ByteBuffer, used for the Java serialized parts.
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -1,20 +1,32 @@
 package com.eagerlogic.entitydb;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
-import java.nio.channels.Channels;
-import java.nio.channels.FileLock;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -26,8 +38,45 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
  */
 public final class EntityDB {
 
-	private static final byte[] FILE_HEADER = new byte[]{(byte) 0xed, (byte) 0xb0};
-	private static final long HEADER_LENGTH = FILE_HEADER.length + 8;
+	/**
+	 * The types of the attribute indexes.
+	 *
+	 * @see EntityDB#defineIndex(String, String, EIndexType)
+	 */
+	public static enum EIndexType {
+		/**
+		 * The values are sorted, so every filter operator is answered by the index.
+		 */
+		ORDERED,
+		/**
+		 * The values are held in a hash map, which answers only the EQUALS and IN filters. The other filters scan the
+		 * entities of the kind.
+		 */
+		HASH,
+		/**
+		 * Like ORDERED, and the string values have a trigram index too, which answers the CONTAINS filters without
+		 * checking every distinct value of the attribute.
+		 */
+		NGRAM
+	}
+
+	// the count of entities which are indexed in one step when a new index is built
+	private static final int INDEX_BUILD_BATCH = 1024;
+	// the count of entities which are encoded or decoded by one task of a parallel batch
+	private static final int CODEC_BATCH = 1024;
+	// the cost of checking a candidate of a query by looking up its value, relative to collecting a match from a
+	// posting list
+	private static final int POINT_LOOKUP_COST = 4;
+	// the count of the stripes of the kind locks
+	private static final int KIND_LOCK_STRIPES = 64;
+	// orders the values of the attributes like the filters order the results
+	private static final Comparator<Object> VALUE_COMPARATOR = new Comparator<Object>() {
+
+		@Override
+		public int compare(Object o1, Object o2) {
+			return QueryPage.compareValues(o1, o2);
+		}
+	};
 
 	/**
 	 * Opens the given database, or creates a newone if the given file does not exists.
@@ -39,21 +88,96 @@ public final class EntityDB {
 	 * The EntityDB instance which represents a database connection.
 	 */
 	public static synchronized EntityDB connect(File dbFile) {
-		return new EntityDB(dbFile);
+		return connect(dbFile, new EntityDBConfig());
+	}
+
+	/**
+	 * Opens the given database using the given settings, or creates a newone if the given file does not exists.
+	 * 
+	 * @param dbFile
+	 * The url of the db file.
+	 * 
+	 * @param config
+	 * The settings of the connection.
+	 * 
+	 * @return 
+	 * The EntityDB instance which represents a database connection.
+	 */
+	public static synchronized EntityDB connect(File dbFile, EntityDBConfig config) {
+		if (config == null) {
+			throw new NullPointerException("The config parameter can not be null.");
+		}
+		return new EntityDB(dbFile, config);
 	}
-	private long nextId;
-	private final RandomAccessFile db;
+	// the counter of the ids, it isn't guarded by any lock, so the writers of different kinds don't wait for each other
+	private final AtomicLong nextId = new AtomicLong();
+	private final Storage storage;
+	// held shared by every operation, and exclusively by the snapshots, the changes of the index definitions, the
+	// compaction and close
 	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-	private boolean closed = false;
-	private FileLock fileLock;
-	private DbFileStructure structure = new DbFileStructure(HEADER_LENGTH);
-	private final HashMap<Long, Long> idCache = new HashMap<>();
-	private final Index<Long> longIndex = new Index<>();
-	private final Index<Boolean> boolIndex = new Index<>();
-	private final Index<String> stringIndex = new Index<>();
-
-	private EntityDB(File dbFile) {
+	// guards the indexes of the kinds, the writers of a kind hold its write lock while they change its entities
+	private final KindLocks kindLocks = new KindLocks(KIND_LOCK_STRIPES);
+	// guards the storage, the id map and the entity cache, it's held only while the records are read or written
+	private final ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
+	// set by a commit after which a snapshot needs to be written
+	private volatile boolean snapshotNeeded = false;
+	// set while holding the exclusive lock of the database, so it's checked again after acquiring the shared lock
+	private volatile boolean closed = false;
+	// serializes the calls of close, it's never held while waiting for the locks of the operations
+	private final Object closeLock = new Object();
+	private final LongLongMap idCache;
+	private final IndexDefinitions indexDefinitions;
+	private final KindIndex kindIndex = new KindIndex();
+	private final Index<Long> longIndex;
+	private final Index<Boolean> boolIndex;
+	private final Index<String> stringIndex;
+	private final CompositeIndex compositeIndex;
+	private final File snapshotFile;
+	private final File definitionsFile;
+	// serializes the changes of the index definitions
+	private final Object definitionLock = new Object();
+	private final int scanThreads;
+	// null if the entity cache is disabled
+	private final EntityCache entityCache;
+	private final Storage.Owner storageOwner = new Storage.Owner() {
+
+		@Override
+		public Lock getWriteLock() {
+			return readWriteLock.writeLock();
+		}
+
+		@Override
+		public long getLocation(long id) {
+			return idCache.get(id);
+		}
+
+		@Override
+		public void setLocation(long id, long location) {
+			idCache.put(id, location);
+		}
+
+		@Override
+		public void writeSnapshot() throws IOException {
+			EntityDB.this.writeSnapshot();
+		}
+	};
+
+	private EntityDB(File dbFile, EntityDBConfig config) {
+		snapshotFile = new File(dbFile.getPath() + ".idx");
+		definitionsFile = new File(dbFile.getPath() + ".def");
+		scanThreads = config.getScanThreads();
+		idCache = new LongLongMap(config.isOffHeapIdMap());
+		if (config.getEntityCacheSize() > 0 || config.getEntityCacheBytes() > 0) {
+			entityCache = new EntityCache(config.getEntityCacheSize(), config.getEntityCacheBytes());
+		} else {
+			entityCache = null;
+		}
 		if (!dbFile.exists()) {
+			// the log, the segments and the snapshot of a deleted database don't belong to the new one
+			new File(dbFile.getPath() + ".wal").delete();
+			LogStorage.deleteSegments(dbFile);
+			snapshotFile.delete();
+			definitionsFile.delete();
 			try {
 				if (!dbFile.createNewFile()) {
 					throw new RuntimeException("Can't create file.");
@@ -63,8 +187,14 @@ public final class EntityDB {
 					try {
 						fos = new FileOutputStream(dbFile);
 						dos = new DataOutputStream(fos);
-						dos.write(FILE_HEADER);
-						dos.writeLong(-1l);
+						if (config.getStorageEngine() == EntityDBConfig.EStorageEngine.LOG) {
+							dos.write(LogStorage.FILE_HEADER);
+						} else {
+							dos.write(FileStorage.FILE_HEADER);
+							// no record, no snapshot
+							dos.writeLong(-1l);
+							dos.writeLong(-1l);
+						}
 					} finally {
 						if (dos != null) {
 							dos.close();
@@ -81,76 +211,278 @@ public final class EntityDB {
 			throw new RuntimeException("The given file is a directory.");
 		}
 		try {
-			db = new RandomAccessFile(dbFile, "rwd");
-		} catch (FileNotFoundException ex) {
-			throw new RuntimeException("Can't create file.", ex);
+			indexDefinitions = IndexDefinitions.read(definitionsFile);
+		} catch (IOException ex) {
+			throw new RuntimeException("Can't read index definitions.", ex);
 		}
+		longIndex = new Index<>(indexDefinitions, Long.class);
+		boolIndex = new Index<>(indexDefinitions, Boolean.class);
+		stringIndex = new Index<>(indexDefinitions, String.class);
+		compositeIndex = new CompositeIndex(indexDefinitions);
 		try {
-			fileLock = db.getChannel().lock();
+			if (isLogStorage(dbFile)) {
+				storage = new LogStorage(dbFile, config);
+			} else {
+				storage = new FileStorage(dbFile, config);
+			}
 		} catch (IOException ex) {
-			throw new RuntimeException("The file is in use.", ex);
+			throw new RuntimeException("Can't open database.", ex);
 		}
+
 		try {
-			if (db.read() != (FILE_HEADER[0] & 0xff)) {
-				throw new RuntimeException("Invalid database format.");
+			if (!loadSnapshot()) {
+				try {
+					storage.recover(-1, null);
+				} catch (IOException ex) {
+					throw new RuntimeException("Can't recover database.", ex);
+				}
+				cacheDb();
 			}
-			if (db.read() != (FILE_HEADER[1] & 0xff)) {
-				throw new RuntimeException("Invalid database format.");
+		} catch (RuntimeException ex) {
+			try {
+				storage.close();
+			} catch (IOException | RuntimeException closeEx) {
+				// the original error is reported
 			}
-		} catch (IOException ex) {
-			throw new RuntimeException("Can't read database.", ex);
+			throw ex;
+		}
+
+		storage.start(storageOwner);
+
+		try {
+			for (Map.Entry<String, ? extends Map<String, EIndexType>> kindEntry : config.getIndexes().entrySet()) {
+				for (Map.Entry<String, EIndexType> attributeEntry : kindEntry.getValue().entrySet()) {
+					defineIndex(kindEntry.getKey(), attributeEntry.getKey(), attributeEntry.getValue());
+				}
+			}
+			for (Map.Entry<String, ? extends List<String[]>> kindEntry : config.getCompositeIndexes().entrySet()) {
+				for (String[] attributeNames : kindEntry.getValue()) {
+					defineCompositeIndex(kindEntry.getKey(), attributeNames);
+				}
+			}
+		} catch (RuntimeException ex) {
+			close(true);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Indicates if the given database is stored by the LOG storage engine.
+	 */
+	private static boolean isLogStorage(File dbFile) throws IOException {
+		byte[] header = new byte[LogStorage.FILE_HEADER.length];
+		DataInputStream dis = new DataInputStream(new FileInputStream(dbFile));
+		try {
+			dis.readFully(header);
+		} catch (EOFException ex) {
+			throw new RuntimeException("Invalid database format.", ex);
+		} finally {
+			dis.close();
+		}
+		return Arrays.equals(header, LogStorage.FILE_HEADER);
+	}
+
+	/**
+	 * Loads the index snapshot, and replays the changes which are made after it.
+	 *
+	 * @return
+	 * False if there is no valid snapshot which can be continued, and the database needs to be scanned.
+	 */
+	private boolean loadSnapshot() {
+		long generation = IndexSnapshot.read(snapshotFile, nextId, idCache, storage, kindIndex, longIndex, boolIndex,
+				stringIndex, compositeIndex);
+		if (generation < 0) {
+			return false;
 		}
+		try {
+			storage.recover(generation, new Storage.LogHandler() {
+
+				@Override
+				public long put(long id, long location, int length) throws IOException {
+					long prevLocation = idCache.get(id);
+					if (prevLocation != LongLongMap.NO_VALUE) {
+						uncacheAttribute(read(id));
+					}
+					idCache.put(id, location);
+					cacheAttributes(read(id));
+					if (id >= nextId.get()) {
+						nextId.set(id + 1);
+					}
+					return prevLocation;
+				}
 
-		cacheDb();
+				@Override
+				public long remove(long id) throws IOException {
+					Entity entity = read(id);
+					if (entity == null) {
+						return -1;
+					}
+					uncacheAttribute(entity);
+					return idCache.remove(id);
+				}
+			});
+		} catch (Throwable ex) {
+			throw new RuntimeException("Error reading index snapshot.", ex);
+		}
+		return true;
 	}
 
+	/**
+	 * Reads every record of the storage, and builds the in-memory indexes. The current thread reads the locations of
+	 * the records, and passes them in batches to the scan pool, which decodes them and indexes them in to per batch
+	 * indexes. The batches are merged in to the indexes at the end.
+	 */
 	private void cacheDb() {
+		final ForkJoinPool pool = scanThreads > 1 ? new ForkJoinPool(scanThreads) : null;
 		try {
-			long currentOffset = FILE_HEADER.length;
-			currentOffset = db.readLong();
-			long maxId = 0;
-			while (db.getFilePointer() < db.length()) {
-				long nextOffset = db.readLong();
-				ObjectInputStream ois = new ObjectInputStream(Channels.newInputStream(db.getChannel().position(currentOffset + 8)));
-				Entity e = (Entity) ois.readObject();
+			final List<Future<ScanBatch>> batches = new ArrayList<>();
+			final ScanBatch[] batch = new ScanBatch[]{new ScanBatch(storage, indexDefinitions)};
+			storage.scan(new Storage.ScanHandler() {
 
-				if (e.getId() > maxId) {
-					maxId = e.getId();
+				@Override
+				public void record(long location, int length, Entity entity) {
+					batch[0].add(location, length, entity);
+					if (batch[0].isFull()) {
+						batches.add(submit(pool, batch[0]));
+						batch[0] = new ScanBatch(storage, indexDefinitions);
+					}
 				}
-				structure.addPiece(currentOffset, db.getFilePointer() - currentOffset);
-				idCache.put(e.getId(), currentOffset);
-				cacheAttributes(e);
+			});
+			batches.add(submit(pool, batch[0]));
 
-				if (nextOffset < 0) {
-					break;
+			long maxId = 0;
+			for (Future<ScanBatch> future : batches) {
+				ScanBatch done = future.get();
+				for (int i = 0; i < done.size; i++) {
+					idCache.put(done.ids[i], done.locations[i]);
 				}
-				currentOffset = nextOffset;
+				maxId = Math.max(maxId, done.maxId);
+				kindIndex.merge(done.kindIndex);
+				compositeIndex.merge(done.compositeIndex);
+				longIndex.merge(done.longIndex);
+				boolIndex.merge(done.boolIndex);
+				stringIndex.merge(done.stringIndex);
 			}
-			nextId = maxId + 1;
+			nextId.set(maxId + 1);
 		} catch (Throwable ex) {
 			throw new RuntimeException("Error reading db file.", ex);
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	private static Future<ScanBatch> submit(ForkJoinPool pool, ScanBatch batch) {
+		if (pool != null) {
+			return pool.submit(batch);
+		}
+		FutureTask<ScanBatch> res = new FutureTask<>(batch);
+		res.run();
+		return res;
+	}
+
+	/**
+	 * A batch of records of the startup scan, which are decoded and indexed by one thread.
+	 */
+	private static final class ScanBatch implements Callable<ScanBatch> {
+
+		private static final int MAX_RECORDS = 1024;
+		private static final long MAX_BYTES = 4 * 1024 * 1024;
+
+		private final Storage storage;
+		private final long[] locations = new long[MAX_RECORDS];
+		private final int[] lengths = new int[MAX_RECORDS];
+		private final Entity[] decoded = new Entity[MAX_RECORDS];
+		private final long[] ids = new long[MAX_RECORDS];
+		private int size = 0;
+		private long bytes = 0;
+		private long maxId = 0;
+		private final KindIndex kindIndex = new KindIndex();
+		private final Index<Long> longIndex;
+		private final Index<Boolean> boolIndex;
+		private final Index<String> stringIndex;
+		private final CompositeIndex compositeIndex;
+
+		ScanBatch(Storage storage, IndexDefinitions indexDefinitions) {
+			this.storage = storage;
+			longIndex = new Index<>(indexDefinitions, Long.class);
+			boolIndex = new Index<>(indexDefinitions, Boolean.class);
+			stringIndex = new Index<>(indexDefinitions, String.class);
+			compositeIndex = new CompositeIndex(indexDefinitions);
+		}
+
+		void add(long location, int length, Entity entity) {
+			locations[size] = location;
+			lengths[size] = length;
+			decoded[size] = entity;
+			size++;
+			bytes += length;
+		}
+
+		boolean isFull() {
+			return size >= MAX_RECORDS || bytes >= MAX_BYTES;
+		}
+
+		@Override
+		public ScanBatch call() throws IOException {
+			for (int i = 0; i < size; i++) {
+				Entity e = decoded[i];
+				if (e == null) {
+					ByteBuffer record = storage.read(locations[i], lengths[i]);
+					try {
+						e = EntityCodec.decode(record);
+					} finally {
+						storage.release(record);
+					}
+				}
+				decoded[i] = null;
+				ids[i] = e.getId();
+				if (e.getId() > maxId) {
+					maxId = e.getId();
+				}
+				cacheAttributes(e, kindIndex, longIndex, boolIndex, stringIndex, compositeIndex);
+			}
+			return this;
 		}
 	}
 
 	private void cacheAttributes(Entity entity) {
+		cacheAttributes(entity, kindIndex, longIndex, boolIndex, stringIndex, compositeIndex);
+	}
+
+	/**
+	 * Adds the given entity to the indexes. The previous version of the entity needs to be removed from the indexes
+	 * first. The attributes which aren't indexed are skipped by the indexes.
+	 */
+	private static void cacheAttributes(Entity entity, KindIndex kindIndex, Index<Long> longIndex,
+			Index<Boolean> boolIndex, Index<String> stringIndex, CompositeIndex compositeIndex) {
+		kindIndex.put(entity.getKind(), entity.getId());
+		compositeIndex.put(entity);
 		for (String attributeName : entity.getAttributeNames()) {
-			longIndex.remove(entity.getKind(), attributeName, entity.getId());
-			stringIndex.remove(entity.getKind(), attributeName, entity.getId());
-			boolIndex.remove(entity.getKind(), attributeName, entity.getId());
-			Object value = entity.getAttribute(attributeName);
-			if (value instanceof Long) {
-				longIndex.put(entity.getKind(), attributeName, entity.getId(), (Long) value);
-			} else if (value instanceof String) {
-				stringIndex.put(entity.getKind(), attributeName, entity.getId(), ((String) value).toLowerCase());
-			} else if (value instanceof Boolean) {
-				boolIndex.put(entity.getKind(), attributeName, entity.getId(), (Boolean) value);
-			} else {
-				throw new RuntimeException("Invalid value in database.");
-			}
+			cacheAttribute(entity, attributeName, longIndex, boolIndex, stringIndex);
+		}
+	}
+
+	private static void cacheAttribute(Entity entity, String attributeName, Index<Long> longIndex,
+			Index<Boolean> boolIndex, Index<String> stringIndex) {
+		Object value = entity.getAttribute(attributeName);
+		if (value == null) {
+			// null attributes aren't indexed
+		} else if (value instanceof Long) {
+			longIndex.put(entity.getKind(), attributeName, entity.getId(), (Long) value);
+		} else if (value instanceof String) {
+			stringIndex.put(entity.getKind(), attributeName, entity.getId(), (String) value);
+		} else if (value instanceof Boolean) {
+			boolIndex.put(entity.getKind(), attributeName, entity.getId(), (Boolean) value);
+		} else {
+			throw new RuntimeException("Invalid value in database.");
 		}
 	}
 
 	private void uncacheAttribute(Entity entity) {
+		kindIndex.remove(entity.getKind(), entity.getId());
+		compositeIndex.remove(entity.getKind(), entity.getId());
 		for (String attributeName : entity.getAttributeNames()) {
 			longIndex.remove(entity.getKind(), attributeName, entity.getId());
 			stringIndex.remove(entity.getKind(), attributeName, entity.getId());
@@ -158,8 +490,8 @@ public final class EntityDB {
 		}
 	}
 
-	synchronized long getNextId() {
-		return nextId++;
+	long getNextId() {
+		return nextId.getAndIncrement();
 	}
 
 	/**
@@ -168,7 +500,7 @@ public final class EntityDB {
 	 * @return 
 	 * The new {@link DB} instance which can be used to operate with the database. 
 	 */
-	public synchronized DB getDB() {
+	public DB getDB() {
 		if (closed) {
 			throw new IllegalStateException("This db is closed.");
 		}
@@ -181,48 +513,64 @@ public final class EntityDB {
 			throw new IllegalStateException("This db is closed.");
 		}
 
-		WriteLock lock = readWriteLock.writeLock();
-		lock.lock();
+		if (entity.getKind() == null) {
+			throw new NullPointerException("The kind of the entity can not be null.");
+		}
+
+		long lsn;
+		Lock[] locks = lockKinds(Collections.singleton(entity.getKind()));
 		try {
 			long id = entity.getId();
-			if (entity.getId() > -1) {
-				remove(entity.getId());
-			}
-			if (id < 0) {
+			Entity oldEntity = null;
+			if (id > -1) {
+				oldEntity = readOld(id, entity.getKind());
+			} else {
 				id = getNextId();
 				entity.setId(id);
 			}
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(baos);
-			oos.writeObject(entity);
-			oos.flush();
-			byte[] bytes = baos.toByteArray();
-
-			long[] offsets = structure.getEmptySpace(bytes.length + 8);
-			long prevOffset = offsets[0];
-			long freeOffset = offsets[1];
-			long nextOffset = offsets[2];
-
-			db.seek(freeOffset);
-			db.writeLong(nextOffset);
-			db.write(bytes);
-			if (prevOffset > -1) {
-				db.seek(prevOffset);
-				db.writeLong(freeOffset);
-			} else {
-				db.seek(FILE_HEADER.length);
-				db.writeLong(freeOffset);
-			}
+			byte[] bytes = EntityCodec.encode(entity);
 
-			structure.addPiece(freeOffset, bytes.length + 8);
+			Lock lock = storageLock.writeLock();
+			lock.lock();
+			try {
+				long location = storage.write(id, oldEntity == null ? -1 : idCache.get(id), bytes);
 
-			idCache.put(id, freeOffset);
+				idCache.put(id, location);
+				if (entityCache != null) {
+					entityCache.invalidate(id);
+				}
+				lsn = commit();
+			} finally {
+				lock.unlock();
+			}
+			if (oldEntity != null) {
+				uncacheAttribute(oldEntity);
+			}
 			cacheAttributes(entity);
 		} catch (IOException ex) {
 			throw new RuntimeException("Error writing database.", ex);
 		} finally {
-			lock.unlock();
+			unlockKinds(locks);
+		}
+		finishCommit(lsn);
+	}
+
+	/**
+	 * Reads the stored version of an entity which is changed. Must be called while holding the write lock of the
+	 * given kind.
+	 *
+	 * @throws IllegalArgumentException
+	 * If the entity can't be found, or it has an other kind.
+	 */
+	private Entity readOld(long id, String kind) {
+		Entity res = readShared(id);
+		if (res == null) {
+			throw new IllegalArgumentException("No entity can be found with id: " + id);
 		}
+		if (!res.getKind().equals(kind)) {
+			throw new IllegalArgumentException("The kind of the entity can't be changed: " + id);
+		}
+		return res;
 	}
 
 	void remove(long id) {
@@ -230,197 +578,1781 @@ public final class EntityDB {
 			throw new IllegalStateException("This db is closed.");
 		}
 
-		WriteLock lock = readWriteLock.writeLock();
-		lock.lock();
-		try {
+		removeAll(Collections.singleton(id));
+	}
+
+	/**
+	 * Puts the given entities with one acquisition of the locks of their kinds, and one commit. The entities are
+	 * encoded in parallel, and the storage writes the records with as few writes as possible. If an entity is put more
+	 * than once, its last version is stored. Nothing is stored if an entity is invalid.
+	 */
+	void putAll(Collection<Entity> entities) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (entities == null) {
+			throw new NullPointerException("The entities parameter can not be null.");
+		}
 
-			Long offset = idCache.get(id);
-			if (offset == null) {
-				throw new IllegalArgumentException("No entity can be found with id: " + id);
+		// the last version of every entity, the same new entity object is stored once
+		LinkedHashMap<Object, Entity> batch = new LinkedHashMap<>();
+		for (Entity entity : entities) {
+			if (entity == null) {
+				throw new NullPointerException("The entities can not be null.");
 			}
-			long[] surround = structure.getPieceSurround(offset);
-			long prevOffset = surround[0];
-			long currOffset = surround[1];
-			long nextOffset = surround[2];
+			Object key = entity.getId() > -1 ? (Object) entity.getId() : new IdentityKey(entity);
+			batch.remove(key);
+			batch.put(key, entity);
+		}
+		Entity[] batchEntities = batch.values().toArray(new Entity[batch.size()]);
+		if (batchEntities.length == 0) {
+			return;
+		}
 
-			Entity entity = read(id);
+		HashSet<String> kinds = new HashSet<>();
+		for (Entity entity : batchEntities) {
+			if (entity.getKind() == null) {
+				throw new NullPointerException("The kind of the entity can not be null.");
+			}
+			kinds.add(entity.getKind());
+		}
 
-			if (prevOffset > -1) {
-				db.seek(prevOffset);
-				db.writeLong(nextOffset);
-			} else {
-				db.seek(FILE_HEADER.length);
-				db.writeLong(currOffset);
+		long lsn;
+		Lock[] locks = lockKinds(kinds);
+		try {
+			long[] ids = new long[batchEntities.length];
+			long[] oldLocations = new long[batchEntities.length];
+			Entity[] oldEntities = new Entity[batchEntities.length];
+			for (int i = 0; i < batchEntities.length; i++) {
+				ids[i] = batchEntities[i].getId();
+				oldLocations[i] = -1;
+				if (ids[i] > -1) {
+					oldEntities[i] = readOld(ids[i], batchEntities[i].getKind());
+				}
+			}
+			for (int i = 0; i < batchEntities.length; i++) {
+				if (ids[i] < 0) {
+					ids[i] = getNextId();
+					batchEntities[i].setId(ids[i]);
+				}
+			}
+			byte[][] records;
+			try {
+				records = encodeAll(batchEntities);
+			} catch (RuntimeException ex) {
+				// the new entities aren't stored
+				for (int i = 0; i < batchEntities.length; i++) {
+					if (oldEntities[i] == null) {
+						batchEntities[i].setId(-1);
+					}
+				}
+				throw ex;
 			}
 
-			structure.removePiece(currOffset);
+			Lock lock = storageLock.writeLock();
+			lock.lock();
+			try {
+				for (int i = 0; i < batchEntities.length; i++) {
+					if (oldEntities[i] != null) {
+						oldLocations[i] = idCache.get(ids[i]);
+					}
+				}
+				long[] locations = storage.writeAll(ids, oldLocations, records);
 
-			uncacheAttribute(entity);
+				for (int i = 0; i < batchEntities.length; i++) {
+					idCache.put(ids[i], locations[i]);
+					if (entityCache != null) {
+						entityCache.invalidate(ids[i]);
+					}
+				}
+				lsn = commit();
+			} finally {
+				lock.unlock();
+			}
+			for (int i = 0; i < batchEntities.length; i++) {
+				if (oldEntities[i] != null) {
+					uncacheAttribute(oldEntities[i]);
+				}
+				cacheAttributes(batchEntities[i]);
+			}
 		} catch (IOException ex) {
 			throw new RuntimeException("Error writing database.", ex);
 		} finally {
-			lock.unlock();
+			unlockKinds(locks);
 		}
+		finishCommit(lsn);
 	}
 
-	Entity get(long id) {
-		if (closed) {
-			throw new IllegalStateException("This db is closed.");
+	/**
+	 * Compares the entities by identity, to find the new entity objects which are put more than once.
+	 */
+	private static final class IdentityKey {
+
+		private final Entity entity;
+
+		IdentityKey(Entity entity) {
+			this.entity = entity;
 		}
 
-		ReadLock lock = readWriteLock.readLock();
-		lock.lock();
-		try {
-			return read(id);
-		} finally {
-			lock.unlock();
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj).entity == entity;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(entity);
 		}
 	}
 
-	private Entity read(long id) {
-		Long offset = idCache.get(id);
-		if (offset == null) {
-			return null;
+	/**
+	 * Encodes the given entities, in parallel if there are many of them.
+	 */
+	private byte[][] encodeAll(final Entity[] entities) {
+		final byte[][] res = new byte[entities.length][];
+		runBatches(entities.length, new CodecTask() {
+
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					res[i] = EntityCodec.encode(entities[i]);
+				}
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Decodes the given records, in parallel if there are many of them.
+	 */
+	private Entity[] decodeAll(final ByteBuffer[] records) {
+		final Entity[] res = new Entity[records.length];
+		runBatches(records.length, new CodecTask() {
+
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					res[i] = EntityCodec.decode(records[i]);
+				}
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Encodes or decodes a range of the entities of a batch.
+	 */
+	private static interface CodecTask {
+
+		void run(int from, int to);
+	}
+
+	/**
+	 * Runs the given task on the whole batch. If the batch is large, it's split into parts of
+	 * <code>CODEC_BATCH</code> entities, which are run in parallel on <code>scanThreads</code> threads.
+	 */
+	private void runBatches(int count, final CodecTask task) {
+		if (scanThreads <= 1 || count < 2 * CODEC_BATCH) {
+			task.run(0, count);
+			return;
 		}
+
+		ForkJoinPool pool = new ForkJoinPool(scanThreads);
 		try {
-			db.seek(offset + 8);
-			ObjectInputStream ois = new ObjectInputStream(Channels.newInputStream(db.getChannel().position(offset + 8)));
-			Entity res = (Entity) ois.readObject();
-			return res;
-		} catch (Throwable ex) {
-			throw new RuntimeException("Error reading db file.", ex);
-		}
+			List<Future<?>> batches = new ArrayList<>();
+			for (int from = 0; from < count; from += CODEC_BATCH) {
+				final int start = from;
+				final int end = Math.min(from + CODEC_BATCH, count);
+				batches.add(pool.submit(new Runnable() {
 
+					@Override
+					public void run() {
+						task.run(start, end);
+					}
+				}));
+			}
+			for (Future<?> batch : batches) {
+				batch.get();
+			}
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new RuntimeException("Error in a batch.", ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while processing a batch.", ex);
+		} finally {
+			pool.shutdownNow();
+		}
 	}
 
-	List<Long> queryKeys(Filter filter) {
+	/**
+	 * Removes the entities with the given ids with one acquisition of the locks of their kinds, and one commit.
+	 * Nothing is removed if an id can't be found.
+	 */
+	void removeAll(Collection<Long> ids) {
 		if (closed) {
 			throw new IllegalStateException("This db is closed.");
 		}
 
-		if (filter == null) {
-			throw new NullPointerException("The filter parameter can not be null.");
+		if (ids == null) {
+			throw new NullPointerException("The ids parameter can not be null.");
 		}
 
-		ReadLock lock = readWriteLock.readLock();
-		lock.lock();
+		LinkedHashSet<Long> batch = new LinkedHashSet<>(ids);
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		// the kinds of the entities are needed to lock them
+		HashSet<String> kinds = new HashSet<>();
+		ReadLock readLock = lockShared();
 		try {
-			return queryIndex(filter.getKind(), filter.getFilterItem());
+			for (Long id : batch) {
+				Entity entity = id == null ? null : readShared(id);
+				if (entity == null) {
+					throw new IllegalArgumentException("No entity can be found with id: " + id);
+				}
+				kinds.add(entity.getKind());
+			}
 		} finally {
-			lock.unlock();
+			readLock.unlock();
 		}
-	}
-	
-	List<Entity> query(Filter filter) {
-		List<Long> keys = queryKeys(filter);
-		List<Entity> res = new LinkedList<>();
-		for (Long key : keys) {
-			res.add(read(key));
+
+		long lsn;
+		Lock[] locks = lockKinds(kinds);
+		try {
+			long[] batchIds = new long[batch.size()];
+			Entity[] entities = new Entity[batch.size()];
+			int i = 0;
+			for (long id : batch) {
+				// the entity can be removed since its kind is read
+				entities[i] = readShared(id);
+				if (entities[i] == null) {
+					throw new IllegalArgumentException("No entity can be found with id: " + id);
+				}
+				batchIds[i++] = id;
+			}
+
+			Lock lock = storageLock.writeLock();
+			lock.lock();
+			try {
+				for (long id : batchIds) {
+					storage.remove(id, idCache.get(id));
+
+					idCache.remove(id);
+					if (entityCache != null) {
+						entityCache.invalidate(id);
+					}
+				}
+				lsn = commit();
+			} finally {
+				lock.unlock();
+			}
+			for (Entity entity : entities) {
+				uncacheAttribute(entity);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Error writing database.", ex);
+		} finally {
+			unlockKinds(locks);
 		}
-		return res;
+		finishCommit(lsn);
 	}
-	
-	Entity querySingleton(Filter filter) {
-		List<Entity> results = query(filter);
-		if (results.size() > 1) {
-			throw new RuntimeException("More than one results are returned by the query.");
-		} 
-		
+
+	/**
+	 * Acquires the shared lock of the database, and the write locks of the given kinds. The writers change the
+	 * indexes of their kinds while they hold these locks, and they hold the write lock of the storage only while the
+	 * records are written.
+	 *
+	 * @return
+	 * The locks to pass to the <code>unlockKinds</code> method.
+	 */
+	private Lock[] lockKinds(Collection<String> kinds) {
+		lockShared();
+		return kindLocks.lockWrite(kinds);
+	}
+
+	/**
+	 * Acquires the shared lock of the database, and the read lock of the given kind, so its indexes and entities
+	 * aren't changed while they are read.
+	 *
+	 * @return
+	 * The locks to pass to the <code>unlockKinds</code> method.
+	 */
+	private Lock[] lockKindForRead(String kind) {
+		lockShared();
+		return kindLocks.lockRead(kind);
+	}
+
+	private void unlockKinds(Lock[] locks) {
+		KindLocks.unlock(locks);
+		readWriteLock.readLock().unlock();
+	}
+
+	/**
+	 * Acquires the shared lock of the database. The database can be closed while an operation waits for the lock, so
+	 * it's checked again after the lock is acquired.
+	 *
+	 * @throws IllegalStateException
+	 * If the database is closed.
+	 */
+	private ReadLock lockShared() {
+		ReadLock res = readWriteLock.readLock();
+		res.lock();
+		if (closed) {
+			res.unlock();
+			throw new IllegalStateException("This db is closed.");
+		}
+		return res;
+	}
+
+	/**
+	 * Acquires the exclusive lock of the database, and checks that it isn't closed while waiting for the lock.
+	 *
+	 * @throws IllegalStateException
+	 * If the database is closed.
+	 */
+	private WriteLock lockExclusive() {
+		WriteLock res = readWriteLock.writeLock();
+		res.lock();
+		if (closed) {
+			res.unlock();
+			throw new IllegalStateException("This db is closed.");
+		}
+		return res;
+	}
+
+	/**
+	 * Commits the changes of the current operation. Must be called while holding the write lock of the storage.
+	 * 
+	 * @return 
+	 * The value to pass to the <code>finishCommit(long)</code> method after releasing the locks.
+	 */
+	private long commit() throws IOException {
+		long lsn = storage.commit();
+		if (storage.isSnapshotNeeded()) {
+			snapshotNeeded = true;
+		}
+		return lsn;
+	}
+
+	/**
+	 * Waits until the given commit is durable, and writes a snapshot if it's needed. The snapshot needs the
+	 * exclusive lock of the database, so it must be called after releasing the locks of the operation.
+	 */
+	private void finishCommit(long lsn) {
+		storage.awaitDurable(lsn);
+		if (!snapshotNeeded) {
+			return;
+		}
+		WriteLock lock = readWriteLock.writeLock();
+		lock.lock();
+		try {
+			// an other writer can write the snapshot first
+			if (snapshotNeeded && !closed) {
+				writeSnapshot();
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Error writing database.", ex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Persists the changes of the storage, and writes the snapshot of the indexes. Must be called while holding the
+	 * exclusive lock of the database, so every operation waits until the whole snapshot is written and forced to the
+	 * disk.
+	 */
+	private void writeSnapshot() throws IOException {
+		snapshotNeeded = false;
+		long generation = storage.startSnapshot();
+		IndexSnapshot.write(snapshotFile, generation, nextId.get(), idCache, storage, kindIndex, longIndex, boolIndex,
+				stringIndex, compositeIndex);
+		storage.finishSnapshot(generation);
+	}
+
+	Entity get(long id) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		ReadLock lock = lockShared();
+		try {
+			return readCopy(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	List<Entity> getAll(Collection<Long> ids) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (ids == null) {
+			throw new NullPointerException("The ids parameter can not be null.");
+		}
+
+		long[] keys = new long[ids.size()];
+		int i = 0;
+		for (Long id : ids) {
+			if (id == null) {
+				throw new NullPointerException("The ids can not be null.");
+			}
+			keys[i++] = id;
+		}
+
+		ReadLock lock = lockShared();
+		try {
+			return Arrays.asList(readAllCopies(keys));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the entities with the given ids, which are returned to the caller, like the <code>readCopy</code>
+	 * method. The entities which aren't cached are read in the order of their locations, so the records which are
+	 * next to each other are read together, and they are decoded in parallel. Must be called while holding the shared
+	 * lock of the database.
+	 *
+	 * @return
+	 * The entities in the order of the ids, with null for the ids which can't be found.
+	 */
+	private Entity[] readAllCopies(long[] ids) {
+		Lock lock = storageLock.readLock();
+		lock.lock();
+		try {
+			return readAllCopiesLocked(ids);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Entity[] readAllCopiesLocked(long[] ids) {
+		Entity[] res = new Entity[ids.length];
+		final long[] locations = new long[ids.length];
+		Integer[] order = new Integer[ids.length];
+		int count = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (entityCache != null) {
+				Entity cached = entityCache.get(ids[i]);
+				if (cached != null) {
+					res[i] = cached.copy();
+					continue;
+				}
+			}
+			long location = idCache.get(ids[i]);
+			if (location != LongLongMap.NO_VALUE) {
+				locations[i] = location;
+				order[count++] = i;
+			}
+		}
+		if (count == 0) {
+			return res;
+		}
+
+		Arrays.sort(order, 0, count, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(locations[o1], locations[o2]);
+			}
+		});
+		long[] sortedLocations = new long[count];
+		int[] lengths = new int[count];
+		for (int i = 0; i < count; i++) {
+			sortedLocations[i] = locations[order[i]];
+			lengths[i] = storage.getLength(sortedLocations[i]);
+		}
+		Entity[] decoded;
+		try {
+			decoded = decodeAll(storage.readAll(sortedLocations, lengths));
+		} catch (Throwable ex) {
+			throw new RuntimeException("Error reading db file.", ex);
+		}
+		for (int i = 0; i < count; i++) {
+			Entity entity = decoded[i];
+			if (entityCache != null && EntityCache.isCacheable(entity)) {
+				entityCache.put(entity, lengths[i]);
+				entity = entity.copy();
+			}
+			res[order[i]] = entity;
+		}
+		return res;
+	}
+
+	/**
+	 * Reads an entity which is returned to the caller. If the entity cache is enabled, the cached entity is copied,
+	 * so the caller can't change the cached one.
+	 */
+	private Entity readCopy(long id) {
+		Entity res = readShared(id);
+		if (res != null && entityCache != null) {
+			res = res.copy();
+		}
+		return res;
+	}
+
+	/**
+	 * Reads an entity through the entity cache. The returned entity can be shared with the cache, so it must not be
+	 * changed, or returned to the caller. Must be called while holding the shared lock of the database.
+	 */
+	private Entity readShared(long id) {
+		Lock lock = storageLock.readLock();
+		lock.lock();
+		try {
+			if (entityCache == null) {
+				return read(id);
+			}
+			Entity res = entityCache.get(id);
+			if (res == null) {
+				res = read(id);
+				if (res != null && EntityCache.isCacheable(res)) {
+					entityCache.put(res, storage.getLength(idCache.get(id)));
+				}
+			}
+			return res;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads an entity from the storage. Must be called while holding the read lock of the storage, or while no other
+	 * thread uses the database.
+	 */
+	private Entity read(long id) {
+		long location = idCache.get(id);
+		if (location == LongLongMap.NO_VALUE) {
+			return null;
+		}
+		ByteBuffer record = null;
+		try {
+			record = storage.read(location, storage.getLength(location));
+			return EntityCodec.decode(record);
+		} catch (Throwable ex) {
+			throw new RuntimeException("Error reading db file.", ex);
+		} finally {
+			if (record != null) {
+				storage.release(record);
+			}
+		}
+
+	}
+
+	IdSet queryIds(Filter filter) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (filter == null) {
+			throw new NullPointerException("The filter parameter can not be null.");
+		}
+
+		Lock[] locks = lockKindForRead(filter.getKind());
+		try {
+			return collectIds(filter);
+		} finally {
+			unlockKinds(locks);
+		}
+	}
+
+	/**
+	 * Returns the keys of the results of the given filter (or of the selected page of the results) in ascending
+	 * order. Must be called while holding the read lock of the kind.
+	 */
+	private IdSet collectIds(Filter filter) {
+		if (filter.isPaged()) {
+			IdSet res = new IdSet();
+			for (long key : queryPage(filter, Integer.MAX_VALUE)) {
+				res.add(key);
+			}
+			return res;
+		}
+		return queryIndex(filter.getKind(), filter.getFilterItem());
+	}
+
+	List<Long> queryKeys(Filter filter) {
+		if (!filter.isPaged()) {
+			return queryIds(filter).toList();
+		}
+		long[] keys = queryPageKeys(filter, Integer.MAX_VALUE);
+		List<Long> res = new ArrayList<>(keys.length);
+		for (long key : keys) {
+			res.add(key);
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the keys of the selected page of the results of the given filter, in the order of the filter.
+	 */
+	private long[] queryPageKeys(Filter filter, int maxCount) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (filter == null) {
+			throw new NullPointerException("The filter parameter can not be null.");
+		}
+
+		Lock[] locks = lockKindForRead(filter.getKind());
+		try {
+			return queryPage(filter, maxCount);
+		} finally {
+			unlockKinds(locks);
+		}
+	}
+	
+	List<Entity> query(Filter filter) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (filter == null) {
+			throw new NullPointerException("The filter parameter can not be null.");
+		}
+
+		Lock[] locks = lockKindForRead(filter.getKind());
+		try {
+			long[] keys = filter.isPaged() ? queryPage(filter, Integer.MAX_VALUE)
+					: queryIndex(filter.getKind(), filter.getFilterItem()).toArray();
+			return new ArrayList<>(Arrays.asList(readAllCopies(keys)));
+		} finally {
+			unlockKinds(locks);
+		}
+	}
+	
+	/**
+	 * Returns the values of the given attributes of the results of the given filter. The values of the indexed
+	 * attributes are read from the indexes, the entities are read only if an attribute isn't indexed.
+	 */
+	List<Projection> queryProjection(Filter filter, String... attributeNames) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (filter == null) {
+			throw new NullPointerException("The filter parameter can not be null.");
+		}
+
+		if (attributeNames == null) {
+			throw new NullPointerException("The attributeNames parameter can not be null.");
+		}
+		String[] names = attributeNames.clone();
+		for (String attributeName : names) {
+			if (attributeName == null) {
+				throw new NullPointerException("The attribute names can not be null.");
+			}
+		}
+
+		Lock[] locks = lockKindForRead(filter.getKind());
+		try {
+			String kind = filter.getKind();
+			long[] keys = filter.isPaged() ? queryPage(filter, Integer.MAX_VALUE)
+					: queryIndex(kind, filter.getFilterItem()).toArray();
+			boolean[] indexed = new boolean[names.length];
+			boolean read = false;
+			for (int i = 0; i < names.length; i++) {
+				indexed[i] = indexDefinitions.isQueryable(kind, names[i]);
+				read |= !indexed[i];
+			}
+			List<Projection> res = new ArrayList<>(keys.length);
+			for (long key : keys) {
+				Entity entity = read ? readShared(key) : null;
+				Object[] values = new Object[names.length];
+				for (int i = 0; i < names.length; i++) {
+					if (indexed[i]) {
+						values[i] = getOriginalValue(kind, names[i], key);
+					} else if (entity != null) {
+						values[i] = entity.getAttribute(names[i]);
+					}
+				}
+				res.add(new Projection(key, names, values));
+			}
+			return res;
+		} finally {
+			unlockKinds(locks);
+		}
+	}
+
+	/**
+	 * Returns the value of an indexed attribute of the given entity from the indexes, with the original case of the
+	 * strings.
+	 */
+	private Object getOriginalValue(String kind, String attributeName, long entityId) {
+		Object res = longIndex.getOriginal(kind, attributeName, entityId);
+		if (res == null) {
+			res = stringIndex.getOriginal(kind, attributeName, entityId);
+		}
+		if (res == null) {
+			res = boolIndex.getOriginal(kind, attributeName, entityId);
+		}
+		return res;
+	}
+
+	IQueryIterator queryIterator(Filter filter) {
+		return createIterator(filter);
+	}
+
+	IQueryStream queryStream(Filter filter) {
+		return new QueryIterator.Stream(createIterator(filter));
+	}
+
+	private QueryIterator createIterator(Filter filter) {
+		if (filter != null && filter.isPaged()) {
+			return new QueryIterator(this, filter, queryPageKeys(filter, Integer.MAX_VALUE));
+		}
+		return new QueryIterator(this, filter, queryIds(filter));
+	}
+
+	/**
+	 * Reads an entity for a query iterator.
+	 *
+	 * @return
+	 * A copy of the entity, or null if the entity is removed, or it doesn't match the filter of the query any more.
+	 */
+	Entity readMatching(long id, Filter filter) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		ReadLock lock = lockShared();
+		try {
+			Entity res = readCopy(id);
+			if (res == null || !res.getKind().equals(filter.getKind())
+					|| !FilterMatcher.matches(res, filter.getFilterItem())) {
+				return null;
+			}
+			return res;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	Entity querySingleton(Filter filter) {
+		try (IQueryIterator results = queryIterator(filter)) {
+			if (!results.hasNext()) {
+				throw new RuntimeException("No results are returned by the query.");
+			}
+			Entity res = results.next();
+			if (results.hasNext()) {
+				throw new RuntimeException("More than one results are returned by the query.");
+			}
+			return res;
+		}
+	}
+	
+	Entity queryFirst(Filter filter) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (filter == null) {
+			throw new NullPointerException("The filter parameter can not be null.");
+		}
+
+		// the walk stops at the first matching key, and the entity is read before the lock of its kind is released,
+		// so it can't be removed or changed by an other writer meanwhile
+		Lock[] locks = lockKindForRead(filter.getKind());
+		try {
+			long[] keys = queryPage(filter, 1);
+			return keys.length > 0 ? readCopy(keys[0]) : null;
+		} finally {
+			unlockKinds(locks);
+		}
+	}
+	
+	long querySingletonKey(Filter filter) {
+		IdSet results = queryIds(filter);
+		if (results.size() > 1) {
+			throw new RuntimeException("More than one results are returned by the query.");
+		} 
+		
 		if (results.size() < 1) {
 			throw new RuntimeException("No results are returned by the query.");
 		}
-		
-		return results.get(0);
+		
+		return results.next(0);
+	}
+	
+	long queryFirstKey(Filter filter) {
+		// the walk stops at the first matching key
+		long[] keys = queryPageKeys(filter, 1);
+		return keys.length > 0 ? keys[0] : -1;
+	}
+
+	/**
+	 * Returns the keys of the selected page of the results of the given filter, in the order of the filter. Must be
+	 * called while holding the read lock of the kind.
+	 *
+	 * If the results are ordered by their keys, or by an attribute which has an ORDERED or NGRAM index, the keys are
+	 * walked in order, and the walk stops when the page is complete. The matching keys are collected before the walk,
+	 * or every walked key is checked against the filter, whichever is cheaper. Otherwise the matching entities are
+	 * sorted by the values of the order attribute.
+	 *
+	 * @param maxCount
+	 * The maximum count of the returned keys, besides the limit of the filter.
+	 */
+	private long[] queryPage(Filter filter, int maxCount) {
+		String kind = filter.getKind();
+		String orderAttribute = filter.getOrderAttribute();
+		QueryPage page = new QueryPage(filter, maxCount);
+		IdSet kindIds = kindIndex.get(kind);
+		if (kindIds == null || page.isFull()) {
+			return page.getKeys();
+		}
+
+		int limit = filter.getLimit() < 0 ? maxCount : Math.min(filter.getLimit(), maxCount);
+		boolean ordered = orderAttribute == null || isOrdered(kind, orderAttribute);
+		IdSet matches = null;
+		if (!ordered || !isWalkCheaper(kind, filter.getFilterItem(), (long) filter.getOffset() + limit,
+				kindIds.size())) {
+			matches = queryIndex(kind, filter.getFilterItem());
+		}
+
+		if (orderAttribute == null) {
+			boolean descending = filter.getDirection() == Filter.EDirection.DESCENDING;
+			long from = descending ? Long.MAX_VALUE : 0;
+			if (filter.hasCursor()) {
+				from = descending ? filter.getCursorKey() - 1 : filter.getCursorKey() + 1;
+			}
+			walkKeys(page, filter, matches == null ? kindIds : matches, from, matches);
+		} else if (ordered) {
+			walkValues(page, filter, kindIds, matches);
+		} else {
+			for (long id = matches.next(0); id >= 0; id = matches.next(id + 1)) {
+				page.addUnordered(getValue(kind, orderAttribute, id), id);
+			}
+			page.sortUnordered();
+		}
+		return page.getKeys();
+	}
+
+	/**
+	 * Indicates if the values of the given attribute can be walked in order from its index.
+	 */
+	private boolean isOrdered(String kind, String attributeName) {
+		EIndexType type = indexDefinitions.getType(kind, attributeName);
+		return type != null && type != EIndexType.HASH && indexDefinitions.isQueryable(kind, attributeName);
+	}
+
+	/**
+	 * Indicates if checking the walked keys one by one against the filter is cheaper than collecting every matching
+	 * key before the walk. The walk is expected to check <code>wanted * kindCount / estimate</code> keys until it
+	 * finds the wanted count of results.
+	 */
+	private boolean isWalkCheaper(String kind, AFilterItem filterItem, long wanted, long kindCount) {
+		if (wanted >= kindCount) {
+			return false;
+		}
+		long estimate = estimate(kind, filterItem);
+		if (estimate < 0) {
+			// the filter reads every entity anyway, the walk can stop earlier
+			return true;
+		}
+		if (estimate == 0) {
+			return false;
+		}
+		return wanted * kindCount / estimate * POINT_LOOKUP_COST < estimate;
+	}
+
+	/**
+	 * Walks the keys of the given set in the order of the filter, starting from the given key, and adds the
+	 * matching ones to the page.
+	 *
+	 * @param matches
+	 * The keys which match the filter, or null if every key needs to be checked against the filter.
+	 */
+	private void walkKeys(QueryPage page, Filter filter, IdSet ids, long from, IdSet matches) {
+		boolean descending = filter.getDirection() == Filter.EDirection.DESCENDING;
+		long id = descending ? ids.previous(from) : ids.next(from);
+		while (id >= 0 && !page.isFull()) {
+			if (matches == null ? matches(filter.getKind(), filter.getFilterItem(), id) : matches.contains(id)) {
+				page.add(id);
+			}
+			id = descending ? ids.previous(id - 1) : ids.next(id + 1);
+		}
+	}
+
+	/**
+	 * Walks the values of the order attribute in the order of the filter, and adds the matching keys to the page.
+	 * The boolean values are walked first, than the long values, than the string values, and the entities which
+	 * don't have the attribute are the last ones in ascending order.
+	 *
+	 * @param matches
+	 * The keys which match the filter, or null if every key needs to be checked against the filter.
+	 */
+	private void walkValues(QueryPage page, Filter filter, IdSet kindIds, IdSet matches) {
+		String kind = filter.getKind();
+		String attributeName = filter.getOrderAttribute();
+		List<NavigableMap<Object, IdSet>> sections = new ArrayList<>(3);
+		sections.add(boolIndex.getSortedValues(kind, attributeName));
+		sections.add(longIndex.getSortedValues(kind, attributeName));
+		sections.add(stringIndex.getSortedValues(kind, attributeName));
+		boolean descending = filter.getDirection() == Filter.EDirection.DESCENDING;
+		if (descending) {
+			Collections.reverse(sections);
+			walkMissing(page, filter, kindIds, matches);
+		}
+		for (NavigableMap<Object, IdSet> section : sections) {
+			if (section != null && !section.isEmpty()) {
+				walkSection(page, filter, section, matches);
+			}
+		}
+		if (!descending) {
+			walkMissing(page, filter, kindIds, matches);
+		}
+	}
+
+	/**
+	 * Walks the values of a type of the order attribute.
+	 */
+	private void walkSection(QueryPage page, Filter filter, NavigableMap<Object, IdSet> values, IdSet matches) {
+		boolean descending = filter.getDirection() == Filter.EDirection.DESCENDING;
+		NavigableMap<Object, IdSet> view = descending ? values.descendingMap() : values;
+		if (filter.hasCursor()) {
+			int cmp = QueryPage.compareTypes(values.firstKey(), filter.getCursorValue());
+			if (descending ? cmp > 0 : cmp < 0) {
+				return;
+			}
+			if (cmp == 0) {
+				view = view.tailMap(filter.getCursorValue(), true);
+			}
+		}
+		for (Map.Entry<Object, IdSet> entry : view.entrySet()) {
+			if (page.isFull()) {
+				return;
+			}
+			long from = descending ? Long.MAX_VALUE : 0;
+			if (filter.hasCursor() && entry.getKey().equals(filter.getCursorValue())) {
+				from = descending ? filter.getCursorKey() - 1 : filter.getCursorKey() + 1;
+			}
+			walkKeys(page, filter, entry.getValue(), from, matches);
+		}
+	}
+
+	/**
+	 * Walks the entities which don't have the order attribute. The count of these entities is known from the
+	 * indexes (the estimation of the not null filter is exact), so the walk stops when every one of them is found.
+	 */
+	private void walkMissing(QueryPage page, Filter filter, IdSet kindIds, IdSet matches) {
+		if (page.isFull()) {
+			return;
+		}
+		boolean descending = filter.getDirection() == Filter.EDirection.DESCENDING;
+		long from = descending ? Long.MAX_VALUE : 0;
+		if (filter.hasCursor() && filter.getCursorValue() == null) {
+			from = descending ? filter.getCursorKey() - 1 : filter.getCursorKey() + 1;
+		} else if (filter.hasCursor() && descending) {
+			// the missing values are before the cursor
+			return;
+		}
+		String kind = filter.getKind();
+		String attributeName = filter.getOrderAttribute();
+		NullFilterItem hasValue = new NullFilterItem(attributeName, NullFilterItem.EOperator.NOT_EQUALS);
+		long missing = kindIds.size() - longIndex.estimate(kind, hasValue) - boolIndex.estimate(kind, hasValue)
+				- stringIndex.estimate(kind, hasValue);
+		long id = descending ? kindIds.previous(from) : kindIds.next(from);
+		while (id >= 0 && missing > 0 && !page.isFull()) {
+			if (longIndex.get(kind, attributeName, id) == null && boolIndex.get(kind, attributeName, id) == null
+					&& stringIndex.get(kind, attributeName, id) == null) {
+				missing--;
+				if (matches == null ? matches(kind, filter.getFilterItem(), id) : matches.contains(id)) {
+					page.add(id);
+				}
+			}
+			id = descending ? kindIds.previous(id - 1) : kindIds.next(id + 1);
+		}
+	}
+
+	/**
+	 * Returns the value of the given attribute of the given entity, with the strings in lower case. The value is
+	 * looked up in the indexes, the entity is read only if the attribute isn't indexed. Must be called while holding
+	 * the read lock of the kind.
+	 *
+	 * @return
+	 * The value, or null if the entity doesn't have the attribute.
+	 */
+	private Object getValue(String kind, String attributeName, long entityId) {
+		if (indexDefinitions.isQueryable(kind, attributeName)) {
+			Object res = longIndex.get(kind, attributeName, entityId);
+			if (res == null) {
+				res = boolIndex.get(kind, attributeName, entityId);
+			}
+			if (res == null) {
+				res = stringIndex.get(kind, attributeName, entityId);
+			}
+			return res;
+		}
+		Entity entity = readShared(entityId);
+		Object res = entity == null ? null : entity.getAttribute(attributeName);
+		return res instanceof String ? ((String) res).toLowerCase() : res;
+	}
+
+	long count(Filter filter) {
+		return queryIds(filter).size();
+	}
+
+	Long min(Filter filter, String attributeName) {
+		return findExtreme(filter, attributeName, false);
+	}
+
+	Long max(Filter filter, String attributeName) {
+		return findExtreme(filter, attributeName, true);
+	}
+
+	/**
+	 * Returns the smallest or the greatest long value of the given attribute of the results of the given filter.
+	 *
+	 * If the attribute has an ORDERED or NGRAM index, its values are walked from the smallest or the greatest one,
+	 * until a value of a result is found. If the walk checks more keys than the count of the results, or the
+	 * attribute has a HASH index, the values of the results are looked up one by one instead.
+	 */
+	private Long findExtreme(Filter filter, String attributeName, boolean max) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (filter == null) {
+			throw new NullPointerException("The filter parameter can not be null.");
+		}
+
+		if (attributeName == null) {
+			throw new NullPointerException("The attributeName parameter can not be null.");
+		}
+
+		Lock[] locks = lockKindForRead(filter.getKind());
+		try {
+			String kind = filter.getKind();
+			IdSet matches = collectIds(filter);
+			if (matches.isEmpty()) {
+				return null;
+			}
+			if (isOrdered(kind, attributeName)) {
+				NavigableMap<Object, IdSet> values = longIndex.getSortedValues(kind, attributeName);
+				if (values == null) {
+					return null;
+				}
+				long checked = 0;
+				walk:
+				for (Map.Entry<Object, IdSet> entry : (max ? values.descendingMap() : values).entrySet()) {
+					IdSet ids = entry.getValue();
+					for (long id = ids.next(0); id >= 0; id = ids.next(id + 1)) {
+						if (matches.contains(id)) {
+							return (Long) entry.getKey();
+						}
+						if (++checked > matches.size()) {
+							break walk;
+						}
+					}
+				}
+				if (checked <= matches.size()) {
+					// every value is checked
+					return null;
+				}
+			}
+			Long res = null;
+			for (long id = matches.next(0); id >= 0; id = matches.next(id + 1)) {
+				Object value = getValue(kind, attributeName, id);
+				if (value instanceof Long && (res == null || (max ? (Long) value > res : (Long) value < res))) {
+					res = (Long) value;
+				}
+			}
+			return res;
+		} finally {
+			unlockKinds(locks);
+		}
+	}
+
+	/**
+	 * Returns the sum of the long values of the given attribute of the results of the given filter. The values are
+	 * looked up in the index of the attribute, the entities are read only if the attribute isn't indexed.
+	 */
+	long sum(Filter filter, String attributeName) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (filter == null) {
+			throw new NullPointerException("The filter parameter can not be null.");
+		}
+
+		if (attributeName == null) {
+			throw new NullPointerException("The attributeName parameter can not be null.");
+		}
+
+		Lock[] locks = lockKindForRead(filter.getKind());
+		try {
+			String kind = filter.getKind();
+			IdSet matches = collectIds(filter);
+			long res = 0;
+			for (long id = matches.next(0); id >= 0; id = matches.next(id + 1)) {
+				Object value = getValue(kind, attributeName, id);
+				if (value instanceof Long) {
+					res += (Long) value;
+				}
+			}
+			return res;
+		} finally {
+			unlockKinds(locks);
+		}
+	}
+
+	/**
+	 * Returns the distinct values of the given attribute of the entities of the given kind, in the ascending order
+	 * of the filters. The values are read from the index of the attribute, the entities are read only if the
+	 * attribute isn't indexed.
+	 */
+	List<Object> distinctValues(String kind, String attributeName) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		if (kind == null) {
+			throw new NullPointerException("The kind parameter can not be null.");
+		}
+
+		if (attributeName == null) {
+			throw new NullPointerException("The attributeName parameter can not be null.");
+		}
+
+		Lock[] locks = lockKindForRead(kind);
+		try {
+			List<Object> res = new ArrayList<>();
+			if (indexDefinitions.isQueryable(kind, attributeName)) {
+				res.addAll(boolIndex.getDistinctValues(kind, attributeName));
+				res.addAll(longIndex.getDistinctValues(kind, attributeName));
+				res.addAll(stringIndex.getDistinctValues(kind, attributeName));
+				if (indexDefinitions.getType(kind, attributeName) == EIndexType.HASH) {
+					Collections.sort(res, VALUE_COMPARATOR);
+				}
+				return res;
+			}
+			TreeSet<Object> values = new TreeSet<>(VALUE_COMPARATOR);
+			IdSet kindIds = kindIndex.get(kind);
+			if (kindIds != null) {
+				for (long id = kindIds.next(0); id >= 0; id = kindIds.next(id + 1)) {
+					Object value = getValue(kind, attributeName, id);
+					if (value != null) {
+						values.add(value);
+					}
+				}
+			}
+			res.addAll(values);
+			return res;
+		} finally {
+			unlockKinds(locks);
+		}
+	}
+
+	IdSet queryIndex(String kind, AFilterItem filter) {
+		if (filter instanceof FilterGroupItem) {
+			FilterGroupItem filterGroup = (FilterGroupItem) filter;
+			if (filterGroup.getOperator() == FilterGroupItem.EOperator.AND) {
+				return queryAnd(kind, filterGroup.getFilters());
+			}
+			IdSet res = null;
+			for (AFilterItem filterItem : filterGroup.getFilters()) {
+				IdSet itemRes = queryIndex(kind, filterItem);
+				if (res == null) {
+					res = itemRes;
+				} else {
+					res.addAll(itemRes);
+				}
+			}
+			return res;
+		}
+		String attributeName = FilterMatcher.getAttributeName(filter);
+		if (attributeName == null) {
+			return new IdSet();
+		}
+		IdSet res = null;
+		if (indexDefinitions.isQueryable(kind, attributeName)) {
+			if (filter instanceof NullFilterItem) {
+				res = longIndex.query(kind, filter);
+				res.addAll(boolIndex.query(kind, filter));
+				res.addAll(stringIndex.query(kind, filter));
+			} else if (filter instanceof LongFilterItem) {
+				res = longIndex.query(kind, filter);
+			} else if (filter instanceof StringFilterItem) {
+				res = stringIndex.query(kind, filter);
+			} else if (filter instanceof BooleanFilterItem) {
+				res = boolIndex.query(kind, filter);
+			}
+		}
+		if (res == null) {
+			res = scan(kind, filter);
+		}
+		return res;
+	}
+
+	/**
+	 * A filter of an AND group, with its estimated result size.
+	 */
+	private static final class PlannedFilter {
+
+		private final AFilterItem filter;
+		// -1 if the filter can't be answered without reading the entities
+		private final long estimate;
+
+		PlannedFilter(AFilterItem filter, long estimate) {
+			this.filter = filter;
+			this.estimate = estimate;
+		}
+	}
+
+	private static final Comparator<PlannedFilter> PLAN_COMPARATOR = new Comparator<PlannedFilter>() {
+
+		@Override
+		public int compare(PlannedFilter o1, PlannedFilter o2) {
+			// the filters which read the entities are the last ones
+			long estimate1 = o1.estimate < 0 ? Long.MAX_VALUE : o1.estimate;
+			long estimate2 = o2.estimate < 0 ? Long.MAX_VALUE : o2.estimate;
+			return Long.compare(estimate1, estimate2);
+		}
+	};
+
+	/**
+	 * Answers the filters of an AND group. The filters which can be answered by a composite index are answered
+	 * first, than the other filters are ordered by their estimated result size, so the most selective one gives the
+	 * candidates. The next filters are intersected with the candidates while collecting their matches is cheaper
+	 * than checking the candidates, than the remaining filters are checked on every candidate by looking up its
+	 * values in the indexes (or by reading it, if an attribute isn't indexed). The evaluation stops when no candidate
+	 * is left. Must be called while holding the read lock of the kind.
+	 */
+	private IdSet queryAnd(String kind, List<AFilterItem> filters) {
+		ArrayList<AFilterItem> remaining = new ArrayList<>(filters);
+		IdSet res = compositeIndex.query(kind, remaining);
+		PlannedFilter[] plan = new PlannedFilter[remaining.size()];
+		for (int i = 0; i < plan.length; i++) {
+			plan[i] = new PlannedFilter(remaining.get(i), estimate(kind, remaining.get(i)));
+		}
+		// the sort is stable, so the filters which have the same estimation are evaluated in the given order
+		Arrays.sort(plan, PLAN_COMPARATOR);
+		for (int i = 0; i < plan.length; i++) {
+			if (res != null) {
+				if (res.isEmpty()) {
+					// the other filters can't add anything to an empty intersection
+					break;
+				}
+				if (plan[i].estimate < 0 || (long) res.size() * POINT_LOOKUP_COST <= plan[i].estimate) {
+					return filterCandidates(kind, res, plan, i);
+				}
+			}
+			IdSet itemRes = queryIndex(kind, plan[i].filter);
+			res = res == null ? itemRes : IdSet.and(res, itemRes);
+		}
+		return res;
 	}
-	
-	Entity queryFirst(Filter filter) {
-		List<Entity> results = query(filter);
-		if (results.size() < 1) {
-			return null;
+
+	/**
+	 * Returns the candidates which match the filters of the plan, starting from the given position.
+	 */
+	private IdSet filterCandidates(String kind, IdSet candidates, PlannedFilter[] plan, int from) {
+		IdSet res = new IdSet();
+		for (long id = candidates.next(0); id >= 0; id = candidates.next(id + 1)) {
+			boolean match = true;
+			for (int i = from; i < plan.length && match; i++) {
+				match = matches(kind, plan[i].filter, id);
+			}
+			if (match) {
+				res.add(id);
+			}
 		}
-		
-		return results.get(0);
+		return res;
 	}
-	
-	long querySingletonKey(Filter filter) {
-		List<Long> results = queryKeys(filter);
-		if (results.size() > 1) {
-			throw new RuntimeException("More than one results are returned by the query.");
-		} 
-		
-		if (results.size() < 1) {
-			throw new RuntimeException("No results are returned by the query.");
+
+	/**
+	 * Estimates the count of the entities of the given kind which match the given filter, from the statistics of
+	 * the indexes. An AND group is estimated by its most selective filter, an OR group by the sum of its filters.
+	 *
+	 * @return
+	 * The estimated count, or -1 if the filter can't be answered without reading every entity of the kind.
+	 */
+	private long estimate(String kind, AFilterItem filter) {
+		if (filter instanceof FilterGroupItem) {
+			FilterGroupItem filterGroup = (FilterGroupItem) filter;
+			boolean and = filterGroup.getOperator() == FilterGroupItem.EOperator.AND;
+			long res = and ? -1 : 0;
+			for (AFilterItem filterItem : filterGroup.getFilters()) {
+				long itemEstimate = estimate(kind, filterItem);
+				if (and) {
+					if (itemEstimate >= 0 && (res < 0 || itemEstimate < res)) {
+						res = itemEstimate;
+					}
+				} else if (itemEstimate < 0) {
+					return -1;
+				} else {
+					res += itemEstimate;
+				}
+			}
+			return res;
 		}
-		
-		return results.get(0);
-	}
-	
-	long queryFirstKey(Filter filter) {
-		List<Long> results = queryKeys(filter);
-		if (results.size() < 1) {
+		String attributeName = FilterMatcher.getAttributeName(filter);
+		if (attributeName == null) {
+			return 0;
+		}
+		if (!indexDefinitions.isQueryable(kind, attributeName)) {
 			return -1;
 		}
-		
-		return results.get(0);
+		if (filter instanceof NullFilterItem) {
+			return longIndex.estimate(kind, filter) + boolIndex.estimate(kind, filter)
+					+ stringIndex.estimate(kind, filter);
+		} else if (filter instanceof LongFilterItem) {
+			return longIndex.estimate(kind, filter);
+		} else if (filter instanceof StringFilterItem) {
+			return stringIndex.estimate(kind, filter);
+		} else if (filter instanceof BooleanFilterItem) {
+			return boolIndex.estimate(kind, filter);
+		}
+		return 0;
 	}
 
-	List<Long> queryIndex(String kind, AFilterItem filter) {
-		HashMap<Long, Object> res = new HashMap<>();
+	/**
+	 * Indicates if the entity with the given id matches the given filter. The values of the indexed attributes are
+	 * looked up in the indexes, the entity is read only if an attribute isn't indexed.
+	 */
+	private boolean matches(String kind, AFilterItem filter, long entityId) {
 		if (filter instanceof FilterGroupItem) {
 			FilterGroupItem filterGroup = (FilterGroupItem) filter;
-			if (filterGroup.getOperator() == FilterGroupItem.EOperator.AND) {
-				// and
-				for (AFilterItem filterItem : filterGroup.getFilters()) {
-					List<Long> itemRes = queryIndex(kind, filterItem);
-					if (res.size() < 1) {
-						for (Long l : itemRes) {
-							res.put(l, Boolean.TRUE);
-						}
-					} else {
-						Iterator<Long> it = itemRes.iterator();
-						while (it.hasNext()) {
-							Long item = it.next();
-							if (res.get(item) == null) {
-								it.remove();
-							}
-						}
-						res.clear();
-						for (Long l : itemRes) {
-							res.put(l, Boolean.TRUE);
+			boolean and = filterGroup.getOperator() == FilterGroupItem.EOperator.AND;
+			for (AFilterItem filterItem : filterGroup.getFilters()) {
+				if (matches(kind, filterItem, entityId) != and) {
+					return !and;
+				}
+			}
+			return and;
+		}
+		String attributeName = FilterMatcher.getAttributeName(filter);
+		if (attributeName == null) {
+			return false;
+		}
+		if (!indexDefinitions.isQueryable(kind, attributeName)) {
+			Entity entity = readShared(entityId);
+			return entity != null && FilterMatcher.matches(entity, filter);
+		}
+		if (filter instanceof NullFilterItem) {
+			return longIndex.get(kind, attributeName, entityId) != null
+					|| stringIndex.get(kind, attributeName, entityId) != null
+					|| boolIndex.get(kind, attributeName, entityId) != null;
+		} else if (filter instanceof LongFilterItem) {
+			return FilterMatcher.matchesValue(filter, longIndex.get(kind, attributeName, entityId));
+		} else if (filter instanceof StringFilterItem) {
+			return FilterMatcher.matchesValue(filter, stringIndex.get(kind, attributeName, entityId));
+		} else if (filter instanceof BooleanFilterItem) {
+			return FilterMatcher.matchesValue(filter, boolIndex.get(kind, attributeName, entityId));
+		}
+		return false;
+	}
+
+	/**
+	 * Reads every entity of the given kind, and returns the ids of the ones which match the given filter. It's used
+	 * when the attribute of the filter isn't indexed, or its index can't answer the filter. Must be called while
+	 * holding the read lock of the kind.
+	 */
+	private IdSet scan(String kind, AFilterItem filter) {
+		IdSet res = new IdSet();
+		IdSet entityIds = kindIndex.get(kind);
+		if (entityIds == null) {
+			return res;
+		}
+		for (long id = entityIds.next(0); id >= 0; id = entityIds.next(id + 1)) {
+			if (FilterMatcher.matches(readShared(id), filter)) {
+				res.add(id);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Defines an index on the given attribute of the given kind, or changes the type of its index.
+	 * 
+	 * By default every attribute of a kind is indexed with an ORDERED index. When the first index of a kind is
+	 * defined, only the defined attributes of the kind are indexed from then on, so the attributes which are never
+	 * queried don't use memory. The filters on an attribute which isn't indexed read every entity of the kind.
+	 * 
+	 * If the attribute wasn't indexed, the index is built from the stored entities of the kind. The entities are
+	 * indexed in small batches, and the database can be read and written between the batches, so it stays online
+	 * while the index is built. Until the index is complete, the filters on the attribute read the entities. This
+	 * method returns when the index is complete. The index definitions are stored next to the database file.
+	 * 
+	 * @param kind
+	 * The kind of the entities.
+	 * 
+	 * @param attributeName
+	 * The name of the attribute.
+	 * 
+	 * @param type
+	 * The type of the index.
+	 */
+	public void defineIndex(String kind, String attributeName, EIndexType type) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+		if (kind == null) {
+			throw new NullPointerException("The kind parameter can not be null.");
+		}
+		if (attributeName == null) {
+			throw new NullPointerException("The attributeName parameter can not be null.");
+		}
+		if (type == null) {
+			throw new NullPointerException("The type parameter can not be null.");
+		}
+
+		synchronized (definitionLock) {
+			boolean build;
+			WriteLock lock = lockExclusive();
+			try {
+				if (indexDefinitions.getDeclaredType(kind, attributeName) == type) {
+					return;
+				}
+				build = indexDefinitions.getType(kind, attributeName) == null;
+				indexDefinitions.define(kind, attributeName, type);
+				// the changes are indexed while the existing entities are indexed
+				indexDefinitions.setBuilding(kind, attributeName, build);
+				applyDefinitions(kind);
+			} finally {
+				lock.unlock();
+			}
+
+			if (build) {
+				try {
+					final String name = attributeName;
+					buildIndex(kind, new EntityIndexer() {
+
+						@Override
+						public void index(Entity entity) {
+							cacheAttribute(entity, name, longIndex, boolIndex, stringIndex);
 						}
+					});
+				} catch (RuntimeException ex) {
+					lock.lock();
+					try {
+						indexDefinitions.drop(kind, attributeName);
+						applyDefinitions(kind);
+					} finally {
+						lock.unlock();
 					}
+					throw ex;
 				}
-			} else {
-				// or
-				for (AFilterItem filterItem : filterGroup.getFilters()) {
-					List<Long> itemRes = queryIndex(kind, filterItem);
-					for (Long l : itemRes) {
-						res.put(l, Boolean.TRUE);
+			}
+
+			lock.lock();
+			try {
+				indexDefinitions.setBuilding(kind, attributeName, false);
+				// the snapshot needs to contain the new index before the stored definitions refer to it
+				writeSnapshot();
+				indexDefinitions.write(definitionsFile);
+			} catch (IOException ex) {
+				throw new RuntimeException("Error writing index definitions.", ex);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Adds an entity to a new index.
+	 */
+	private static interface EntityIndexer {
+
+		void index(Entity entity);
+	}
+
+	/**
+	 * Passes the stored entities of the given kind to the given indexer in small batches, while holding the write
+	 * lock.
+	 */
+	private void buildIndex(String kind, EntityIndexer indexer) {
+		long[] entityIds;
+		Lock[] locks = lockKindForRead(kind);
+		try {
+			IdSet kindIds = kindIndex.get(kind);
+			entityIds = kindIds == null ? new long[0] : kindIds.toArray();
+		} finally {
+			unlockKinds(locks);
+		}
+
+		WriteLock lock = readWriteLock.writeLock();
+		for (int start = 0; start < entityIds.length; start += INDEX_BUILD_BATCH) {
+			lock.lock();
+			try {
+				if (closed) {
+					throw new IllegalStateException("This db is closed.");
+				}
+				int end = Math.min(entityIds.length, start + INDEX_BUILD_BATCH);
+				for (int i = start; i < end; i++) {
+					// the entity can be removed since the ids are collected, its kind can't be changed by a put
+					Entity entity = readShared(entityIds[i]);
+					if (entity != null) {
+						indexer.index(entity);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Drops the index of the given attribute of the given kind. The other attributes of the kind stay indexed as
+	 * they are, and the attribute isn't indexed until an index is defined on it again.
+	 * 
+	 * @param kind
+	 * The kind of the entities.
+	 * 
+	 * @param attributeName
+	 * The name of the attribute.
+	 * 
+	 * @throws IllegalArgumentException
+	 * If no index is defined on the attribute.
+	 */
+	public void dropIndex(String kind, String attributeName) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		synchronized (definitionLock) {
+			WriteLock lock = lockExclusive();
+			try {
+				if (!indexDefinitions.drop(kind, attributeName)) {
+					throw new IllegalArgumentException("No index is defined on attribute " + attributeName + " of kind "
+							+ kind + ".");
+				}
+				applyDefinitions(kind);
+				indexDefinitions.write(definitionsFile);
+			} catch (IOException ex) {
+				throw new RuntimeException("Error writing index definitions.", ex);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Defines a composite index on the given attributes of the given kind. A composite index holds the values of the
+	 * attributes together, sorted by the first attribute, than by the second one, and so on. An AND filter group
+	 * which checks the equality of the first attributes (with EQUALS filters, or boolean filters), and optionally the
+	 * range of the next attribute (with GREATER, GREATER_OR_EQUALS, SMALLER, SMALLER_OR_EQUALS or BETWEEN filters) is
+	 * answered by a single lookup in the composite index, instead of intersecting the results of the attributes. The
+	 * composite index which answers the most filters of a group is chosen automatically.
+	 * 
+	 * The index is built from the stored entities of the kind like the index of an attribute, see
+	 * {@link #defineIndex(String, String, EIndexType)}. The composite indexes don't change which attributes of the
+	 * kind are indexed.
+	 * 
+	 * @param kind
+	 * The kind of the entities.
+	 * 
+	 * @param attributeNames
+	 * The names of the attributes, at least two. The order of the attributes matters, the attributes which are
+	 * checked with equality by the most queries should be the first ones.
+	 */
+	public void defineCompositeIndex(String kind, String... attributeNames) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+		if (kind == null) {
+			throw new NullPointerException("The kind parameter can not be null.");
+		}
+		checkCompositeAttributes(attributeNames);
+		final String[] names = attributeNames.clone();
+
+		synchronized (definitionLock) {
+			WriteLock lock = lockExclusive();
+			try {
+				if (!indexDefinitions.defineComposite(kind, names)) {
+					return;
+				}
+				// the changes are indexed while the existing entities are indexed
+				indexDefinitions.setCompositeBuilding(kind, names, true);
+				compositeIndex.applyDefinitions(kind);
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				buildIndex(kind, new EntityIndexer() {
+
+					@Override
+					public void index(Entity entity) {
+						compositeIndex.put(entity, names);
 					}
+				});
+			} catch (RuntimeException ex) {
+				lock.lock();
+				try {
+					indexDefinitions.dropComposite(kind, names);
+					compositeIndex.applyDefinitions(kind);
+				} finally {
+					lock.unlock();
 				}
+				throw ex;
+			}
 
+			lock.lock();
+			try {
+				indexDefinitions.setCompositeBuilding(kind, names, false);
+				// the snapshot needs to contain the new index before the stored definitions refer to it
+				writeSnapshot();
+				indexDefinitions.write(definitionsFile);
+			} catch (IOException ex) {
+				throw new RuntimeException("Error writing index definitions.", ex);
+			} finally {
+				lock.unlock();
 			}
-		} else if (filter instanceof NullFilterItem) {
-			List<Long> resPart = longIndex.query(kind, filter);
-			resPart.addAll(boolIndex.query(kind, filter));
-			resPart.addAll(stringIndex.query(kind, filter));
-			return resPart;
-		} else if (filter instanceof LongFilterItem) {
-			List<Long> resPart = longIndex.query(kind, filter);
-			return resPart;
-		} else if (filter instanceof StringFilterItem) {
-			List<Long> resPart = stringIndex.query(kind, filter);
-			return resPart;
-		} else if (filter instanceof BooleanFilterItem) {
-			List<Long> resPart = boolIndex.query(kind, filter);
-			return resPart;
 		}
-		List<Long> result = new LinkedList<>();
-		for (Long l : res.keySet()) {
-			result.add(l);
+	}
+
+	/**
+	 * Drops the composite index on the given attributes of the given kind.
+	 * 
+	 * @param kind
+	 * The kind of the entities.
+	 * 
+	 * @param attributeNames
+	 * The names of the attributes, in the same order as they were defined.
+	 * 
+	 * @throws IllegalArgumentException
+	 * If no composite index is defined on the attributes.
+	 */
+	public void dropCompositeIndex(String kind, String... attributeNames) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+		checkCompositeAttributes(attributeNames);
+
+		synchronized (definitionLock) {
+			WriteLock lock = lockExclusive();
+			try {
+				if (!indexDefinitions.dropComposite(kind, attributeNames)) {
+					throw new IllegalArgumentException("No composite index is defined on attributes "
+							+ Arrays.toString(attributeNames) + " of kind " + kind + ".");
+				}
+				compositeIndex.applyDefinitions(kind);
+				indexDefinitions.write(definitionsFile);
+			} catch (IOException ex) {
+				throw new RuntimeException("Error writing index definitions.", ex);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static void checkCompositeAttributes(String[] attributeNames) {
+		if (attributeNames == null) {
+			throw new NullPointerException("The attributeNames parameter can not be null.");
+		}
+		if (attributeNames.length < 2) {
+			throw new IllegalArgumentException("A composite index needs at least two attributes.");
+		}
+		for (int i = 0; i < attributeNames.length; i++) {
+			if (attributeNames[i] == null) {
+				throw new NullPointerException("The attribute names can not be null.");
+			}
+			for (int j = 0; j < i; j++) {
+				if (attributeNames[i].equals(attributeNames[j])) {
+					throw new IllegalArgumentException("Duplicated attribute: " + attributeNames[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the type of the index of the given attribute of the given kind.
+	 * 
+	 * @param kind
+	 * The kind of the entities.
+	 * 
+	 * @param attributeName
+	 * The name of the attribute.
+	 * 
+	 * @return 
+	 * The type of the index, or null if the attribute isn't indexed.
+	 */
+	public EIndexType getIndexType(String kind, String attributeName) {
+		ReadLock lock = readWriteLock.readLock();
+		lock.lock();
+		try {
+			return indexDefinitions.getType(kind, attributeName);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void applyDefinitions(String kind) {
+		longIndex.applyDefinitions(kind);
+		boolIndex.applyDefinitions(kind);
+		stringIndex.applyDefinitions(kind);
+	}
+
+	/**
+	 * Compacts the database file. The space of the removed and overwritten entities is freed, and the file is shrunk.
+	 * 
+	 * @return 
+	 * The count of bytes which are given back to the file system.
+	 * 
+	 * @see #compact(ICompactionListener)
+	 */
+	public long compact() {
+		return compact(null);
+	}
+
+	/**
+	 * Compacts the database file. The space of the removed and overwritten entities is freed, and the file is shrunk.
+	 * The records are moved in small batches, and the database can be read and written between the batches, so it
+	 * stays online during the compaction. The compaction is stopped when the database is closed.
+	 * 
+	 * @param listener 
+	 * The listener which receives the progress of the compaction, or null.
+	 * 
+	 * @return 
+	 * The count of bytes which are given back to the file system. The concurrent writes are included in this value,
+	 * so it's the difference of the size of the database before and after the compaction.
+	 */
+	public long compact(ICompactionListener listener) {
+		if (closed) {
+			throw new IllegalStateException("This db is closed.");
+		}
+
+		long sizeBefore = storage.getSize();
+		try {
+			storage.compact(storageOwner, listener);
+		} catch (IOException ex) {
+			throw new RuntimeException("Error compacting database.", ex);
 		}
+		return Math.max(0, sizeBefore - storage.getSize());
+	}
+
+	/**
+	 * Returns the count of the reads which are served from the entity cache.
+	 * 
+	 * @return 
+	 * The count of the entity cache hits, or 0 if the entity cache is disabled.
+	 * 
+	 * @see EntityDBConfig#setEntityCacheSize(long)
+	 */
+	public long getEntityCacheHits() {
+		return entityCache == null ? 0 : entityCache.getHits();
+	}
 
-		return result;
+	/**
+	 * Returns the count of the reads which needed to read the entity from the disk, because it wasn't in the entity
+	 * cache.
+	 * 
+	 * @return 
+	 * The count of the entity cache misses, or 0 if the entity cache is disabled.
+	 * 
+	 * @see EntityDBConfig#setEntityCacheSize(long)
+	 */
+	public long getEntityCacheMisses() {
+		return entityCache == null ? 0 : entityCache.getMisses();
 	}
 
 	public boolean isClosed() {
@@ -433,17 +2365,19 @@ public final class EntityDB {
 	 * @return 
 	 * True if the database is force closed, otherwise false.
 	 */
-	public synchronized boolean close() {
-		try {
-			close(false);
-			return false;
-		} catch (Throwable t) {
-		}
-		try {
-			close(true);
-		} catch (Throwable t) {
+	public boolean close() {
+		synchronized (closeLock) {
+			try {
+				close(false);
+				return false;
+			} catch (Throwable t) {
+			}
+			try {
+				close(true);
+			} catch (Throwable t) {
+			}
+			return true;
 		}
-		return true;
 	}
 
 	/**
@@ -454,26 +2388,36 @@ public final class EntityDB {
 	 * close the database anyway, no exception is thrown. If this parameter is false, than this method throws a RuntimeException
 	 * if closing is failed by any reason.
 	 */
-	public synchronized void close(boolean force) {
-		if (closed) {
-			throw new IllegalStateException("This db is closed.");
-		}
-
-		try {
-			db.close();
-		} catch (IOException ex) {
-			if (!force) {
-				throw new RuntimeException("Can't close database.", ex);
+	public void close(boolean force) {
+		// waits for the compactor and the operations, so it's a private lock instead of the monitor of this instance
+		synchronized (closeLock) {
+			if (closed) {
+				throw new IllegalStateException("This db is closed.");
 			}
-		}
-		try {
-			fileLock.release();
-		} catch (IOException ex) {
-			if (!force) {
-				throw new RuntimeException("Can't release file lock.", ex);
+
+			storage.stop();
+			WriteLock lock = readWriteLock.writeLock();
+			lock.lock();
+			try {
+				try {
+					writeSnapshot();
+				} catch (IOException | RuntimeException ex) {
+					if (!force) {
+						throw new RuntimeException("Can't write database.", ex);
+					}
+				}
+				try {
+					storage.close();
+				} catch (IOException ex) {
+					if (!force) {
+						throw new RuntimeException("Can't close database.", ex);
+					}
+				}
+				// the operations which are waiting for the shared lock fail when they acquire it
+				closed = true;
+			} finally {
+				lock.unlock();
 			}
 		}
-
-		closed = true;
 	}
 }
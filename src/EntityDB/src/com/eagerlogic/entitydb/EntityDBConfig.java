@@ -0,0 +1,423 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the settings which can be used when connecting to a database with the
+ * <code>EntityDB.connect(File, EntityDBConfig)</code> method.
+ *
+ * @author dipacs
+ */
+public final class EntityDBConfig {
+
+	/**
+	 * Defines when a write is reported as durable.
+	 */
+	public static enum EDurability {
+		/**
+		 * Every write waits until it's forced to the disk. Concurrent writers are forced together.
+		 */
+		SYNC,
+		/**
+		 * Like SYNC, but the disk is forced only after waiting the group commit window, so more concurrent writes can
+		 * be forced together.
+		 */
+		GROUP_COMMIT,
+		/**
+		 * Writes don't wait for the disk. The log is forced in the background in every group commit window, so the
+		 * writes of the last window can be lost on a crash, but the database stays consistent.
+		 */
+		ASYNC
+	}
+
+	/**
+	 * The storage engines which can be used by a new database.
+	 */
+	public static enum EStorageEngine {
+		/**
+		 * The entities are stored in a single file, and a new version of an entity is written in to the first
+		 * free space which can hold it.
+		 */
+		FILE,
+		/**
+		 * The entities are appended to segment files, so every write is sequential. The old versions of the entities
+		 * are removed by a background compaction. This is the better choice for write heavy databases, where the
+		 * same entities are updated frequently.
+		 */
+		LOG
+	}
+
+	private EStorageEngine storageEngine = EStorageEngine.FILE;
+	private long segmentSize = 64 * 1024 * 1024;
+	private boolean memoryMapped = false;
+	private EDurability durability = EDurability.SYNC;
+	private long groupCommitWindow = 2;
+	private long checkpointSize = 16 * 1024 * 1024;
+	private long snapshotSize = 256 * 1024 * 1024;
+	private int scanThreads = Runtime.getRuntime().availableProcessors();
+	private long entityCacheSize = 0;
+	private long entityCacheBytes = 0;
+	private boolean offHeapIdMap = false;
+	private final LinkedHashMap<String, LinkedHashMap<String, EntityDB.EIndexType>> indexes = new LinkedHashMap<>();
+	private final LinkedHashMap<String, ArrayList<String[]>> compositeIndexes = new LinkedHashMap<>();
+
+	/**
+	 * Creates a new config with the default settings.
+	 */
+	public EntityDBConfig() {
+	}
+
+	/**
+	 * Returns the storage engine of the new databases.
+	 *
+	 * @return
+	 * The storage engine of the new databases.
+	 */
+	public EStorageEngine getStorageEngine() {
+		return storageEngine;
+	}
+
+	/**
+	 * Sets the storage engine which is used when a new database is created. An existing database is always opened
+	 * with the storage engine which it was created with. The default value is FILE.
+	 *
+	 * @param storageEngine
+	 * The storage engine of the new databases.
+	 */
+	public void setStorageEngine(EStorageEngine storageEngine) {
+		if (storageEngine == null) {
+			throw new NullPointerException("The storageEngine parameter can not be null.");
+		}
+		this.storageEngine = storageEngine;
+	}
+
+	/**
+	 * Returns the maximum size of a segment file of the LOG storage engine in bytes.
+	 *
+	 * @return
+	 * The maximum size of a segment file in bytes.
+	 */
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Sets the maximum size of a segment file of the LOG storage engine in bytes. When the current segment is full,
+	 * a new one is started. A full segment is compacted when at least half of it is garbage. In memory mapped mode of
+	 * the FILE storage engine the database file is mapped in segments of this size, rounded down to a power of two
+	 * between 4 KB and 1 GB. The default value is 64 MB.
+	 *
+	 * @param segmentSize
+	 * The maximum size of a segment file in bytes.
+	 */
+	public void setSegmentSize(long segmentSize) {
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException("The segmentSize parameter must be positive.");
+		}
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Indicates if the database file is read through memory mapping.
+	 *
+	 * @return
+	 * True if the database file is memory mapped.
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Sets if the database file needs to be read through memory mapping. In this mode the records are decoded
+	 * straight from the mapped memory instead of reading them with a system call per record. This is the fastest
+	 * mode if the database fits in the page cache. This setting is used only by the FILE storage engine. The default
+	 * value is false.
+	 *
+	 * @param memoryMapped
+	 * True to map the database file in to the memory.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Returns the durability of the writes.
+	 *
+	 * @return
+	 * The durability of the writes.
+	 */
+	public EDurability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets the durability of the writes. The default value is SYNC.
+	 *
+	 * @param durability
+	 * The durability of the writes.
+	 */
+	public void setDurability(EDurability durability) {
+		if (durability == null) {
+			throw new NullPointerException("The durability parameter can not be null.");
+		}
+		this.durability = durability;
+	}
+
+	/**
+	 * Returns the group commit window in milliseconds.
+	 *
+	 * @return
+	 * The group commit window in milliseconds.
+	 */
+	public long getGroupCommitWindow() {
+		return groupCommitWindow;
+	}
+
+	/**
+	 * Sets the group commit window in milliseconds. In GROUP_COMMIT mode this is the time while the writes are
+	 * collected before forcing them to the disk, in ASYNC mode this is the interval of forcing the log to the disk.
+	 * The default value is 2 milliseconds.
+	 *
+	 * @param groupCommitWindow
+	 * The group commit window in milliseconds.
+	 */
+	public void setGroupCommitWindow(long groupCommitWindow) {
+		if (groupCommitWindow < 0) {
+			throw new IllegalArgumentException("The groupCommitWindow parameter can not be negative.");
+		}
+		this.groupCommitWindow = groupCommitWindow;
+	}
+
+	/**
+	 * Returns the size of the write-ahead log in bytes, which triggers a checkpoint.
+	 *
+	 * @return
+	 * The size of the write-ahead log in bytes, which triggers a checkpoint.
+	 */
+	public long getCheckpointSize() {
+		return checkpointSize;
+	}
+
+	/**
+	 * Sets the size of the write-ahead log in bytes, which triggers a checkpoint. At a checkpoint the changes in the
+	 * log are written to the database file. The same limit is applied to the changed but not yet written part of
+	 * the database file, which is held in the memory. This setting is used only by the FILE storage engine. The
+	 * default value is 16 MB.
+	 *
+	 * @param checkpointSize
+	 * The size of the write-ahead log in bytes, which triggers a checkpoint.
+	 */
+	public void setCheckpointSize(long checkpointSize) {
+		if (checkpointSize < 1) {
+			throw new IllegalArgumentException("The checkpointSize parameter must be positive.");
+		}
+		this.checkpointSize = checkpointSize;
+	}
+
+	/**
+	 * Returns the size of the write-ahead log in bytes, which triggers writing a new index snapshot.
+	 *
+	 * @return
+	 * The size of the write-ahead log in bytes, which triggers writing a new index snapshot.
+	 */
+	public long getSnapshotSize() {
+		return snapshotSize;
+	}
+
+	/**
+	 * Sets the size of the write-ahead log in bytes, which triggers writing a new index snapshot. The snapshot holds
+	 * the in-memory indexes of the database, so the database can be opened without reading every record. After
+	 * writing a snapshot the write-ahead log is emptied, so this is also the limit of the log which needs to be
+	 * replayed when the database is opened. The LOG storage engine has no separate write-ahead log, there the size of
+	 * the segments written since the last snapshot is limited. The snapshot is written when the database is closed
+	 * too. Every read and write waits while a snapshot is written, for a time proportional to the size of the
+	 * indexes. The default value is 256 MB.
+	 *
+	 * @param snapshotSize
+	 * The size of the write-ahead log in bytes, which triggers writing a new index snapshot.
+	 */
+	public void setSnapshotSize(long snapshotSize) {
+		if (snapshotSize < 1) {
+			throw new IllegalArgumentException("The snapshotSize parameter must be positive.");
+		}
+		this.snapshotSize = snapshotSize;
+	}
+
+	/**
+	 * Returns the count of threads which decode the records when the database file is read at connect.
+	 *
+	 * @return
+	 * The count of threads which decode the records when the database file is read at connect, and encode the
+	 * records of large batches.
+	 */
+	public int getScanThreads() {
+		return scanThreads;
+	}
+
+	/**
+	 * Sets the count of threads which decode the records when the whole database file needs to be read at connect
+	 * (there is no usable index snapshot). If it's 1, the records are decoded on the connecting thread. The default
+	 * value is the count of the available processors. The same count of threads encode the records of the large
+	 * batches of the <code>DB.putAll</code> method.
+	 *
+	 * @param scanThreads
+	 * The count of threads which decode the records when the database file is read at connect, and encode the
+	 * records of large batches.
+	 */
+	public void setScanThreads(int scanThreads) {
+		if (scanThreads < 1) {
+			throw new IllegalArgumentException("The scanThreads parameter must be positive.");
+		}
+		this.scanThreads = scanThreads;
+	}
+
+	/**
+	 * Returns the maximum count of the entities in the entity cache.
+	 *
+	 * @return
+	 * The maximum count of the entities in the entity cache, or 0 if it isn't limited.
+	 */
+	public long getEntityCacheSize() {
+		return entityCacheSize;
+	}
+
+	/**
+	 * Sets the maximum count of the entities in the entity cache. The entity cache holds the frequently read entities,
+	 * so they don't need to be read from the disk again. The cache is enabled if the count or the size of the cached
+	 * entities is limited. The default value is 0, so the cache is disabled by default.
+	 *
+	 * @param entityCacheSize
+	 * The maximum count of the entities in the entity cache, or 0 if it isn't limited.
+	 */
+	public void setEntityCacheSize(long entityCacheSize) {
+		if (entityCacheSize < 0) {
+			throw new IllegalArgumentException("The entityCacheSize parameter can not be negative.");
+		}
+		this.entityCacheSize = entityCacheSize;
+	}
+
+	/**
+	 * Returns the maximum size of the entities in the entity cache in bytes.
+	 *
+	 * @return
+	 * The maximum size of the entities in the entity cache in bytes, or 0 if it isn't limited.
+	 */
+	public long getEntityCacheBytes() {
+		return entityCacheBytes;
+	}
+
+	/**
+	 * Sets the maximum size of the entities in the entity cache in bytes. The size of an entity is the size of its
+	 * stored record. The cache is enabled if the count or the size of the cached entities is limited. The default
+	 * value is 0, so the cache is disabled by default.
+	 *
+	 * @param entityCacheBytes
+	 * The maximum size of the entities in the entity cache in bytes, or 0 if it isn't limited.
+	 */
+	public void setEntityCacheBytes(long entityCacheBytes) {
+		if (entityCacheBytes < 0) {
+			throw new IllegalArgumentException("The entityCacheBytes parameter can not be negative.");
+		}
+		this.entityCacheBytes = entityCacheBytes;
+	}
+
+	/**
+	 * Indicates if the map of the entity ids to the locations of the entities is stored outside of the heap.
+	 *
+	 * @return
+	 * True if the id map is stored outside of the heap.
+	 */
+	public boolean isOffHeapIdMap() {
+		return offHeapIdMap;
+	}
+
+	/**
+	 * Sets if the map of the entity ids to the locations of the entities is stored outside of the heap. The map holds
+	 * every entity of the database (16 bytes per entity, and the free slots of the hash table), so with many millions
+	 * of entities moving it out of the heap makes the garbage collection faster. The LOG storage engine stores the
+	 * lengths of the records in the same way. The direct memory limit of the JVM
+	 * (-XX:MaxDirectMemorySize) must be big enough to hold it. The default value is false.
+	 *
+	 * @param offHeapIdMap
+	 * True if the id map needs to be stored outside of the heap.
+	 */
+	public void setOffHeapIdMap(boolean offHeapIdMap) {
+		this.offHeapIdMap = offHeapIdMap;
+	}
+
+	/**
+	 * Adds an index definition, which is applied when the database is opened, as if it was defined by the
+	 * <code>EntityDB.defineIndex(String, String, EntityDB.EIndexType)</code> method. The definitions are stored in the
+	 * database, so they don't need to be given again when it's opened the next time. By default every attribute is
+	 * indexed with an ORDERED index.
+	 *
+	 * @param kind
+	 * The kind of the entities.
+	 *
+	 * @param attributeName
+	 * The name of the attribute.
+	 *
+	 * @param type
+	 * The type of the index.
+	 */
+	public void addIndex(String kind, String attributeName, EntityDB.EIndexType type) {
+		if (kind == null) {
+			throw new NullPointerException("The kind parameter can not be null.");
+		}
+		if (attributeName == null) {
+			throw new NullPointerException("The attributeName parameter can not be null.");
+		}
+		if (type == null) {
+			throw new NullPointerException("The type parameter can not be null.");
+		}
+		LinkedHashMap<String, EntityDB.EIndexType> attributes = indexes.get(kind);
+		if (attributes == null) {
+			attributes = new LinkedHashMap<>();
+			indexes.put(kind, attributes);
+		}
+		attributes.put(attributeName, type);
+	}
+
+	/**
+	 * Returns the added index definitions, by kind and attribute name.
+	 */
+	Map<String, ? extends Map<String, EntityDB.EIndexType>> getIndexes() {
+		return indexes;
+	}
+
+	/**
+	 * Adds a composite index definition, which is applied when the database is opened, as if it was defined by the
+	 * <code>EntityDB.defineCompositeIndex(String, String...)</code> method. The definitions are stored in the
+	 * database, so they don't need to be given again when it's opened the next time.
+	 *
+	 * @param kind
+	 * The kind of the entities.
+	 *
+	 * @param attributeNames
+	 * The names of the attributes, at least two.
+	 */
+	public void addCompositeIndex(String kind, String... attributeNames) {
+		if (kind == null) {
+			throw new NullPointerException("The kind parameter can not be null.");
+		}
+		if (attributeNames == null) {
+			throw new NullPointerException("The attributeNames parameter can not be null.");
+		}
+		ArrayList<String[]> tuples = compositeIndexes.get(kind);
+		if (tuples == null) {
+			tuples = new ArrayList<>();
+			compositeIndexes.put(kind, tuples);
+		}
+		tuples.add(attributeNames.clone());
+	}
+
+	/**
+	 * Returns the added composite index definitions, by kind.
+	 */
+	Map<String, ? extends List<String[]>> getCompositeIndexes() {
+		return compositeIndexes;
+	}
+}
@@ -0,0 +1,417 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The default storage engine, which stores the records in a single file.
+ *
+ * The records are chained in a linked list in the order of their offsets: every record is prefixed with the offset
+ * of the next record, and the header of the file holds the offset of the first one. A new record is written in to
+ * the smallest hole which can hold it, and the space of the removed records is reused. The location of a record is
+ * its offset in the file.
+ *
+ * The file is shrunk by the compaction, which slides every record to the end of the previous one, so the holes are
+ * collected at the end of the file, and the file is truncated after the last record.
+ *
+ * The header of the file also holds the generation of the last snapshot, so a snapshot isn't continued on a data
+ * file which doesn't belong to it (for example an older copy of the file). The files created before this field was
+ * added have a different magic, and only the generation of their write-ahead log is checked.
+ *
+ * @author dipacs
+ */
+final class FileStorage implements Storage {
+
+	static final byte[] FILE_HEADER = new byte[]{(byte) 0xed, (byte) 0xb4};
+	static final byte[] LEGACY_FILE_HEADER = new byte[]{(byte) 0xed, (byte) 0xb0};
+	// the magic, the offset of the first record, and the generation of the last snapshot
+	static final long HEADER_LENGTH = FILE_HEADER.length + 16;
+	private static final long LEGACY_HEADER_LENGTH = LEGACY_FILE_HEADER.length + 8;
+	private static final long GENERATION_POSITION = FILE_HEADER.length + 8;
+	private static final int COMPACTION_BATCH = 256;
+	// the maximum size of the records of a batch which are written in one extent
+	private static final long MAX_EXTENT_SIZE = 4 * 1024 * 1024;
+	// the maximum size of the records which are read with one read, and the maximum gap between them
+	private static final long MAX_READ_SIZE = 1024 * 1024;
+	private static final long MAX_READ_GAP = 4096;
+
+	private final DataFile db;
+	private final boolean legacy;
+	private final long headerLength;
+	private final DbFileStructure structure;
+	private final long snapshotSize;
+	private long snapshotGeneration = -1;
+
+	private volatile boolean stopped = false;
+
+	FileStorage(File dbFile, EntityDBConfig config) throws IOException {
+		this.db = new DataFile(dbFile, config);
+		this.snapshotSize = config.getSnapshotSize();
+		try {
+			ByteBuffer header = db.read(0, FILE_HEADER.length);
+			try {
+				if (header.get(0) == FILE_HEADER[0] && header.get(1) == FILE_HEADER[1]) {
+					legacy = false;
+				} else if (header.get(0) == LEGACY_FILE_HEADER[0] && header.get(1) == LEGACY_FILE_HEADER[1]) {
+					legacy = true;
+				} else {
+					throw new RuntimeException("Invalid database format.");
+				}
+			} finally {
+				db.release(header);
+			}
+			headerLength = legacy ? LEGACY_HEADER_LENGTH : HEADER_LENGTH;
+			if (!legacy) {
+				snapshotGeneration = db.readLong(GENERATION_POSITION);
+			}
+		} catch (IOException | RuntimeException ex) {
+			db.close();
+			throw ex;
+		}
+		this.structure = new DbFileStructure(headerLength);
+	}
+
+	@Override
+	public boolean canResume(long generation) {
+		if (generation < 0 || generation != db.getLogGeneration()) {
+			return false;
+		}
+		return legacy || generation == snapshotGeneration;
+	}
+
+	@Override
+	public void recover(long generation, final LogHandler handler) throws IOException {
+		if (handler == null) {
+			db.recover(null);
+			return;
+		}
+		db.recover(new DataFile.LogHandler() {
+
+			@Override
+			public void put(long id, long offset, int length) throws IOException {
+				structure.addPiece(offset, length);
+				handler.put(id, offset, length - 8);
+			}
+
+			@Override
+			public void remove(long id) throws IOException {
+				long offset = handler.remove(id);
+				if (offset > -1) {
+					structure.removePiece(offset);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void scan(ScanHandler handler) throws IOException {
+		long currentOffset = db.readLong(FILE_HEADER.length);
+		while (currentOffset > -1) {
+			ByteBuffer header = db.read(currentOffset, 8 + EntityCodec.HEADER_LENGTH);
+			long nextOffset = header.getLong();
+			int recordLength = EntityCodec.getRecordLength(header);
+			db.release(header);
+			Entity entity = null;
+			if (recordLength < 0) {
+				// legacy record, the length is known only after reading it
+				ObjectInputStream ois = new ObjectInputStream(Channels.newInputStream(db.getChannel().position(currentOffset + 8)));
+				try {
+					entity = (Entity) ois.readObject();
+				} catch (ClassNotFoundException ex) {
+					throw new IOException("Can't read legacy record.", ex);
+				}
+				recordLength = (int) (db.getChannel().position() - currentOffset - 8);
+			}
+			structure.addPiece(currentOffset, recordLength + 8);
+			handler.record(currentOffset, recordLength, entity);
+
+			currentOffset = nextOffset;
+		}
+	}
+
+	@Override
+	public void addRecord(long location, int length) {
+		structure.addPiece(location, length + 8);
+	}
+
+	@Override
+	public int getLength(long location) {
+		return (int) structure.getPiece(location).getLength() - 8;
+	}
+
+	@Override
+	public ByteBuffer read(long location, int length) throws IOException {
+		return db.read(location + 8, length);
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		db.release(buffer);
+	}
+
+	@Override
+	public ByteBuffer[] readAll(long[] locations, int[] lengths) throws IOException {
+		ByteBuffer[] res = new ByteBuffer[locations.length];
+		int from = 0;
+		while (from < locations.length) {
+			long start = locations[from] + 8;
+			long end = start + lengths[from];
+			int to = from + 1;
+			while (to < locations.length && locations[to] + 8 - end <= MAX_READ_GAP
+					&& locations[to] + 8 + lengths[to] - start <= MAX_READ_SIZE) {
+				end = Math.max(end, locations[to] + 8 + lengths[to]);
+				to++;
+			}
+
+			byte[] span = new byte[(int) (end - start)];
+			ByteBuffer buffer = db.read(start, span.length);
+			try {
+				buffer.get(span);
+			} finally {
+				db.release(buffer);
+			}
+			for (int i = from; i < to; i++) {
+				res[i] = ByteBuffer.wrap(span, (int) (locations[i] + 8 - start), lengths[i]).slice();
+			}
+			from = to;
+		}
+		return res;
+	}
+
+	@Override
+	public long write(long id, long oldLocation, byte[] record) throws IOException {
+		if (oldLocation > -1) {
+			remove(id, oldLocation);
+		}
+
+		return writeAt(id, structure.getEmptySpace(record.length + 8), record);
+	}
+
+	@Override
+	public long[] writeAll(long[] ids, long[] oldLocations, byte[][] records) throws IOException {
+		for (int i = 0; i < ids.length; i++) {
+			if (oldLocations[i] > -1) {
+				remove(ids[i], oldLocations[i]);
+			}
+		}
+
+		long[] res = new long[ids.length];
+		int from = 0;
+		while (from < ids.length) {
+			// the records are written in contiguous extents of limited size
+			long size = records[from].length + 8;
+			int to = from + 1;
+			while (to < ids.length && size + records[to].length + 8 <= MAX_EXTENT_SIZE) {
+				size += records[to].length + 8;
+				to++;
+			}
+			writeExtent(ids, records, from, to, size, res);
+			from = to;
+		}
+		return res;
+	}
+
+	/**
+	 * Writes the given records next to each other in one free space, so the next pointers of the records are chained
+	 * in memory, and the extent is written at once.
+	 */
+	private void writeExtent(long[] ids, byte[][] records, int from, int to, long size, long[] locations)
+			throws IOException {
+		long[] offsets = structure.getEmptySpace(size);
+		long prevOffset = offsets[0];
+		long freeOffset = offsets[1];
+		long nextOffset = offsets[2];
+
+		byte[] extent = new byte[(int) size];
+		ByteBuffer buffer = ByteBuffer.wrap(extent);
+		long offset = freeOffset;
+		for (int i = from; i < to; i++) {
+			locations[i] = offset;
+			offset += records[i].length + 8;
+			buffer.putLong(i + 1 < to ? offset : nextOffset).put(records[i]);
+		}
+		db.write(freeOffset, extent);
+		if (prevOffset > -1) {
+			db.writeLong(prevOffset, freeOffset);
+		} else {
+			db.writeLong(FILE_HEADER.length, freeOffset);
+		}
+		for (int i = from; i < to; i++) {
+			db.logPut(ids[i], locations[i], records[i].length + 8);
+			structure.addPiece(locations[i], records[i].length + 8);
+		}
+	}
+
+	private long writeAt(long id, long[] offsets, byte[] record) throws IOException {
+		long prevOffset = offsets[0];
+		long freeOffset = offsets[1];
+		long nextOffset = offsets[2];
+
+		byte[] piece = new byte[record.length + 8];
+		ByteBuffer.wrap(piece).putLong(nextOffset).put(record);
+		db.write(freeOffset, piece);
+		if (prevOffset > -1) {
+			db.writeLong(prevOffset, freeOffset);
+		} else {
+			db.writeLong(FILE_HEADER.length, freeOffset);
+		}
+		db.logPut(id, freeOffset, piece.length);
+		structure.addPiece(freeOffset, piece.length);
+		return freeOffset;
+	}
+
+	@Override
+	public void remove(long id, long location) throws IOException {
+		long[] surround = structure.getPieceSurround(location);
+		long prevOffset = surround[0];
+		long nextOffset = surround[2];
+
+		db.logRemove(id);
+		if (prevOffset > -1) {
+			db.writeLong(prevOffset, nextOffset);
+		} else {
+			db.writeLong(FILE_HEADER.length, nextOffset);
+		}
+		structure.removePiece(location);
+	}
+
+	@Override
+	public long commit() throws IOException {
+		long lsn = db.commit();
+		if (!isSnapshotNeeded() && db.isCheckpointNeeded()) {
+			db.checkpoint();
+		}
+		return lsn;
+	}
+
+	@Override
+	public void awaitDurable(long lsn) {
+		db.awaitDurable(lsn);
+	}
+
+	@Override
+	public boolean isSnapshotNeeded() {
+		return db.getLogSize() > snapshotSize;
+	}
+
+	@Override
+	public long startSnapshot() throws IOException {
+		db.checkpoint();
+		return db.getLogGeneration() + 1;
+	}
+
+	@Override
+	public void finishSnapshot(long generation) throws IOException {
+		if (!legacy) {
+			// the generation is written before the log is reset, so after a crash between the two writes the
+			// generation of the log doesn't match, and the snapshot isn't continued
+			db.writeLongUnlogged(GENERATION_POSITION, generation);
+			snapshotGeneration = generation;
+		}
+		db.resetLog(generation);
+	}
+
+	@Override
+	public long getSize() {
+		return db.length();
+	}
+
+	@Override
+	public void compact(Owner owner, ICompactionListener listener) throws IOException {
+		Lock lock = owner.getWriteLock();
+		long position = headerLength;
+		boolean done = false;
+		while (!done) {
+			long lsn;
+			long end;
+			lock.lock();
+			try {
+				if (stopped) {
+					// the moved records are valid, only the file isn't truncated
+					return;
+				}
+				for (int i = 0; i < COMPACTION_BATCH; i++) {
+					DbFileStructure.Piece piece = structure.getNextPiece(position);
+					if (piece == null) {
+						done = true;
+						break;
+					}
+					long location = piece.getOffset();
+					long freeOffset = structure.getFreeSpaceBefore(location);
+					if (freeOffset < location) {
+						location = move(owner, location, freeOffset);
+					}
+					position = location + piece.getLength();
+				}
+				end = structure.getEnd();
+				lsn = commit();
+				if (isSnapshotNeeded()) {
+					owner.writeSnapshot();
+				}
+			} finally {
+				lock.unlock();
+			}
+			awaitDurable(lsn);
+			if (listener != null) {
+				listener.onProgress(position - headerLength, end - headerLength);
+			}
+		}
+
+		lock.lock();
+		try {
+			if (stopped) {
+				return;
+			}
+			// after the snapshot the log doesn't contain writes after the end of the last record
+			owner.writeSnapshot();
+			db.truncate(structure.getEnd());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves a record to the given free offset before it. The new place can overlap the old one, because the record is
+	 * read before it's removed.
+	 *
+	 * @return
+	 * The new location of the record.
+	 */
+	private long move(Owner owner, long location, long freeOffset) throws IOException {
+		int length = getLength(location);
+		ByteBuffer buffer = read(location, length);
+		byte[] record = new byte[length];
+		try {
+			buffer.get(record);
+		} finally {
+			release(buffer);
+		}
+		long id = EntityCodec.readId(ByteBuffer.wrap(record));
+		if (owner.getLocation(id) != location) {
+			throw new RuntimeException("Internal error. The record at " + location + " doesn't belong to entity: " + id);
+		}
+
+		remove(id, location);
+		long res = writeAt(id, structure.getEmptySpaceAt(freeOffset), record);
+		owner.setLocation(id, res);
+		return res;
+	}
+
+	@Override
+	public void start(Owner owner) {
+	}
+
+	@Override
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		db.close();
+	}
+}
@@ -1,20 +1,43 @@
 package com.eagerlogic.entitydb;
 
 /**
+ * A query of the entities of a kind.
+ *
+ * By default the results are returned in ascending order of their keys. The results can be ordered by an attribute
+ * instead, and a page of them can be selected with an offset and a limit, or with a cursor, which starts the page
+ * after the last result of the previous page. A cursor is stable even if the database is changed between the pages,
+ * and it doesn't need to skip the results of the previous pages, so it should be used for deep pagination.
+ *
+ * When the results are ordered by an attribute, the entities are ordered by the type of the value first (boolean,
+ * long, string, and the entities which don't have the attribute are the last ones), than by the value (the strings
+ * are compared in lower case), and the entities which have the same value are ordered by their keys. The descending
+ * order is the exact reverse of the ascending order.
  *
  * @author dipacs
  */
 public final class Filter {
-	
+
+	public static enum EDirection {
+		ASCENDING,
+		DESCENDING
+	}
+
 	private final String kind;
 	private final AFilterItem filterItem;
+	private String orderAttribute = null;
+	private EDirection direction = EDirection.ASCENDING;
+	private int offset = 0;
+	private int limit = -1;
+	private boolean cursor = false;
+	private Object cursorValue = null;
+	private long cursorKey = 0;
 
 	public Filter(String kind, AFilterItem filterItem) {
 		if (kind == null) {
 			throw new NullPointerException("The kind parameter can not be null.");
 		}
 		this.kind = kind;
-		
+
 		if (filterItem == null) {
 			throw new NullPointerException("The filterItem parameter can not be null.");
 		}
@@ -29,4 +52,155 @@ public final class Filter {
 		return filterItem;
 	}
 
+	/**
+	 * Returns the name of the attribute which orders the results.
+	 *
+	 * @return
+	 * The name of the attribute, or null if the results are ordered by their keys.
+	 */
+	public String getOrderAttribute() {
+		return orderAttribute;
+	}
+
+	public EDirection getDirection() {
+		return direction;
+	}
+
+	/**
+	 * Sets the order of the results. The results are returned in the given order by the <code>query</code>,
+	 * <code>queryKeys</code>, <code>queryIterator</code>, <code>queryStream</code> and <code>queryFirst</code> methods
+	 * of the DB. The <code>queryIds</code> method returns the keys of the selected page in ascending order.
+	 *
+	 * If the attribute has an ORDERED or NGRAM index, the results are read from the index in order, and the query
+	 * stops when the page is complete. Otherwise the matching entities are sorted.
+	 *
+	 * @param attributeName
+	 * The name of the attribute, or null to order the results by their keys.
+	 *
+	 * @param direction
+	 * The direction of the order.
+	 */
+	public void setOrder(String attributeName, EDirection direction) {
+		if (direction == null) {
+			throw new NullPointerException("The direction parameter can not be null.");
+		}
+		this.orderAttribute = attributeName;
+		this.direction = direction;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Sets the count of the results which are skipped from the start of the results (or from the cursor, if it's
+	 * set). The default value is 0. The skipped results are read from the indexes, so a large offset is slow, a cursor
+	 * should be used instead.
+	 *
+	 * @param offset
+	 * The count of the skipped results.
+	 */
+	public void setOffset(int offset) {
+		if (offset < 0) {
+			throw new IllegalArgumentException("The offset can not be negative.");
+		}
+		this.offset = offset;
+	}
+
+	/**
+	 * Returns the maximum count of the results.
+	 *
+	 * @return
+	 * The maximum count of the results, or -1 if the count of the results isn't limited.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Sets the maximum count of the results. The default value is -1, which doesn't limit the results.
+	 *
+	 * @param limit
+	 * The maximum count of the results, or -1.
+	 */
+	public void setLimit(int limit) {
+		if (limit < -1) {
+			throw new IllegalArgumentException("Invalid limit: " + limit);
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * Starts the results after the given entity, in the order of this filter. The entity is usually the last result
+	 * of the previous page. The value of the order attribute of the entity is used, so the order needs to be set
+	 * first.
+	 *
+	 * @param entity
+	 * The entity.
+	 */
+	public void setCursor(Entity entity) {
+		if (entity == null) {
+			throw new NullPointerException("The entity parameter can not be null.");
+		}
+		if (entity.getId() < 0) {
+			throw new IllegalArgumentException("The entity isn't stored in the database.");
+		}
+		Object value = orderAttribute == null ? null : entity.<Object>getAttribute(orderAttribute);
+		setCursor(value, entity.getId());
+	}
+
+	/**
+	 * Starts the results after the result which has the given value and key, in the order of this filter. The entity
+	 * with the given key doesn't need to exist any more.
+	 *
+	 * @param value
+	 * The value of the order attribute (a Boolean, a Long, a String, or null if the entity doesn't have the
+	 * attribute). It's ignored if the results are ordered by their keys.
+	 *
+	 * @param key
+	 * The key.
+	 */
+	public void setCursor(Object value, long key) {
+		if (value instanceof String) {
+			value = ((String) value).toLowerCase();
+		} else if (value != null && !(value instanceof Long) && !(value instanceof Boolean)) {
+			throw new IllegalArgumentException("Invalid cursor value type: " + value.getClass().getName());
+		}
+		this.cursor = true;
+		this.cursorValue = value;
+		this.cursorKey = key;
+	}
+
+	/**
+	 * Removes the cursor, so the results are started from the first one.
+	 */
+	public void clearCursor() {
+		this.cursor = false;
+		this.cursorValue = null;
+		this.cursorKey = 0;
+	}
+
+	boolean hasCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Returns the value of the cursor. The strings are in lower case.
+	 */
+	Object getCursorValue() {
+		return cursorValue;
+	}
+
+	long getCursorKey() {
+		return cursorKey;
+	}
+
+	/**
+	 * Indicates if the order, the offset, the limit or the cursor of this filter is set, so the results aren't simply
+	 * every match in ascending order of their keys.
+	 */
+	boolean isPaged() {
+		return orderAttribute != null || direction != EDirection.ASCENDING || offset > 0 || limit >= 0 || cursor;
+	}
+
 }
@@ -0,0 +1,139 @@
+package com.eagerlogic.entitydb;
+
+/**
+ * Checks the filters on decoded entities, or on single values of the indexes. It's used when a filter can't be
+ * answered by the attribute indexes, and to check the candidates of a query. The results are the same as the results
+ * of the indexes: a filter matches only the attribute values of its own type, and the string values are compared in
+ * lower case.
+ *
+ * @author dipacs
+ */
+final class FilterMatcher {
+
+	private FilterMatcher() {
+	}
+
+	/**
+	 * Returns the name of the attribute which is checked by the given filter.
+	 *
+	 * @return
+	 * The name of the attribute, or null if the filter is a group or an unknown filter.
+	 */
+	static String getAttributeName(AFilterItem filter) {
+		if (filter instanceof LongFilterItem) {
+			return ((LongFilterItem) filter).getAttributeName();
+		} else if (filter instanceof StringFilterItem) {
+			return ((StringFilterItem) filter).getAttributeName();
+		} else if (filter instanceof BooleanFilterItem) {
+			return ((BooleanFilterItem) filter).getAttributeName();
+		} else if (filter instanceof NullFilterItem) {
+			return ((NullFilterItem) filter).getAttributeName();
+		}
+		return null;
+	}
+
+	/**
+	 * Indicates if the given entity matches the given filter. The kind of the entity isn't checked.
+	 */
+	static boolean matches(Entity entity, AFilterItem filter) {
+		if (filter instanceof FilterGroupItem) {
+			FilterGroupItem filterGroup = (FilterGroupItem) filter;
+			boolean and = filterGroup.getOperator() == FilterGroupItem.EOperator.AND;
+			for (AFilterItem filterItem : filterGroup.getFilters()) {
+				if (matches(entity, filterItem) != and) {
+					return !and;
+				}
+			}
+			return and;
+		}
+		String attributeName = getAttributeName(filter);
+		if (attributeName == null) {
+			return false;
+		}
+		Object value = entity.getAttribute(attributeName);
+		if (value instanceof String) {
+			value = ((String) value).toLowerCase();
+		}
+		return matchesValue(filter, value);
+	}
+
+	/**
+	 * Indicates if the given attribute value matches the given filter, which isn't a group. The string values need to
+	 * be in lower case, like the values of the indexes.
+	 */
+	static boolean matchesValue(AFilterItem filter, Object value) {
+		if (filter instanceof NullFilterItem) {
+			return value != null;
+		} else if (filter instanceof LongFilterItem) {
+			return value instanceof Long && matchesLong((LongFilterItem) filter, (Long) value);
+		} else if (filter instanceof StringFilterItem) {
+			return value instanceof String && matchesString((StringFilterItem) filter, (String) value);
+		} else {
+			return value instanceof Boolean && (Boolean) value == ((BooleanFilterItem) filter).getReferenceValue();
+		}
+	}
+
+	private static boolean matchesLong(LongFilterItem filter, long value) {
+		long[] referenceValues = filter.getSharedReferenceValues();
+		long referenceValue = referenceValues[0];
+		switch (filter.getOperator()) {
+			case EQUALS:
+				return value == referenceValue;
+			case NOT_EQUALS:
+				return value != referenceValue;
+			case GREATER:
+				return value > referenceValue;
+			case GREATER_OR_EQUALS:
+				return value >= referenceValue;
+			case SMALLER:
+				return value < referenceValue;
+			case SMALLER_OR_EQUALS:
+				return value <= referenceValue;
+			case BETWEEN:
+				return value >= referenceValue && value <= referenceValues[1];
+			case IN:
+				for (long v : referenceValues) {
+					if (value == v) {
+						return true;
+					}
+				}
+				return false;
+			default:
+				throw new IllegalArgumentException("Illegal LongFilter operator: " + filter.getOperator().name());
+		}
+	}
+
+	private static boolean matchesString(StringFilterItem filter, String value) {
+		String[] referenceValues = filter.getSharedReferenceValues();
+		String referenceValue = referenceValues[0];
+		switch (filter.getOperator()) {
+			case EQUALS:
+				return value.equals(referenceValue);
+			case NOT_EQUALS:
+				return !value.equals(referenceValue);
+			case GREATER:
+				return value.compareTo(referenceValue) > 0;
+			case GREATER_OR_EQUALS:
+				return value.compareTo(referenceValue) >= 0;
+			case SMALLER:
+				return value.compareTo(referenceValue) < 0;
+			case SMALLER_OR_EQUALS:
+				return value.compareTo(referenceValue) <= 0;
+			case BETWEEN:
+				return value.compareTo(referenceValue) >= 0 && value.compareTo(referenceValues[1]) <= 0;
+			case IN:
+				for (String v : referenceValues) {
+					if (value.equals(v)) {
+						return true;
+					}
+				}
+				return false;
+			case STARTS_WITH:
+				return value.startsWith(referenceValue);
+			case CONTAINS:
+				return value.contains(referenceValue);
+			default:
+				throw new IllegalArgumentException("Invalid StringFilterOperator: " + filter.getOperator().name());
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.eagerlogic.entitydb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group commit of an append-only file.
+ *
+ * The appended content isn't durable until it's forced to the disk. Concurrent committers are batched: one of the
+ * waiting threads (the leader) forces the file for all of them. Depending on the durability setting the leader waits
+ * the group commit window before forcing, or the file is forced only by a background thread.
+ *
+ * The positions in the file are identified by log sequence numbers (lsn), which are increasing with every append.
+ *
+ * @author dipacs
+ */
+abstract class GroupCommit {
+
+	private final EntityDBConfig.EDurability durability;
+	private final long groupCommitWindowNanos;
+
+	private final Object syncLock = new Object();
+	private long durableLsn = 0;
+	private boolean syncing = false;
+	private IOException failure = null;
+
+	private volatile boolean closed = false;
+	private Thread flusher = null;
+
+	GroupCommit(EntityDBConfig config) {
+		this.durability = config.getDurability();
+		this.groupCommitWindowNanos = TimeUnit.MILLISECONDS.toNanos(config.getGroupCommitWindow());
+	}
+
+	/**
+	 * Returns the log sequence number of the end of the appended content.
+	 *
+	 * @return
+	 * The log sequence number of the end of the appended content.
+	 */
+	abstract long getAppendedLsn();
+
+	/**
+	 * Writes out the appended content if it's buffered, and forces it to the disk. This method is called by only one
+	 * thread at a time.
+	 *
+	 * @return
+	 * The log sequence number until the content is durable.
+	 */
+	abstract long flush() throws IOException;
+
+	/**
+	 * Starts the background thread which forces the file in every group commit window, if the durability is ASYNC.
+	 *
+	 * @param name
+	 * The name of the thread.
+	 */
+	void startFlusher(String name) {
+		if (durability != EntityDBConfig.EDurability.ASYNC) {
+			return;
+		}
+		flusher = new Thread(name) {
+
+			@Override
+			public void run() {
+				while (!closed) {
+					// the park can return early, and the file isn't forced after the close
+					long deadline = System.nanoTime() + Math.max(groupCommitWindowNanos,
+							TimeUnit.MILLISECONDS.toNanos(1));
+					long remaining;
+					while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(remaining);
+					}
+					if (closed) {
+						return;
+					}
+					try {
+						sync();
+					} catch (RuntimeException ex) {
+						// the next commit or checkpoint reports the error
+					}
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Stops the background thread.
+	 */
+	void stopFlusher() {
+		closed = true;
+		if (flusher != null) {
+			LockSupport.unpark(flusher);
+		}
+	}
+
+	/**
+	 * Sets the content until the given log sequence number as durable. Used after recovering the file.
+	 *
+	 * @param lsn
+	 * The log sequence number of the durable content.
+	 */
+	void setDurableLsn(long lsn) {
+		synchronized (syncLock) {
+			durableLsn = lsn;
+		}
+	}
+
+	/**
+	 * Waits until the content until the given log sequence number is durable, depending on the durability setting.
+	 *
+	 * @param lsn
+	 * The log sequence number to wait for.
+	 */
+	void commit(long lsn) {
+		switch (durability) {
+			case ASYNC:
+				return;
+			case GROUP_COMMIT:
+				sync(lsn, groupCommitWindowNanos);
+				return;
+			default:
+				sync(lsn, 0);
+		}
+	}
+
+	/**
+	 * Forces every appended content to the disk.
+	 */
+	void sync() {
+		sync(getAppendedLsn(), 0);
+	}
+
+	private void sync(long lsn, long windowNanos) {
+		synchronized (syncLock) {
+			while (durableLsn < lsn && syncing) {
+				try {
+					syncLock.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for the disk.", ex);
+				}
+			}
+			if (durableLsn >= lsn) {
+				return;
+			}
+			if (failure != null) {
+				// the content of the failed write is lost, so nothing can be committed after it
+				throw new RuntimeException("Error writing the log.", failure);
+			}
+			syncing = true;
+		}
+
+		// this thread is the leader, it forces the file for every waiting committer
+		long syncedLsn = -1;
+		try {
+			if (windowNanos > 0) {
+				LockSupport.parkNanos(windowNanos);
+			}
+			syncedLsn = flush();
+		} catch (IOException ex) {
+			synchronized (syncLock) {
+				failure = ex;
+			}
+			throw new RuntimeException("Error writing the log.", ex);
+		} finally {
+			synchronized (syncLock) {
+				if (syncedLsn > durableLsn) {
+					durableLsn = syncedLsn;
+				}
+				syncing = false;
+				syncLock.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.eagerlogic.entitydb;
+
+/**
+ * Receives the progress of the compaction of a database.
+ *
+ * @author dipacs
+ */
+public interface ICompactionListener {
+
+	/**
+	 * Called after every batch of moved records. This method is called on the thread which runs the compaction,
+	 * while the database isn't locked.
+	 *
+	 * @param processedBytes
+	 * The count of bytes which are already processed.
+	 *
+	 * @param totalBytes
+	 * The count of bytes which need to be processed. This can change during the compaction, because the database can
+	 * be changed concurrently.
+	 */
+	void onProgress(long processedBytes, long totalBytes);
+}
@@ -0,0 +1,26 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Iterator;
+
+/**
+ * Iterates over the results of a query. The ids of the matching entities are collected when the query is executed,
+ * but the entities are read only when they are pulled by the <code>next()</code> method, so a consumer which needs
+ * only the first few results doesn't read the others.
+ *
+ * Every entity is checked again when it's read, so an entity which is removed, or changed so it doesn't match the
+ * filter any more after the query is executed is skipped. The entities which start to match the filter after the
+ * query is executed aren't returned.
+ *
+ * The iterator holds no lock between the calls, so the database can be changed while it's used. It should be closed
+ * when it's not needed any more, to free the collected ids.
+ *
+ * @author dipacs
+ */
+public interface IQueryIterator extends Iterator<Entity>, AutoCloseable {
+
+	/**
+	 * Stops the iteration. The <code>hasNext()</code> method returns false after the iterator is closed.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,37 @@
+package com.eagerlogic.entitydb;
+
+/**
+ * The results of a query, which can be iterated once with a for-each loop, and closed with a try-with-resources
+ * statement. The entities are read lazily, like by the {@link IQueryIterator}.
+ *
+ * @author dipacs
+ */
+public interface IQueryStream extends Iterable<Entity>, AutoCloseable {
+
+	/**
+	 * Returns the iterator of the results. The results can be iterated only once.
+	 *
+	 * @throws IllegalStateException
+	 * If the iterator is already returned, or the stream is closed.
+	 */
+	@Override
+	IQueryIterator iterator();
+
+	/**
+	 * Adds a hook which is run when the stream is closed. The hooks are run in the order they are added, and every
+	 * hook is run even if an earlier one throws an exception.
+	 *
+	 * @param closeHandler
+	 * The hook.
+	 *
+	 * @return
+	 * This stream.
+	 */
+	IQueryStream onClose(Runnable closeHandler);
+
+	/**
+	 * Closes the iterator of the stream, and runs the close hooks. Closing a closed stream has no effect.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,686 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A compressed set of entity ids, which is used as the result of the queries, and as the posting lists of the
+ * indexes.
+ *
+ * The ids are grouped by their high 48 bits, and the low 16 bits of the ids of a group are stored in a container
+ * (Roaring bitmap): a sorted array if the group has at most 4096 ids, otherwise a bitmap of 65536 bits. So both sparse
+ * and dense sets are small, and the intersection and union of sets are computed container by container. The ids are
+ * iterated in ascending order.
+ *
+ * @author dipacs
+ */
+public final class IdSet implements Iterable<Long> {
+
+	private static final int ARRAY_MAX_SIZE = 4096;
+	private static final int BITMAP_WORDS = 1024;
+
+	private abstract static class Container {
+
+		abstract int cardinality();
+
+		abstract boolean contains(int low);
+
+		/**
+		 * Adds a value. Returns the container which holds the result, which can be this container, or a new one.
+		 */
+		abstract Container add(int low);
+
+		/**
+		 * Removes a value. Returns the container which holds the result, which can be this container, or a new one.
+		 */
+		abstract Container remove(int low);
+
+		/**
+		 * Returns the smallest value which is greater than or equal to the given value, or -1.
+		 */
+		abstract int next(int from);
+
+		/**
+		 * Returns the greatest value which is smaller than or equal to the given value, or -1.
+		 */
+		abstract int previous(int from);
+
+		abstract Container copy();
+
+		abstract BitmapContainer toBitmap();
+	}
+
+	private static final class ArrayContainer extends Container {
+
+		private char[] values;
+		private int size;
+
+		ArrayContainer(char[] values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+
+		@Override
+		int cardinality() {
+			return size;
+		}
+
+		@Override
+		boolean contains(int low) {
+			return Arrays.binarySearch(values, 0, size, (char) low) >= 0;
+		}
+
+		@Override
+		Container add(int low) {
+			int index = Arrays.binarySearch(values, 0, size, (char) low);
+			if (index >= 0) {
+				return this;
+			}
+			if (size == ARRAY_MAX_SIZE) {
+				return toBitmap().add(low);
+			}
+			index = -index - 1;
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX_SIZE, Math.max(4, size * 2)));
+			}
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = (char) low;
+			size++;
+			return this;
+		}
+
+		@Override
+		Container remove(int low) {
+			int index = Arrays.binarySearch(values, 0, size, (char) low);
+			if (index >= 0) {
+				System.arraycopy(values, index + 1, values, index, size - index - 1);
+				size--;
+			}
+			return this;
+		}
+
+		@Override
+		int next(int from) {
+			int index = Arrays.binarySearch(values, 0, size, (char) from);
+			if (index < 0) {
+				index = -index - 1;
+			}
+			return index < size ? values[index] : -1;
+		}
+
+		@Override
+		int previous(int from) {
+			int index = Arrays.binarySearch(values, 0, size, (char) from);
+			if (index < 0) {
+				index = -index - 2;
+			}
+			return index >= 0 ? values[index] : -1;
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, size), size);
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			BitmapContainer res = new BitmapContainer();
+			for (int i = 0; i < size; i++) {
+				res.words[values[i] >>> 6] |= 1l << values[i];
+			}
+			res.cardinality = size;
+			return res;
+		}
+	}
+
+	private static final class BitmapContainer extends Container {
+
+		private final long[] words = new long[BITMAP_WORDS];
+		private int cardinality = 0;
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(int low) {
+			return (words[low >>> 6] & (1l << low)) != 0;
+		}
+
+		@Override
+		Container add(int low) {
+			long bit = 1l << low;
+			if ((words[low >>> 6] & bit) == 0) {
+				words[low >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(int low) {
+			long bit = 1l << low;
+			if ((words[low >>> 6] & bit) != 0) {
+				words[low >>> 6] &= ~bit;
+				cardinality--;
+				if (cardinality <= ARRAY_MAX_SIZE) {
+					return toArray();
+				}
+			}
+			return this;
+		}
+
+		@Override
+		int next(int from) {
+			int index = from >>> 6;
+			if (index >= BITMAP_WORDS) {
+				return -1;
+			}
+			long word = words[index] & (-1l << from);
+			while (word == 0) {
+				if (++index == BITMAP_WORDS) {
+					return -1;
+				}
+				word = words[index];
+			}
+			return (index << 6) + Long.numberOfTrailingZeros(word);
+		}
+
+		@Override
+		int previous(int from) {
+			int index = from >>> 6;
+			long word = words[index] & (-1l >>> (63 - (from & 63)));
+			while (word == 0) {
+				if (--index < 0) {
+					return -1;
+				}
+				word = words[index];
+			}
+			return (index << 6) + 63 - Long.numberOfLeadingZeros(word);
+		}
+
+		@Override
+		Container copy() {
+			BitmapContainer res = new BitmapContainer();
+			System.arraycopy(words, 0, res.words, 0, BITMAP_WORDS);
+			res.cardinality = cardinality;
+			return res;
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			return this;
+		}
+
+		/**
+		 * Recounts the cardinality after changing the words, and converts the container to an array if it's small.
+		 */
+		Container optimize() {
+			int count = 0;
+			for (long word : words) {
+				count += Long.bitCount(word);
+			}
+			cardinality = count;
+			return count <= ARRAY_MAX_SIZE ? toArray() : this;
+		}
+
+		private ArrayContainer toArray() {
+			char[] values = new char[cardinality];
+			int size = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					values[size++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, size);
+		}
+	}
+
+	private long[] highs;
+	private Container[] containers;
+	private int count;
+
+	/**
+	 * Creates a new empty set.
+	 */
+	IdSet() {
+		this(4);
+	}
+
+	private IdSet(int capacity) {
+		highs = new long[capacity];
+		containers = new Container[capacity];
+		count = 0;
+	}
+
+	private int find(long high) {
+		return Arrays.binarySearch(highs, 0, count, high);
+	}
+
+	private void insert(int index, long high, Container container) {
+		if (count == highs.length) {
+			int capacity = Math.max(4, count * 2);
+			highs = Arrays.copyOf(highs, capacity);
+			containers = Arrays.copyOf(containers, capacity);
+		}
+		System.arraycopy(highs, index, highs, index + 1, count - index);
+		System.arraycopy(containers, index, containers, index + 1, count - index);
+		highs[index] = high;
+		containers[index] = container;
+		count++;
+	}
+
+	private void delete(int index) {
+		System.arraycopy(highs, index + 1, highs, index, count - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, count - index - 1);
+		count--;
+		containers[count] = null;
+	}
+
+	private void append(long high, Container container) {
+		if (container.cardinality() > 0) {
+			insert(count, high, container);
+		}
+	}
+
+	/**
+	 * Adds an id to this set.
+	 *
+	 * @param id
+	 * The id to add, which must not be negative.
+	 */
+	void add(long id) {
+		long high = id >>> 16;
+		int index = find(high);
+		if (index >= 0) {
+			containers[index] = containers[index].add((int) id & 0xffff);
+		} else {
+			insert(-index - 1, high, new ArrayContainer(new char[4], 0).add((int) id & 0xffff));
+		}
+	}
+
+	/**
+	 * Removes an id from this set.
+	 *
+	 * @param id
+	 * The id to remove.
+	 */
+	void remove(long id) {
+		int index = find(id >>> 16);
+		if (index >= 0) {
+			Container container = containers[index].remove((int) id & 0xffff);
+			if (container.cardinality() == 0) {
+				delete(index);
+			} else {
+				containers[index] = container;
+			}
+		}
+	}
+
+	/**
+	 * Adds every id of the given set to this set.
+	 *
+	 * @param other
+	 * The set to add, which isn't changed.
+	 */
+	void addAll(IdSet other) {
+		for (int i = 0; i < other.count; i++) {
+			int index = find(other.highs[i]);
+			if (index >= 0) {
+				containers[index] = or(containers[index], other.containers[i]);
+			} else {
+				insert(-index - 1, other.highs[i], other.containers[i].copy());
+			}
+		}
+	}
+
+	/**
+	 * Indicates if the given id is in this set.
+	 *
+	 * @param id
+	 * The id to check.
+	 *
+	 * @return
+	 * True if the id is in this set.
+	 */
+	public boolean contains(long id) {
+		int index = find(id >>> 16);
+		return index >= 0 && containers[index].contains((int) id & 0xffff);
+	}
+
+	/**
+	 * Returns the count of the ids in this set.
+	 *
+	 * @return
+	 * The count of the ids.
+	 */
+	public int size() {
+		int res = 0;
+		for (int i = 0; i < count; i++) {
+			res += containers[i].cardinality();
+		}
+		return res;
+	}
+
+	/**
+	 * Indicates if this set is empty.
+	 *
+	 * @return
+	 * True if this set doesn't contain any id.
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Returns the smallest id of this set which is greater than or equal to the given id.
+	 *
+	 * @param from
+	 * The id to search from.
+	 *
+	 * @return
+	 * The found id, or -1 if there is no such id.
+	 */
+	long next(long from) {
+		if (from < 0) {
+			from = 0;
+		}
+		long high = from >>> 16;
+		int index = find(high);
+		int low = (int) from & 0xffff;
+		if (index < 0) {
+			index = -index - 1;
+			low = 0;
+		}
+		for (; index < count; index++, low = 0) {
+			int res = containers[index].next(low);
+			if (res >= 0) {
+				return (highs[index] << 16) | res;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the greatest id of this set which is smaller than or equal to the given id.
+	 *
+	 * @param from
+	 * The id to search from.
+	 *
+	 * @return
+	 * The found id, or -1 if there is no such id.
+	 */
+	long previous(long from) {
+		if (from < 0) {
+			return -1;
+		}
+		long high = from >>> 16;
+		int index = find(high);
+		int low = (int) from & 0xffff;
+		if (index < 0) {
+			index = -index - 2;
+			low = 0xffff;
+		}
+		for (; index >= 0; index--, low = 0xffff) {
+			int res = containers[index].previous(low);
+			if (res >= 0) {
+				return (highs[index] << 16) | res;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the ids of this set in ascending order.
+	 *
+	 * @return
+	 * A new array which contains the ids.
+	 */
+	public long[] toArray() {
+		long[] res = new long[size()];
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			long high = highs[i] << 16;
+			Container container = containers[i];
+			for (int low = container.next(0); low >= 0; low = low < 0xffff ? container.next(low + 1) : -1) {
+				res[size++] = high | low;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the ids of this set in ascending order.
+	 *
+	 * @return
+	 * A new list which contains the ids.
+	 */
+	List<Long> toList() {
+		long[] ids = toArray();
+		List<Long> res = new ArrayList<>(ids.length);
+		for (long id : ids) {
+			res.add(id);
+		}
+		return res;
+	}
+
+	/**
+	 * Returns a copy of this set, which can be changed independently.
+	 *
+	 * @return
+	 * The copy of this set.
+	 */
+	IdSet copy() {
+		IdSet res = new IdSet(Math.max(4, count));
+		for (int i = 0; i < count; i++) {
+			res.highs[i] = highs[i];
+			res.containers[i] = containers[i].copy();
+		}
+		res.count = count;
+		return res;
+	}
+
+	/**
+	 * Iterates the ids in ascending order. This set must not be changed during the iteration.
+	 */
+	@Override
+	public Iterator<Long> iterator() {
+		return new Iterator<Long>() {
+
+			private long nextId = IdSet.this.next(0);
+
+			@Override
+			public boolean hasNext() {
+				return nextId >= 0;
+			}
+
+			@Override
+			public Long next() {
+				if (nextId < 0) {
+					throw new NoSuchElementException();
+				}
+				long res = nextId;
+				nextId = res == Long.MAX_VALUE ? -1 : IdSet.this.next(res + 1);
+				return res;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("The result of a query can't be changed.");
+			}
+		};
+	}
+
+	/**
+	 * Returns the ids which are in both of the given sets.
+	 *
+	 * @return
+	 * A new set.
+	 */
+	static IdSet and(IdSet a, IdSet b) {
+		IdSet res = new IdSet(Math.max(4, Math.min(a.count, b.count)));
+		int i = 0;
+		int j = 0;
+		while (i < a.count && j < b.count) {
+			if (a.highs[i] < b.highs[j]) {
+				i++;
+			} else if (a.highs[i] > b.highs[j]) {
+				j++;
+			} else {
+				res.append(a.highs[i], and(a.containers[i], b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the ids which are in any of the given sets.
+	 *
+	 * @return
+	 * A new set.
+	 */
+	static IdSet or(IdSet a, IdSet b) {
+		IdSet res = a.copy();
+		res.addAll(b);
+		return res;
+	}
+
+	/**
+	 * Returns the ids of the first set which aren't in the second set.
+	 *
+	 * @return
+	 * A new set.
+	 */
+	static IdSet andNot(IdSet a, IdSet b) {
+		IdSet res = new IdSet(Math.max(4, a.count));
+		int j = 0;
+		for (int i = 0; i < a.count; i++) {
+			while (j < b.count && b.highs[j] < a.highs[i]) {
+				j++;
+			}
+			if (j < b.count && b.highs[j] == a.highs[i]) {
+				res.append(a.highs[i], andNot(a.containers[i], b.containers[j]));
+			} else {
+				res.append(a.highs[i], a.containers[i].copy());
+			}
+		}
+		return res;
+	}
+
+	private static Container and(Container a, Container b) {
+		if (a instanceof ArrayContainer && b instanceof ArrayContainer) {
+			ArrayContainer x = (ArrayContainer) a;
+			ArrayContainer y = (ArrayContainer) b;
+			char[] values = new char[Math.min(x.size, y.size)];
+			int size = 0;
+			int i = 0;
+			int j = 0;
+			while (i < x.size && j < y.size) {
+				if (x.values[i] < y.values[j]) {
+					i++;
+				} else if (x.values[i] > y.values[j]) {
+					j++;
+				} else {
+					values[size++] = x.values[i];
+					i++;
+					j++;
+				}
+			}
+			return new ArrayContainer(values, size);
+		}
+		if (a instanceof ArrayContainer || b instanceof ArrayContainer) {
+			ArrayContainer array = (ArrayContainer) (a instanceof ArrayContainer ? a : b);
+			Container other = array == a ? b : a;
+			char[] values = new char[array.size];
+			int size = 0;
+			for (int i = 0; i < array.size; i++) {
+				if (other.contains(array.values[i])) {
+					values[size++] = array.values[i];
+				}
+			}
+			return new ArrayContainer(values, size);
+		}
+		BitmapContainer res = new BitmapContainer();
+		long[] x = ((BitmapContainer) a).words;
+		long[] y = ((BitmapContainer) b).words;
+		for (int i = 0; i < BITMAP_WORDS; i++) {
+			res.words[i] = x[i] & y[i];
+		}
+		return res.optimize();
+	}
+
+	/**
+	 * Returns the union of the given containers. The first container can be changed, and returned as the result.
+	 */
+	private static Container or(Container a, Container b) {
+		if (a instanceof ArrayContainer && b instanceof ArrayContainer) {
+			ArrayContainer x = (ArrayContainer) a;
+			ArrayContainer y = (ArrayContainer) b;
+			char[] values = new char[x.size + y.size];
+			int size = 0;
+			int i = 0;
+			int j = 0;
+			while (i < x.size || j < y.size) {
+				if (j == y.size || (i < x.size && x.values[i] < y.values[j])) {
+					values[size++] = x.values[i++];
+				} else if (i == x.size || x.values[i] > y.values[j]) {
+					values[size++] = y.values[j++];
+				} else {
+					values[size++] = x.values[i];
+					i++;
+					j++;
+				}
+			}
+			ArrayContainer res = new ArrayContainer(values, size);
+			return size <= ARRAY_MAX_SIZE ? res : res.toBitmap();
+		}
+		BitmapContainer res = a instanceof BitmapContainer ? (BitmapContainer) a : a.toBitmap();
+		if (b instanceof ArrayContainer) {
+			ArrayContainer y = (ArrayContainer) b;
+			for (int i = 0; i < y.size; i++) {
+				res.add(y.values[i]);
+			}
+			return res;
+		}
+		long[] y = ((BitmapContainer) b).words;
+		for (int i = 0; i < BITMAP_WORDS; i++) {
+			res.words[i] |= y[i];
+		}
+		return res.optimize();
+	}
+
+	private static Container andNot(Container a, Container b) {
+		if (a instanceof ArrayContainer) {
+			ArrayContainer x = (ArrayContainer) a;
+			char[] values = new char[x.size];
+			int size = 0;
+			for (int i = 0; i < x.size; i++) {
+				if (!b.contains(x.values[i])) {
+					values[size++] = x.values[i];
+				}
+			}
+			return new ArrayContainer(values, size);
+		}
+		BitmapContainer res = (BitmapContainer) a.copy();
+		if (b instanceof ArrayContainer) {
+			ArrayContainer y = (ArrayContainer) b;
+			for (int i = 0; i < y.size; i++) {
+				res.words[y.values[i] >>> 6] &= ~(1l << y.values[i]);
+			}
+		} else {
+			long[] y = ((BitmapContainer) b).words;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				res.words[i] &= ~y[i];
+			}
+		}
+		return res.optimize();
+	}
+}
@@ -1,99 +1,592 @@
 package com.eagerlogic.entitydb;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * The in-memory index of the attributes of one value type.
+ *
+ * Every attribute of a kind has its own index, which maps the values to the ids of the entities (posting lists), and
+ * the ids of the entities to their values, so the old value of an entity can be found when it's changed. The indexes
+ * of the attributes are held by the kind and attribute name, so the index maintenance doesn't allocate, except when
+ * the structures grow.
+ *
+ * Only the attributes which are indexed by the index definitions are held. The values of an ORDERED index are sorted,
+ * so the comparisons are answered by navigating in them, the values of a HASH index are held in a hash map, which
+ * answers only the equality checks. A string attribute with an NGRAM index has a trigram index too, which maps every
+ * three character long substring of the values to the ids of the entities which value contains it. A CONTAINS filter
+ * intersects the trigrams of its reference value, and checks only the remaining candidates, instead of checking every
+ * distinct value of the attribute.
  *
  * @author dipacs
  */
 final class Index<T> {
 
-	private final HashMap<String, HashMap<String, TreeMap<T, List<Long>>>> index = new HashMap<>();
-	private final HashMap<String, T> valueCache = new HashMap<>();
+	/**
+	 * The index of an attribute of a kind.
+	 */
+	private static final class Attribute<T> {
+
+		// a TreeMap, or a HashMap for a HASH index
+		private Map<T, IdSet> values;
+		private final LongObjectMap<T> entityValues = new LongObjectMap<>();
+		// null if the attribute has no trigram index
+		private HashMap<String, IdSet> grams = null;
+		// the original string values which aren't in lower case, null if there is no such value
+		private LongObjectMap<String> originals = null;
+	}
+
+	private static final int GRAM_LENGTH = 3;
+	// the estimated part of the entities which match a string range, which can't be interpolated
+	private static final double RANGE_SELECTIVITY = 1.0 / 3;
+
+	// the kinds are added concurrently by the writers of the different kinds
+	private final ConcurrentHashMap<String, HashMap<String, Attribute<T>>> index = new ConcurrentHashMap<>();
+	private final IndexDefinitions definitions;
+	private final boolean text;
 
-	Index() {
+	/**
+	 * Creates a new index.
+	 *
+	 * @param definitions
+	 * The definitions which tell which attributes are indexed.
+	 *
+	 * @param valueType
+	 * The type of the values. Only the string values can have a trigram index.
+	 */
+	Index(IndexDefinitions definitions, Class<T> valueType) {
+		this.definitions = definitions;
+		this.text = valueType == String.class;
 	}
 
+	/**
+	 * Indexes the value of an attribute of an entity. The string values are indexed in lower case, and their
+	 * original value is returned by the <code>getOriginal</code> method.
+	 */
 	public void put(String kind, String attributeName, long entityId, T value) {
-		remove(kind, attributeName, entityId);
-		HashMap<String, TreeMap<T, List<Long>>> kindMap = getKindMap(kind);
-		TreeMap<T, List<Long>> attributeMap = getAttributeMap(kindMap, attributeName);
+		Attribute<T> attribute = getAttribute(kind, attributeName);
+		if (attribute == null) {
+			// the attribute isn't indexed
+			return;
+		}
+		if (text) {
+			value = putOriginal(attribute, entityId, value);
+		}
+		T oldValue = attribute.entityValues.put(entityId, value);
+		if (oldValue != null) {
+			if (oldValue.equals(value)) {
+				return;
+			}
+			removePosting(attribute, oldValue, entityId);
+		}
 
-		List<Long> entityList = attributeMap.get(value);
+		IdSet entityList = attribute.values.get(value);
 		if (entityList == null) {
-			entityList = new LinkedList<>();
-			attributeMap.put(value, entityList);
+			entityList = new IdSet();
+			attribute.values.put(value, entityList);
 		}
-
 		entityList.add(entityId);
-		valueCache.put(kind + "-" + attributeName + "-" + entityId, value);
+		if (attribute.grams != null) {
+			addGrams(attribute, (String) value, entityId);
+		}
 	}
 
 	public void remove(String kind, String attributeName, long entityId) {
-		T oldValue = valueCache.remove(kind + "-" + attributeName + "-" + entityId);
-		if (oldValue == null) {
+		Attribute<T> attribute = findAttribute(kind, attributeName);
+		if (attribute == null) {
 			return;
 		}
+		T oldValue = attribute.entityValues.remove(entityId);
+		if (oldValue != null) {
+			removePosting(attribute, oldValue, entityId);
+		}
+		if (attribute.originals != null) {
+			attribute.originals.remove(entityId);
+		}
+	}
 
-		HashMap<String, TreeMap<T, List<Long>>> kindMap = getKindMap(kind);
-		TreeMap<T, List<Long>> attributeMap = getAttributeMap(kindMap, attributeName);
+	/**
+	 * Stores the original string value of an entity, if it isn't in lower case.
+	 *
+	 * @return
+	 * The value in lower case.
+	 */
+	@SuppressWarnings("unchecked")
+	private T putOriginal(Attribute<T> attribute, long entityId, T value) {
+		String original = (String) value;
+		String lowerCase = original.toLowerCase();
+		if (lowerCase.equals(original)) {
+			if (attribute.originals != null) {
+				attribute.originals.remove(entityId);
+			}
+			return value;
+		}
+		if (attribute.originals == null) {
+			attribute.originals = new LongObjectMap<>();
+		}
+		attribute.originals.put(entityId, original);
+		return (T) lowerCase;
+	}
 
-		List<Long> entityList = attributeMap.get(oldValue);
+	private static <T> void removePosting(Attribute<T> attribute, T value, long entityId) {
+		if (attribute.grams != null) {
+			removeGrams(attribute, (String) value, entityId);
+		}
+		IdSet entityList = attribute.values.get(value);
 		if (entityList == null) {
 			return;
 		}
+		entityList.remove(entityId);
+		if (entityList.isEmpty()) {
+			attribute.values.remove(value);
+		}
+	}
+
+	private static <T> void addGrams(Attribute<T> attribute, String value, long entityId) {
+		for (int i = 0; i + GRAM_LENGTH <= value.length(); i++) {
+			String gram = value.substring(i, i + GRAM_LENGTH);
+			IdSet entityList = attribute.grams.get(gram);
+			if (entityList == null) {
+				entityList = new IdSet();
+				attribute.grams.put(gram, entityList);
+			}
+			entityList.add(entityId);
+		}
+	}
+
+	private static <T> void removeGrams(Attribute<T> attribute, String value, long entityId) {
+		for (int i = 0; i + GRAM_LENGTH <= value.length(); i++) {
+			String gram = value.substring(i, i + GRAM_LENGTH);
+			IdSet entityList = attribute.grams.get(gram);
+			// a value can contain the same trigram more than once
+			if (entityList != null) {
+				entityList.remove(entityId);
+				if (entityList.isEmpty()) {
+					attribute.grams.remove(gram);
+				}
+			}
+		}
+	}
 
-		Iterator<Long> it = entityList.iterator();
+	/**
+	 * Applies the current index definitions to the indexed attributes of the given kind. The attributes which aren't
+	 * indexed any more are dropped, and the structures of the attributes which index type is changed are rebuilt
+	 * from their values.
+	 *
+	 * @param kind
+	 * The kind of the entities.
+	 */
+	void applyDefinitions(String kind) {
+		HashMap<String, Attribute<T>> kindMap = index.get(kind);
+		if (kindMap == null) {
+			return;
+		}
+		Iterator<Entry<String, Attribute<T>>> it = kindMap.entrySet().iterator();
 		while (it.hasNext()) {
-			if (it.next().longValue() == entityId) {
+			Entry<String, Attribute<T>> attributeEntry = it.next();
+			EntityDB.EIndexType type = definitions.getType(kind, attributeEntry.getKey());
+			if (type == null) {
 				it.remove();
+			} else {
+				setType(attributeEntry.getValue(), type);
+			}
+		}
+		if (kindMap.isEmpty()) {
+			index.remove(kind);
+		}
+	}
+
+	private void setType(Attribute<T> attribute, EntityDB.EIndexType type) {
+		if (type == EntityDB.EIndexType.HASH) {
+			if (!(attribute.values instanceof HashMap)) {
+				attribute.values = attribute.values == null ? new HashMap<T, IdSet>() : new HashMap<>(attribute.values);
 			}
+		} else if (!(attribute.values instanceof TreeMap)) {
+			attribute.values = attribute.values == null ? new TreeMap<T, IdSet>() : new TreeMap<>(attribute.values);
 		}
 
+		if (type != EntityDB.EIndexType.NGRAM || !text) {
+			attribute.grams = null;
+		} else if (attribute.grams == null) {
+			attribute.grams = new HashMap<>();
+			for (Entry<T, IdSet> valueEntry : attribute.values.entrySet()) {
+				addGrams(attribute, (String) valueEntry.getKey(), valueEntry.getValue());
+			}
+		}
 	}
 
-	public List<Long> getKeys(String kind, String attributeName, T value) {
-		HashMap<String, TreeMap<T, List<Long>>> kindMap = getKindMap(kind);
-		TreeMap<T, List<Long>> attributeMap = getAttributeMap(kindMap, attributeName);
+	private static <T> void addGrams(Attribute<T> attribute, String value, IdSet entityIds) {
+		for (int i = 0; i + GRAM_LENGTH <= value.length(); i++) {
+			String gram = value.substring(i, i + GRAM_LENGTH);
+			IdSet entityList = attribute.grams.get(gram);
+			if (entityList == null) {
+				entityList = new IdSet();
+				attribute.grams.put(gram, entityList);
+			}
+			entityList.addAll(entityIds);
+		}
+	}
 
-		return attributeMap.get(value);
+	public IdSet getKeys(String kind, String attributeName, T value) {
+		Attribute<T> attribute = findAttribute(kind, attributeName);
+		return attribute == null ? null : attribute.values.get(value);
 	}
 
 	public T get(String kind, String attributeName, long entityId) {
-		return valueCache.get(kind + "-" + attributeName + "-" + entityId);
+		Attribute<T> attribute = findAttribute(kind, attributeName);
+		return attribute == null ? null : attribute.entityValues.get(entityId);
+	}
+
+	/**
+	 * Returns the value of an attribute of an entity as it was put, so the string values aren't in lower case.
+	 *
+	 * @return
+	 * The value, or null if the entity has no value in this index.
+	 */
+	@SuppressWarnings("unchecked")
+	T getOriginal(String kind, String attributeName, long entityId) {
+		Attribute<T> attribute = findAttribute(kind, attributeName);
+		if (attribute == null) {
+			return null;
+		}
+		if (attribute.originals != null) {
+			String original = attribute.originals.get(entityId);
+			if (original != null) {
+				return (T) original;
+			}
+		}
+		return attribute.entityValues.get(entityId);
+	}
+
+	/**
+	 * Moves the content of the given index in to this index. The two indexes must not contain the same entity.
+	 *
+	 * @param other
+	 * The index to merge, which mustn't be used after this call.
+	 */
+	void merge(Index<T> other) {
+		for (Entry<String, HashMap<String, Attribute<T>>> kindEntry : other.index.entrySet()) {
+			HashMap<String, Attribute<T>> kindMap = getKindMap(kindEntry.getKey());
+			for (Entry<String, Attribute<T>> attributeEntry : kindEntry.getValue().entrySet()) {
+				Attribute<T> attribute = kindMap.get(attributeEntry.getKey());
+				if (attribute == null) {
+					kindMap.put(attributeEntry.getKey(), attributeEntry.getValue());
+					continue;
+				}
+				for (Entry<T, IdSet> valueEntry : attributeEntry.getValue().values.entrySet()) {
+					IdSet entityList = attribute.values.get(valueEntry.getKey());
+					if (attribute.grams != null) {
+						addGrams(attribute, (String) valueEntry.getKey(), valueEntry.getValue());
+					}
+					if (entityList == null) {
+						attribute.values.put(valueEntry.getKey(), valueEntry.getValue());
+					} else {
+						entityList.addAll(valueEntry.getValue());
+					}
+				}
+				attribute.entityValues.putAll(attributeEntry.getValue().entityValues);
+				LongObjectMap<String> originals = attributeEntry.getValue().originals;
+				if (originals != null) {
+					if (attribute.originals == null) {
+						attribute.originals = originals;
+					} else {
+						attribute.originals.putAll(originals);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes every value from this index.
+	 */
+	void clear() {
+		index.clear();
+	}
+
+	/**
+	 * Writes the content of this index to the given stream.
+	 *
+	 * @param out
+	 * The stream to write.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(index.size());
+		for (Entry<String, HashMap<String, Attribute<T>>> kindEntry : index.entrySet()) {
+			writeString(out, kindEntry.getKey());
+			out.writeInt(kindEntry.getValue().size());
+			for (Entry<String, Attribute<T>> attributeEntry : kindEntry.getValue().entrySet()) {
+				writeString(out, attributeEntry.getKey());
+				out.writeInt(attributeEntry.getValue().values.size());
+				for (Entry<T, IdSet> valueEntry : attributeEntry.getValue().values.entrySet()) {
+					writeValue(out, valueEntry.getKey());
+					long[] entityIds = valueEntry.getValue().toArray();
+					out.writeInt(entityIds.length);
+					for (long entityId : entityIds) {
+						out.writeLong(entityId);
+					}
+				}
+				LongObjectMap<String> originals = attributeEntry.getValue().originals;
+				long[] originalIds = originals == null ? new long[0] : originals.keys();
+				out.writeInt(originalIds.length);
+				for (long entityId : originalIds) {
+					out.writeLong(entityId);
+					writeString(out, originals.get(entityId));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the content written by the <code>writeTo(DataOutputStream)</code> method to this index.
+	 *
+	 * @param in
+	 * The stream to read.
+	 */
+	@SuppressWarnings("unchecked")
+	void readFrom(DataInputStream in) throws IOException {
+		int kindCount = in.readInt();
+		for (int i = 0; i < kindCount; i++) {
+			String kind = readString(in);
+			int attributeCount = in.readInt();
+			for (int j = 0; j < attributeCount; j++) {
+				String attributeName = readString(in);
+				int valueCount = in.readInt();
+				for (int k = 0; k < valueCount; k++) {
+					T value = (T) readValue(in);
+					int entityCount = in.readInt();
+					for (int l = 0; l < entityCount; l++) {
+						put(kind, attributeName, in.readLong(), value);
+					}
+				}
+				int originalCount = in.readInt();
+				for (int k = 0; k < originalCount; k++) {
+					long entityId = in.readLong();
+					String original = readString(in);
+					if (text && get(kind, attributeName, entityId) != null) {
+						put(kind, attributeName, entityId, (T) original);
+					}
+				}
+			}
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value instanceof Long) {
+			out.writeByte(1);
+			out.writeLong((Long) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(2);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof String) {
+			out.writeByte(3);
+			writeString(out, (String) value);
+		} else {
+			throw new IllegalArgumentException("Invalid index value type: " + value.getClass().getName());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		int tag = in.readByte();
+		switch (tag) {
+			case 1:
+				return in.readLong();
+			case 2:
+				return in.readBoolean();
+			case 3:
+				return readString(in);
+			default:
+				throw new IOException("Invalid index value tag: " + tag);
+		}
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
 	}
 
-	public List<Long> query(String kind, AFilterItem filter) {
+	/**
+	 * Returns the ids of the entities of the given kind which match the given filter. The attribute of the filter
+	 * needs to be indexed.
+	 *
+	 * @return
+	 * The ids of the matching entities, or null if the index of the attribute can't answer the filter (a HASH index
+	 * answers only the equality checks).
+	 */
+	public IdSet query(String kind, AFilterItem filter) {
 		if (filter == null) {
 			throw new NullPointerException("The filter parameter can not be null.");
 		}
 
-		List<Long> res = new LinkedList<>();
-		HashMap<String, TreeMap<T, List<Long>>> kindMap = getKindMap(kind);
+		IdSet res = new IdSet();
+		HashMap<String, Attribute<T>> kindMap = index.get(kind);
+		if (kindMap == null) {
+			return res;
+		}
+		boolean answered = true;
 		if (filter instanceof FilterGroupItem) {
 			throw new IllegalArgumentException("FilterGroups can't applied on indexes.");
 		} else if (filter instanceof NullFilterItem) {
 			filterNull(filter, kindMap, res);
 		} else if (filter instanceof LongFilterItem) {
-			filterLong(filter, kindMap, res);
+			answered = filterLong(filter, kindMap, res);
 		} else if (filter instanceof BooleanFilterItem) {
 			filterBoolean(filter, kindMap, res);
 		} else if (filter instanceof StringFilterItem) {
-			filterString(filter, kindMap, res);
+			answered = filterString(filter, kindMap, res);
 		} else {
 			throw new IllegalArgumentException("Invalid filter type: " + filter.getClass().getName());
 		}
 		
-		return res;
+		return answered ? res : null;
+	}
+
+	/**
+	 * Estimates the count of the entities of the given kind which match the given filter. The attribute of the filter
+	 * needs to be indexed. The estimation uses only the statistics which are kept by the index anyway: the sizes of
+	 * the posting lists, the count of the distinct values and of the indexed entities, and the smallest and greatest
+	 * values of an ORDERED index. The equality checks are counted exactly, the ranges of the long values are
+	 * interpolated between the smallest and the greatest value, and the other string checks are estimated as a fixed
+	 * part of the indexed entities.
+	 *
+	 * @return
+	 * The estimated count, or -1 if the index of the attribute can't answer the filter.
+	 */
+	long estimate(String kind, AFilterItem filter) {
+		String attributeName = FilterMatcher.getAttributeName(filter);
+		Attribute<T> attribute = attributeName == null ? null : findAttribute(kind, attributeName);
+		if (attribute == null) {
+			return 0;
+		}
+		long entityCount = attribute.entityValues.size();
+		if (filter instanceof NullFilterItem) {
+			return entityCount;
+		} else if (filter instanceof BooleanFilterItem) {
+			return getPostingSize(attribute, ((BooleanFilterItem) filter).getReferenceValue());
+		} else if (filter instanceof LongFilterItem) {
+			return estimateLong(attribute, (LongFilterItem) filter, entityCount);
+		} else if (filter instanceof StringFilterItem) {
+			return estimateString(attribute, (StringFilterItem) filter, entityCount);
+		}
+		throw new IllegalArgumentException("Invalid filter type: " + filter.getClass().getName());
+	}
+
+	private static <T> long getPostingSize(Attribute<T> attribute, Object value) {
+		IdSet posting = attribute.values.get(value);
+		return posting == null ? 0 : posting.size();
+	}
+
+	private static <T> long estimateLong(Attribute<T> attribute, LongFilterItem filter, long entityCount) {
+		long[] referenceValues = filter.getSharedReferenceValues();
+		LongFilterItem.EOperator operator = filter.getOperator();
+		if (operator == LongFilterItem.EOperator.EQUALS || operator == LongFilterItem.EOperator.IN) {
+			long res = 0;
+			for (long value : referenceValues) {
+				res += getPostingSize(attribute, value);
+			}
+			return res;
+		}
+		NavigableMap<Object, IdSet> values = getNavigableValues(attribute);
+		if (values == null) {
+			return -1;
+		}
+		if (operator == LongFilterItem.EOperator.NOT_EQUALS) {
+			return entityCount - getPostingSize(attribute, referenceValues[0]);
+		}
+		if (values.isEmpty()) {
+			return 0;
+		}
+		// the bounds are doubles, so they don't overflow
+		double min = (Long) values.firstKey();
+		double max = (Long) values.lastKey();
+		double from = min;
+		double to = max;
+		switch (operator) {
+			case GREATER:
+				from = referenceValues[0] + 1.0;
+				break;
+			case GREATER_OR_EQUALS:
+				from = referenceValues[0];
+				break;
+			case SMALLER:
+				to = referenceValues[0] - 1.0;
+				break;
+			case SMALLER_OR_EQUALS:
+				to = referenceValues[0];
+				break;
+			case BETWEEN:
+				from = referenceValues[0];
+				to = referenceValues[1];
+				break;
+			default:
+				throw new IllegalArgumentException("Illegal LongFilter operator: " + operator.name());
+		}
+		from = Math.max(from, min);
+		to = Math.min(to, max);
+		if (from > to) {
+			return 0;
+		}
+		return (long) Math.ceil(entityCount * (to - from + 1) / (max - min + 1));
+	}
+
+	private static <T> long estimateString(Attribute<T> attribute, StringFilterItem filter, long entityCount) {
+		String[] referenceValues = filter.getSharedReferenceValues();
+		StringFilterItem.EOperator operator = filter.getOperator();
+		if (operator == StringFilterItem.EOperator.EQUALS || operator == StringFilterItem.EOperator.IN) {
+			long res = 0;
+			for (String value : referenceValues) {
+				res += getPostingSize(attribute, value);
+			}
+			return res;
+		}
+		if (getNavigableValues(attribute) == null) {
+			return -1;
+		}
+		if (operator == StringFilterItem.EOperator.NOT_EQUALS) {
+			return entityCount - getPostingSize(attribute, referenceValues[0]);
+		}
+		if (operator == StringFilterItem.EOperator.CONTAINS && attribute.grams != null
+				&& referenceValues[0].length() >= GRAM_LENGTH) {
+			// the result can't be greater than the posting list of any trigram of the reference value
+			long res = entityCount;
+			for (int i = 0; i + GRAM_LENGTH <= referenceValues[0].length(); i++) {
+				IdSet posting = attribute.grams.get(referenceValues[0].substring(i, i + GRAM_LENGTH));
+				res = Math.min(res, posting == null ? 0 : posting.size());
+			}
+			return res;
+		}
+		return (long) Math.ceil(entityCount * RANGE_SELECTIVITY);
 	}
 
-	private HashMap<String, TreeMap<T, List<Long>>> getKindMap(String kind) {
-		HashMap<String, TreeMap<T, List<Long>>> kindMap = index.get(kind);
+	private HashMap<String, Attribute<T>> getKindMap(String kind) {
+		HashMap<String, Attribute<T>> kindMap = index.get(kind);
 		if (kindMap == null) {
 			kindMap = new HashMap<>();
 			index.put(kind, kindMap);
@@ -101,99 +594,280 @@ final class Index<T> {
 		return kindMap;
 	}
 
-	private TreeMap<T, List<Long>> getAttributeMap(HashMap<String, TreeMap<T, List<Long>>> kindMap, String attributeName) {
-		TreeMap<T, List<Long>> attributeIndex = kindMap.get(attributeName);
-		if (attributeIndex == null) {
-			attributeIndex = new TreeMap<>();
-			kindMap.put(attributeName, attributeIndex);
+	/**
+	 * Returns the index of the given attribute, and creates it if it doesn't exist yet.
+	 *
+	 * @return
+	 * The index of the attribute, or null if the attribute isn't indexed.
+	 */
+	private Attribute<T> getAttribute(String kind, String attributeName) {
+		HashMap<String, Attribute<T>> kindMap = index.get(kind);
+		Attribute<T> attribute = kindMap == null ? null : kindMap.get(attributeName);
+		if (attribute == null) {
+			EntityDB.EIndexType type = definitions.getType(kind, attributeName);
+			if (type == null) {
+				return null;
+			}
+			attribute = new Attribute<>();
+			setType(attribute, type);
+			getKindMap(kind).put(attributeName, attribute);
+		}
+		return attribute;
+	}
+
+	private Attribute<T> findAttribute(String kind, String attributeName) {
+		HashMap<String, Attribute<T>> kindMap = index.get(kind);
+		return kindMap == null ? null : kindMap.get(attributeName);
+	}
+
+	/**
+	 * Returns the values of the given attribute, or null if the attribute isn't indexed.
+	 */
+	private static <T> Map<T, IdSet> getValues(HashMap<String, Attribute<T>> kindMap, String attributeName) {
+		Attribute<T> attribute = kindMap.get(attributeName);
+		return attribute == null ? null : attribute.values;
+	}
+
+	/**
+	 * Returns the distinct values of the given attribute. The returned collection must not be changed.
+	 */
+	Collection<T> getDistinctValues(String kind, String attributeName) {
+		Attribute<T> attribute = findAttribute(kind, attributeName);
+		return attribute == null ? Collections.<T>emptySet() : attribute.values.keySet();
+	}
+
+	/**
+	 * Returns the sorted values of the given attribute, with the ids of the entities which have them. The returned
+	 * map must not be changed.
+	 *
+	 * @return
+	 * The values, or null if the attribute has no values in this index, or it has a HASH index.
+	 */
+	NavigableMap<Object, IdSet> getSortedValues(String kind, String attributeName) {
+		Attribute<T> attribute = findAttribute(kind, attributeName);
+		return attribute == null ? null : getNavigableValues(attribute);
+	}
+
+	/**
+	 * Returns the values of the given attribute as a map with untyped keys, so the reference values of the filters can
+	 * be used to navigate in it.
+	 *
+	 * @return
+	 * The sorted values, or null if the attribute has a HASH index.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> NavigableMap<Object, IdSet> getNavigableValues(Attribute<T> attribute) {
+		if (!(attribute.values instanceof NavigableMap)) {
+			return null;
+		}
+		return (NavigableMap<Object, IdSet>) (NavigableMap<?, IdSet>) attribute.values;
+	}
+
+	/**
+	 * Answers the equality checks from the values of a HASH index.
+	 *
+	 * @return
+	 * False if the operator isn't an equality check.
+	 */
+	private static <T> boolean filterHash(Attribute<T> attribute, boolean equality, Object[] referenceValues, IdSet res) {
+		if (!equality) {
+			return false;
+		}
+		// every reference value is an accepted value of an EQUALS or IN filter
+		for (Object value : referenceValues) {
+			addPosting(attribute.values.get(value), res);
+		}
+		return true;
+	}
+
+	private static void addPosting(IdSet posting, IdSet res) {
+		if (posting != null) {
+			res.addAll(posting);
+		}
+	}
+
+	private static void addPostings(NavigableMap<Object, IdSet> values, IdSet res) {
+		for (IdSet posting : values.values()) {
+			res.addAll(posting);
 		}
-		return attributeIndex;
 	}
 
-	private void filterLong(AFilterItem filter, HashMap<String, TreeMap<T, List<Long>>> kindMap, List<Long> res) throws IllegalArgumentException {
+	private boolean filterLong(AFilterItem filter, HashMap<String, Attribute<T>> kindMap, IdSet res) throws IllegalArgumentException {
 		LongFilterItem longFilter = (LongFilterItem) filter;
-		TreeMap<T, List<Long>> attributeMap = getAttributeMap(kindMap, longFilter.getAttributeName());
-		if (attributeMap != null) {
-			if (longFilter.getOperator() == LongFilterItem.EOperator.EQUALS) {
-				res.addAll(attributeMap.get(longFilter.getReferenceValue()));
-			} else if (longFilter.getOperator() == LongFilterItem.EOperator.GREATER) {
-				for (Entry<T, List<Long>> entry : attributeMap.entrySet()) {
-					long key = (long) (Long) entry.getKey();
-					if (key > longFilter.getReferenceValue()) {
-						res.addAll(entry.getValue());
-					}
-				}
-			} else if (longFilter.getOperator() == LongFilterItem.EOperator.SMALLER) {
-				for (Entry<T, List<Long>> entry : attributeMap.entrySet()) {
-					long key = (long) (Long) entry.getKey();
-					if (key < longFilter.getReferenceValue()) {
-						res.addAll(entry.getValue());
-					} else {
-						// other keys are greater or equals
-						break;
-					}
+		Attribute<T> attribute = kindMap.get(longFilter.getAttributeName());
+		if (attribute == null) {
+			return true;
+		}
+		long[] referenceValues = longFilter.getSharedReferenceValues();
+		NavigableMap<Object, IdSet> values = getNavigableValues(attribute);
+		if (values == null) {
+			Object[] boxedValues = new Object[referenceValues.length];
+			for (int i = 0; i < referenceValues.length; i++) {
+				boxedValues[i] = referenceValues[i];
+			}
+			LongFilterItem.EOperator operator = longFilter.getOperator();
+			return filterHash(attribute, operator == LongFilterItem.EOperator.EQUALS
+					|| operator == LongFilterItem.EOperator.IN, boxedValues, res);
+		}
+		Long referenceValue = referenceValues[0];
+		switch (longFilter.getOperator()) {
+			case EQUALS:
+				addPosting(values.get(referenceValue), res);
+				break;
+			case NOT_EQUALS:
+				addPostings(values.headMap(referenceValue, false), res);
+				addPostings(values.tailMap(referenceValue, false), res);
+				break;
+			case GREATER:
+				addPostings(values.tailMap(referenceValue, false), res);
+				break;
+			case GREATER_OR_EQUALS:
+				addPostings(values.tailMap(referenceValue, true), res);
+				break;
+			case SMALLER:
+				addPostings(values.headMap(referenceValue, false), res);
+				break;
+			case SMALLER_OR_EQUALS:
+				addPostings(values.headMap(referenceValue, true), res);
+				break;
+			case BETWEEN:
+				if (referenceValues[0] <= referenceValues[1]) {
+					addPostings(values.subMap(referenceValue, true, referenceValues[1], true), res);
 				}
-			} else if (longFilter.getOperator() == LongFilterItem.EOperator.GREATER) {
-				for (Entry<T, List<Long>> entry : attributeMap.entrySet()) {
-					long key = (long) (Long) entry.getKey();
-					if (key != longFilter.getReferenceValue()) {
-						res.addAll(entry.getValue());
-					}
+				break;
+			case IN:
+				for (long value : referenceValues) {
+					addPosting(values.get(value), res);
 				}
-			} else {
+				break;
+			default:
 				throw new IllegalArgumentException("Illegal LongFilter operator: " + longFilter.getOperator().name());
-			}
 		}
+		return true;
 	}
 
-	private void filterString(AFilterItem filter, HashMap<String, TreeMap<T, List<Long>>> kindMap, List<Long> res) throws IllegalArgumentException {
+	private boolean filterString(AFilterItem filter, HashMap<String, Attribute<T>> kindMap, IdSet res) throws IllegalArgumentException {
 		StringFilterItem stringFilter = (StringFilterItem) filter;
-		TreeMap<T, List<Long>> attributeMap = kindMap.get(stringFilter.getAttributeName());
-		if (attributeMap != null) {
-			for (Entry<T, List<Long>> entry : attributeMap.entrySet()) {
-				if (stringFilter.getOperator() == StringFilterItem.EOperator.CONTAINS) {
-					if (((String)entry.getKey()).contains(stringFilter.getReferenceValue())) {
-						res.addAll(entry.getValue());
-					}
-				} else if (stringFilter.getOperator() == StringFilterItem.EOperator.EQUALS) {
-					if (((String)entry.getKey()).equals(stringFilter.getReferenceValue())) {
-						res.addAll(entry.getValue());
-					}
-				} else if (stringFilter.getOperator() == StringFilterItem.EOperator.GREATER) {
-					if (((String)entry.getKey()).compareTo(stringFilter.getReferenceValue()) > 0) {
-						res.addAll(entry.getValue());
-					}
-				} else if (stringFilter.getOperator() == StringFilterItem.EOperator.NOT_EQUALS) {
-					if (!((String)entry.getKey()).equals(stringFilter.getReferenceValue())) {
-						res.addAll(entry.getValue());
+		Attribute<T> attribute = kindMap.get(stringFilter.getAttributeName());
+		if (attribute == null) {
+			return true;
+		}
+		String[] referenceValues = stringFilter.getSharedReferenceValues();
+		NavigableMap<Object, IdSet> values = getNavigableValues(attribute);
+		if (values == null) {
+			StringFilterItem.EOperator operator = stringFilter.getOperator();
+			return filterHash(attribute, operator == StringFilterItem.EOperator.EQUALS
+					|| operator == StringFilterItem.EOperator.IN, referenceValues, res);
+		}
+		String referenceValue = referenceValues[0];
+		switch (stringFilter.getOperator()) {
+			case EQUALS:
+				addPosting(values.get(referenceValue), res);
+				break;
+			case NOT_EQUALS:
+				addPostings(values.headMap(referenceValue, false), res);
+				addPostings(values.tailMap(referenceValue, false), res);
+				break;
+			case GREATER:
+				addPostings(values.tailMap(referenceValue, false), res);
+				break;
+			case GREATER_OR_EQUALS:
+				addPostings(values.tailMap(referenceValue, true), res);
+				break;
+			case SMALLER:
+				addPostings(values.headMap(referenceValue, false), res);
+				break;
+			case SMALLER_OR_EQUALS:
+				addPostings(values.headMap(referenceValue, true), res);
+				break;
+			case BETWEEN:
+				if (referenceValue.compareTo(referenceValues[1]) <= 0) {
+					addPostings(values.subMap(referenceValue, true, referenceValues[1], true), res);
+				}
+				break;
+			case IN:
+				for (String value : referenceValues) {
+					addPosting(values.get(value), res);
+				}
+				break;
+			case STARTS_WITH:
+				// the values with the same prefix are next to each other, starting at the prefix itself
+				for (Entry<Object, IdSet> entry : values.tailMap(referenceValue, true).entrySet()) {
+					if (!((String) entry.getKey()).startsWith(referenceValue)) {
+						break;
 					}
-				} else if (stringFilter.getOperator() == StringFilterItem.EOperator.SMALLER) {
-					if (((String)entry.getKey()).compareTo(stringFilter.getReferenceValue()) < 0) {
+					res.addAll(entry.getValue());
+				}
+				break;
+			case CONTAINS:
+				if (attribute.grams != null && referenceValue.length() >= GRAM_LENGTH) {
+					filterGrams(attribute, referenceValue, res);
+					break;
+				}
+				for (Entry<Object, IdSet> entry : values.entrySet()) {
+					if (((String) entry.getKey()).contains(referenceValue)) {
 						res.addAll(entry.getValue());
 					}
-				} else {
-					throw new IllegalArgumentException("Invalid StringFilterOperator: " + stringFilter.getOperator().name());
 				}
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid StringFilterOperator: " + stringFilter.getOperator().name());
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the entities which value contains the given reference value to the result, using the trigram index.
+	 */
+	private static <T> void filterGrams(Attribute<T> attribute, String referenceValue, IdSet res) {
+		ArrayList<IdSet> postings = new ArrayList<>();
+		for (int i = 0; i + GRAM_LENGTH <= referenceValue.length(); i++) {
+			IdSet posting = attribute.grams.get(referenceValue.substring(i, i + GRAM_LENGTH));
+			if (posting == null) {
+				return;
+			}
+			postings.add(posting);
+		}
+		// the smallest posting lists are intersected first, so the intermediate results stay small
+		Collections.sort(postings, new Comparator<IdSet>() {
+
+			@Override
+			public int compare(IdSet o1, IdSet o2) {
+				return Integer.compare(o1.size(), o2.size());
+			}
+		});
+		IdSet candidates = postings.get(0);
+		for (int i = 1; i < postings.size() && !candidates.isEmpty(); i++) {
+			candidates = IdSet.and(candidates, postings.get(i));
+		}
+		if (referenceValue.length() == GRAM_LENGTH) {
+			// every candidate contains the reference value
+			res.addAll(candidates);
+			return;
+		}
+		for (long id = candidates.next(0); id >= 0; id = candidates.next(id + 1)) {
+			if (((String) attribute.entityValues.get(id)).contains(referenceValue)) {
+				res.add(id);
 			}
 		}
 	}
 
-	private void filterBoolean(AFilterItem filter, HashMap<String, TreeMap<T, List<Long>>> kindMap, List<Long> res) {
+	private void filterBoolean(AFilterItem filter, HashMap<String, Attribute<T>> kindMap, IdSet res) {
 		BooleanFilterItem boolFilter = (BooleanFilterItem) filter;
-		TreeMap<T, List<Long>> values = kindMap.get(boolFilter.getAttributeName());
+		Map<T, IdSet> values = getValues(kindMap, boolFilter.getAttributeName());
 		if (values != null) {
-			List<Long> r = values.get(boolFilter.getReferenceValue());
+			IdSet r = values.get(boolFilter.getReferenceValue());
 			if (r != null) {
 				res.addAll(r);
 			}
 		}
 	}
 
-	private void filterNull(AFilterItem filter, HashMap<String, TreeMap<T, List<Long>>> kindMap, List<Long> res) {
+	private void filterNull(AFilterItem filter, HashMap<String, Attribute<T>> kindMap, IdSet res) {
 		NullFilterItem nullFilter = (NullFilterItem) filter;
-		TreeMap<T, List<Long>> attributeMap = kindMap.get(nullFilter.getAttributeName());
+		Map<T, IdSet> attributeMap = getValues(kindMap, nullFilter.getAttributeName());
 		if (attributeMap != null) {
-			for (List<Long> keys : attributeMap.values()) {
+			for (IdSet keys : attributeMap.values()) {
 				res.addAll(keys);
 			}
 		}
@@ -0,0 +1,329 @@
+package com.eagerlogic.entitydb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * The declared indexes of a database.
+ *
+ * A kind which has no declared index has every attribute indexed with an ORDERED index. When an index is declared for
+ * a kind, only the declared attributes of that kind are indexed, even if every index of the kind is dropped later.
+ * The indexes which are being built are declared too (so the changes are indexed), but they can't answer queries
+ * yet.
+ *
+ * The composite indexes are defined separately, they don't change which attributes of a kind are indexed.
+ *
+ * The definitions are stored in a file next to the database file. Format: magic (2 bytes), version (1 byte), the
+ * count of the declared kinds, and for every kind its name, the count of its indexes, and the attribute name and
+ * the type of every index, than the count of the composite indexes, and for every composite index its kind, and the
+ * count and the names of its attributes. The first version of the format has no composite indexes.
+ *
+ * @author dipacs
+ */
+final class IndexDefinitions {
+
+	private static final byte[] MAGIC = new byte[]{(byte) 0xed, (byte) 0xb3};
+	private static final int VERSION = 2;
+
+	private final HashMap<String, HashMap<String, EntityDB.EIndexType>> kinds = new HashMap<>();
+	private final HashMap<String, HashSet<String>> building = new HashMap<>();
+	private final HashMap<String, ArrayList<String[]>> composites = new HashMap<>();
+	private final HashMap<String, ArrayList<String[]>> buildingComposites = new HashMap<>();
+
+	IndexDefinitions() {
+	}
+
+	/**
+	 * Returns the type of the index of the given attribute.
+	 *
+	 * @return
+	 * The type of the index, or null if the attribute isn't indexed.
+	 */
+	EntityDB.EIndexType getType(String kind, String attributeName) {
+		HashMap<String, EntityDB.EIndexType> attributes = kinds.get(kind);
+		if (attributes == null) {
+			return EntityDB.EIndexType.ORDERED;
+		}
+		return attributes.get(attributeName);
+	}
+
+	/**
+	 * Returns the type of the declared index of the given attribute.
+	 *
+	 * @return
+	 * The type of the index, or null if no index is declared for the attribute.
+	 */
+	EntityDB.EIndexType getDeclaredType(String kind, String attributeName) {
+		HashMap<String, EntityDB.EIndexType> attributes = kinds.get(kind);
+		return attributes == null ? null : attributes.get(attributeName);
+	}
+
+	/**
+	 * Indicates if the given attribute has a complete index, which can answer the queries.
+	 */
+	boolean isQueryable(String kind, String attributeName) {
+		if (getType(kind, attributeName) == null) {
+			return false;
+		}
+		HashSet<String> attributes = building.get(kind);
+		return attributes == null || !attributes.contains(attributeName);
+	}
+
+	/**
+	 * Declares an index, or changes the type of a declared index.
+	 */
+	void define(String kind, String attributeName, EntityDB.EIndexType type) {
+		HashMap<String, EntityDB.EIndexType> attributes = kinds.get(kind);
+		if (attributes == null) {
+			attributes = new HashMap<>();
+			kinds.put(kind, attributes);
+		}
+		attributes.put(attributeName, type);
+	}
+
+	/**
+	 * Removes a declared index. The kind stays declared.
+	 *
+	 * @return
+	 * True if the index was declared.
+	 */
+	boolean drop(String kind, String attributeName) {
+		HashMap<String, EntityDB.EIndexType> attributes = kinds.get(kind);
+		if (attributes == null || attributes.remove(attributeName) == null) {
+			return false;
+		}
+		setBuilding(kind, attributeName, false);
+		return true;
+	}
+
+	/**
+	 * Sets if the given index is being built.
+	 */
+	void setBuilding(String kind, String attributeName, boolean value) {
+		HashSet<String> attributes = building.get(kind);
+		if (value) {
+			if (attributes == null) {
+				attributes = new HashSet<>();
+				building.put(kind, attributes);
+			}
+			attributes.add(attributeName);
+		} else if (attributes != null) {
+			attributes.remove(attributeName);
+			if (attributes.isEmpty()) {
+				building.remove(kind);
+			}
+		}
+	}
+
+	/**
+	 * Returns the kinds which have composite indexes.
+	 */
+	Set<String> getCompositeKinds() {
+		return composites.keySet();
+	}
+
+	/**
+	 * Returns the attribute tuples of the composite indexes of the given kind.
+	 */
+	List<String[]> getComposites(String kind) {
+		ArrayList<String[]> res = composites.get(kind);
+		return res == null ? Collections.<String[]>emptyList() : res;
+	}
+
+	/**
+	 * Defines a composite index.
+	 *
+	 * @return
+	 * False if the composite index is already defined.
+	 */
+	boolean defineComposite(String kind, String[] attributeNames) {
+		if (indexOf(composites, kind, attributeNames) >= 0) {
+			return false;
+		}
+		add(composites, kind, attributeNames);
+		return true;
+	}
+
+	/**
+	 * Removes a composite index.
+	 *
+	 * @return
+	 * True if the composite index was defined.
+	 */
+	boolean dropComposite(String kind, String[] attributeNames) {
+		if (!remove(composites, kind, attributeNames)) {
+			return false;
+		}
+		remove(buildingComposites, kind, attributeNames);
+		return true;
+	}
+
+	/**
+	 * Indicates if the given composite index is being built.
+	 */
+	boolean isCompositeBuilding(String kind, String[] attributeNames) {
+		return indexOf(buildingComposites, kind, attributeNames) >= 0;
+	}
+
+	/**
+	 * Sets if the given composite index is being built.
+	 */
+	void setCompositeBuilding(String kind, String[] attributeNames, boolean value) {
+		if (!value) {
+			remove(buildingComposites, kind, attributeNames);
+		} else if (indexOf(buildingComposites, kind, attributeNames) < 0) {
+			add(buildingComposites, kind, attributeNames);
+		}
+	}
+
+	private static int indexOf(HashMap<String, ArrayList<String[]>> tuples, String kind, String[] attributeNames) {
+		ArrayList<String[]> kindTuples = tuples.get(kind);
+		if (kindTuples != null) {
+			for (int i = 0; i < kindTuples.size(); i++) {
+				if (Arrays.equals(kindTuples.get(i), attributeNames)) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static void add(HashMap<String, ArrayList<String[]>> tuples, String kind, String[] attributeNames) {
+		ArrayList<String[]> kindTuples = tuples.get(kind);
+		if (kindTuples == null) {
+			kindTuples = new ArrayList<>();
+			tuples.put(kind, kindTuples);
+		}
+		kindTuples.add(attributeNames.clone());
+	}
+
+	private static boolean remove(HashMap<String, ArrayList<String[]>> tuples, String kind, String[] attributeNames) {
+		int index = indexOf(tuples, kind, attributeNames);
+		if (index < 0) {
+			return false;
+		}
+		ArrayList<String[]> kindTuples = tuples.get(kind);
+		kindTuples.remove(index);
+		if (kindTuples.isEmpty()) {
+			tuples.remove(kind);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the definitions to the given file. The indexes which are being built aren't written. The file is
+	 * written to a temporary file first, which replaces the old file when it's complete and forced to the disk.
+	 */
+	void write(File file) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(kinds.size());
+			for (Entry<String, HashMap<String, EntityDB.EIndexType>> kindEntry : kinds.entrySet()) {
+				HashSet<String> buildingAttributes = building.get(kindEntry.getKey());
+				out.writeUTF(kindEntry.getKey());
+				out.writeInt(kindEntry.getValue().size() - (buildingAttributes == null ? 0 : buildingAttributes.size()));
+				for (Entry<String, EntityDB.EIndexType> attributeEntry : kindEntry.getValue().entrySet()) {
+					if (buildingAttributes == null || !buildingAttributes.contains(attributeEntry.getKey())) {
+						out.writeUTF(attributeEntry.getKey());
+						out.writeByte(attributeEntry.getValue().ordinal());
+					}
+				}
+			}
+			ArrayList<String> compositeKinds = new ArrayList<>();
+			ArrayList<String[]> compositeTuples = new ArrayList<>();
+			for (Entry<String, ArrayList<String[]>> kindEntry : composites.entrySet()) {
+				for (String[] attributeNames : kindEntry.getValue()) {
+					if (!isCompositeBuilding(kindEntry.getKey(), attributeNames)) {
+						compositeKinds.add(kindEntry.getKey());
+						compositeTuples.add(attributeNames);
+					}
+				}
+			}
+			out.writeInt(compositeTuples.size());
+			for (int i = 0; i < compositeTuples.size(); i++) {
+				out.writeUTF(compositeKinds.get(i));
+				out.writeInt(compositeTuples.get(i).length);
+				for (String attributeName : compositeTuples.get(i)) {
+					out.writeUTF(attributeName);
+				}
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads the definitions from the given file.
+	 *
+	 * @return
+	 * The read definitions, or empty definitions if the file doesn't exist.
+	 */
+	static IndexDefinitions read(File file) throws IOException {
+		IndexDefinitions res = new IndexDefinitions();
+		if (!file.isFile()) {
+			return res;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readByte() != MAGIC[0] || in.readByte() != MAGIC[1]) {
+				throw new IOException("Invalid index definitions format.");
+			}
+			int version = in.readByte();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Invalid index definitions version: " + version);
+			}
+			EntityDB.EIndexType[] types = EntityDB.EIndexType.values();
+			int kindCount = in.readInt();
+			for (int i = 0; i < kindCount; i++) {
+				String kind = in.readUTF();
+				res.kinds.put(kind, new HashMap<String, EntityDB.EIndexType>());
+				int attributeCount = in.readInt();
+				for (int j = 0; j < attributeCount; j++) {
+					String attributeName = in.readUTF();
+					int type = in.readByte();
+					if (type < 0 || type >= types.length) {
+						throw new IOException("Invalid index type: " + type);
+					}
+					res.define(kind, attributeName, types[type]);
+				}
+			}
+			if (version >= 2) {
+				int compositeCount = in.readInt();
+				for (int i = 0; i < compositeCount; i++) {
+					String kind = in.readUTF();
+					String[] attributeNames = new String[in.readInt()];
+					for (int j = 0; j < attributeNames.length; j++) {
+						attributeNames[j] = in.readUTF();
+					}
+					res.defineComposite(kind, attributeNames);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return res;
+	}
+}
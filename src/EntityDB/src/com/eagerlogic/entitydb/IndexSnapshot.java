@@ -0,0 +1,163 @@
+package com.eagerlogic.entitydb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of the in-memory state of a database: the locations and lengths of the records, and the attribute
+ * indexes. It's written next to the database file, and it's used at connect instead of reading every record of the
+ * database.
+ *
+ * The generation of the snapshot is given by the storage, and it identifies the point of the storage's log where
+ * the snapshot is continued (the write-ahead log which is started after writing the snapshot, or the end of the
+ * segments). If the storage can't continue the snapshot, it's ignored. The FILE storage also stores the generation in
+ * its data file, so the snapshot isn't continued on an other copy of the data file.
+ *
+ * Format: magic (2 bytes), version (1 byte), generation (8 bytes), next id (8 bytes), the records (id, location,
+ * length), the ids of the entities by kind, the long, boolean and string indexes, the composite indexes, and the
+ * CRC32 of all the previous bytes (8 bytes).
+ *
+ * @author dipacs
+ */
+final class IndexSnapshot {
+
+	private static final byte[] MAGIC = new byte[]{(byte) 0xed, (byte) 0xb2};
+	private static final int VERSION = 5;
+	// id, location and length
+	private static final int RECORD_LENGTH = 8 + 8 + 4;
+
+	private IndexSnapshot() {
+	}
+
+	/**
+	 * Writes a snapshot. The snapshot is written to a temporary file first, which replaces the old snapshot when
+	 * it's complete and forced to the disk.
+	 */
+	static void write(File file, long generation, long nextId, LongLongMap idCache, Storage storage,
+			KindIndex kindIndex, Index<Long> longIndex, Index<Boolean> boolIndex, Index<String> stringIndex,
+			CompositeIndex compositeIndex) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos, 64 * 1024), new CRC32());
+			DataOutputStream out = new DataOutputStream(cos);
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(generation);
+			out.writeLong(nextId);
+
+			out.writeInt(idCache.size());
+			LongLongMap.Cursor cursor = idCache.cursor();
+			while (cursor.next()) {
+				out.writeLong(cursor.key());
+				out.writeLong(cursor.value());
+				out.writeInt(storage.getLength(cursor.value()));
+			}
+
+			kindIndex.writeTo(out);
+			longIndex.writeTo(out);
+			boolIndex.writeTo(out);
+			stringIndex.writeTo(out);
+			compositeIndex.writeTo(out);
+
+			out.writeLong(cos.getChecksum().getValue());
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads the given snapshot in to the given (empty) structures, if it's complete and valid, and the storage can
+	 * continue it. The checksum is verified while the snapshot is read, and if the snapshot turns out to be invalid,
+	 * the structures are emptied again. The records are added to the storage only after the snapshot is verified.
+	 *
+	 * @return
+	 * The generation of the loaded snapshot, or -1 if the file doesn't exist, it's invalid, or it can't be continued
+	 * by the storage.
+	 */
+	static long read(File file, AtomicLong nextId, LongLongMap idCache, Storage storage, KindIndex kindIndex,
+			Index<Long> longIndex, Index<Boolean> boolIndex, Index<String> stringIndex, CompositeIndex compositeIndex) {
+		if (!file.isFile() || file.length() < MAGIC.length + 1 + 8 + 8 + 4 + 8) {
+			return -1;
+		}
+		boolean loaded = false;
+		try {
+			CheckedInputStream cis = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024), new CRC32());
+			DataInputStream in = new DataInputStream(cis);
+			try {
+				long generation = readHeader(in);
+				if (!storage.canResume(generation)) {
+					return -1;
+				}
+				long snapshotNextId = in.readLong();
+
+				int recordCount = in.readInt();
+				// a broken count is detected before the arrays are allocated
+				if (recordCount < 0 || recordCount > file.length() / RECORD_LENGTH) {
+					return -1;
+				}
+				long[] locations = new long[recordCount];
+				int[] lengths = new int[recordCount];
+				for (int i = 0; i < recordCount; i++) {
+					long id = in.readLong();
+					locations[i] = in.readLong();
+					lengths[i] = in.readInt();
+					idCache.put(id, locations[i]);
+				}
+
+				kindIndex.readFrom(in);
+				longIndex.readFrom(in);
+				boolIndex.readFrom(in);
+				stringIndex.readFrom(in);
+				compositeIndex.readFrom(in);
+
+				// the stored checksum isn't part of the checksum
+				long checksum = cis.getChecksum().getValue();
+				if (in.readLong() != checksum || in.read() > -1) {
+					return -1;
+				}
+				for (int i = 0; i < recordCount; i++) {
+					storage.addRecord(locations[i], lengths[i]);
+				}
+				nextId.set(snapshotNextId);
+				loaded = true;
+				return generation;
+			} finally {
+				in.close();
+			}
+		} catch (IOException | RuntimeException ex) {
+			return -1;
+		} finally {
+			if (!loaded) {
+				idCache.clear();
+				kindIndex.clear();
+				longIndex.clear();
+				boolIndex.clear();
+				stringIndex.clear();
+				compositeIndex.clear();
+			}
+		}
+	}
+
+	private static long readHeader(DataInputStream in) throws IOException {
+		if (in.readByte() != MAGIC[0] || in.readByte() != MAGIC[1] || in.readByte() != VERSION) {
+			throw new IOException("Invalid snapshot format.");
+		}
+		return in.readLong();
+	}
+}
@@ -0,0 +1,111 @@
+package com.eagerlogic.entitydb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The in-memory index of the ids of the entities by kind. It's used to find the entities of a kind, when a query
+ * can't be answered by the attribute indexes.
+ *
+ * @author dipacs
+ */
+final class KindIndex {
+
+	// the kinds are added and removed concurrently by the writers of the different kinds
+	private final ConcurrentHashMap<String, IdSet> kinds = new ConcurrentHashMap<>();
+
+	KindIndex() {
+	}
+
+	void put(String kind, long entityId) {
+		IdSet entityIds = kinds.get(kind);
+		if (entityIds == null) {
+			entityIds = new IdSet();
+			kinds.put(kind, entityIds);
+		}
+		entityIds.add(entityId);
+	}
+
+	void remove(String kind, long entityId) {
+		IdSet entityIds = kinds.get(kind);
+		if (entityIds == null) {
+			return;
+		}
+		entityIds.remove(entityId);
+		if (entityIds.isEmpty()) {
+			kinds.remove(kind);
+		}
+	}
+
+	/**
+	 * Returns the ids of the entities of the given kind. The returned set must not be changed.
+	 *
+	 * @return
+	 * The ids of the entities, or null if there is no entity of the given kind.
+	 */
+	IdSet get(String kind) {
+		return kinds.get(kind);
+	}
+
+	/**
+	 * Moves the content of the given index in to this index.
+	 *
+	 * @param other
+	 * The index to merge, which mustn't be used after this call.
+	 */
+	void merge(KindIndex other) {
+		for (Entry<String, IdSet> entry : other.kinds.entrySet()) {
+			IdSet entityIds = kinds.get(entry.getKey());
+			if (entityIds == null) {
+				kinds.put(entry.getKey(), entry.getValue());
+			} else {
+				entityIds.addAll(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Removes every entity from this index.
+	 */
+	void clear() {
+		kinds.clear();
+	}
+
+	/**
+	 * Writes the content of this index to the given stream.
+	 *
+	 * @param out
+	 * The stream to write.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(kinds.size());
+		for (Entry<String, IdSet> entry : kinds.entrySet()) {
+			Index.writeString(out, entry.getKey());
+			long[] entityIds = entry.getValue().toArray();
+			out.writeInt(entityIds.length);
+			for (long entityId : entityIds) {
+				out.writeLong(entityId);
+			}
+		}
+	}
+
+	/**
+	 * Adds the content written by the <code>writeTo(DataOutputStream)</code> method to this index.
+	 *
+	 * @param in
+	 * The stream to read.
+	 */
+	void readFrom(DataInputStream in) throws IOException {
+		int kindCount = in.readInt();
+		for (int i = 0; i < kindCount; i++) {
+			String kind = Index.readString(in);
+			int entityCount = in.readInt();
+			for (int j = 0; j < entityCount; j++) {
+				put(kind, in.readLong());
+			}
+		}
+	}
+}
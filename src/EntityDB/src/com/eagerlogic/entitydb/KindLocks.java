@@ -0,0 +1,86 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The striped read-write locks of the kinds. Every kind is guarded by the lock of the stripe of its hash, so the
+ * writers of different kinds usually don't block each other, and the readers of a kind don't wait for the writers of
+ * the other kinds. The write locks of more kinds are always acquired in the order of their stripes, so two writers
+ * can't deadlock.
+ *
+ * @author dipacs
+ */
+final class KindLocks {
+
+	private final ReentrantReadWriteLock[] stripes;
+
+	/**
+	 * Creates the locks.
+	 *
+	 * @param stripeCount
+	 * The count of the stripes, which needs to be a power of two.
+	 */
+	KindLocks(int stripeCount) {
+		if (stripeCount < 1 || Integer.bitCount(stripeCount) != 1) {
+			throw new IllegalArgumentException("The count of the stripes needs to be a power of two: " + stripeCount);
+		}
+		stripes = new ReentrantReadWriteLock[stripeCount];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	int getStripe(String kind) {
+		int hash = kind.hashCode();
+		return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+	}
+
+	/**
+	 * Acquires the read lock of the given kind.
+	 *
+	 * @return
+	 * The acquired locks, which need to be passed to the <code>unlock(Lock[])</code> method.
+	 */
+	Lock[] lockRead(String kind) {
+		Lock lock = stripes[getStripe(kind)].readLock();
+		lock.lock();
+		return new Lock[]{lock};
+	}
+
+	/**
+	 * Acquires the write locks of the given kinds, in the order of their stripes.
+	 *
+	 * @return
+	 * The acquired locks, which need to be passed to the <code>unlock(Lock[])</code> method.
+	 */
+	Lock[] lockWrite(Collection<String> kinds) {
+		if (kinds.size() == 1) {
+			Lock lock = stripes[getStripe(kinds.iterator().next())].writeLock();
+			lock.lock();
+			return new Lock[]{lock};
+		}
+		TreeSet<Integer> indexes = new TreeSet<>();
+		for (String kind : kinds) {
+			indexes.add(getStripe(kind));
+		}
+		Lock[] res = new Lock[indexes.size()];
+		int i = 0;
+		for (int index : indexes) {
+			res[i] = stripes[index].writeLock();
+			res[i++].lock();
+		}
+		return res;
+	}
+
+	/**
+	 * Releases the locks returned by the <code>lockRead</code> or the <code>lockWrite</code> method.
+	 */
+	static void unlock(Lock[] locks) {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+}
@@ -0,0 +1,875 @@
+package com.eagerlogic.entitydb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured storage engine. The records are only appended to the end of the current segment file, so every
+ * write is sequential. An updated or removed record becomes garbage, and a background thread (the compactor) copies
+ * the live records of the segments which contain mostly garbage to the end of the log, and deletes those segments.
+ *
+ * The database file contains only a header, the records are stored in the segment files next to it
+ * (<code>&lt;db&gt;.&lt;number&gt;.seg</code>). A segment starts with a header (magic, 2 bytes), followed by the
+ * entries: payload length (4 bytes), CRC32 of the payload (4 bytes), and the payload: type (1 byte), id (8 bytes)
+ * and the record in case of a put. A removal is stored as an entry without record (tombstone). The location of a
+ * record is the number of its segment, and the position of its entry in the segment:
+ * <code>segment &lt;&lt; 40 | position</code>.
+ *
+ * The segments are the log of the changes, so there is no separate write-ahead log. The generation of a snapshot
+ * is the end of the log when the snapshot was written, and the entries after it are replayed at connect.
+ *
+ * @author dipacs
+ */
+final class LogStorage implements Storage {
+
+	static final byte[] FILE_HEADER = new byte[]{(byte) 0xed, (byte) 0xb3};
+	private static final byte[] SEGMENT_HEADER = new byte[]{(byte) 0xed, (byte) 0xb4};
+	private static final String SEGMENT_EXTENSION = ".seg";
+
+	private static final int SEGMENT_SHIFT = 40;
+	private static final long POSITION_MASK = (1l << SEGMENT_SHIFT) - 1;
+	private static final int FRAME_LENGTH = 8;
+	private static final int ENTRY_HEADER_LENGTH = FRAME_LENGTH + 9;
+	private static final int TYPE_PUT = 1;
+	private static final int TYPE_REMOVE = 2;
+	private static final byte[] NO_RECORD = new byte[0];
+	// the maximum size of the entries of a batch which are appended in one write
+	private static final long MAX_APPEND_SIZE = 4 * 1024 * 1024;
+	// the maximum size of the records which are read with one read, and the maximum gap between them
+	private static final long MAX_READ_SIZE = 1024 * 1024;
+	private static final long MAX_READ_GAP = 4096;
+
+	/**
+	 * A segment is compacted if at most this part of it is live.
+	 */
+	private static final double COMPACTION_RATIO = 0.5;
+	private static final int COMPACTION_BATCH = 256;
+	private static final long COMPACTION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Visits the entries of a segment.
+	 */
+	private static interface EntryVisitor {
+
+		void entry(Segment segment, long position, int type, long id, int length) throws IOException;
+	}
+
+	private static final class Segment {
+
+		private final int number;
+		private final File file;
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private long size;
+		private long liveBytes = 0;
+
+		Segment(int number, File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.size = channel.size();
+		}
+	}
+
+	private final File dbFile;
+	private final RandomAccessFile file;
+	private final FileLock fileLock;
+	private final long segmentSize;
+	private final long snapshotSize;
+	private final BufferPool bufferPool = new BufferPool();
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	private final LongLongMap lengths;
+	private final List<Segment> retired = new ArrayList<>();
+	private final GroupCommit groupCommit;
+	// only one compaction can run at a time
+	private final Object compactionLock = new Object();
+	private Segment active;
+	private long appendedLsn = 0;
+	private long lsnAtSnapshot = 0;
+
+	private volatile boolean stopped = false;
+	private Thread compactor = null;
+	// the error which stopped the compactor, it's reported by the next commit, compaction and close
+	private Exception compactionFailure = null;
+
+	LogStorage(File dbFile, EntityDBConfig config) throws IOException {
+		this.dbFile = dbFile;
+		this.segmentSize = config.getSegmentSize();
+		this.snapshotSize = config.getSnapshotSize();
+		this.lengths = new LongLongMap(config.isOffHeapIdMap());
+		this.file = new RandomAccessFile(dbFile, "rw");
+		try {
+			fileLock = file.getChannel().lock();
+		} catch (IOException ex) {
+			file.close();
+			throw new IOException("The file is in use.", ex);
+		}
+		try {
+			byte[] header = new byte[FILE_HEADER.length];
+			file.readFully(header);
+			if (!Arrays.equals(header, FILE_HEADER)) {
+				throw new RuntimeException("Invalid database format.");
+			}
+			for (int number : listSegments(dbFile)) {
+				segments.put(number, new Segment(number, getSegmentFile(dbFile, number)));
+			}
+			if (segments.isEmpty()) {
+				active = createSegment(1);
+			} else {
+				active = segments.lastEntry().getValue();
+			}
+		} catch (IOException | RuntimeException ex) {
+			closeSegments();
+			fileLock.release();
+			file.close();
+			throw ex;
+		}
+
+		groupCommit = new GroupCommit(config) {
+
+			@Override
+			long getAppendedLsn() {
+				synchronized (LogStorage.this) {
+					return appendedLsn;
+				}
+			}
+
+			@Override
+			long flush() throws IOException {
+				long lsn;
+				FileChannel channel;
+				synchronized (LogStorage.this) {
+					lsn = appendedLsn;
+					channel = active.channel;
+				}
+				// the previous segments are forced when they are sealed
+				channel.force(false);
+				return lsn;
+			}
+		};
+		groupCommit.startFlusher("EntityDB log flusher");
+	}
+
+	/**
+	 * Deletes the segment files of the given database.
+	 *
+	 * @param dbFile
+	 * The database file.
+	 */
+	static void deleteSegments(File dbFile) {
+		for (int number : listSegments(dbFile)) {
+			getSegmentFile(dbFile, number).delete();
+		}
+	}
+
+	private static List<Integer> listSegments(File dbFile) {
+		List<Integer> res = new ArrayList<>();
+		File dir = dbFile.getAbsoluteFile().getParentFile();
+		String prefix = dbFile.getName() + ".";
+		String[] names = dir == null ? null : dir.list();
+		if (names == null) {
+			return res;
+		}
+		for (String name : names) {
+			if (name.startsWith(prefix) && name.endsWith(SEGMENT_EXTENSION)) {
+				String number = name.substring(prefix.length(), name.length() - SEGMENT_EXTENSION.length());
+				if (number.matches("[0-9]{1,7}")) {
+					res.add(Integer.parseInt(number));
+				}
+			}
+		}
+		return res;
+	}
+
+	private static File getSegmentFile(File dbFile, int number) {
+		return new File(dbFile.getPath() + "." + number + SEGMENT_EXTENSION);
+	}
+
+	private Segment createSegment(int number) throws IOException {
+		Segment segment = new Segment(number, getSegmentFile(dbFile, number));
+		segment.channel.truncate(0);
+		segment.channel.write(ByteBuffer.wrap(SEGMENT_HEADER), 0);
+		segment.channel.force(true);
+		segment.size = SEGMENT_HEADER.length;
+		segments.put(number, segment);
+		return segment;
+	}
+
+	@Override
+	public boolean canResume(long generation) {
+		if (generation < 0) {
+			return false;
+		}
+		Segment segment = segments.get((int) (generation >>> SEGMENT_SHIFT));
+		long position = generation & POSITION_MASK;
+		return segment != null && position >= SEGMENT_HEADER.length && position <= segment.size;
+	}
+
+	@Override
+	public void recover(long generation, final LogHandler handler) throws IOException {
+		for (Segment segment : segments.values()) {
+			checkHeader(segment);
+		}
+		if (handler == null) {
+			truncate(active, iterate(active, SEGMENT_HEADER.length, true, null));
+		} else {
+			EntryVisitor visitor = new EntryVisitor() {
+
+				@Override
+				public void entry(Segment segment, long position, int type, long id, int length) throws IOException {
+					long location = getLocation(segment, position);
+					long prevLocation;
+					if (type == TYPE_PUT) {
+						addRecord(location, length);
+						prevLocation = handler.put(id, location, length);
+					} else {
+						prevLocation = handler.remove(id);
+					}
+					if (prevLocation > -1) {
+						dropRecord(prevLocation);
+					}
+				}
+			};
+			// the generation of the snapshot is the location where the log is continued
+			int first = (int) (generation >>> SEGMENT_SHIFT);
+			for (Segment segment : segments.tailMap(first).values()) {
+				long from = segment.number == first ? generation & POSITION_MASK : SEGMENT_HEADER.length;
+				long end = iterate(segment, from, segment == active, visitor);
+				if (segment == active) {
+					truncate(segment, end);
+				}
+			}
+		}
+	}
+
+	private void checkHeader(Segment segment) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER.length);
+		if (segment.size < SEGMENT_HEADER.length) {
+			if (segment != active) {
+				throw new IOException("Invalid segment: " + segment.file);
+			}
+			// crashed while creating the segment
+			segment.channel.truncate(0);
+			segment.channel.write(ByteBuffer.wrap(SEGMENT_HEADER), 0);
+			segment.channel.force(true);
+			segment.size = SEGMENT_HEADER.length;
+			return;
+		}
+		readFully(segment.channel, header, 0);
+		if (!Arrays.equals(header.array(), SEGMENT_HEADER)) {
+			throw new IOException("Invalid segment: " + segment.file);
+		}
+	}
+
+	private void truncate(Segment segment, long end) throws IOException {
+		if (end < segment.size) {
+			// the rest is the incomplete entry of a crashed write
+			segment.channel.truncate(end);
+			segment.channel.force(true);
+			segment.size = end;
+		}
+	}
+
+	/**
+	 * Reads the entries of the given segment.
+	 *
+	 * @param verify
+	 * If true, the checksums of the entries are verified, and the iteration stops at the first incomplete or
+	 * corrupt entry.
+	 *
+	 * @return
+	 * The end of the last visited entry.
+	 */
+	private long iterate(Segment segment, long from, boolean verify, EntryVisitor visitor) throws IOException {
+		FileInputStream fis = new FileInputStream(segment.file);
+		try {
+			fis.getChannel().position(from);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 64 * 1024));
+			long size = segment.size;
+			long position = from;
+			byte[] payload = new byte[256];
+			CRC32 crc = new CRC32();
+			while (position + ENTRY_HEADER_LENGTH <= size) {
+				int payloadLength = in.readInt();
+				int checksum = in.readInt();
+				if (payloadLength < 9 || position + FRAME_LENGTH + payloadLength > size) {
+					break;
+				}
+				if (payload.length < payloadLength) {
+					payload = new byte[Math.max(payload.length * 2, payloadLength)];
+				}
+				int type;
+				long id;
+				if (verify) {
+					in.readFully(payload, 0, payloadLength);
+					crc.reset();
+					crc.update(payload, 0, payloadLength);
+					if ((int) crc.getValue() != checksum) {
+						break;
+					}
+					ByteBuffer bb = ByteBuffer.wrap(payload, 0, payloadLength);
+					type = bb.get();
+					id = bb.getLong();
+				} else {
+					type = in.readByte();
+					id = in.readLong();
+					in.readFully(payload, 0, payloadLength - 9);
+				}
+				if (type != TYPE_PUT && type != TYPE_REMOVE) {
+					break;
+				}
+				if (visitor != null) {
+					visitor.entry(segment, position, type, id, payloadLength - 9);
+				}
+				position += FRAME_LENGTH + payloadLength;
+			}
+			if (!verify && position != size) {
+				throw new IOException("Corrupt segment: " + segment.file);
+			}
+			return position;
+		} finally {
+			fis.close();
+		}
+	}
+
+	@Override
+	public void scan(ScanHandler handler) throws IOException {
+		final LongLongMap live = new LongLongMap(false);
+		for (Segment segment : segments.values()) {
+			iterate(segment, SEGMENT_HEADER.length, false, new EntryVisitor() {
+
+				@Override
+				public void entry(Segment segment, long position, int type, long id, int length) {
+					long location = getLocation(segment, position);
+					long prevLocation;
+					if (type == TYPE_PUT) {
+						addRecord(location, length);
+						prevLocation = live.put(id, location);
+					} else {
+						prevLocation = live.remove(id);
+					}
+					if (prevLocation != LongLongMap.NO_VALUE) {
+						dropRecord(prevLocation);
+					}
+				}
+			});
+		}
+
+		// the live records are passed in the order of the locations, so they are read sequentially
+		long[] locations = new long[live.size()];
+		int i = 0;
+		LongLongMap.Cursor cursor = live.cursor();
+		while (cursor.next()) {
+			locations[i++] = cursor.value();
+		}
+		live.clear();
+		Arrays.sort(locations);
+		for (long location : locations) {
+			handler.record(location, getLength(location), null);
+		}
+	}
+
+	private static long getLocation(Segment segment, long position) {
+		return ((long) segment.number << SEGMENT_SHIFT) | position;
+	}
+
+	private Segment getSegment(long location) {
+		Segment segment = segments.get((int) (location >>> SEGMENT_SHIFT));
+		if (segment == null) {
+			throw new RuntimeException("Internal error. Can't find segment of location: " + location);
+		}
+		return segment;
+	}
+
+	@Override
+	public void addRecord(long location, int length) {
+		lengths.put(location, length);
+		getSegment(location).liveBytes += ENTRY_HEADER_LENGTH + length;
+	}
+
+	private void dropRecord(long location) {
+		long length = lengths.remove(location);
+		if (length == LongLongMap.NO_VALUE) {
+			throw new RuntimeException("Internal error. Can't find record with location: " + location);
+		}
+		getSegment(location).liveBytes -= ENTRY_HEADER_LENGTH + length;
+	}
+
+	@Override
+	public int getLength(long location) {
+		return (int) lengths.get(location);
+	}
+
+	@Override
+	public ByteBuffer read(long location, int length) throws IOException {
+		Segment segment = getSegment(location);
+		ByteBuffer res = bufferPool.acquire(length);
+		try {
+			readFully(segment.channel, res, (location & POSITION_MASK) + ENTRY_HEADER_LENGTH);
+		} catch (IOException | RuntimeException ex) {
+			bufferPool.release(res);
+			throw ex;
+		}
+		res.flip();
+		return res;
+	}
+
+	@Override
+	public ByteBuffer[] readAll(long[] locations, int[] lengths) throws IOException {
+		ByteBuffer[] res = new ByteBuffer[locations.length];
+		int from = 0;
+		while (from < locations.length) {
+			Segment segment = getSegment(locations[from]);
+			long start = (locations[from] & POSITION_MASK) + ENTRY_HEADER_LENGTH;
+			long end = start + lengths[from];
+			int to = from + 1;
+			while (to < locations.length && (locations[to] >>> SEGMENT_SHIFT) == segment.number) {
+				long position = (locations[to] & POSITION_MASK) + ENTRY_HEADER_LENGTH;
+				if (position - end > MAX_READ_GAP || position + lengths[to] - start > MAX_READ_SIZE) {
+					break;
+				}
+				end = Math.max(end, position + lengths[to]);
+				to++;
+			}
+
+			byte[] span = new byte[(int) (end - start)];
+			readFully(segment.channel, ByteBuffer.wrap(span), start);
+			for (int i = from; i < to; i++) {
+				long position = (locations[i] & POSITION_MASK) + ENTRY_HEADER_LENGTH;
+				res[i] = ByteBuffer.wrap(span, (int) (position - start), lengths[i]).slice();
+			}
+			from = to;
+		}
+		return res;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int count = channel.read(dst, position);
+			if (count < 0) {
+				throw new EOFException("Unexpected end of the segment at: " + position);
+			}
+			position += count;
+		}
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		bufferPool.release(buffer);
+	}
+
+	@Override
+	public long write(long id, long oldLocation, byte[] record) throws IOException {
+		long location = append(TYPE_PUT, id, record);
+		addRecord(location, record.length);
+		if (oldLocation > -1) {
+			dropRecord(oldLocation);
+		}
+		return location;
+	}
+
+	@Override
+	public long[] writeAll(long[] ids, long[] oldLocations, byte[][] records) throws IOException {
+		long[] res = appendAll(ids, records);
+		for (int i = 0; i < ids.length; i++) {
+			addRecord(res[i], records[i].length);
+			if (oldLocations[i] > -1) {
+				dropRecord(oldLocations[i]);
+			}
+		}
+		return res;
+	}
+
+	@Override
+	public void remove(long id, long location) throws IOException {
+		append(TYPE_REMOVE, id, NO_RECORD);
+		dropRecord(location);
+	}
+
+	private synchronized long append(int type, long id, byte[] record) throws IOException {
+		int entryLength = ENTRY_HEADER_LENGTH + record.length;
+		if (active.size + entryLength > segmentSize && active.size > SEGMENT_HEADER.length) {
+			roll();
+		}
+		ByteBuffer entry = ByteBuffer.allocate(entryLength);
+		putEntry(entry, type, id, record);
+		entry.flip();
+
+		long position = active.size;
+		long location = getLocation(active, position);
+		while (entry.hasRemaining()) {
+			position += active.channel.write(entry, position);
+		}
+		active.size += entryLength;
+		appendedLsn += entryLength;
+		return location;
+	}
+
+	/**
+	 * Appends the put entries of a batch. The entries are collected in a buffer, which is written when it's full, or
+	 * when the active segment is full.
+	 *
+	 * @return
+	 * The locations of the records.
+	 */
+	private synchronized long[] appendAll(long[] ids, byte[][] records) throws IOException {
+		long[] res = new long[ids.length];
+		int from = 0;
+		while (from < ids.length) {
+			long size = ENTRY_HEADER_LENGTH + records[from].length;
+			if (active.size + size > segmentSize && active.size > SEGMENT_HEADER.length) {
+				roll();
+			}
+			int to = from + 1;
+			while (to < ids.length && size + ENTRY_HEADER_LENGTH + records[to].length <= MAX_APPEND_SIZE
+					&& active.size + size + ENTRY_HEADER_LENGTH + records[to].length <= segmentSize) {
+				size += ENTRY_HEADER_LENGTH + records[to].length;
+				to++;
+			}
+
+			ByteBuffer entries = ByteBuffer.allocate((int) size);
+			for (int i = from; i < to; i++) {
+				res[i] = getLocation(active, active.size + entries.position());
+				putEntry(entries, TYPE_PUT, ids[i], records[i]);
+			}
+			entries.flip();
+			long position = active.size;
+			while (entries.hasRemaining()) {
+				position += active.channel.write(entries, position);
+			}
+			active.size += size;
+			appendedLsn += size;
+			from = to;
+		}
+		return res;
+	}
+
+	/**
+	 * Puts an entry, with its frame, to the given buffer.
+	 */
+	private static void putEntry(ByteBuffer buffer, int type, long id, byte[] record) {
+		int start = buffer.position();
+		int entryLength = ENTRY_HEADER_LENGTH + record.length;
+		buffer.putInt(entryLength - FRAME_LENGTH);
+		buffer.putInt(0);
+		buffer.put((byte) type);
+		buffer.putLong(id);
+		buffer.put(record);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), start + FRAME_LENGTH, entryLength - FRAME_LENGTH);
+		buffer.putInt(start + 4, (int) crc.getValue());
+	}
+
+	/**
+	 * Seals the active segment, and starts a new one.
+	 */
+	private void roll() throws IOException {
+		active.channel.force(false);
+		active = createSegment(active.number + 1);
+		if (compactor != null) {
+			LockSupport.unpark(compactor);
+		}
+	}
+
+	@Override
+	public synchronized long commit() throws IOException {
+		checkCompactionFailure();
+		return appendedLsn;
+	}
+
+	/**
+	 * Throws the error of the background compaction, if it's failed.
+	 */
+	private synchronized void checkCompactionFailure() throws IOException {
+		if (compactionFailure != null) {
+			// the failed write can be partially applied, so nothing can be written after it
+			throw new IOException("The background compaction failed.", compactionFailure);
+		}
+	}
+
+	@Override
+	public void awaitDurable(long lsn) {
+		groupCommit.commit(lsn);
+	}
+
+	@Override
+	public synchronized boolean isSnapshotNeeded() {
+		return appendedLsn - lsnAtSnapshot > snapshotSize;
+	}
+
+	@Override
+	public long startSnapshot() throws IOException {
+		groupCommit.sync();
+		synchronized (this) {
+			return getLocation(active, active.size);
+		}
+	}
+
+	@Override
+	public void finishSnapshot(long generation) throws IOException {
+		synchronized (this) {
+			lsnAtSnapshot = appendedLsn;
+		}
+		// the snapshot doesn't refer to the retired segments, so they aren't needed anymore
+		for (Segment segment : retired) {
+			segments.remove(segment.number);
+			segment.raf.close();
+			segment.file.delete();
+		}
+		retired.clear();
+	}
+
+	@Override
+	public synchronized void start(final Owner owner) {
+		compactor = new Thread("EntityDB compactor") {
+
+			@Override
+			public void run() {
+				while (!stopped) {
+					boolean more = false;
+					try {
+						more = compactInBackground(owner);
+					} catch (IOException | RuntimeException ex) {
+						synchronized (LogStorage.this) {
+							compactionFailure = ex;
+						}
+						return;
+					}
+					if (!more && !stopped) {
+						LockSupport.parkNanos(COMPACTION_INTERVAL_NANOS);
+					}
+				}
+			}
+		};
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	@Override
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			stopped = true;
+			thread = compactor;
+		}
+		if (thread == null) {
+			return;
+		}
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Compacts the sealed segment which has the most garbage, if there is any segment which needs to be compacted.
+	 * When every live record is moved, a snapshot is written, which doesn't refer to the segment anymore, and the
+	 * segment is deleted.
+	 *
+	 * @return
+	 * True if a segment is compacted.
+	 */
+	private boolean compactInBackground(Owner owner) throws IOException {
+		synchronized (compactionLock) {
+			Segment segment = null;
+			Lock lock = owner.getWriteLock();
+			lock.lock();
+			try {
+				long maxGarbage = -1;
+				for (Segment candidate : segments.values()) {
+					long entryBytes = candidate.size - SEGMENT_HEADER.length;
+					if (candidate == active || retired.contains(candidate) || candidate.liveBytes > entryBytes * COMPACTION_RATIO) {
+						continue;
+					}
+					long garbage = entryBytes - candidate.liveBytes;
+					if (garbage > maxGarbage) {
+						maxGarbage = garbage;
+						segment = candidate;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (segment == null || !relocate(owner, segment, null, 0, 0)) {
+				return false;
+			}
+			retire(owner, Collections.singletonList(segment));
+			return true;
+		}
+	}
+
+	@Override
+	public synchronized long getSize() {
+		long res = FILE_HEADER.length;
+		for (Segment segment : segments.values()) {
+			res += segment.size;
+		}
+		return res;
+	}
+
+	/**
+	 * Compacts every segment which contains garbage, regardless of the compaction ratio. The active segment is sealed
+	 * first, so it's compacted too. The segments are deleted together, after a single snapshot.
+	 */
+	@Override
+	public void compact(Owner owner, ICompactionListener listener) throws IOException {
+		checkCompactionFailure();
+		synchronized (compactionLock) {
+			List<Segment> candidates = new ArrayList<>();
+			long total = 0;
+			Lock lock = owner.getWriteLock();
+			lock.lock();
+			try {
+				synchronized (this) {
+					if (active.size > SEGMENT_HEADER.length) {
+						roll();
+					}
+				}
+				for (Segment candidate : segments.values()) {
+					long entryBytes = candidate.size - SEGMENT_HEADER.length;
+					if (candidate != active && !retired.contains(candidate) && candidate.liveBytes < entryBytes) {
+						candidates.add(candidate);
+						total += entryBytes;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			long processed = 0;
+			for (Segment segment : candidates) {
+				if (!relocate(owner, segment, listener, processed, total)) {
+					return;
+				}
+				processed += segment.size - SEGMENT_HEADER.length;
+			}
+			if (!candidates.isEmpty()) {
+				retire(owner, candidates);
+			}
+		}
+	}
+
+	/**
+	 * Copies the live records of a sealed segment to the end of the log in batches, so the writes are blocked only
+	 * for a short time.
+	 *
+	 * @return
+	 * True if every live record is moved, false if the storage is stopped meanwhile.
+	 */
+	private boolean relocate(Owner owner, Segment segment, ICompactionListener listener, long processed, long total) throws IOException {
+		// the segment is sealed, so it can be read without locking
+		final List<long[]> entries = new ArrayList<>();
+		iterate(segment, SEGMENT_HEADER.length, false, new EntryVisitor() {
+
+			@Override
+			public void entry(Segment segment, long position, int type, long id, int length) {
+				entries.add(new long[]{type, id, getLocation(segment, position), position + ENTRY_HEADER_LENGTH + length});
+			}
+		});
+
+		Lock lock = owner.getWriteLock();
+		for (int i = 0; i < entries.size(); i += COMPACTION_BATCH) {
+			if (stopped) {
+				// the moved records are valid, the compaction is continued later
+				return false;
+			}
+			List<long[]> batch = entries.subList(i, Math.min(entries.size(), i + COMPACTION_BATCH));
+			long lsn;
+			lock.lock();
+			try {
+				for (long[] entry : batch) {
+					long id = entry[1];
+					long location = entry[2];
+					long currentLocation = owner.getLocation(id);
+					if (entry[0] == TYPE_PUT) {
+						if (currentLocation == location) {
+							owner.setLocation(id, write(id, location, readRecord(location)));
+						}
+					} else if (currentLocation < 0 && segments.firstKey() != segment.number) {
+						// an older segment can contain a previous version of the removed entity
+						append(TYPE_REMOVE, id, NO_RECORD);
+					}
+				}
+				lsn = commit();
+			} finally {
+				lock.unlock();
+			}
+			awaitDurable(lsn);
+			if (listener != null) {
+				listener.onProgress(processed + batch.get(batch.size() - 1)[3] - SEGMENT_HEADER.length, total);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a snapshot which doesn't refer to the given compacted segments, so they are deleted.
+	 */
+	private void retire(Owner owner, List<Segment> compacted) throws IOException {
+		Lock lock = owner.getWriteLock();
+		lock.lock();
+		try {
+			retired.addAll(compacted);
+			owner.writeSnapshot();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private byte[] readRecord(long location) throws IOException {
+		int length = getLength(location);
+		ByteBuffer buffer = read(location, length);
+		try {
+			byte[] res = new byte[length];
+			buffer.get(res);
+			return res;
+		} finally {
+			release(buffer);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		groupCommit.stopFlusher();
+		try {
+			closeSegments();
+			fileLock.release();
+		} finally {
+			file.close();
+		}
+		checkCompactionFailure();
+	}
+
+	private void closeSegments() throws IOException {
+		for (Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+			entry.getValue().raf.close();
+		}
+	}
+}
@@ -10,23 +10,49 @@ public final class LongFilterItem extends AFilterItem {
 		SMALLER,
 		GREATER,
 		EQUALS,
-		NOT_EQUALS
+		NOT_EQUALS,
+		GREATER_OR_EQUALS,
+		SMALLER_OR_EQUALS,
+		/**
+		 * The value is between the two reference values (inclusive).
+		 */
+		BETWEEN,
+		/**
+		 * The value is equal to any of the reference values.
+		 */
+		IN
 	}
 	
 	private final String attributeName;
 	private final EOperator operator;
-	private final long referenceValue;
+	private final long[] referenceValues;
 
 	public LongFilterItem(String attributeName, EOperator operator, long referenceValue) {
+		this(attributeName, operator, new long[]{referenceValue});
+	}
+
+	/**
+	 * Creates a new filter item which has more reference values. The BETWEEN operator needs two reference values (the
+	 * lower and the upper bound), the IN operator needs at least one, and the other operators need exactly one.
+	 */
+	public LongFilterItem(String attributeName, EOperator operator, long... referenceValues) {
 		if (attributeName == null) {
 			throw new NullPointerException("The attributeName parameter can not be null.");
 		}
 		if (operator == null) {
 			throw new NullPointerException("The operator parameter can not be null.");
 		}
+		if (referenceValues == null) {
+			throw new NullPointerException("The referenceValues parameter can not be null.");
+		}
+		if (operator == EOperator.BETWEEN ? referenceValues.length != 2
+				: operator == EOperator.IN ? referenceValues.length < 1 : referenceValues.length != 1) {
+			throw new IllegalArgumentException("Invalid count of reference values for operator " + operator.name() + ": "
+					+ referenceValues.length);
+		}
 		this.attributeName = attributeName;
 		this.operator = operator;
-		this.referenceValue = referenceValue;
+		this.referenceValues = referenceValues.clone();
 	}
 
 	public String getAttributeName() {
@@ -38,7 +64,19 @@ public final class LongFilterItem extends AFilterItem {
 	}
 
 	public long getReferenceValue() {
-		return referenceValue;
+		return referenceValues[0];
+	}
+
+	public long[] getReferenceValues() {
+		return referenceValues.clone();
+	}
+
+	/**
+	 * Returns the reference values without copying them, for the queries which read them for every candidate. The
+	 * returned array must not be changed.
+	 */
+	long[] getSharedReferenceValues() {
+		return referenceValues;
 	}
 
 }
@@ -0,0 +1,274 @@
+package com.eagerlogic.entitydb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A map of non-negative long keys to non-negative long values, without boxing.
+ *
+ * The entries are stored in an open addressing hash table with linear probing, and the removed entries are
+ * filled by shifting back the following entries of the probe sequence, so there are no tombstones. The keys and the
+ * values are stored in two long tables, which can be allocated outside of the heap, so a map with many millions of
+ * entries doesn't make the garbage collection slower. The lookups don't allocate, and they can be called
+ * concurrently while the map isn't changed.
+ *
+ * @author dipacs
+ */
+final class LongLongMap {
+
+	/**
+	 * The value which is returned when a key can't be found.
+	 */
+	static final long NO_VALUE = -1;
+
+	private static final long EMPTY = -1;
+	private static final int MIN_CAPACITY = 16;
+	// a direct buffer can't be bigger than 2 GB
+	private static final int MAX_DIRECT_CAPACITY = 1 << 28;
+	private static final int MAX_HEAP_CAPACITY = 1 << 30;
+	private static final double LOAD_FACTOR = 0.75;
+
+	/**
+	 * Iterates the entries of the map. The map must not be changed during the iteration.
+	 */
+	final class Cursor {
+
+		private int slot = -1;
+
+		/**
+		 * Moves to the next entry.
+		 *
+		 * @return
+		 * True if there is a next entry, false if the iteration is finished.
+		 */
+		boolean next() {
+			while (++slot < capacity) {
+				if (keys.get(slot) != EMPTY) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		long key() {
+			return keys.get(slot);
+		}
+
+		long value() {
+			return values.get(slot);
+		}
+	}
+
+	private final boolean offHeap;
+	private LongBuffer keys;
+	private LongBuffer values;
+	private int capacity;
+	private int mask;
+	private int size = 0;
+	private int resizeThreshold;
+
+	/**
+	 * Creates a new map.
+	 *
+	 * @param offHeap
+	 * If true, the tables are allocated outside of the heap.
+	 */
+	LongLongMap(boolean offHeap) {
+		this.offHeap = offHeap;
+		allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int newCapacity) {
+		keys = allocateTable(newCapacity);
+		values = allocateTable(newCapacity);
+		for (int i = 0; i < newCapacity; i++) {
+			keys.put(i, EMPTY);
+		}
+		capacity = newCapacity;
+		mask = newCapacity - 1;
+		resizeThreshold = (int) (newCapacity * LOAD_FACTOR);
+	}
+
+	private LongBuffer allocateTable(int length) {
+		if (offHeap) {
+			return ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+		return LongBuffer.wrap(new long[length]);
+	}
+
+	private int slot(long key) {
+		long hash = key * 0x9e3779b97f4a7c15l;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * Returns the count of the entries.
+	 *
+	 * @return
+	 * The count of the entries.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the value associated with the given key.
+	 *
+	 * @param key
+	 * The key.
+	 *
+	 * @return
+	 * The value, or NO_VALUE if the key can't be found.
+	 */
+	long get(long key) {
+		if (key < 0) {
+			// the negative keys can't be stored, and -1 would match the empty slots
+			return NO_VALUE;
+		}
+		for (int slot = slot(key);; slot = (slot + 1) & mask) {
+			long current = keys.get(slot);
+			if (current == key) {
+				return values.get(slot);
+			}
+			if (current == EMPTY) {
+				return NO_VALUE;
+			}
+		}
+	}
+
+	/**
+	 * Indicates if the given key is in the map.
+	 *
+	 * @param key
+	 * The key.
+	 *
+	 * @return
+	 * True if the key is in the map.
+	 */
+	boolean containsKey(long key) {
+		return get(key) != NO_VALUE;
+	}
+
+	/**
+	 * Associates the given value with the given key.
+	 *
+	 * @param key
+	 * The key, which must not be negative.
+	 *
+	 * @param value
+	 * The value, which must not be negative.
+	 *
+	 * @return
+	 * The previous value, or NO_VALUE if the key wasn't in the map.
+	 */
+	long put(long key, long value) {
+		if (key < 0 || value < 0) {
+			throw new IllegalArgumentException("The key and the value can not be negative: " + key + ", " + value);
+		}
+		for (int slot = slot(key);; slot = (slot + 1) & mask) {
+			long current = keys.get(slot);
+			if (current == key) {
+				long res = values.get(slot);
+				values.put(slot, value);
+				return res;
+			}
+			if (current == EMPTY) {
+				if (size >= resizeThreshold) {
+					resize();
+					return put(key, value);
+				}
+				keys.put(slot, key);
+				values.put(slot, value);
+				size++;
+				return NO_VALUE;
+			}
+		}
+	}
+
+	/**
+	 * Removes the given key from the map.
+	 *
+	 * @param key
+	 * The key.
+	 *
+	 * @return
+	 * The removed value, or NO_VALUE if the key wasn't in the map.
+	 */
+	long remove(long key) {
+		if (key < 0) {
+			return NO_VALUE;
+		}
+		int slot = slot(key);
+		while (true) {
+			long current = keys.get(slot);
+			if (current == EMPTY) {
+				return NO_VALUE;
+			}
+			if (current == key) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		long res = values.get(slot);
+		size--;
+
+		// the following entries of the probe sequence are shifted back in to the hole
+		int hole = slot;
+		for (int next = (hole + 1) & mask;; next = (next + 1) & mask) {
+			long nextKey = keys.get(next);
+			if (nextKey == EMPTY) {
+				break;
+			}
+			int home = slot(nextKey);
+			// the entry can be moved if its home slot isn't between the hole and its current slot (cyclically)
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys.put(hole, nextKey);
+				values.put(hole, values.get(next));
+				hole = next;
+			}
+		}
+		keys.put(hole, EMPTY);
+		return res;
+	}
+
+	/**
+	 * Removes every entry, and frees the tables.
+	 */
+	void clear() {
+		size = 0;
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Returns a new cursor, which is before the first entry.
+	 *
+	 * @return
+	 * The new cursor.
+	 */
+	Cursor cursor() {
+		return new Cursor();
+	}
+
+	private void resize() {
+		int maxCapacity = offHeap ? MAX_DIRECT_CAPACITY : MAX_HEAP_CAPACITY;
+		if (capacity >= maxCapacity) {
+			throw new IllegalStateException("The map can't hold more entries: " + size);
+		}
+		LongBuffer oldKeys = keys;
+		LongBuffer oldValues = values;
+		int oldCapacity = capacity;
+		allocate(capacity * 2);
+		for (int i = 0; i < oldCapacity; i++) {
+			long key = oldKeys.get(i);
+			if (key != EMPTY) {
+				int slot = slot(key);
+				while (keys.get(slot) != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys.put(slot, key);
+				values.put(slot, oldValues.get(i));
+			}
+		}
+	}
+}
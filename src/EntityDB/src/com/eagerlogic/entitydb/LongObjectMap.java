@@ -0,0 +1,182 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Arrays;
+
+/**
+ * A map of non-negative long keys to objects, without boxing the keys.
+ *
+ * The entries are stored in an open addressing hash table with linear probing like in {@link LongLongMap}, so the
+ * lookups, and the changes of the existing entries don't allocate.
+ *
+ * @author dipacs
+ */
+final class LongObjectMap<V> {
+
+	private static final long EMPTY = -1;
+	private static final int MIN_CAPACITY = 8;
+	private static final double LOAD_FACTOR = 0.75;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+	private int resizeThreshold;
+
+	LongObjectMap() {
+		allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private int slot(long key) {
+		long hash = key * 0x9e3779b97f4a7c15l;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the value associated with the given key, or null if the key can't be found.
+	 */
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		for (int slot = slot(key);; slot = (slot + 1) & mask) {
+			long current = keys[slot];
+			if (current == key) {
+				return (V) values[slot];
+			}
+			if (current == EMPTY) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Associates the given value with the given key.
+	 *
+	 * @param key
+	 * The key, which must not be negative.
+	 *
+	 * @param value
+	 * The value, which must not be null.
+	 *
+	 * @return
+	 * The previous value, or null if the key wasn't in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value) {
+		if (key < 0 || value == null) {
+			throw new IllegalArgumentException("The key can not be negative, and the value can not be null.");
+		}
+		for (int slot = slot(key);; slot = (slot + 1) & mask) {
+			long current = keys[slot];
+			if (current == key) {
+				V res = (V) values[slot];
+				values[slot] = value;
+				return res;
+			}
+			if (current == EMPTY) {
+				if (size >= resizeThreshold) {
+					resize();
+					return put(key, value);
+				}
+				keys[slot] = key;
+				values[slot] = value;
+				size++;
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Removes the given key from the map.
+	 *
+	 * @return
+	 * The removed value, or null if the key wasn't in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		int slot = slot(key);
+		while (true) {
+			long current = keys[slot];
+			if (current == EMPTY) {
+				return null;
+			}
+			if (current == key) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		V res = (V) values[slot];
+		size--;
+
+		// the following entries of the probe sequence are shifted back in to the hole
+		int hole = slot;
+		for (int next = (hole + 1) & mask;; next = (next + 1) & mask) {
+			long nextKey = keys[next];
+			if (nextKey == EMPTY) {
+				break;
+			}
+			int home = slot(nextKey);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = nextKey;
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+		keys[hole] = EMPTY;
+		values[hole] = null;
+		return res;
+	}
+
+	/**
+	 * Puts every entry of the given map in to this map.
+	 */
+	@SuppressWarnings("unchecked")
+	void putAll(LongObjectMap<V> other) {
+		for (int i = 0; i < other.keys.length; i++) {
+			if (other.keys[i] != EMPTY) {
+				put(other.keys[i], (V) other.values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the keys of this map, in no particular order.
+	 */
+	long[] keys() {
+		long[] res = new long[size];
+		int count = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				res[count++] = keys[i];
+			}
+		}
+		return res;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(keys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key != EMPTY) {
+				int slot = slot(key);
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
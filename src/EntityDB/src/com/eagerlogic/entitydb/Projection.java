@@ -0,0 +1,58 @@
+package com.eagerlogic.entitydb;
+
+/**
+ * The values of some attributes of an entity, which are returned by the <code>DB.queryProjection</code> method.
+ *
+ * @author dipacs
+ */
+public final class Projection {
+
+	private final long key;
+	// shared by the projections of a query
+	private final String[] attributeNames;
+	private final Object[] values;
+
+	Projection(long key, String[] attributeNames, Object[] values) {
+		this.key = key;
+		this.attributeNames = attributeNames;
+		this.values = values;
+	}
+
+	/**
+	 * Returns the key of the entity.
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the value of the given attribute.
+	 *
+	 * @param attributeName
+	 * The name of the attribute, which needs to be one of the projected attributes.
+	 *
+	 * @return
+	 * The value of the attribute, or null if the entity doesn't have the attribute.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute(String attributeName) {
+		for (int i = 0; i < attributeNames.length; i++) {
+			if (attributeNames[i].equals(attributeName)) {
+				return (T) values[i];
+			}
+		}
+		throw new IllegalArgumentException("The attribute isn't projected: " + attributeName);
+	}
+
+	/**
+	 * Returns the value of the attribute at the given position of the projected attributes.
+	 *
+	 * @return
+	 * The value of the attribute, or null if the entity doesn't have the attribute.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute(int index) {
+		return (T) values[index];
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the entities of the collected ids of a query one by one. The ids are iterated in ascending order, or in the
+ * order of an array of keys.
+ *
+ * @author dipacs
+ */
+final class QueryIterator implements IQueryIterator {
+
+	private final EntityDB entityDB;
+	private final Filter filter;
+	// null when the iterator is closed, or it iterates keys
+	private IdSet ids;
+	private long position = 0;
+	// null when the iterator is closed, or it iterates ids
+	private long[] keys;
+	private int keyIndex = 0;
+	private Entity next = null;
+
+	QueryIterator(EntityDB entityDB, Filter filter, IdSet ids) {
+		this.entityDB = entityDB;
+		this.filter = filter;
+		this.ids = ids;
+	}
+
+	QueryIterator(EntityDB entityDB, Filter filter, long[] keys) {
+		this.entityDB = entityDB;
+		this.filter = filter;
+		this.keys = keys;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && (ids != null || keys != null)) {
+			long id;
+			if (keys != null) {
+				id = keyIndex < keys.length ? keys[keyIndex++] : -1;
+			} else {
+				id = ids.next(position);
+				position = id + 1;
+			}
+			if (id < 0) {
+				close();
+				break;
+			}
+			next = entityDB.readMatching(id, filter);
+		}
+		return next != null;
+	}
+
+	@Override
+	public Entity next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Entity res = next;
+		next = null;
+		return res;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("The results of a query can't be removed.");
+	}
+
+	@Override
+	public void close() {
+		ids = null;
+		keys = null;
+		next = null;
+	}
+
+	/**
+	 * The stream of the results of a query.
+	 */
+	static final class Stream implements IQueryStream {
+
+		private final QueryIterator iterator;
+		private final ArrayList<Runnable> closeHandlers = new ArrayList<>();
+		private boolean used = false;
+		private boolean closed = false;
+
+		Stream(QueryIterator iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public IQueryIterator iterator() {
+			if (used || closed) {
+				throw new IllegalStateException("The results of the stream are already iterated, or it's closed.");
+			}
+			used = true;
+			return iterator;
+		}
+
+		@Override
+		public IQueryStream onClose(Runnable closeHandler) {
+			if (closeHandler == null) {
+				throw new NullPointerException("The closeHandler parameter can not be null.");
+			}
+			closeHandlers.add(closeHandler);
+			return this;
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			iterator.close();
+			RuntimeException error = null;
+			for (Runnable closeHandler : closeHandlers) {
+				try {
+					closeHandler.run();
+				} catch (RuntimeException ex) {
+					if (error == null) {
+						error = ex;
+					} else {
+						error.addSuppressed(ex);
+					}
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Collects the keys of the page of the results of a query, which is selected by the order, the cursor, the offset
+ * and the limit of its filter. The results are added in the order of the filter, or they are added unordered, and
+ * sorted when every result is added.
+ *
+ * @author dipacs
+ */
+final class QueryPage {
+
+	/**
+	 * A result which is added unordered.
+	 */
+	private static final class Result {
+
+		private final Object value;
+		private final long key;
+
+		Result(Object value, long key) {
+			this.value = value;
+			this.key = key;
+		}
+	}
+
+	private final boolean descending;
+	private final boolean cursor;
+	private final Object cursorValue;
+	private final long cursorKey;
+	private final int limit;
+	private int skip;
+	private long[] keys = new long[16];
+	private int size = 0;
+	private final ArrayList<Result> unordered = new ArrayList<>();
+
+	/**
+	 * Creates a new page.
+	 *
+	 * @param filter
+	 * The filter of the query.
+	 *
+	 * @param maxCount
+	 * The maximum count of the keys of the page, besides the limit of the filter.
+	 */
+	QueryPage(Filter filter, int maxCount) {
+		this.descending = filter.getDirection() == Filter.EDirection.DESCENDING;
+		this.cursor = filter.hasCursor();
+		this.cursorValue = filter.getOrderAttribute() == null ? null : filter.getCursorValue();
+		this.cursorKey = filter.getCursorKey();
+		this.limit = filter.getLimit() < 0 ? maxCount : Math.min(filter.getLimit(), maxCount);
+		this.skip = filter.getOffset();
+	}
+
+	/**
+	 * Indicates if the page is complete, so the other results don't need to be checked.
+	 */
+	boolean isFull() {
+		return size >= limit;
+	}
+
+	/**
+	 * Adds the next result in the order of the filter. The results before the offset are skipped.
+	 */
+	void add(long key) {
+		if (skip > 0) {
+			skip--;
+			return;
+		}
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+		}
+		keys[size++] = key;
+	}
+
+	/**
+	 * Adds a result which isn't in the order of the filter. The results which are added this way are ordered by the
+	 * <code>sortUnordered()</code> method.
+	 */
+	void addUnordered(Object value, long key) {
+		if (isAfterCursor(value, key)) {
+			unordered.add(new Result(value, key));
+		}
+	}
+
+	/**
+	 * Sorts the results which are added unordered, and adds them to the page.
+	 */
+	void sortUnordered() {
+		Collections.sort(unordered, new Comparator<Result>() {
+
+			@Override
+			public int compare(Result o1, Result o2) {
+				return QueryPage.this.compare(o1.value, o1.key, o2.value, o2.key);
+			}
+		});
+		for (int i = 0; i < unordered.size() && !isFull(); i++) {
+			add(unordered.get(i).key);
+		}
+		unordered.clear();
+	}
+
+	/**
+	 * Returns the keys of the page, in the order of the filter.
+	 */
+	long[] getKeys() {
+		return Arrays.copyOf(keys, size);
+	}
+
+	/**
+	 * Compares two results in the order of the filter.
+	 */
+	int compare(Object value1, long key1, Object value2, long key2) {
+		int res = compareValues(value1, value2);
+		if (res == 0) {
+			res = Long.compare(key1, key2);
+		}
+		return descending ? -res : res;
+	}
+
+	/**
+	 * Indicates if the given result comes after the cursor of the filter (or if the filter has no cursor).
+	 */
+	boolean isAfterCursor(Object value, long key) {
+		return !cursor || compare(value, key, cursorValue, cursorKey) > 0;
+	}
+
+	/**
+	 * Compares two values of the order attribute in ascending order: the booleans are the first ones, than the longs,
+	 * than the strings, and the missing (null) values are the last ones.
+	 */
+	static int compareValues(Object value1, Object value2) {
+		int res = compareTypes(value1, value2);
+		if (res != 0 || value1 == null) {
+			return res;
+		}
+		if (value1 instanceof Boolean) {
+			return ((Boolean) value1).compareTo((Boolean) value2);
+		} else if (value1 instanceof Long) {
+			return ((Long) value1).compareTo((Long) value2);
+		}
+		return ((String) value1).compareTo((String) value2);
+	}
+
+	/**
+	 * Compares only the types of two values of the order attribute.
+	 */
+	static int compareTypes(Object value1, Object value2) {
+		return Integer.compare(getRank(value1), getRank(value2));
+	}
+
+	private static int getRank(Object value) {
+		if (value instanceof Boolean) {
+			return 0;
+		} else if (value instanceof Long) {
+			return 1;
+		} else if (value instanceof String) {
+			return 2;
+		}
+		return 3;
+	}
+}
@@ -0,0 +1,298 @@
+package com.eagerlogic.entitydb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The storage engine of a database, which stores the encoded entities (records) on the disk.
+ *
+ * A record is identified by its location, which is given by the storage when the record is written. The mapping
+ * of the ids to the locations, and the indexes are held by the owner of the storage. Every method which changes the
+ * storage must be called while the writes are locked.
+ *
+ * @author dipacs
+ */
+interface Storage {
+
+	/**
+	 * Handles the records which are found when the whole storage is read at connect.
+	 */
+	static interface ScanHandler {
+
+		/**
+		 * Called for every stored record.
+		 *
+		 * @param location
+		 * The location of the record.
+		 *
+		 * @param length
+		 * The length of the record.
+		 *
+		 * @param entity
+		 * The entity if it's already decoded, otherwise null.
+		 */
+		void record(long location, int length, Entity entity) throws IOException;
+	}
+
+	/**
+	 * Handles the changes which are replayed after loading a snapshot.
+	 */
+	static interface LogHandler {
+
+		/**
+		 * Called when an entity is stored. The record can be read when this method is called.
+		 *
+		 * @return
+		 * The previous location of the entity, or -1 if it's a new entity.
+		 */
+		long put(long id, long location, int length) throws IOException;
+
+		/**
+		 * Called when an entity is removed. The record can be read when this method is called.
+		 *
+		 * @return
+		 * The location of the removed entity, or -1 if the entity doesn't exist.
+		 */
+		long remove(long id) throws IOException;
+	}
+
+	/**
+	 * The owner of the storage, which holds the mapping of the ids to the locations. Used by the background tasks of
+	 * the storage.
+	 */
+	static interface Owner {
+
+		/**
+		 * Returns the lock which needs to be held while changing the storage.
+		 */
+		Lock getWriteLock();
+
+		/**
+		 * Returns the location of the given entity, or -1 if it doesn't exist.
+		 */
+		long getLocation(long id);
+
+		/**
+		 * Sets the location of an entity which record is moved.
+		 */
+		void setLocation(long id, long location);
+
+		/**
+		 * Writes a snapshot of the owner's state.
+		 */
+		void writeSnapshot() throws IOException;
+	}
+
+	/**
+	 * Indicates if a snapshot with the given generation can be continued by replaying the changes of this storage.
+	 *
+	 * @param generation
+	 * The generation of the snapshot.
+	 *
+	 * @return
+	 * True if the snapshot can be used.
+	 */
+	boolean canResume(long generation);
+
+	/**
+	 * Recovers the storage after a crash, and replays the changes made after the loaded snapshot. Must be called
+	 * once, before any other operation.
+	 *
+	 * @param generation
+	 * The generation of the loaded snapshot, or -1 if there is no usable snapshot.
+	 *
+	 * @param handler
+	 * The handler of the changes, or null if there is no usable snapshot.
+	 */
+	void recover(long generation, LogHandler handler) throws IOException;
+
+	/**
+	 * Passes every stored record to the given handler. Used when there is no usable snapshot.
+	 *
+	 * @param handler
+	 * The handler of the records.
+	 */
+	void scan(ScanHandler handler) throws IOException;
+
+	/**
+	 * Registers a record which is loaded from a snapshot.
+	 *
+	 * @param location
+	 * The location of the record.
+	 *
+	 * @param length
+	 * The length of the record.
+	 */
+	void addRecord(long location, int length);
+
+	/**
+	 * Returns the length of the record at the given location.
+	 *
+	 * @param location
+	 * The location of the record.
+	 *
+	 * @return
+	 * The length of the record.
+	 */
+	int getLength(long location);
+
+	/**
+	 * Reads a record. The returned buffer needs to be given back with the <code>release(ByteBuffer)</code> method.
+	 * This method can be called concurrently.
+	 *
+	 * @param location
+	 * The location of the record.
+	 *
+	 * @param length
+	 * The length of the record.
+	 *
+	 * @return
+	 * A buffer which position is 0, and limit is the length of the record.
+	 */
+	ByteBuffer read(long location, int length) throws IOException;
+
+	/**
+	 * Gives back a buffer returned by the <code>read(long, int)</code> method.
+	 *
+	 * @param buffer
+	 * The buffer to release.
+	 */
+	void release(ByteBuffer buffer);
+
+	/**
+	 * Reads the records at the given locations. The records which are next to each other in the storage, or
+	 * separated by small gaps, are read with one read.
+	 *
+	 * @param locations
+	 * The locations of the records, in ascending order.
+	 *
+	 * @param lengths
+	 * The lengths of the records.
+	 *
+	 * @return
+	 * The records, in the order of the locations. The returned buffers don't need to be released.
+	 */
+	ByteBuffer[] readAll(long[] locations, int[] lengths) throws IOException;
+
+	/**
+	 * Stores a record.
+	 *
+	 * @param id
+	 * The id of the entity.
+	 *
+	 * @param oldLocation
+	 * The location of the previous version of the entity, or -1 if it's a new entity.
+	 *
+	 * @param record
+	 * The encoded entity.
+	 *
+	 * @return
+	 * The location of the new record.
+	 */
+	long write(long id, long oldLocation, byte[] record) throws IOException;
+
+	/**
+	 * Stores the records of a batch, with as few writes as possible.
+	 *
+	 * @param ids
+	 * The ids of the entities.
+	 *
+	 * @param oldLocations
+	 * The locations of the previous versions of the entities, or -1 for the new entities.
+	 *
+	 * @param records
+	 * The encoded entities.
+	 *
+	 * @return
+	 * The locations of the new records.
+	 */
+	long[] writeAll(long[] ids, long[] oldLocations, byte[][] records) throws IOException;
+
+	/**
+	 * Removes a record.
+	 *
+	 * @param id
+	 * The id of the entity.
+	 *
+	 * @param location
+	 * The location of the record.
+	 */
+	void remove(long id, long location) throws IOException;
+
+	/**
+	 * Commits the changes since the last commit.
+	 *
+	 * @return
+	 * The value which needs to be passed to <code>awaitDurable(long)</code> after releasing the write lock.
+	 */
+	long commit() throws IOException;
+
+	/**
+	 * Waits until the given commit is durable, depending on the durability setting.
+	 *
+	 * @param lsn
+	 * The value returned by <code>commit()</code>.
+	 */
+	void awaitDurable(long lsn);
+
+	/**
+	 * Indicates if the changes since the last snapshot are too big, and a new snapshot needs to be written.
+	 *
+	 * @return
+	 * True if a snapshot needs to be written.
+	 */
+	boolean isSnapshotNeeded();
+
+	/**
+	 * Persists every change before writing a snapshot.
+	 *
+	 * @return
+	 * The generation of the snapshot.
+	 */
+	long startSnapshot() throws IOException;
+
+	/**
+	 * Called when the snapshot is written.
+	 *
+	 * @param generation
+	 * The generation returned by <code>startSnapshot()</code>.
+	 */
+	void finishSnapshot(long generation) throws IOException;
+
+	/**
+	 * Returns the count of bytes which the storage uses on the disk.
+	 *
+	 * @return
+	 * The size of the storage.
+	 */
+	long getSize();
+
+	/**
+	 * Moves the records to free the space of the removed and overwritten records, and gives back the freed space to
+	 * the file system. The records are moved in small batches, and the write lock is released between the batches, so
+	 * the database can be used during the compaction. Must be called without holding the write lock.
+	 *
+	 * @param owner
+	 * The owner of the storage.
+	 *
+	 * @param listener
+	 * The listener of the progress, or null.
+	 */
+	void compact(Owner owner, ICompactionListener listener) throws IOException;
+
+	/**
+	 * Starts the background tasks of the storage.
+	 *
+	 * @param owner
+	 * The owner of the storage.
+	 */
+	void start(Owner owner);
+
+	/**
+	 * Stops the background tasks of the storage. Must be called without holding the write lock.
+	 */
+	void stop();
+
+	void close() throws IOException;
+}
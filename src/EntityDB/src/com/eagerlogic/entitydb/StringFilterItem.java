@@ -11,26 +11,56 @@ public final class StringFilterItem extends AFilterItem {
 		GREATER,
 		EQUALS,
 		NOT_EQUALS,
-		CONTAINS
+		CONTAINS,
+		GREATER_OR_EQUALS,
+		SMALLER_OR_EQUALS,
+		/**
+		 * The value is between the two reference values (inclusive).
+		 */
+		BETWEEN,
+		/**
+		 * The value is equal to any of the reference values.
+		 */
+		IN,
+		STARTS_WITH
 	}
 	
 	private final String attributeName;
 	private final EOperator operator;
-	private final String referenceValue;
+	private final String[] referenceValues;
 
 	public StringFilterItem(String attributeName, EOperator operator, String referenceValue) {
+		this(attributeName, operator, new String[]{referenceValue});
+	}
+
+	/**
+	 * Creates a new filter item which has more reference values. The BETWEEN operator needs two reference values (the
+	 * lower and the upper bound), the IN operator needs at least one, and the other operators need exactly one.
+	 */
+	public StringFilterItem(String attributeName, EOperator operator, String... referenceValues) {
 		if (attributeName == null) {
 			throw new NullPointerException("The attributeName parameter can not be null.");
 		}
 		if (operator == null) {
 			throw new NullPointerException("The operator parameter can not be null.");
 		}
+		if (referenceValues == null) {
+			throw new NullPointerException("The referenceValues parameter can not be null.");
+		}
+		if (operator == EOperator.BETWEEN ? referenceValues.length != 2
+				: operator == EOperator.IN ? referenceValues.length < 1 : referenceValues.length != 1) {
+			throw new IllegalArgumentException("Invalid count of reference values for operator " + operator.name() + ": "
+					+ referenceValues.length);
+		}
 		this.attributeName = attributeName;
 		this.operator = operator;
-		if (referenceValue == null) {
-			throw new NullPointerException("The referenceValue can not be null. Use NullFilterItem instead.");
+		this.referenceValues = new String[referenceValues.length];
+		for (int i = 0; i < referenceValues.length; i++) {
+			if (referenceValues[i] == null) {
+				throw new NullPointerException("The referenceValue can not be null. Use NullFilterItem instead.");
+			}
+			this.referenceValues[i] = referenceValues[i].toLowerCase();
 		}
-		this.referenceValue = referenceValue.toLowerCase();
 	}
 
 	public String getAttributeName() {
@@ -42,7 +72,19 @@ public final class StringFilterItem extends AFilterItem {
 	}
 
 	public String getReferenceValue() {
-		return referenceValue;
+		return referenceValues[0];
+	}
+
+	public String[] getReferenceValues() {
+		return referenceValues.clone();
+	}
+
+	/**
+	 * Returns the reference values without copying them, for the queries which read them for every candidate. The
+	 * returned array must not be changed.
+	 */
+	String[] getSharedReferenceValues() {
+		return referenceValues;
 	}
 
 }
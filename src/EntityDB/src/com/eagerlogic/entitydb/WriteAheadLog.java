@@ -0,0 +1,233 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The write-ahead log of the data file.
+ *
+ * Every change is appended to the log as an entry, and the log is forced to the disk before the change is reported
+ * as durable. Concurrent committers are batched (group commit). The log is reset when the state of the database is persisted in an other way (a snapshot of the
+ * in-memory indexes, and the checkpointed data file). Every reset increments the generation of the log, which is
+ * stored in the header of the log, so a snapshot can be matched with the log which continues it.
+ *
+ * The log starts with a header: magic (2 bytes), generation (8 bytes). An entry is stored as: payload length (4
+ * bytes), CRC32 of the payload (4 bytes), payload. An incomplete or corrupt entry at the end of the log is the result
+ * of a crash during writing it, so the recovery stops there.
+ *
+ * @author dipacs
+ */
+final class WriteAheadLog extends GroupCommit {
+
+	private static final byte[] MAGIC = new byte[]{(byte) 0xed, (byte) 0xb1};
+	private static final int HEADER_LENGTH = MAGIC.length + 8;
+	private static final int ENTRY_HEADER_LENGTH = 8;
+
+	/**
+	 * Handles the entries of the log at recovery.
+	 */
+	static interface EntryHandler {
+
+		void handle(ByteBuffer payload) throws IOException;
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	private long generation;
+	// the lsn is the count of bytes appended since the log is opened, the first entry of the file is at fileStartLsn
+	private long appendedLsn = 0;
+	private long fileStartLsn = 0;
+	private byte[] buffer = new byte[4096];
+	private int bufferSize = 0;
+
+	WriteAheadLog(File walFile, EntityDBConfig config) throws IOException {
+		super(config);
+		this.file = new RandomAccessFile(walFile, "rw");
+		this.channel = file.getChannel();
+		try {
+			if (channel.size() < HEADER_LENGTH) {
+				writeHeader(0);
+			} else {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+				readFully(header, 0);
+				if (header.get(0) != MAGIC[0] || header.get(1) != MAGIC[1]) {
+					throw new IOException("Invalid write-ahead log format.");
+				}
+				generation = header.getLong(MAGIC.length);
+			}
+		} catch (IOException | RuntimeException ex) {
+			file.close();
+			throw ex;
+		}
+
+		startFlusher("EntityDB WAL flusher");
+	}
+
+	private void writeHeader(long generation) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(MAGIC);
+		header.putLong(generation);
+		header.flip();
+		channel.truncate(0);
+		long position = 0;
+		while (header.hasRemaining()) {
+			position += channel.write(header, position);
+		}
+		channel.force(true);
+		this.generation = generation;
+	}
+
+	/**
+	 * Returns the generation of the log.
+	 *
+	 * @return
+	 * The generation of the log.
+	 */
+	long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Passes the complete entries of the log to the given handler in the order they were appended, and removes the
+	 * incomplete entry from the end of the log. New entries are appended after the recovered ones. This must be
+	 * called before appending the first entry.
+	 *
+	 * @param handler
+	 * The handler of the entries.
+	 */
+	void recover(EntryHandler handler) throws IOException {
+		long size = channel.size();
+		long position = HEADER_LENGTH;
+		ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+		while (position + ENTRY_HEADER_LENGTH <= size) {
+			header.clear();
+			readFully(header, position);
+			int length = header.getInt(0);
+			int crc = header.getInt(4);
+			if (length < 0 || position + ENTRY_HEADER_LENGTH + length > size) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			readFully(ByteBuffer.wrap(payload), position + ENTRY_HEADER_LENGTH);
+			if (crc(payload, 0, length) != crc) {
+				break;
+			}
+			handler.handle(ByteBuffer.wrap(payload));
+			position += ENTRY_HEADER_LENGTH + length;
+		}
+		if (position < size) {
+			channel.truncate(position);
+			channel.force(true);
+		}
+		synchronized (this) {
+			appendedLsn = position - HEADER_LENGTH;
+		}
+		setDurableLsn(position - HEADER_LENGTH);
+	}
+
+	/**
+	 * Appends a new entry to the log. The entry isn't durable until the <code>commit(long)</code> method returns.
+	 *
+	 * @param payload
+	 * The content of the entry.
+	 *
+	 * @return
+	 * The log sequence number of the entry.
+	 */
+	synchronized long append(byte[] payload) {
+		ensureCapacity(ENTRY_HEADER_LENGTH + payload.length);
+		ByteBuffer bb = ByteBuffer.wrap(buffer, bufferSize, ENTRY_HEADER_LENGTH);
+		bb.putInt(payload.length);
+		bb.putInt(crc(payload, 0, payload.length));
+		System.arraycopy(payload, 0, buffer, bufferSize + ENTRY_HEADER_LENGTH, payload.length);
+		bufferSize += ENTRY_HEADER_LENGTH + payload.length;
+		appendedLsn += ENTRY_HEADER_LENGTH + payload.length;
+		return appendedLsn;
+	}
+
+	@Override
+	synchronized long getAppendedLsn() {
+		return appendedLsn;
+	}
+
+	@Override
+	long flush() throws IOException {
+		byte[] bytes;
+		int length;
+		long position;
+		long lsnAfterWrite;
+		synchronized (this) {
+			bytes = buffer;
+			length = bufferSize;
+			position = HEADER_LENGTH + appendedLsn - bufferSize - fileStartLsn;
+			lsnAfterWrite = appendedLsn;
+			buffer = new byte[Math.max(4096, bufferSize)];
+			bufferSize = 0;
+		}
+		ByteBuffer src = ByteBuffer.wrap(bytes, 0, length);
+		while (src.hasRemaining()) {
+			position += channel.write(src, position);
+		}
+		channel.force(false);
+		return lsnAfterWrite;
+	}
+
+	/**
+	 * Returns the count of bytes which are in the log.
+	 *
+	 * @return
+	 * The size of the log.
+	 */
+	synchronized long size() {
+		return appendedLsn - fileStartLsn;
+	}
+
+	/**
+	 * Empties the log, and sets its generation. Must be called only when the state described by the entries is
+	 * persisted.
+	 *
+	 * @param generation
+	 * The new generation of the log.
+	 */
+	void reset(long generation) throws IOException {
+		sync();
+		synchronized (this) {
+			writeHeader(generation);
+			fileStartLsn = appendedLsn;
+		}
+	}
+
+	void close() throws IOException {
+		stopFlusher();
+		file.close();
+	}
+
+	private void ensureCapacity(int length) {
+		if (bufferSize + length > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(buffer.length * 2, bufferSize + length)];
+			System.arraycopy(buffer, 0, newBuffer, 0, bufferSize);
+			buffer = newBuffer;
+		}
+	}
+
+	private void readFully(ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int count = channel.read(dst, position);
+			if (count < 0) {
+				throw new IOException("Unexpected end of the write-ahead log.");
+			}
+			position += count;
+		}
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+}
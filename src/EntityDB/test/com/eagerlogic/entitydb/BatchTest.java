@@ -0,0 +1,162 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class BatchTest {
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("batch");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private static void check(DB db) {
+		for (long id = 1; id <= 5000; id++) {
+			Entity entity = db.get(id);
+			if (id == 1 || id % 10 == 0) {
+				assertNull(entity);
+			} else {
+				assertEquals(id % 2 == 0 ? 1l : 0l, entity.getLongAttribute("round"));
+				assertEquals("Name" + id, entity.getValue());
+			}
+		}
+		assertEquals(2000, db.count(new Filter("User", new LongFilterItem("round", LongFilterItem.EOperator.EQUALS,
+				1))));
+		assertEquals(2, db.count(new Filter("Other", new NullFilterItem("round", NullFilterItem.EOperator.NOT_EQUALS))));
+	}
+
+	private void testBatches(EntityDBConfig config) {
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		DB db = edb.getDB();
+		List<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 5000; i++) {
+			Entity entity = new Entity("User");
+			entity.putAttribute("round", 0l);
+			entity.setValue("Name" + i);
+			entities.add(entity);
+		}
+		db.putAll(entities);
+		for (int i = 0; i < entities.size(); i++) {
+			assertEquals(i + 1, entities.get(i).getId());
+		}
+
+		List<Entity> updates = new ArrayList<>();
+		for (long id = 2; id <= 5000; id += 2) {
+			Entity entity = db.get(id);
+			entity.putAttribute("round", 1l);
+			updates.add(entity);
+		}
+		// a new entity which is put twice is stored once
+		Entity other = new Entity("Other");
+		other.putAttribute("round", 5l);
+		updates.add(other);
+		updates.add(other);
+		updates.add(new Entity("Other"));
+		Entity last = new Entity("Other");
+		last.putAttribute("round", 6l);
+		updates.add(last);
+		db.putAll(updates);
+		assertEquals(5001, other.getId());
+		assertEquals(5003, last.getId());
+
+		// nothing is stored if an entity can't be found
+		Entity missing = db.get(1);
+		db.remove(1);
+		Entity fresh = new Entity("User");
+		try {
+			db.putAll(Arrays.asList(fresh, missing));
+			fail();
+		} catch (IllegalArgumentException ex) {
+			// the entity is removed
+		}
+		assertEquals(-1, fresh.getId());
+		assertEquals("Name2", db.get(2).getValue());
+
+		List<Long> ids = new ArrayList<>();
+		for (long id = 10; id <= 5000; id += 10) {
+			ids.add(id);
+		}
+		try {
+			db.removeAll(Arrays.asList(20l, 123456l));
+			fail();
+		} catch (IllegalArgumentException ex) {
+			// nothing is removed
+		}
+		assertNotNull(db.get(20));
+		db.removeAll(ids);
+		check(db);
+
+		// the entities are returned in the order of the ids, with null for the missing ones
+		List<Long> keys = new ArrayList<>();
+		for (long id = 0; id <= 5010; id++) {
+			keys.add(id);
+		}
+		Collections.shuffle(keys, new Random(3));
+		keys.add(keys.get(0));
+		List<Entity> read = db.getAll(keys);
+		assertEquals(keys.size(), read.size());
+		for (int i = 0; i < keys.size(); i++) {
+			Entity expected = db.get(keys.get(i));
+			if (expected == null) {
+				assertNull(read.get(i));
+			} else {
+				assertEquals(expected.getId(), read.get(i).getId());
+				assertEquals(expected.getValue(), read.get(i).getValue());
+				assertEquals(expected.getAttribute("round"), read.get(i).getAttribute("round"));
+			}
+		}
+		// the returned entities are copies
+		read.get(keys.indexOf(2l)).putAttribute("round", 99l);
+		assertEquals(1l, db.get(2).getLongAttribute("round"));
+		edb.close();
+
+		edb = EntityDB.connect(dbFile, config);
+		check(edb.getDB());
+		edb.close();
+
+		// without the snapshot the records are read by following the stored structure
+		TestFiles.deleteSnapshot(dbFile);
+		edb = EntityDB.connect(dbFile, config);
+		check(edb.getDB());
+		edb.close();
+	}
+
+	@Test
+	public void testFileStorage() {
+		testBatches(new EntityDBConfig());
+	}
+
+	@Test
+	public void testLogStorage() {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(EntityDBConfig.EStorageEngine.LOG);
+		config.setSegmentSize(64 * 1024);
+		testBatches(config);
+	}
+
+	@Test
+	public void testEntityCache() {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setEntityCacheSize(1000);
+		testBatches(config);
+	}
+}
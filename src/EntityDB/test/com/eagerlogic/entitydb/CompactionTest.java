@@ -0,0 +1,119 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class CompactionTest {
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("compaction");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private EntityDB connect(EntityDBConfig.EStorageEngine storageEngine) {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(storageEngine);
+		config.setSegmentSize(4096);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		return EntityDB.connect(dbFile, config);
+	}
+
+	private void fill(DB db) {
+		for (int i = 1; i <= 1000; i++) {
+			Entity entity = new Entity("User");
+			entity.putAttribute("age", (long) (i % 10));
+			entity.setValue("Name" + i);
+			db.put(entity);
+		}
+		// removes most of the entities from the beginning of the file
+		for (long id = 1; id <= 1000; id++) {
+			if (id % 10 != 0 || id < 500) {
+				db.remove(id);
+			}
+		}
+	}
+
+	private void check(DB db) {
+		for (long id = 1; id <= 1000; id++) {
+			Entity entity = db.get(id);
+			if (id % 10 != 0 || id < 500) {
+				assertNull(entity);
+			} else {
+				assertEquals("Name" + id, entity.getValue());
+			}
+		}
+		List<Long> keys = db.queryKeys(new Filter("User", new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 0)));
+		assertEquals(51, keys.size());
+	}
+
+	private void testCompaction(EntityDBConfig.EStorageEngine storageEngine) {
+		EntityDB edb = connect(storageEngine);
+		DB db = edb.getDB();
+		fill(db);
+
+		final long[] progress = new long[]{0, 0};
+		long reclaimed = edb.compact(new ICompactionListener() {
+
+			@Override
+			public void onProgress(long processedBytes, long totalBytes) {
+				assertTrue(processedBytes >= progress[0]);
+				progress[0] = processedBytes;
+				progress[1] = totalBytes;
+			}
+		});
+		assertTrue(reclaimed > 0);
+		assertEquals(progress[1], progress[0]);
+		check(db);
+		if (storageEngine == EntityDBConfig.EStorageEngine.FILE) {
+			// every hole is removed, only the remaining records are in the file
+			long length = FileStorage.HEADER_LENGTH;
+			for (long id = 500; id <= 1000; id += 10) {
+				length += EntityCodec.encode(db.get(id)).length + 8;
+			}
+			assertEquals(length, dbFile.length());
+		}
+
+		// the database can be written after the compaction
+		Entity entity = new Entity("User");
+		entity.putAttribute("age", 0l);
+		entity.setValue("Name");
+		db.put(entity);
+		db.remove(entity.getId());
+		edb.close();
+
+		edb = connect(storageEngine);
+		check(edb.getDB());
+		edb.close();
+
+		// without the snapshot the records are read from the compacted file
+		TestFiles.deleteSnapshot(dbFile);
+		edb = connect(storageEngine);
+		check(edb.getDB());
+		edb.close();
+	}
+
+	@Test
+	public void testFileCompaction() {
+		testCompaction(EntityDBConfig.EStorageEngine.FILE);
+	}
+
+	@Test
+	public void testLogCompaction() {
+		testCompaction(EntityDBConfig.EStorageEngine.LOG);
+	}
+}
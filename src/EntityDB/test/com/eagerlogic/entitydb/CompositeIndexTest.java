@@ -0,0 +1,148 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class CompositeIndexTest {
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("composite");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private static void putOrder(DB db, String country, String city, long amount, boolean paid) {
+		Entity entity = new Entity("Order");
+		entity.putAttribute("country", country);
+		entity.putAttribute("city", city);
+		entity.putAttribute("amount", amount);
+		entity.putAttribute("paid", paid);
+		db.put(entity);
+	}
+
+	private static int count(DB db, AFilterItem filter) {
+		return db.queryIds(new Filter("Order", filter)).size();
+	}
+
+	private static int count(DB db, AFilterItem filter1, AFilterItem filter2, AFilterItem... otherFilters) {
+		return count(db, new FilterGroupItem(FilterGroupItem.EOperator.AND, filter1, filter2, otherFilters));
+	}
+
+	private static void fill(DB db) {
+		for (int i = 0; i < 1000; i++) {
+			putOrder(db, i % 2 == 0 ? "HU" : "DE", "City" + (i % 10), i, i % 4 < 2);
+		}
+	}
+
+	private static void checkQueries(DB db) {
+		StringFilterItem hu = new StringFilterItem("country", StringFilterItem.EOperator.EQUALS, "hu");
+		StringFilterItem city4 = new StringFilterItem("city", StringFilterItem.EOperator.EQUALS, "CITY4");
+		assertEquals(500, count(db, hu));
+		assertEquals(100, count(db, hu, city4));
+		assertEquals(0, count(db, hu, new StringFilterItem("city", StringFilterItem.EOperator.EQUALS, "City3")));
+		// a trailing range
+		assertEquals(10, count(db, hu, city4, new LongFilterItem("amount", LongFilterItem.EOperator.GREATER, 894)));
+		assertEquals(11, count(db, hu, city4,
+				new LongFilterItem("amount", LongFilterItem.EOperator.GREATER_OR_EQUALS, 894)));
+		assertEquals(9, count(db, hu, city4, new LongFilterItem("amount", LongFilterItem.EOperator.SMALLER, 94)));
+		assertEquals(10, count(db, hu, city4,
+				new LongFilterItem("amount", LongFilterItem.EOperator.SMALLER_OR_EQUALS, 94)));
+		assertEquals(3, count(db, hu, city4, new LongFilterItem("amount", LongFilterItem.EOperator.BETWEEN, 14, 34)));
+		assertEquals(0, count(db, hu, city4, new LongFilterItem("amount", LongFilterItem.EOperator.BETWEEN, 34, 14)));
+		// a range on the second attribute
+		assertEquals(200, count(db, hu, new StringFilterItem("city", StringFilterItem.EOperator.SMALLER, "city4")));
+		assertEquals(300, count(db, hu, new StringFilterItem("city", StringFilterItem.EOperator.BETWEEN, "city2",
+				"city6")));
+		// the filters which aren't covered by the index are applied too
+		assertEquals(50, count(db, hu, city4, new BooleanFilterItem("paid", true)));
+		assertEquals(25, count(db, hu, city4, new BooleanFilterItem("paid", true),
+				new LongFilterItem("amount", LongFilterItem.EOperator.SMALLER, 500)));
+		assertEquals(50, count(db, new StringFilterItem("city", StringFilterItem.EOperator.EQUALS, "city4"),
+				new LongFilterItem("amount", LongFilterItem.EOperator.SMALLER, 500)));
+	}
+
+	@Test
+	public void testQueries() {
+		EntityDB edb = EntityDB.connect(dbFile);
+		DB db = edb.getDB();
+		fill(db);
+		checkQueries(db);
+
+		// the index is built from the stored entities, and gives the same results
+		edb.defineCompositeIndex("Order", "country", "city", "amount");
+		checkQueries(db);
+
+		// the changes are indexed
+		putOrder(db, "HU", "City4", 2000, false);
+		assertEquals(11, count(db, new StringFilterItem("country", StringFilterItem.EOperator.EQUALS, "hu"),
+				new StringFilterItem("city", StringFilterItem.EOperator.EQUALS, "city4"),
+				new LongFilterItem("amount", LongFilterItem.EOperator.GREATER, 894)));
+		Entity entity = db.querySingleton(new Filter("Order", new LongFilterItem("amount",
+				LongFilterItem.EOperator.EQUALS, 2000)));
+		db.remove(entity.getId());
+		checkQueries(db);
+		edb.close();
+	}
+
+	@Test
+	public void testPersistence() {
+		EntityDBConfig config = new EntityDBConfig();
+		config.addIndex("Order", "paid", EntityDB.EIndexType.HASH);
+		config.addCompositeIndex("Order", "country", "city", "amount");
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		DB db = edb.getDB();
+		fill(db);
+		checkQueries(db);
+		edb.close();
+
+		// the definitions and the index are stored in the database
+		edb = EntityDB.connect(dbFile);
+		checkQueries(edb.getDB());
+		edb.close();
+
+		// without a snapshot the index is built from the records
+		TestFiles.deleteSnapshot(dbFile);
+		edb = EntityDB.connect(dbFile);
+		checkQueries(edb.getDB());
+
+		edb.dropCompositeIndex("Order", "country", "city", "amount");
+		checkQueries(edb.getDB());
+		edb.close();
+		edb = EntityDB.connect(dbFile);
+		checkQueries(edb.getDB());
+		edb.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDropUndefined() {
+		EntityDB edb = EntityDB.connect(dbFile);
+		try {
+			edb.dropCompositeIndex("Order", "country", "city");
+		} finally {
+			edb.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSingleAttribute() {
+		EntityDB edb = EntityDB.connect(dbFile);
+		try {
+			edb.defineCompositeIndex("Order", "country");
+		} finally {
+			edb.close();
+		}
+	}
+}
@@ -0,0 +1,397 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class ConcurrencyTest {
+
+	private static final int WRITERS = 4;
+	private static final int ENTITIES = 600;
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("concurrency");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	@Test(timeout = 10000)
+	public void testKindLocks() throws Exception {
+		final KindLocks kindLocks = new KindLocks(64);
+		String kind = "Product";
+		String other = "Session";
+		for (int i = 0; kindLocks.getStripe(other) == kindLocks.getStripe(kind); i++) {
+			other = "Session" + i;
+		}
+
+		final String writtenKind = other;
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				Lock[] locks = kindLocks.lockWrite(Arrays.asList(writtenKind));
+				locked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					// the locks are released
+				}
+				KindLocks.unlock(locks);
+			}
+		};
+		writer.start();
+		locked.await();
+
+		// the readers of the other kinds aren't blocked by the writer
+		KindLocks.unlock(kindLocks.lockRead(kind));
+		KindLocks.unlock(kindLocks.lockWrite(Arrays.asList(kind)));
+
+		final CountDownLatch read = new CountDownLatch(1);
+		Thread reader = new Thread() {
+
+			@Override
+			public void run() {
+				KindLocks.unlock(kindLocks.lockRead(writtenKind));
+				read.countDown();
+			}
+		};
+		reader.start();
+		assertFalse(read.await(100, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(read.await(5, TimeUnit.SECONDS));
+		writer.join();
+		reader.join();
+	}
+
+	private static void check(DB db) {
+		for (int t = 0; t < WRITERS; t++) {
+			Filter filter = new Filter("Kind" + t, new NullFilterItem("round", NullFilterItem.EOperator.NOT_EQUALS));
+			assertEquals(ENTITIES * 4 / 5, db.count(filter));
+			assertEquals(ENTITIES * 2 / 5, db.count(new Filter("Kind" + t, new LongFilterItem("round",
+					LongFilterItem.EOperator.EQUALS, 1))));
+		}
+		// every batch of the mixed writers stores one entity of both kinds
+		assertEquals(400, db.count(new Filter("Left", new NullFilterItem("n", NullFilterItem.EOperator.NOT_EQUALS))));
+		assertEquals(400, db.count(new Filter("Right", new NullFilterItem("n", NullFilterItem.EOperator.NOT_EQUALS))));
+	}
+
+	private void testWriters(EntityDBConfig config) throws Exception {
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		final DB db = edb.getDB();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		List<Thread> threads = new ArrayList<>();
+		List<Thread> writers = new ArrayList<>();
+		for (int t = 0; t < WRITERS; t++) {
+			final String kind = "Kind" + t;
+			writers.add(new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						List<Long> ids = new ArrayList<>();
+						for (int i = 0; i < ENTITIES; i++) {
+							Entity entity = new Entity(kind);
+							entity.putAttribute("round", 0l);
+							db.put(entity);
+							ids.add(entity.getId());
+						}
+						List<Entity> updates = new ArrayList<>();
+						for (int i = 0; i < ENTITIES; i += 2) {
+							Entity entity = db.get(ids.get(i));
+							entity.putAttribute("round", 1l);
+							updates.add(entity);
+						}
+						db.putAll(updates);
+						for (int i = 0; i < ENTITIES; i += 5) {
+							db.remove(ids.get(i));
+						}
+					} catch (Throwable ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		// the batches lock both kinds in the opposite order
+		for (final String first : new String[]{"Left", "Right"}) {
+			writers.add(new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++) {
+							Entity left = new Entity(first);
+							left.putAttribute("n", (long) i);
+							Entity right = new Entity(first.equals("Left") ? "Right" : "Left");
+							right.putAttribute("n", (long) i);
+							db.putAll(Arrays.asList(left, right));
+						}
+					} catch (Throwable ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		for (int r = 0; r < 2; r++) {
+			threads.add(new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						while (!stopped.get()) {
+							for (int t = 0; t < WRITERS; t++) {
+								Filter filter = new Filter("Kind" + t, new LongFilterItem("round",
+										LongFilterItem.EOperator.EQUALS, 1));
+								for (Entity entity : db.query(filter)) {
+									assertEquals("Kind" + t, entity.getKind());
+									assertEquals(1l, entity.getLongAttribute("round"));
+								}
+							}
+						}
+					} catch (Throwable ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		threads.addAll(writers);
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		stopped.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		check(db);
+		edb.close();
+
+		edb = EntityDB.connect(dbFile, config);
+		check(edb.getDB());
+		edb.close();
+
+		// without the snapshot the records are read by following the stored structure
+		TestFiles.deleteSnapshot(dbFile);
+		edb = EntityDB.connect(dbFile, config);
+		check(edb.getDB());
+		edb.close();
+	}
+
+	private void testCloseWithWriters(EntityDBConfig config) throws Exception {
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		final DB db = edb.getDB();
+		final ConcurrentLinkedQueue<Long> stored = new ConcurrentLinkedQueue<>();
+		final ConcurrentLinkedQueue<Long> removed = new ConcurrentLinkedQueue<>();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < WRITERS; t++) {
+			final String kind = "Kind" + t;
+			threads.add(new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (long i = 0; ; i++) {
+							Entity entity = new Entity(kind);
+							entity.putAttribute("round", i % 2);
+							db.put(entity);
+							stored.add(entity.getId());
+							if (i % 3 == 2) {
+								db.remove(entity.getId());
+								removed.add(entity.getId());
+							}
+						}
+					} catch (IllegalStateException ex) {
+						// the database is closed
+					} catch (Throwable ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		threads.add(new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					for (long i = 0; ; i++) {
+						Entity left = new Entity("Left");
+						left.putAttribute("n", i);
+						Entity right = new Entity("Right");
+						right.putAttribute("n", i);
+						db.putAll(Arrays.asList(left, right));
+						stored.add(left.getId());
+						stored.add(right.getId());
+					}
+				} catch (IllegalStateException ex) {
+					// the database is closed
+				} catch (Throwable ex) {
+					error.compareAndSet(null, ex);
+				}
+			}
+		});
+		threads.add(new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						for (int t = 0; t < WRITERS; t++) {
+							db.count(new Filter("Kind" + t, new LongFilterItem("round", LongFilterItem.EOperator.EQUALS,
+									1)));
+						}
+					}
+				} catch (IllegalStateException ex) {
+					// the database is closed
+				} catch (Throwable ex) {
+					error.compareAndSet(null, ex);
+				}
+			}
+		});
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		while (stored.size() < 2000 && error.get() == null) {
+			Thread.sleep(1);
+		}
+		// the operations are waiting for the locks of the kinds and the database while it's closed
+		edb.close(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+
+		// every change which is returned before the close is stored
+		edb = EntityDB.connect(dbFile, config);
+		DB reopened = edb.getDB();
+		for (long id : stored) {
+			if (removed.contains(id)) {
+				assertNull(reopened.get(id));
+			} else {
+				assertNotNull(reopened.get(id));
+			}
+		}
+		edb.close();
+	}
+
+	@Test(timeout = 60000)
+	public void testQueryFirstWithWriters() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		final DB db = edb.getDB();
+		for (int i = 0; i < 10; i++) {
+			Entity entity = new Entity("Task");
+			entity.putAttribute("open", 1l);
+			db.put(entity);
+		}
+
+		final Filter filter = new Filter("Task", new LongFilterItem("open", LongFilterItem.EOperator.EQUALS, 1));
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		Thread writer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					// the first open task is closed, but an other one is always opened before
+					while (!stopped.get()) {
+						Entity entity = new Entity("Task");
+						entity.putAttribute("open", 1l);
+						db.put(entity);
+						Entity first = db.get(db.queryFirstKey(filter));
+						first.putAttribute("open", 0l);
+						db.put(first);
+					}
+				} catch (Throwable ex) {
+					error.compareAndSet(null, ex);
+				}
+			}
+		};
+		writer.start();
+		try {
+			for (int i = 0; i < 20000 && error.get() == null; i++) {
+				// the matching entity is read before it can be changed by the writer
+				Entity entity = db.queryFirst(filter);
+				assertNotNull(entity);
+				assertEquals(1l, entity.getLongAttribute("open"));
+			}
+		} finally {
+			stopped.set(true);
+			writer.join();
+			edb.close();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testCloseFileStorage() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		config.setSnapshotSize(16 * 1024);
+		testCloseWithWriters(config);
+	}
+
+	@Test(timeout = 60000)
+	public void testCloseLogStorage() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(EntityDBConfig.EStorageEngine.LOG);
+		config.setSegmentSize(64 * 1024);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		config.setSnapshotSize(16 * 1024);
+		config.setEntityCacheSize(1000);
+		testCloseWithWriters(config);
+	}
+
+	@Test(timeout = 60000)
+	public void testFileStorage() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		// the snapshots are written while the other kinds are changed
+		config.setSnapshotSize(16 * 1024);
+		testWriters(config);
+	}
+
+	@Test(timeout = 60000)
+	public void testLogStorage() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(EntityDBConfig.EStorageEngine.LOG);
+		config.setSegmentSize(64 * 1024);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		config.setSnapshotSize(16 * 1024);
+		config.setEntityCacheSize(1000);
+		testWriters(config);
+	}
+}
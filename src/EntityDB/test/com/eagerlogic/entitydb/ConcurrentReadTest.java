@@ -0,0 +1,134 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class ConcurrentReadTest {
+
+	private static final int ENTITIES = 500;
+	private static final int ROUNDS = 10;
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("reads");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private static String value(long id, long round) {
+		StringBuilder sb = new StringBuilder();
+		// the records are in different size classes of the buffer pool
+		while (sb.length() < id * 7 % 3000) {
+			sb.append(id).append('/').append(round).append(',');
+		}
+		return sb.toString();
+	}
+
+	private static void check(Entity entity, long id) {
+		assertEquals(id, entity.getId());
+		assertEquals(value(id, entity.getLongAttribute("round")), entity.getValue());
+	}
+
+	private void testReads(EntityDBConfig config) throws Exception {
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		final DB db = edb.getDB();
+		for (long id = 1; id <= ENTITIES; id++) {
+			Entity entity = new Entity("User");
+			entity.putAttribute("round", 0l);
+			entity.setValue(value(id, 0));
+			db.put(entity);
+		}
+
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		final AtomicLong reads = new AtomicLong();
+		List<Thread> readers = new ArrayList<>();
+		for (int r = 0; r < 4; r++) {
+			final Random random = new Random(r);
+			readers.add(new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						while (!stopped.get()) {
+							long id = random.nextInt(ENTITIES) + 1;
+							check(db.get(id), id);
+							List<Long> ids = new ArrayList<>();
+							for (int i = 0; i < 20; i++) {
+								ids.add((long) random.nextInt(ENTITIES) + 1);
+							}
+							List<Entity> entities = db.getAll(ids);
+							for (int i = 0; i < ids.size(); i++) {
+								check(entities.get(i), ids.get(i));
+							}
+							reads.addAndGet(ids.size() + 1);
+						}
+					} catch (Throwable ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		for (Thread reader : readers) {
+			reader.start();
+		}
+		// the records are moved while they are read, the changed pages are written to the file by the checkpoints
+		for (long round = 1; round <= ROUNDS && error.get() == null; round++) {
+			for (long id = 1; id <= ENTITIES; id++) {
+				Entity entity = db.get(id);
+				entity.putAttribute("round", round);
+				entity.setValue(value(id, round));
+				db.put(entity);
+			}
+		}
+		stopped.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertTrue(reads.get() > 0);
+		for (long id = 1; id <= ENTITIES; id++) {
+			Entity entity = db.get(id);
+			check(entity, id);
+			assertEquals(ROUNDS, entity.getLongAttribute("round"));
+		}
+		edb.close();
+	}
+
+	@Test(timeout = 60000)
+	public void testPositionalReads() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		config.setCheckpointSize(64 * 1024);
+		testReads(config);
+	}
+
+	@Test(timeout = 60000)
+	public void testLogStorageReads() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(EntityDBConfig.EStorageEngine.LOG);
+		config.setSegmentSize(64 * 1024);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		testReads(config);
+	}
+}
@@ -0,0 +1,54 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of the allocation with different numbers of pieces, which shouldn't grow with the number of
+ * pieces. It isn't a part of the unit tests, because it measures time, so it's run by hand.
+ *
+ * @author dipacs
+ */
+public class DbStructureBenchmark {
+
+	private static final int OPERATIONS = 20000;
+
+	public static void main(String[] args) {
+		// warm up
+		measure(10000);
+
+		long small = measure(10000);
+		long large = measure(1000000);
+		System.out.println("10000 pieces: " + small + " ns, 1000000 pieces: " + large + " ns");
+	}
+
+	/**
+	 * Builds a structure with the given number of pieces, with a hole after every fourth piece, and returns the
+	 * average cost of an allocation and release in nanoseconds.
+	 */
+	private static long measure(int pieceCount) {
+		DbFileStructure structure = new DbFileStructure(10);
+		long offset = 10;
+		for (int i = 0; i < pieceCount; i++) {
+			structure.addPiece(offset, 100);
+			offset += 100;
+			if (i % 4 == 0) {
+				offset += 50 + i % 100;
+			}
+		}
+
+		Random random = new Random(42);
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < OPERATIONS; i++) {
+				long size = 50 + random.nextInt(120);
+				long[] offsets = structure.getEmptySpace(size);
+				structure.addPiece(offsets[1], size);
+				structure.getPieceSurround(offsets[1]);
+				structure.removePiece(offsets[1]);
+			}
+			best = Math.min(best, (System.nanoTime() - start) / OPERATIONS);
+		}
+		return best;
+	}
+}
@@ -0,0 +1,92 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the allocation of the space of the records on structures with many pieces.
+ *
+ * @author dipacs
+ */
+public class DbStructureScalingTest {
+
+	/**
+	 * The allocation uses the indexed free extents. The returned hole is compared to the best fitting hole, which is
+	 * found by walking every piece, on a structure with many pieces and holes. The cost of the allocation is measured
+	 * by the <code>DbStructureBenchmark</code>, which isn't a part of the unit tests.
+	 */
+	@Test
+	public void testAllocationFindsTheBestHole() {
+		DbFileStructure structure = new DbFileStructure(10);
+		long offset = 10;
+		for (int i = 0; i < 20000; i++) {
+			structure.addPiece(offset, 100);
+			offset += 100;
+			if (i % 4 == 0) {
+				offset += 50 + i % 100;
+			}
+		}
+
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			long size = 50 + random.nextInt(120);
+			long[] offsets = structure.getEmptySpace(size);
+			assertEquals(findBestHole(structure, size), offsets[1]);
+			structure.addPiece(offsets[1], size);
+			if (random.nextBoolean()) {
+				structure.removePiece(offsets[1]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset of the smallest hole which can hold the given size, the first one of the equal holes, or
+	 * the end of the last piece.
+	 */
+	private static long findBestHole(DbFileStructure structure, long size) {
+		long end = 10;
+		long best = -1;
+		long bestSize = Long.MAX_VALUE;
+		for (DbFileStructure.Piece piece : structure) {
+			long hole = piece.getOffset() - end;
+			if (hole >= size && hole < bestSize) {
+				best = end;
+				bestSize = hole;
+			}
+			end = piece.getOffset() + piece.getLength();
+		}
+		return best > -1 ? best : end;
+	}
+
+	@Test
+	public void testStructureAfterRandomOperations() {
+		DbFileStructure structure = new DbFileStructure(10);
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			if (structure.size() > 0 && random.nextInt(3) == 0) {
+				long[] surround = structure.getPieceSurround(randomPiece(structure, random));
+				structure.removePiece(surround[1]);
+			} else {
+				long size = 1 + random.nextInt(100);
+				long[] offsets = structure.getEmptySpace(size);
+				structure.addPiece(offsets[1], size);
+				long[] surround = structure.getPieceSurround(offsets[1]);
+				assertEquals("Previous offset wrong!", offsets[0], surround[0]);
+				assertEquals("Next offset wrong!", offsets[2], surround[2]);
+			}
+		}
+
+		// the pieces are ordered and they don't overlap
+		long end = 10;
+		for (DbFileStructure.Piece piece : structure) {
+			assertTrue("Pieces overlap!", piece.getOffset() >= end);
+			end = piece.getOffset() + piece.getLength();
+		}
+	}
+
+	private long randomPiece(DbFileStructure structure, Random random) {
+		long[] offsets = structure.getEmptySpace(1 + random.nextInt(200));
+		return offsets[0] > -1 ? offsets[0] : offsets[2];
+	}
+}
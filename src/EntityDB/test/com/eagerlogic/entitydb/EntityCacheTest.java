@@ -0,0 +1,107 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class EntityCacheTest {
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("cache");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private static Entity createEntity(long id) {
+		Entity res = new Entity("User");
+		res.setId(id);
+		res.setValue("Name" + id);
+		return res;
+	}
+
+	@Test
+	public void testEviction() {
+		EntityCache cache = new EntityCache(100, 0);
+		for (long id = 1; id <= 100; id++) {
+			cache.put(createEntity(id), 10);
+		}
+		// the first 10 entities are read again, so they are protected
+		for (long id = 1; id <= 10; id++) {
+			assertNotNull(cache.get(id));
+		}
+		// a scan of new entities evicts only the entities which are read once
+		for (long id = 101; id <= 300; id++) {
+			cache.put(createEntity(id), 10);
+		}
+		for (long id = 1; id <= 10; id++) {
+			assertEquals("Name" + id, cache.get(id).getValue());
+		}
+		assertNull(cache.get(50));
+		assertEquals(20, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		cache.invalidate(1);
+		assertNull(cache.get(1));
+	}
+
+	@Test
+	public void testByteLimit() {
+		EntityCache cache = new EntityCache(0, 100);
+		for (long id = 1; id <= 20; id++) {
+			cache.put(createEntity(id), 10);
+		}
+		int cached = 0;
+		for (long id = 1; id <= 20; id++) {
+			if (cache.get(id) != null) {
+				cached++;
+			}
+		}
+		assertEquals(10, cached);
+
+		// an entity which is bigger than the whole cache isn't cached
+		cache.put(createEntity(21), 101);
+		assertNull(cache.get(21));
+	}
+
+	@Test
+	public void testEntityDB() {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setEntityCacheSize(10);
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		DB db = edb.getDB();
+		Entity entity = new Entity("User");
+		entity.putAttribute("age", 10l);
+		entity.setValue("Name");
+		db.put(entity);
+		long id = entity.getId();
+
+		// the returned entities are copies, so the cached one can't be changed
+		Entity first = db.get(id);
+		first.putAttribute("age", 20l);
+		first.setValue("Changed");
+		Entity second = db.get(id);
+		assertEquals(10l, second.getLongAttribute("age"));
+		assertEquals("Name", second.getValue());
+		assertEquals(1, edb.getEntityCacheMisses());
+		assertEquals(1, edb.getEntityCacheHits());
+
+		// the cached entity is invalidated by the writes
+		db.put(first);
+		assertEquals("Changed", db.get(id).getValue());
+		db.remove(id);
+		assertNull(db.get(id));
+		edb.close();
+	}
+}
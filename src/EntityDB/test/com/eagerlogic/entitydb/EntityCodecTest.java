@@ -0,0 +1,60 @@
+package com.eagerlogic.entitydb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class EntityCodecTest {
+
+	@Test
+	public void testRoundTrip() {
+		Entity entity = new Entity("User");
+		entity.setId(42);
+		entity.putAttribute("username", "Jóhn");
+		entity.putAttribute("points", -10l);
+		entity.putAttribute("registerTime", Long.MAX_VALUE);
+		entity.putAttribute("active", true);
+		entity.putAttribute("deleted", false);
+		entity.putAttribute("nickname", (String) null);
+		entity.setValue("Some value");
+
+		byte[] bytes = EntityCodec.encode(entity);
+		assertEquals("Record length wrong!", bytes.length, EntityCodec.getRecordLength(ByteBuffer.wrap(bytes)));
+
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		Entity res = EntityCodec.decode(in);
+		assertEquals("Position wrong!", bytes.length, in.position());
+		assertEquals(42, res.getId());
+		assertEquals("User", res.getKind());
+		assertEquals("Jóhn", res.getStringAttribute("username"));
+		assertEquals(-10l, res.getLongAttribute("points"));
+		assertEquals(Long.MAX_VALUE, res.getLongAttribute("registerTime"));
+		assertTrue(res.getBooleanAttribute("active"));
+		assertFalse(res.getBooleanAttribute("deleted"));
+		assertTrue(res.isAttributeNull("nickname"));
+		assertTrue(res.getAttributeNames().contains("nickname"));
+		assertEquals("Some value", res.getValue());
+	}
+
+	@Test
+	public void testValues() {
+		Object[] values = new Object[]{null, 12l, true, "text", new byte[]{1, 2, 3}, new ArrayList<>(Arrays.asList(1, 2))};
+		for (Object value : values) {
+			Entity entity = new Entity("Kind");
+			entity.setValue(value);
+			Entity res = EntityCodec.decode(ByteBuffer.wrap(EntityCodec.encode(entity)));
+			if (value instanceof byte[]) {
+				assertArrayEquals((byte[]) value, (byte[]) res.getValue());
+			} else {
+				assertEquals(value, res.getValue());
+			}
+			assertEquals(-1, res.getId());
+		}
+	}
+}
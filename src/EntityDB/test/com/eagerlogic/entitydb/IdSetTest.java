@@ -0,0 +1,97 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class IdSetTest {
+
+	private static void assertSame(TreeSet<Long> expected, IdSet actual) {
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.isEmpty(), actual.isEmpty());
+		long[] ids = actual.toArray();
+		int i = 0;
+		for (Long id : expected) {
+			assertEquals((long) id, ids[i++]);
+		}
+		Iterator<Long> it = actual.iterator();
+		for (Long id : expected) {
+			assertEquals(id, it.next());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * Creates a set with sparse and dense parts, so both kind of containers are used.
+	 */
+	private static IdSet createRandom(Random random, TreeSet<Long> expected) {
+		IdSet res = new IdSet();
+		for (int i = 0; i < 20000; i++) {
+			long id = random.nextBoolean() ? random.nextInt(3 * 65536) : 65536 + random.nextInt(8000);
+			res.add(id);
+			expected.add(id);
+		}
+		for (int i = 0; i < 5000; i++) {
+			long id = random.nextInt(3 * 65536);
+			res.remove(id);
+			expected.remove(id);
+		}
+		return res;
+	}
+
+	@Test
+	public void testAddRemove() {
+		TreeSet<Long> expected = new TreeSet<>();
+		IdSet set = createRandom(new Random(1), expected);
+		assertSame(expected, set);
+		for (long id = 0; id < 3 * 65536; id++) {
+			assertEquals(expected.contains(id), set.contains(id));
+		}
+		Long ceiling = expected.ceiling(70000l);
+		assertEquals((long) ceiling, set.next(70000));
+		assertEquals(-1, set.next(expected.last() + 1));
+		for (long id = 0; id < 3 * 65536; id += 97) {
+			Long floor = expected.floor(id);
+			assertEquals(floor == null ? -1 : (long) floor, set.previous(id));
+		}
+		assertEquals((long) expected.last(), set.previous(Long.MAX_VALUE));
+
+		for (Long id : expected) {
+			set.remove(id);
+		}
+		assertTrue(set.isEmpty());
+	}
+
+	@Test
+	public void testSetOperations() {
+		Random random = new Random(2);
+		for (int round = 0; round < 5; round++) {
+			TreeSet<Long> a = new TreeSet<>();
+			TreeSet<Long> b = new TreeSet<>();
+			IdSet x = createRandom(random, a);
+			IdSet y = createRandom(random, b);
+
+			TreeSet<Long> and = new TreeSet<>(a);
+			and.retainAll(b);
+			assertSame(and, IdSet.and(x, y));
+
+			TreeSet<Long> or = new TreeSet<>(a);
+			or.addAll(b);
+			assertSame(or, IdSet.or(x, y));
+
+			TreeSet<Long> andNot = new TreeSet<>(a);
+			andNot.removeAll(b);
+			assertSame(andNot, IdSet.andNot(x, y));
+
+			// the operands aren't changed
+			assertSame(a, x);
+			assertSame(b, y);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class IndexDefinitionsTest {
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("definitions");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private static void putUser(DB db, String name, long age, String bio) {
+		Entity entity = new Entity("User");
+		entity.putAttribute("name", name);
+		entity.putAttribute("age", age);
+		entity.putAttribute("bio", bio);
+		db.put(entity);
+	}
+
+	private static int count(DB db, AFilterItem filter) {
+		return db.queryIds(new Filter("User", filter)).size();
+	}
+
+	@Test
+	public void testDefineAndDrop() {
+		EntityDB edb = EntityDB.connect(dbFile);
+		DB db = edb.getDB();
+		for (int i = 0; i < 3000; i++) {
+			putUser(db, "Name" + i, i % 100, "Some long text " + i);
+		}
+		assertEquals(EntityDB.EIndexType.ORDERED, edb.getIndexType("User", "bio"));
+
+		// the first definition of the kind drops the other attributes, but they can be queried by scanning
+		edb.defineIndex("User", "age", EntityDB.EIndexType.HASH);
+		assertEquals(EntityDB.EIndexType.HASH, edb.getIndexType("User", "age"));
+		assertNull(edb.getIndexType("User", "bio"));
+		assertEquals(30, count(db, new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 42)));
+		assertEquals(60, count(db, new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 97)));
+		assertEquals(1, count(db, new StringFilterItem("bio", StringFilterItem.EOperator.CONTAINS, "text 2999")));
+		assertEquals(1, count(db, new FilterGroupItem(FilterGroupItem.EOperator.AND,
+				new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 99),
+				new StringFilterItem("name", StringFilterItem.EOperator.EQUALS, "name2999"))));
+
+		// a new index is built from the stored entities
+		edb.defineIndex("User", "name", EntityDB.EIndexType.NGRAM);
+		assertEquals(11, count(db, new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, "e299")));
+		putUser(db, "Name2999b", 1, "");
+		assertEquals(12, count(db, new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, "e299")));
+
+		edb.dropIndex("User", "age");
+		assertNull(edb.getIndexType("User", "age"));
+		assertEquals(31, count(db, new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 1)));
+		edb.close();
+
+		// the definitions are stored in the database
+		edb = EntityDB.connect(dbFile);
+		db = edb.getDB();
+		assertEquals(EntityDB.EIndexType.NGRAM, edb.getIndexType("User", "name"));
+		assertNull(edb.getIndexType("User", "age"));
+		assertEquals(12, count(db, new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, "e299")));
+		assertEquals(31, count(db, new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 1)));
+		edb.close();
+
+		// without a snapshot every record is read, and only the defined attributes are indexed
+		TestFiles.deleteSnapshot(dbFile);
+		edb = EntityDB.connect(dbFile);
+		db = edb.getDB();
+		assertEquals(12, count(db, new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, "e299")));
+		assertEquals(31, count(db, new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 1)));
+		edb.close();
+	}
+
+	@Test
+	public void testConfig() {
+		EntityDBConfig config = new EntityDBConfig();
+		config.addIndex("User", "name", EntityDB.EIndexType.ORDERED);
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		DB db = edb.getDB();
+		putUser(db, "John", 30, "Text");
+		assertEquals(EntityDB.EIndexType.ORDERED, edb.getIndexType("User", "name"));
+		assertNull(edb.getIndexType("User", "age"));
+		// the other kinds are indexed as before
+		assertEquals(EntityDB.EIndexType.ORDERED, edb.getIndexType("Product", "name"));
+		assertEquals(1, count(db, new StringFilterItem("name", StringFilterItem.EOperator.EQUALS, "JOHN")));
+		assertEquals(1, count(db, new LongFilterItem("age", LongFilterItem.EOperator.BETWEEN, 20, 40)));
+		edb.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDropUndefined() {
+		EntityDB edb = EntityDB.connect(dbFile);
+		try {
+			edb.dropIndex("User", "name");
+		} finally {
+			edb.close();
+		}
+	}
+}
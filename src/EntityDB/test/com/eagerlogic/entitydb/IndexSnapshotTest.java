@@ -0,0 +1,165 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class IndexSnapshotTest {
+
+	private File dbFile;
+	private File snapshotFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("snapshot");
+		snapshotFile = new File(dbFile.getPath() + ".idx");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private void fill() {
+		EntityDB edb = EntityDB.connect(dbFile);
+		DB db = edb.getDB();
+		for (int i = 0; i < 100; i++) {
+			Entity entity = new Entity(i % 2 == 0 ? "User" : "Order");
+			entity.putAttribute("points", (long) (i % 10));
+			entity.putAttribute("name", "Jóhn" + i);
+			entity.putAttribute("active", i % 3 == 0);
+			db.put(entity);
+		}
+		db.remove(2);
+		Entity entity = db.get(3);
+		entity.putAttribute("name", "Jane");
+		db.put(entity);
+		edb.close();
+	}
+
+	private void check() {
+		EntityDB edb = EntityDB.connect(dbFile);
+		try {
+			DB db = edb.getDB();
+			assertNull(db.get(2));
+			assertEquals("Jóhn0", db.get(1).getStringAttribute("name"));
+			List<Long> keys = db.queryKeys(new Filter("User", new LongFilterItem("points", LongFilterItem.EOperator.EQUALS, 0)));
+			assertEquals(10, keys.size());
+			keys = db.queryKeys(new Filter("User", new StringFilterItem("name", StringFilterItem.EOperator.EQUALS, "jane")));
+			assertEquals(1, keys.size());
+			assertEquals(3l, (long) keys.get(0));
+			// the original case of the strings is kept in the snapshot
+			List<Projection> projections = db.queryProjection(new Filter("User", new LongFilterItem("points",
+					LongFilterItem.EOperator.SMALLER, 3)), "name", "points");
+			assertEquals(20, projections.size());
+			assertEquals("Jóhn0", projections.get(0).getAttribute("name"));
+			assertEquals("Jane", projections.get(1).getAttribute("name"));
+			assertEquals(2l, (long) projections.get(1).<Long>getAttribute("points"));
+			keys = db.queryKeys(new Filter("User", new BooleanFilterItem("active", true)));
+			assertEquals(17, keys.size());
+
+			Entity entity = new Entity("User");
+			db.put(entity);
+			assertTrue(entity.getId() > 100);
+			db.remove(entity.getId());
+		} finally {
+			edb.close();
+		}
+	}
+
+	/**
+	 * Loads the snapshot in to empty structures.
+	 *
+	 * @return
+	 * The generation of the snapshot, or -1 if it isn't loaded.
+	 */
+	private long load() throws Exception {
+		IndexDefinitions definitions = IndexDefinitions.read(new File(dbFile.getPath() + ".def"));
+		FileStorage storage = new FileStorage(dbFile, new EntityDBConfig());
+		try {
+			return IndexSnapshot.read(snapshotFile, new AtomicLong(), new LongLongMap(false), storage, new KindIndex(),
+					new Index<>(definitions, Long.class), new Index<>(definitions, Boolean.class),
+					new Index<>(definitions, String.class), new CompositeIndex(definitions));
+		} finally {
+			storage.close();
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		fill();
+		assertTrue(snapshotFile.isFile());
+		assertTrue(load() > -1);
+		check();
+	}
+
+	@Test
+	public void testCorruptSnapshot() throws Exception {
+		fill();
+		RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw");
+		try {
+			raf.seek(40);
+			int b = raf.read();
+			raf.seek(40);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+		assertEquals(-1, load());
+		check();
+
+		raf = new RandomAccessFile(snapshotFile, "rw");
+		try {
+			raf.setLength(raf.length() - 1);
+		} finally {
+			raf.close();
+		}
+		assertEquals(-1, load());
+		check();
+	}
+
+	@Test
+	public void testOtherDataFile() throws Exception {
+		fill();
+		File copy = new File(dbFile.getPath() + ".copy");
+		Files.copy(dbFile.toPath(), copy.toPath());
+		try {
+			EntityDB edb = EntityDB.connect(dbFile);
+			DB db = edb.getDB();
+			for (long id = 1; id <= 100; id += 2) {
+				Entity entity = db.get(id);
+				entity.setValue("Changed" + id);
+				db.put(entity);
+			}
+			db.remove(1);
+			edb.close();
+			assertTrue(load() > -1);
+
+			// the snapshot and the log belong to the newer file, so the older copy is scanned
+			Files.copy(copy.toPath(), dbFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			assertEquals(-1, load());
+			check();
+			edb = EntityDB.connect(dbFile);
+			try {
+				// the changes of the newer file aren't seen
+				assertNull(edb.getDB().get(3).getValue());
+				assertNotNull(edb.getDB().get(1));
+			} finally {
+				edb.close();
+			}
+		} finally {
+			copy.delete();
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.eagerlogic.entitydb;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class IndexTest {
+
+	@Test
+	public void testPutRemove() {
+		Index<Long> index = new Index<>(new IndexDefinitions(), Long.class);
+		index.put("User", "age", 1, 10l);
+		index.put("User", "age", 2, 10l);
+		index.put("User", "age", 1, 20l);
+		assertEquals(20l, (long) index.get("User", "age", 1));
+		assertEquals(1, index.getKeys("User", "age", 10l).size());
+		assertTrue(index.getKeys("User", "age", 20l).contains(1));
+
+		index.remove("User", "age", 2);
+		assertNull(index.get("User", "age", 2));
+		// the empty posting lists are removed
+		assertNull(index.getKeys("User", "age", 10l));
+		assertEquals(1, index.query("User", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 0)).size());
+	}
+
+	@Test
+	public void testOriginals() {
+		Index<String> index = new Index<>(new IndexDefinitions(), String.class);
+		index.put("User", "name", 1, "John");
+		index.put("User", "name", 2, "jane");
+		assertEquals("john", index.get("User", "name", 1));
+		assertEquals("John", index.getOriginal("User", "name", 1));
+		assertEquals("jane", index.getOriginal("User", "name", 2));
+		assertTrue(index.getKeys("User", "name", "john").contains(1));
+
+		index.put("User", "name", 1, "JOHN");
+		assertEquals("JOHN", index.getOriginal("User", "name", 1));
+		index.put("User", "name", 1, "john");
+		assertEquals("john", index.getOriginal("User", "name", 1));
+		index.put("User", "name", 2, "Jane");
+		index.remove("User", "name", 2);
+		assertNull(index.getOriginal("User", "name", 2));
+	}
+
+	@Test
+	public void testNamesWithSeparator() {
+		// the kind and the attribute name aren't concatenated, so these are different attributes
+		Index<String> index = new Index<>(new IndexDefinitions(), String.class);
+		index.put("a-b", "c", 1, "x");
+		index.put("a", "b-c", 1, "y");
+		assertEquals("x", index.get("a-b", "c", 1));
+		assertEquals("y", index.get("a", "b-c", 1));
+		index.remove("a", "b-c", 1);
+		assertEquals("x", index.get("a-b", "c", 1));
+		assertNull(index.get("a", "b-c", 1));
+	}
+
+	@Test
+	public void testLongOperators() {
+		Index<Long> index = new Index<>(new IndexDefinitions(), Long.class);
+		for (long id = 1; id <= 10; id++) {
+			index.put("User", "age", id, id * 10);
+		}
+		assertArrayEquals(new long[]{3}, queryLong(index, LongFilterItem.EOperator.EQUALS, 30));
+		assertEquals(9, queryLong(index, LongFilterItem.EOperator.NOT_EQUALS, 30).length);
+		assertArrayEquals(new long[]{9, 10}, queryLong(index, LongFilterItem.EOperator.GREATER, 80));
+		assertArrayEquals(new long[]{8, 9, 10}, queryLong(index, LongFilterItem.EOperator.GREATER_OR_EQUALS, 80));
+		assertArrayEquals(new long[]{1}, queryLong(index, LongFilterItem.EOperator.SMALLER, 20));
+		assertArrayEquals(new long[]{1, 2}, queryLong(index, LongFilterItem.EOperator.SMALLER_OR_EQUALS, 20));
+		assertArrayEquals(new long[]{2, 3, 4}, queryLong(index, LongFilterItem.EOperator.BETWEEN, 15, 40));
+		assertEquals(0, queryLong(index, LongFilterItem.EOperator.BETWEEN, 40, 15).length);
+		assertArrayEquals(new long[]{1, 5}, queryLong(index, LongFilterItem.EOperator.IN, 50, 10, 11));
+	}
+
+	private static long[] queryLong(Index<Long> index, LongFilterItem.EOperator operator, long... referenceValues) {
+		return index.query("User", new LongFilterItem("age", operator, referenceValues)).toArray();
+	}
+
+	@Test
+	public void testStringOperators() {
+		Index<String> index = new Index<>(new IndexDefinitions(), String.class);
+		index.put("User", "name", 1, "alice");
+		index.put("User", "name", 2, "bob");
+		index.put("User", "name", 3, "bobby");
+		index.put("User", "name", 4, "carol");
+		assertArrayEquals(new long[]{2}, queryString(index, StringFilterItem.EOperator.EQUALS, "Bob"));
+		assertArrayEquals(new long[]{1, 3, 4}, queryString(index, StringFilterItem.EOperator.NOT_EQUALS, "bob"));
+		assertArrayEquals(new long[]{2, 3}, queryString(index, StringFilterItem.EOperator.STARTS_WITH, "bo"));
+		assertArrayEquals(new long[]{3, 4}, queryString(index, StringFilterItem.EOperator.GREATER, "bob"));
+		assertArrayEquals(new long[]{1, 2}, queryString(index, StringFilterItem.EOperator.SMALLER_OR_EQUALS, "bob"));
+		assertArrayEquals(new long[]{2, 3, 4}, queryString(index, StringFilterItem.EOperator.BETWEEN, "b", "carol"));
+		assertArrayEquals(new long[]{1, 4}, queryString(index, StringFilterItem.EOperator.IN, "carol", "ALICE"));
+		assertArrayEquals(new long[]{1, 4}, queryString(index, StringFilterItem.EOperator.CONTAINS, "l"));
+	}
+
+	private static long[] queryString(Index<String> index, StringFilterItem.EOperator operator,
+			String... referenceValues) {
+		return index.query("User", new StringFilterItem("name", operator, referenceValues)).toArray();
+	}
+
+	@Test
+	public void testGrams() {
+		IndexDefinitions definitions = new IndexDefinitions();
+		Index<String> index = new Index<>(definitions, String.class);
+		index.put("Product", "name", 1, "red apple");
+		index.put("Product", "name", 2, "green apple");
+		definitions.define("Product", "name", EntityDB.EIndexType.NGRAM);
+		index.applyDefinitions("Product");
+		index.put("Product", "name", 3, "pineapple");
+		index.put("Product", "name", 4, "apricot");
+		assertArrayEquals(new long[]{1, 2, 3}, queryContains(index, "apple"));
+		assertArrayEquals(new long[]{1, 2, 3, 4}, queryContains(index, "ap"));
+		assertArrayEquals(new long[]{3}, queryContains(index, "pi"));
+		assertArrayEquals(new long[]{1}, queryContains(index, "red"));
+		assertEquals(0, queryContains(index, "pear").length);
+		// the trigrams are in both parts of the value, but the value doesn't contain them together
+		assertEquals(0, queryContains(index, "appred").length);
+
+		// the trigrams of the old values are removed
+		index.put("Product", "name", 1, "red pear");
+		index.remove("Product", "name", 2);
+		assertArrayEquals(new long[]{3}, queryContains(index, "apple"));
+		assertArrayEquals(new long[]{1}, queryContains(index, "pear"));
+	}
+
+	private static long[] queryContains(Index<String> index, String referenceValue) {
+		return index.query("Product", new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, referenceValue))
+				.toArray();
+	}
+
+	@Test
+	public void testDefinitions() {
+		IndexDefinitions definitions = new IndexDefinitions();
+		Index<Long> index = new Index<>(definitions, Long.class);
+		index.put("User", "age", 1, 10l);
+		index.put("User", "points", 1, 5l);
+		index.put("User", "age", 2, 20l);
+
+		// only the defined attributes of a kind are indexed
+		definitions.define("User", "age", EntityDB.EIndexType.HASH);
+		index.applyDefinitions("User");
+		assertNull(index.get("User", "points", 1));
+		index.put("User", "points", 2, 6l);
+		assertNull(index.get("User", "points", 2));
+
+		// a hash index answers only the equality checks
+		assertArrayEquals(new long[]{2}, index.query("User", new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 20)).toArray());
+		assertArrayEquals(new long[]{1, 2}, index.query("User", new LongFilterItem("age", LongFilterItem.EOperator.IN, 10, 20)).toArray());
+		assertNull(index.query("User", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 10)));
+
+		definitions.define("User", "age", EntityDB.EIndexType.ORDERED);
+		index.applyDefinitions("User");
+		assertArrayEquals(new long[]{2}, index.query("User", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 10)).toArray());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBetweenNeedsTwoValues() {
+		new LongFilterItem("age", LongFilterItem.EOperator.BETWEEN, 10);
+	}
+
+	@Test
+	public void testEstimate() {
+		IndexDefinitions definitions = new IndexDefinitions();
+		Index<Long> index = new Index<>(definitions, Long.class);
+		for (long id = 1; id <= 100; id++) {
+			index.put("User", "age", id, id);
+		}
+		assertEquals(1, index.estimate("User", new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 30)));
+		assertEquals(2, index.estimate("User", new LongFilterItem("age", LongFilterItem.EOperator.IN, 10, 20, 999)));
+		assertEquals(99, index.estimate("User", new LongFilterItem("age", LongFilterItem.EOperator.NOT_EQUALS, 30)));
+		// the ranges are interpolated between the smallest and the greatest value
+		assertEquals(10, index.estimate("User", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 90)));
+		assertEquals(20, index.estimate("User", new LongFilterItem("age", LongFilterItem.EOperator.BETWEEN, 11, 30)));
+		assertEquals(0, index.estimate("User", new LongFilterItem("age", LongFilterItem.EOperator.SMALLER, 1)));
+		assertEquals(100, index.estimate("User", new LongFilterItem("age",
+				LongFilterItem.EOperator.SMALLER_OR_EQUALS, Long.MAX_VALUE)));
+		assertEquals(0, index.estimate("User", new LongFilterItem("points", LongFilterItem.EOperator.EQUALS, 1)));
+
+		// a HASH index can't answer the ranges
+		definitions.define("User", "age", EntityDB.EIndexType.HASH);
+		index.applyDefinitions("User");
+		assertEquals(1, index.estimate("User", new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 30)));
+		assertEquals(-1, index.estimate("User", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 90)));
+
+		definitions.define("Product", "name", EntityDB.EIndexType.NGRAM);
+		Index<String> stringIndex = new Index<>(definitions, String.class);
+		stringIndex.put("Product", "name", 1, "red apple");
+		stringIndex.put("Product", "name", 2, "green apple");
+		stringIndex.put("Product", "name", 3, "pineapple");
+		stringIndex.put("Product", "name", 4, "apricot");
+		// the smallest posting list of the trigrams
+		assertEquals(3, stringIndex.estimate("Product", new StringFilterItem("name",
+				StringFilterItem.EOperator.CONTAINS, "apple")));
+		assertEquals(2, stringIndex.estimate("Product", new StringFilterItem("name",
+				StringFilterItem.EOperator.STARTS_WITH, "a")));
+	}
+
+	@Test
+	public void testQueryUnknownKind() {
+		Index<Boolean> index = new Index<>(new IndexDefinitions(), Boolean.class);
+		assertTrue(index.query("Unknown", new BooleanFilterItem("active", true)).isEmpty());
+	}
+}
@@ -0,0 +1,185 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class LogStorageTest {
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("log");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private EntityDB connect() {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(EntityDBConfig.EStorageEngine.LOG);
+		config.setSegmentSize(4096);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		return EntityDB.connect(dbFile, config);
+	}
+
+	private int countSegments() {
+		int res = 0;
+		for (String name : dbFile.getAbsoluteFile().getParentFile().list()) {
+			if (name.startsWith(dbFile.getName() + ".") && name.endsWith(".seg")) {
+				res++;
+			}
+		}
+		return res;
+	}
+
+	private void check(DB db) {
+		for (long id = 1; id <= 50; id++) {
+			Entity entity = db.get(id);
+			if (id % 5 == 0) {
+				assertNull(entity);
+			} else {
+				assertEquals(20l, entity.getLongAttribute("round"));
+				assertEquals("Name" + id, entity.getValue());
+			}
+		}
+		List<Long> keys = db.queryKeys(new Filter("User", new LongFilterItem("round", LongFilterItem.EOperator.EQUALS, 20)));
+		assertEquals(40, keys.size());
+	}
+
+	@Test
+	public void testUpdatesAndCompaction() throws Exception {
+		EntityDB edb = connect();
+		DB db = edb.getDB();
+		for (int i = 1; i <= 50; i++) {
+			Entity entity = new Entity("User");
+			entity.putAttribute("round", 0l);
+			entity.setValue("Name" + i);
+			db.put(entity);
+		}
+		for (long round = 1; round <= 20; round++) {
+			for (long id = 1; id <= 50; id++) {
+				Entity entity = db.get(id);
+				entity.putAttribute("round", round);
+				db.put(entity);
+			}
+		}
+		for (long id = 5; id <= 50; id += 5) {
+			db.remove(id);
+		}
+		check(db);
+
+		// the garbage segments are compacted in the background
+		long deadline = System.currentTimeMillis() + 10000;
+		while (countSegments() > 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertTrue(countSegments() <= 3);
+		check(db);
+		edb.close();
+
+		edb = connect();
+		check(edb.getDB());
+		edb.close();
+
+		// without the snapshot every segment is read
+		TestFiles.deleteSnapshot(dbFile);
+		edb = connect();
+		check(edb.getDB());
+		edb.close();
+	}
+
+	@Test(timeout = 10000)
+	public void testCompactorFailure() throws Exception {
+		FileOutputStream fos = new FileOutputStream(dbFile);
+		try {
+			fos.write(LogStorage.FILE_HEADER);
+		} finally {
+			fos.close();
+		}
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(EntityDBConfig.EStorageEngine.LOG);
+		config.setSegmentSize(4096);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		LogStorage storage = new LogStorage(dbFile, config);
+		storage.recover(-1, null);
+
+		final Map<Long, Long> locations = new HashMap<>();
+		final ReentrantLock writeLock = new ReentrantLock();
+		Storage.Owner owner = new Storage.Owner() {
+
+			@Override
+			public Lock getWriteLock() {
+				return writeLock;
+			}
+
+			@Override
+			public long getLocation(long id) {
+				Long res = locations.get(id);
+				return res == null ? -1 : res;
+			}
+
+			@Override
+			public void setLocation(long id, long location) {
+				locations.put(id, location);
+			}
+
+			@Override
+			public void writeSnapshot() throws IOException {
+				throw new IOException("No space left on device.");
+			}
+		};
+		// the old versions of the record fill the sealed segments with garbage
+		for (int i = 0; i < 100; i++) {
+			writeLock.lock();
+			try {
+				locations.put(1l, storage.write(1, owner.getLocation(1), new byte[200]));
+				storage.commit();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		// the compactor can't write the snapshot which drops the compacted segments
+		storage.start(owner);
+		IOException failure = null;
+		while (failure == null) {
+			try {
+				storage.commit();
+				Thread.sleep(10);
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+		assertEquals("No space left on device.", failure.getCause().getMessage());
+		try {
+			storage.compact(owner, null);
+			fail();
+		} catch (IOException ex) {
+			assertEquals("No space left on device.", ex.getCause().getMessage());
+		}
+		storage.stop();
+		try {
+			storage.close();
+			fail();
+		} catch (IOException ex) {
+			// the files are closed, and the failure is reported
+		}
+	}
+}
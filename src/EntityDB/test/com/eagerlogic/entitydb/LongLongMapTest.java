@@ -0,0 +1,83 @@
+package com.eagerlogic.entitydb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class LongLongMapTest {
+
+	private void testRandomOperations(boolean offHeap) {
+		LongLongMap map = new LongLongMap(offHeap);
+		HashMap<Long, Long> expected = new HashMap<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			// a small key range, so the removals hit existing keys, and the probe sequences collide
+			long key = random.nextInt(20000);
+			if (random.nextInt(3) == 0) {
+				Long prev = expected.remove(key);
+				assertEquals(prev == null ? LongLongMap.NO_VALUE : prev, map.remove(key));
+			} else {
+				long value = random.nextInt(Integer.MAX_VALUE);
+				Long prev = expected.put(key, value);
+				assertEquals(prev == null ? LongLongMap.NO_VALUE : prev, map.put(key, value));
+			}
+		}
+
+		assertEquals(expected.size(), map.size());
+		for (long key = 0; key < 20000; key++) {
+			Long value = expected.get(key);
+			assertEquals(value == null ? LongLongMap.NO_VALUE : value, map.get(key));
+		}
+		int count = 0;
+		LongLongMap.Cursor cursor = map.cursor();
+		while (cursor.next()) {
+			assertEquals((long) expected.get(cursor.key()), cursor.value());
+			count++;
+		}
+		assertEquals(expected.size(), count);
+
+		for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+			assertEquals((long) entry.getValue(), map.remove(entry.getKey()));
+		}
+		assertEquals(0, map.size());
+		assertFalse(map.containsKey(0));
+	}
+
+	@Test
+	public void testHeap() {
+		testRandomOperations(false);
+	}
+
+	@Test
+	public void testOffHeap() {
+		testRandomOperations(true);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeKey() {
+		new LongLongMap(false).put(-1, 1);
+	}
+
+	@Test
+	public void testNegativeLookup() {
+		for (boolean offHeap : new boolean[]{false, true}) {
+			LongLongMap map = new LongLongMap(offHeap);
+			map.put(1, 10);
+			map.put(2, 20);
+			// a removed entry leaves its value in the empty slot
+			map.remove(2);
+			assertEquals(LongLongMap.NO_VALUE, map.get(-1));
+			assertFalse(map.containsKey(-1));
+			assertEquals(LongLongMap.NO_VALUE, map.remove(-1));
+			assertEquals(LongLongMap.NO_VALUE, map.get(-5));
+			assertEquals(1, map.size());
+			assertEquals(10, map.get(1));
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.eagerlogic.entitydb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class MemoryMappedTest {
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("mapped");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private EntityDB connect() {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setMemoryMapped(true);
+		// the records are bigger than the mapped segments, so most of them are crossing a segment boundary
+		config.setSegmentSize(4096);
+		// the changed pages are written to the file often, so the records are read from the mapped file
+		config.setCheckpointSize(16 * 1024);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		return EntityDB.connect(dbFile, config);
+	}
+
+	private static String value(long id) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 1000 + id * 37 % 5000) {
+			sb.append(id).append(',');
+		}
+		return sb.toString();
+	}
+
+	private static void put(DB db, long firstId, int count) {
+		for (long id = firstId; id < firstId + count; id++) {
+			Entity entity = new Entity("User");
+			entity.putAttribute("group", id % 10);
+			entity.setValue(value(id));
+			db.put(entity);
+			assertEquals(id, entity.getId());
+		}
+	}
+
+	private static void check(DB db, long maxId) {
+		int count = 0;
+		for (long id = 1; id <= maxId; id++) {
+			Entity entity = db.get(id);
+			if (id % 10 != 0 && id <= 500) {
+				assertNull(entity);
+			} else {
+				assertEquals(value(id), entity.getValue());
+				count++;
+			}
+		}
+		assertEquals(count, db.count(new Filter("User", new NullFilterItem("group",
+				NullFilterItem.EOperator.NOT_EQUALS))));
+		for (Entity entity : db.query(new Filter("User", new LongFilterItem("group", LongFilterItem.EOperator.EQUALS,
+				3)))) {
+			assertEquals(3l, entity.getLongAttribute("group"));
+			assertEquals(value(entity.getId()), entity.getValue());
+		}
+	}
+
+	@Test
+	public void testMappedFile() {
+		EntityDB edb = connect();
+		DB db = edb.getDB();
+		// the file grows after the first reads, so it's mapped again by the later reads
+		for (int i = 0; i < 6; i++) {
+			put(db, i * 100 + 1, 100);
+			for (long id = 1; id <= (i + 1) * 100; id++) {
+				assertEquals(value(id), db.get(id).getValue());
+			}
+		}
+		for (long id = 1; id <= 500; id++) {
+			if (id % 10 != 0) {
+				db.remove(id);
+			}
+		}
+		check(db, 600);
+
+		// the file is truncated by the compaction, so it's mapped again
+		long sizeBefore = dbFile.length();
+		assertTrue(edb.compact() > 0);
+		assertTrue(dbFile.length() < sizeBefore);
+		check(db, 600);
+		put(db, 601, 100);
+		check(db, 700);
+		edb.close();
+
+		edb = connect();
+		check(edb.getDB(), 700);
+		edb.close();
+
+		// without the snapshot the records are read from the mapped file
+		TestFiles.deleteSnapshot(dbFile);
+		edb = connect();
+		check(edb.getDB(), 700);
+		edb.close();
+	}
+
+	private static byte[] bytes(int seed, int length) {
+		byte[] res = new byte[length];
+		for (int i = 0; i < length; i++) {
+			res[i] = (byte) (seed + i);
+		}
+		return res;
+	}
+
+	private static void assertContent(DataFile dataFile, long position, byte[] expected) throws IOException {
+		ByteBuffer bb = dataFile.read(position, expected.length);
+		try {
+			byte[] read = new byte[expected.length];
+			bb.get(read);
+			assertArrayEquals(expected, read);
+		} finally {
+			dataFile.release(bb);
+		}
+	}
+
+	@Test
+	public void testTruncate() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setMemoryMapped(true);
+		config.setSegmentSize(4096);
+		DataFile dataFile = new DataFile(dbFile, config);
+		try {
+			dataFile.recover(null);
+			dataFile.write(0, bytes(1, 20000));
+			dataFile.checkpoint();
+			// the range is in the second and the third segment
+			assertContent(dataFile, 5000, Arrays.copyOfRange(bytes(1, 20000), 5000, 9000));
+
+			dataFile.truncate(6000);
+			try {
+				dataFile.read(7000, 100);
+				fail();
+			} catch (EOFException ex) {
+				// the old mapping isn't used beyond the end of the file
+			}
+
+			dataFile.write(6000, bytes(7, 4000));
+			dataFile.checkpoint();
+			assertContent(dataFile, 5000, Arrays.copyOfRange(bytes(1, 20000), 5000, 6000));
+			assertContent(dataFile, 6000, bytes(7, 4000));
+		} finally {
+			dataFile.close();
+		}
+	}
+}
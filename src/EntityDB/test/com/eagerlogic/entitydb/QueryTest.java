@@ -0,0 +1,397 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class QueryTest {
+
+	private static final String[] WORDS = new String[]{"apple", "Pear", "pineapple", "plum", "grape", "Apricot",
+		"cherry", "peach", "lemon", "lime"};
+
+	private File dbFile;
+	private EntityDB edb;
+	private DB db;
+	private final ArrayList<Entity> items = new ArrayList<>();
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("query");
+		EntityDBConfig config = new EntityDBConfig();
+		config.addIndex("Item", "a", EntityDB.EIndexType.ORDERED);
+		config.addIndex("Item", "b", EntityDB.EIndexType.NGRAM);
+		config.addIndex("Item", "c", EntityDB.EIndexType.HASH);
+		config.addIndex("Item", "d", EntityDB.EIndexType.ORDERED);
+		edb = EntityDB.connect(dbFile, config);
+		db = edb.getDB();
+
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			Entity entity = new Entity("Item");
+			if (random.nextInt(10) > 0) {
+				entity.putAttribute("a", (long) random.nextInt(100));
+			} else {
+				entity.putAttribute("a", WORDS[random.nextInt(WORDS.length)]);
+			}
+			entity.putAttribute("b", WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(5));
+			entity.putAttribute("c", (long) random.nextInt(10));
+			if (random.nextBoolean()) {
+				entity.putAttribute("d", random.nextBoolean());
+			}
+			// not indexed
+			entity.putAttribute("e", (long) random.nextInt(1000));
+			db.put(entity);
+			items.add(entity);
+
+			Entity other = new Entity("Other");
+			other.putAttribute("a", (long) random.nextInt(100));
+			db.put(other);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		edb.close();
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private static AFilterItem randomFilter(Random random, int depth) {
+		if (depth > 0 && random.nextInt(3) == 0) {
+			FilterGroupItem.EOperator operator = random.nextBoolean() ? FilterGroupItem.EOperator.AND
+					: FilterGroupItem.EOperator.OR;
+			AFilterItem[] others = new AFilterItem[random.nextInt(3)];
+			for (int i = 0; i < others.length; i++) {
+				others[i] = randomFilter(random, depth - 1);
+			}
+			return new FilterGroupItem(operator, randomFilter(random, depth - 1), randomFilter(random, depth - 1),
+					others);
+		}
+		switch (random.nextInt(6)) {
+			case 0:
+				return randomLongFilter(random, "a", 100);
+			case 1:
+				return randomLongFilter(random, "c", 10);
+			case 2:
+				return randomLongFilter(random, "e", 1000);
+			case 3:
+				return randomStringFilter(random, random.nextBoolean() ? "a" : "b");
+			case 4:
+				return new BooleanFilterItem("d", random.nextBoolean());
+			default:
+				return new NullFilterItem(random.nextBoolean() ? "d" : "a", NullFilterItem.EOperator.NOT_EQUALS);
+		}
+	}
+
+	private static LongFilterItem randomLongFilter(Random random, String attributeName, int bound) {
+		LongFilterItem.EOperator[] operators = LongFilterItem.EOperator.values();
+		LongFilterItem.EOperator operator = operators[random.nextInt(operators.length)];
+		int count = operator == LongFilterItem.EOperator.BETWEEN ? 2
+				: operator == LongFilterItem.EOperator.IN ? 1 + random.nextInt(3) : 1;
+		long[] referenceValues = new long[count];
+		for (int i = 0; i < count; i++) {
+			referenceValues[i] = random.nextInt(bound);
+		}
+		return new LongFilterItem(attributeName, operator, referenceValues);
+	}
+
+	private static StringFilterItem randomStringFilter(Random random, String attributeName) {
+		StringFilterItem.EOperator[] operators = StringFilterItem.EOperator.values();
+		StringFilterItem.EOperator operator = operators[random.nextInt(operators.length)];
+		int count = operator == StringFilterItem.EOperator.BETWEEN ? 2
+				: operator == StringFilterItem.EOperator.IN ? 1 + random.nextInt(3) : 1;
+		String[] referenceValues = new String[count];
+		for (int i = 0; i < count; i++) {
+			String word = WORDS[random.nextInt(WORDS.length)];
+			if (operator == StringFilterItem.EOperator.CONTAINS || operator == StringFilterItem.EOperator.STARTS_WITH) {
+				word = word.substring(random.nextInt(word.length()));
+			} else if (random.nextBoolean()) {
+				word += " " + random.nextInt(5);
+			}
+			referenceValues[i] = word;
+		}
+		return new StringFilterItem(attributeName, operator, referenceValues);
+	}
+
+	@Test
+	public void testPlannedQueries() {
+		Random random = new Random(7);
+		for (int i = 0; i < 500; i++) {
+			AFilterItem filter = randomFilter(random, 2);
+			List<Long> expected = new ArrayList<>();
+			for (Entity item : items) {
+				if (FilterMatcher.matches(item, filter)) {
+					expected.add(item.getId());
+				}
+			}
+			assertEquals(expected, db.queryIds(new Filter("Item", filter)).toList());
+			// the first result is found by walking the keys
+			long first = expected.isEmpty() ? -1 : expected.get(0);
+			assertEquals(first, db.queryFirstKey(new Filter("Item", filter)));
+			Entity entity = db.queryFirst(new Filter("Item", filter));
+			assertEquals(first, entity == null ? -1 : entity.getId());
+		}
+	}
+
+	@Test
+	public void testIterator() {
+		Filter filter = new Filter("Item", new LongFilterItem("c", LongFilterItem.EOperator.EQUALS, 3));
+		List<Long> expected = db.queryKeys(filter);
+		assertTrue(expected.size() > 10);
+		List<Long> keys = new ArrayList<>();
+		try (IQueryIterator it = db.queryIterator(filter)) {
+			while (it.hasNext()) {
+				keys.add(it.next().getId());
+			}
+		}
+		assertEquals(expected, keys);
+
+		// the changes after the query are seen when the entities are read
+		IQueryIterator it = db.queryIterator(filter);
+		assertEquals((long) expected.get(0), it.next().getId());
+		db.remove(expected.get(1));
+		Entity changed = db.get(expected.get(2));
+		changed.putAttribute("c", 4L);
+		db.put(changed);
+		assertEquals((long) expected.get(3), it.next().getId());
+		it.close();
+		assertFalse(it.hasNext());
+
+		assertEquals((long) expected.get(0), db.queryFirst(filter).getId());
+		assertNull(db.queryFirst(new Filter("Item", new LongFilterItem("c", LongFilterItem.EOperator.EQUALS, 99))));
+		assertEquals(-1, db.queryFirstKey(new Filter("Item", new LongFilterItem("c", LongFilterItem.EOperator.EQUALS,
+				99))));
+	}
+
+	@Test
+	public void testStream() {
+		Filter filter = new Filter("Item", new BooleanFilterItem("d", true));
+		final int[] closeCount = new int[1];
+		int count = 0;
+		IQueryStream stream = db.queryStream(filter);
+		try {
+			stream.onClose(new Runnable() {
+
+				@Override
+				public void run() {
+					closeCount[0]++;
+				}
+			});
+			for (Entity entity : stream) {
+				assertEquals(Boolean.TRUE, entity.getAttribute("d"));
+				if (++count == 5) {
+					break;
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		stream.close();
+		assertEquals(5, count);
+		assertEquals(1, closeCount[0]);
+		try {
+			stream.iterator();
+			fail();
+		} catch (IllegalStateException ex) {
+			// the results can be iterated once
+		}
+	}
+
+	private List<Long> sort(AFilterItem filterItem, final String attributeName, final Filter.EDirection direction) {
+		List<Entity> matches = new ArrayList<>();
+		for (Entity item : items) {
+			if (FilterMatcher.matches(item, filterItem)) {
+				matches.add(item);
+			}
+		}
+		Collections.sort(matches, new Comparator<Entity>() {
+
+			@Override
+			public int compare(Entity o1, Entity o2) {
+				int res = 0;
+				if (attributeName != null) {
+					res = QueryPage.compareValues(getValue(o1), getValue(o2));
+				}
+				if (res == 0) {
+					res = Long.compare(o1.getId(), o2.getId());
+				}
+				return direction == Filter.EDirection.DESCENDING ? -res : res;
+			}
+
+			private Object getValue(Entity entity) {
+				Object res = entity.getAttribute(attributeName);
+				return res instanceof String ? ((String) res).toLowerCase() : res;
+			}
+		});
+		List<Long> res = new ArrayList<>();
+		for (Entity entity : matches) {
+			res.add(entity.getId());
+		}
+		return res;
+	}
+
+	@Test
+	public void testOrderedQueries() {
+		String[] attributeNames = new String[]{null, "a", "b", "c", "d", "e"};
+		Random random = new Random(11);
+		for (int i = 0; i < 300; i++) {
+			AFilterItem filterItem = random.nextInt(4) == 0
+					? new NullFilterItem("b", NullFilterItem.EOperator.NOT_EQUALS) : randomFilter(random, 1);
+			String attributeName = attributeNames[random.nextInt(attributeNames.length)];
+			Filter.EDirection direction = random.nextBoolean() ? Filter.EDirection.ASCENDING
+					: Filter.EDirection.DESCENDING;
+			List<Long> sorted = sort(filterItem, attributeName, direction);
+			Filter filter = new Filter("Item", filterItem);
+			filter.setOrder(attributeName, direction);
+			int offset = random.nextInt(3) == 0 ? 0 : random.nextInt(50);
+			int limit = random.nextInt(4) == 0 ? -1 : random.nextInt(30);
+			filter.setOffset(offset);
+			filter.setLimit(limit);
+			List<Long> expected = sorted.subList(Math.min(offset, sorted.size()),
+					limit < 0 ? sorted.size() : Math.min(offset + limit, sorted.size()));
+			assertEquals(expected, db.queryKeys(filter));
+
+			List<Long> keys = new ArrayList<>();
+			for (Entity entity : db.query(filter)) {
+				keys.add(entity.getId());
+			}
+			assertEquals(expected, keys);
+			assertEquals(expected.isEmpty() ? -1 : (long) expected.get(0), db.queryFirstKey(filter));
+		}
+	}
+
+	@Test
+	public void testCursor() {
+		AFilterItem filterItem = new LongFilterItem("c", LongFilterItem.EOperator.SMALLER, 7);
+		for (String attributeName : new String[]{null, "a", "b", "c", "d", "e"}) {
+			for (Filter.EDirection direction : Filter.EDirection.values()) {
+				Filter filter = new Filter("Item", filterItem);
+				filter.setOrder(attributeName, direction);
+				filter.setLimit(97);
+				List<Long> keys = new ArrayList<>();
+				while (true) {
+					List<Entity> page = db.query(filter);
+					for (Entity entity : page) {
+						keys.add(entity.getId());
+					}
+					if (page.size() < 97) {
+						break;
+					}
+					filter.setCursor(page.get(page.size() - 1));
+				}
+				assertEquals(sort(filterItem, attributeName, direction), keys);
+			}
+		}
+
+		// the cursor is stable if the last entity of the previous page is removed
+		Filter filter = new Filter("Item", filterItem);
+		filter.setOrder("a", Filter.EDirection.ASCENDING);
+		filter.setLimit(10);
+		List<Long> expected = sort(filterItem, "a", Filter.EDirection.ASCENDING).subList(10, 15);
+		Entity last = db.get(db.queryKeys(filter).get(9));
+		db.remove(last.getId());
+		filter.setCursor(last);
+		filter.setLimit(5);
+		assertEquals(expected, db.queryKeys(filter));
+	}
+
+	@Test
+	public void testAggregates() {
+		Random random = new Random(13);
+		for (int i = 0; i < 300; i++) {
+			AFilterItem filterItem = randomFilter(random, 1);
+			Filter filter = new Filter("Item", filterItem);
+			String attributeName = new String[]{"a", "b", "c", "e"}[random.nextInt(4)];
+			long count = 0;
+			long sum = 0;
+			Long min = null;
+			Long max = null;
+			for (Entity item : items) {
+				if (FilterMatcher.matches(item, filterItem)) {
+					count++;
+					Object value = item.getAttribute(attributeName);
+					if (value instanceof Long) {
+						long longValue = (Long) value;
+						sum += longValue;
+						min = min == null ? longValue : Math.min(min, longValue);
+						max = max == null ? longValue : Math.max(max, longValue);
+					}
+				}
+			}
+			assertEquals(count, db.count(filter));
+			assertEquals(min, db.min(filter, attributeName));
+			assertEquals(max, db.max(filter, attributeName));
+			assertEquals(sum, db.sum(filter, attributeName));
+		}
+
+		Filter page = new Filter("Item", new NullFilterItem("b", NullFilterItem.EOperator.NOT_EQUALS));
+		page.setOrder("e", Filter.EDirection.DESCENDING);
+		page.setLimit(10);
+		List<Long> keys = db.queryKeys(page);
+		assertEquals(10, db.count(page));
+		assertEquals(db.get(keys.get(9)).getAttribute("e"), db.min(page, "e"));
+
+		for (String attributeName : new String[]{"a", "b", "c", "d", "e", "x"}) {
+			List<Object> expected = new ArrayList<>();
+			for (Entity item : items) {
+				Object value = item.getAttribute(attributeName);
+				if (value instanceof String) {
+					value = ((String) value).toLowerCase();
+				}
+				if (value != null && !expected.contains(value)) {
+					expected.add(value);
+				}
+			}
+			Collections.sort(expected, new Comparator<Object>() {
+
+				@Override
+				public int compare(Object o1, Object o2) {
+					return QueryPage.compareValues(o1, o2);
+				}
+			});
+			assertEquals(expected, db.distinctValues("Item", attributeName));
+		}
+		assertTrue(db.distinctValues("Nothing", "a").isEmpty());
+	}
+
+	@Test
+	public void testProjection() {
+		String[] attributeNames = new String[]{"a", "b", "c", "d", "e", "x"};
+		Random random = new Random(17);
+		for (int i = 0; i < 100; i++) {
+			Filter filter = new Filter("Item", randomFilter(random, 1));
+			if (random.nextBoolean()) {
+				filter.setOrder(attributeNames[random.nextInt(attributeNames.length)], Filter.EDirection.DESCENDING);
+				filter.setLimit(random.nextInt(50));
+			}
+			List<Long> keys = db.queryKeys(filter);
+			List<Projection> projections = db.queryProjection(filter, attributeNames);
+			assertEquals(keys.size(), projections.size());
+			for (int j = 0; j < keys.size(); j++) {
+				Projection projection = projections.get(j);
+				assertEquals((long) keys.get(j), projection.getKey());
+				Entity entity = db.get(keys.get(j));
+				for (int k = 0; k < attributeNames.length; k++) {
+					assertEquals(entity.getAttribute(attributeNames[k]), projection.getAttribute(attributeNames[k]));
+					assertEquals(entity.getAttribute(attributeNames[k]), projection.getAttribute(k));
+				}
+			}
+		}
+		try {
+			db.queryProjection(new Filter("Item", new BooleanFilterItem("d", true)), "a").get(0).getAttribute("b");
+			fail();
+		} catch (IllegalArgumentException ex) {
+			// only the projected attributes can be returned
+		}
+	}
+}
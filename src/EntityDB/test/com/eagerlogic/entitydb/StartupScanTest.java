@@ -0,0 +1,132 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class StartupScanTest {
+
+	// more than two batches of 1024 records
+	private static final int USERS = 3000;
+	// about 1 MB each, so a batch is closed by its size after four of them
+	private static final int DOCUMENTS = 10;
+
+	private File dbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("scan");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	private static EntityDBConfig createConfig(EntityDBConfig.EStorageEngine storageEngine, int scanThreads) {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(storageEngine);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		config.setScanThreads(scanThreads);
+		config.addIndex("User", "age", EntityDB.EIndexType.ORDERED);
+		config.addIndex("User", "name", EntityDB.EIndexType.HASH);
+		config.addCompositeIndex("User", "active", "age");
+		return config;
+	}
+
+	private static void fill(DB db) {
+		List<Entity> users = new ArrayList<>();
+		for (int i = 0; i < USERS; i++) {
+			Entity user = new Entity("User");
+			user.putAttribute("age", (long) (i % 80));
+			user.putAttribute("name", "Name" + (i % 100));
+			user.putAttribute("active", i % 3 == 0);
+			user.setValue("User" + i);
+			users.add(user);
+		}
+		db.putAll(users);
+
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 1024 * 1024) {
+			sb.append("0123456789abcdef");
+		}
+		for (int i = 0; i < DOCUMENTS; i++) {
+			Entity document = new Entity("Document");
+			document.putAttribute("number", (long) i);
+			document.setValue(i + sb.toString());
+			db.put(document);
+		}
+
+		// the scan sees the moved and the removed records too
+		for (long id = 1; id <= USERS; id += 7) {
+			Entity user = db.get(id);
+			user.putAttribute("age", 100l);
+			user.setValue(user.getValue() + " updated");
+			db.put(user);
+		}
+		for (long id = 2; id <= USERS; id += 11) {
+			db.remove(id);
+		}
+	}
+
+	/**
+	 * Returns the results of some queries and the content of the entities, which are compared between the
+	 * connections.
+	 */
+	private static List<Object> readResults(EntityDB edb) {
+		DB db = edb.getDB();
+		List<Object> res = new ArrayList<>();
+		res.add(db.queryKeys(new Filter("User", new LongFilterItem("age", LongFilterItem.EOperator.EQUALS, 100))));
+		res.add(db.queryKeys(new Filter("User", new StringFilterItem("name", StringFilterItem.EOperator.EQUALS,
+				"Name17"))));
+		res.add(db.count(new Filter("User", new BooleanFilterItem("active", true))));
+		res.add(db.queryKeys(new Filter("User", new FilterGroupItem(FilterGroupItem.EOperator.AND,
+				new BooleanFilterItem("active", false), new LongFilterItem("age", LongFilterItem.EOperator.GREATER,
+						60)))));
+		Filter ordered = new Filter("User", new LongFilterItem("age", LongFilterItem.EOperator.SMALLER, 10));
+		ordered.setOrder("age", Filter.EDirection.DESCENDING);
+		ordered.setLimit(50);
+		res.add(db.queryKeys(ordered));
+		res.add(db.queryKeys(new Filter("Document", new LongFilterItem("number", LongFilterItem.EOperator.GREATER,
+				-1))));
+		for (long id = 1; id <= USERS + DOCUMENTS; id++) {
+			Entity entity = db.get(id);
+			res.add(entity == null ? null : entity.getKind() + entity.getAttributeNames() + entity.getValue().hashCode());
+		}
+		res.add(edb.getNextId());
+		return res;
+	}
+
+	private void testScan(EntityDBConfig.EStorageEngine storageEngine) {
+		EntityDB edb = EntityDB.connect(dbFile, createConfig(storageEngine, 1));
+		fill(edb.getDB());
+		List<Object> expected = readResults(edb);
+		edb.close();
+
+		for (int scanThreads : new int[]{1, 4}) {
+			// without the snapshot every record is read and indexed
+			TestFiles.deleteSnapshot(dbFile);
+			edb = EntityDB.connect(dbFile, createConfig(storageEngine, scanThreads));
+			assertEquals(expected, readResults(edb));
+			edb.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testFileStorage() {
+		testScan(EntityDBConfig.EStorageEngine.FILE);
+	}
+
+	@Test(timeout = 60000)
+	public void testLogStorage() {
+		testScan(EntityDBConfig.EStorageEngine.LOG);
+	}
+}
@@ -0,0 +1,46 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates the database files of the tests, and deletes them with every file which is stored next to them.
+ *
+ * @author dipacs
+ */
+final class TestFiles {
+
+	// the files next to the database file: the snapshot, the write-ahead log, the index definitions, and the
+	// temporary files of the snapshot and the definitions
+	private static final String[] SIDECAR_EXTENSIONS = new String[]{".idx", ".idx.tmp", ".wal", ".def", ".def.tmp"};
+
+	private TestFiles() {
+	}
+
+	/**
+	 * Returns a new temporary database file, which doesn't exist yet.
+	 */
+	static File createDbFile(String prefix) throws IOException {
+		File res = File.createTempFile(prefix, ".edb");
+		res.delete();
+		return res;
+	}
+
+	/**
+	 * Deletes the index snapshot of the given database, so it's indexed by reading every record at the next connect.
+	 */
+	static void deleteSnapshot(File dbFile) {
+		new File(dbFile.getPath() + ".idx").delete();
+	}
+
+	/**
+	 * Deletes the given database file, its segments and every other file of the database.
+	 */
+	static void deleteDb(File dbFile) {
+		LogStorage.deleteSegments(dbFile);
+		for (String extension : SIDECAR_EXTENSIONS) {
+			new File(dbFile.getPath() + extension).delete();
+		}
+		dbFile.delete();
+	}
+}
@@ -0,0 +1,388 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dipacs
+ */
+public class WriteAheadLogTest {
+
+	private File dbFile;
+	private File walFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dbFile = TestFiles.createDbFile("wal");
+		walFile = new File(dbFile.getPath() + ".wal");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteDb(dbFile);
+	}
+
+	/**
+	 * Collects the logged puts and removes which are replayed.
+	 */
+	private static class RecordingHandler implements DataFile.LogHandler {
+
+		private final List<String> operations = new ArrayList<>();
+
+		@Override
+		public void put(long id, long offset, int length) {
+			operations.add("put " + id + " " + offset + " " + length);
+		}
+
+		@Override
+		public void remove(long id) {
+			operations.add("remove " + id);
+		}
+	}
+
+	private static byte[] record(int seed, int length) {
+		byte[] res = new byte[length];
+		for (int i = 0; i < length; i++) {
+			res[i] = (byte) (seed + i);
+		}
+		return res;
+	}
+
+	private static void assertContent(DataFile dataFile, long position, byte[] expected) throws IOException {
+		ByteBuffer bb = dataFile.read(position, expected.length);
+		try {
+			byte[] read = new byte[expected.length];
+			bb.get(read);
+			assertArrayEquals(expected, read);
+		} finally {
+			dataFile.release(bb);
+		}
+	}
+
+	private static DataFile open(File dbFile, EntityDBConfig config, DataFile.LogHandler handler) throws IOException {
+		DataFile res = new DataFile(dbFile, config);
+		res.recover(handler);
+		return res;
+	}
+
+	/**
+	 * Writes two records and removes the first one, in three commits.
+	 */
+	private static void writeRecords(DataFile dataFile) throws IOException {
+		dataFile.write(0, record(1, 100));
+		dataFile.logPut(1, 0, 100);
+		dataFile.awaitDurable(dataFile.commit());
+
+		// the second record is on the next page
+		dataFile.write(5000, record(2, 300));
+		dataFile.logPut(2, 5000, 300);
+		dataFile.awaitDurable(dataFile.commit());
+
+		dataFile.logRemove(1);
+		dataFile.write(0, new byte[8]);
+		dataFile.awaitDurable(dataFile.commit());
+	}
+
+	@Test
+	public void testReplayAfterCrash() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		DataFile dataFile = open(dbFile, config, null);
+		writeRecords(dataFile);
+		// nothing is written to the data file before a checkpoint, so closing it without a checkpoint is a crash
+		dataFile.close();
+		assertEquals(0, dbFile.length());
+
+		RecordingHandler handler = new RecordingHandler();
+		dataFile = open(dbFile, config, handler);
+		assertEquals(Arrays.asList("put 1 0 100", "put 2 5000 300", "remove 1"), handler.operations);
+		assertEquals(5300, dataFile.length());
+		assertEquals(5300, dbFile.length());
+		assertContent(dataFile, 0, new byte[8]);
+		assertContent(dataFile, 5000, record(2, 300));
+
+		// the new entries are appended after the replayed ones
+		dataFile.write(6000, record(3, 10));
+		dataFile.logPut(3, 6000, 10);
+		dataFile.awaitDurable(dataFile.commit());
+		dataFile.close();
+
+		handler = new RecordingHandler();
+		dataFile = open(dbFile, config, handler);
+		assertEquals(Arrays.asList("put 1 0 100", "put 2 5000 300", "remove 1", "put 3 6000 10"), handler.operations);
+		assertContent(dataFile, 6000, record(3, 10));
+		dataFile.close();
+	}
+
+	@Test
+	public void testTornEntry() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		DataFile dataFile = open(dbFile, config, null);
+		writeRecords(dataFile);
+		dataFile.close();
+
+		// the last entry is half written, it contains only the header and the first bytes of the payload
+		long walLength = walFile.length();
+		RandomAccessFile raf = new RandomAccessFile(walFile, "rw");
+		try {
+			raf.seek(walLength);
+			raf.writeInt(1000);
+			raf.writeInt(12345);
+			raf.write(record(4, 100));
+		} finally {
+			raf.close();
+		}
+
+		RecordingHandler handler = new RecordingHandler();
+		dataFile = open(dbFile, config, handler);
+		assertEquals(Arrays.asList("put 1 0 100", "put 2 5000 300", "remove 1"), handler.operations);
+		// the torn entry is cut from the log
+		assertEquals(walLength, walFile.length());
+		dataFile.close();
+
+		// the payload of the last entry doesn't match its checksum
+		raf = new RandomAccessFile(walFile, "rw");
+		try {
+			raf.seek(walLength - 1);
+			int last = raf.read();
+			raf.seek(walLength - 1);
+			raf.write(last ^ 0xff);
+		} finally {
+			raf.close();
+		}
+
+		handler = new RecordingHandler();
+		dataFile = open(dbFile, config, handler);
+		assertEquals(Arrays.asList("put 1 0 100", "put 2 5000 300"), handler.operations);
+		assertTrue(walFile.length() < walLength);
+		assertContent(dataFile, 0, record(1, 100));
+		assertContent(dataFile, 5000, record(2, 300));
+		dataFile.close();
+	}
+
+	@Test
+	public void testCheckpointAndReset() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		DataFile dataFile = open(dbFile, config, null);
+		long emptyLength = walFile.length();
+		assertEquals(0, dataFile.getLogGeneration());
+		writeRecords(dataFile);
+		assertTrue(dataFile.getLogSize() > 0);
+
+		// the checkpoint writes the changed pages to the data file, and keeps the log
+		long logSize = dataFile.getLogSize();
+		dataFile.checkpoint();
+		assertEquals(5300, dbFile.length());
+		assertEquals(logSize, dataFile.getLogSize());
+		assertFalse(dataFile.isCheckpointNeeded());
+
+		dataFile.resetLog(7);
+		assertEquals(0, dataFile.getLogSize());
+		assertEquals(7, dataFile.getLogGeneration());
+		assertEquals(emptyLength, walFile.length());
+
+		// the entries after the reset are written from the start of the log
+		dataFile.write(6000, record(3, 10));
+		dataFile.logPut(3, 6000, 10);
+		dataFile.awaitDurable(dataFile.commit());
+		dataFile.close();
+
+		RecordingHandler handler = new RecordingHandler();
+		dataFile = open(dbFile, config, handler);
+		assertEquals(7, dataFile.getLogGeneration());
+		assertEquals(Arrays.asList("put 3 6000 10"), handler.operations);
+		assertContent(dataFile, 0, new byte[8]);
+		assertContent(dataFile, 5000, record(2, 300));
+		assertContent(dataFile, 6000, record(3, 10));
+		dataFile.close();
+	}
+
+	private void testDurableCommits(EntityDBConfig config) throws Exception {
+		final DataFile dataFile = open(dbFile, config, null);
+		final Object writeLock = new Object();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> committers = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int thread = t;
+			committers.add(new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 50; i++) {
+							long id = thread * 50 + i;
+							long lsn;
+							synchronized (writeLock) {
+								dataFile.write(id * 16, record((int) id, 16));
+								dataFile.logPut(id, id * 16, 16);
+								lsn = dataFile.commit();
+							}
+							// the commits of the other threads can be forced together with this one
+							dataFile.awaitDurable(lsn);
+						}
+					} catch (Throwable ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		for (Thread committer : committers) {
+			committer.start();
+		}
+		for (Thread committer : committers) {
+			committer.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		dataFile.close();
+
+		// every commit is in the log when awaitDurable returns
+		RecordingHandler handler = new RecordingHandler();
+		DataFile reopened = open(dbFile, config, handler);
+		assertEquals(200, handler.operations.size());
+		for (long id = 0; id < 200; id++) {
+			assertTrue(handler.operations.contains("put " + id + " " + (id * 16) + " 16"));
+			assertContent(reopened, id * 16, record((int) id, 16));
+		}
+		reopened.close();
+	}
+
+	@Test(timeout = 30000)
+	public void testSyncDurability() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setDurability(EntityDBConfig.EDurability.SYNC);
+		testDurableCommits(config);
+	}
+
+	@Test(timeout = 30000)
+	public void testGroupCommitDurability() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setDurability(EntityDBConfig.EDurability.GROUP_COMMIT);
+		config.setGroupCommitWindow(5);
+		testDurableCommits(config);
+	}
+
+	@Test(timeout = 30000)
+	public void testAsyncDurability() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		config.setGroupCommitWindow(60000);
+		DataFile dataFile = open(dbFile, config, null);
+		long emptyLength = walFile.length();
+		dataFile.write(0, record(1, 100));
+		dataFile.logPut(1, 0, 100);
+		// the commit doesn't wait for the disk, and the log isn't forced until the next window
+		dataFile.awaitDurable(dataFile.commit());
+		assertEquals(emptyLength, walFile.length());
+		dataFile.close();
+
+		// the commits since the last flush are lost by a crash
+		RecordingHandler handler = new RecordingHandler();
+		dataFile = open(dbFile, config, handler);
+		assertTrue(handler.operations.isEmpty());
+		dataFile.close();
+
+		// the background thread forces the log in every window
+		config.setGroupCommitWindow(1);
+		dataFile = open(dbFile, config, null);
+		dataFile.write(0, record(1, 100));
+		dataFile.logPut(1, 0, 100);
+		dataFile.awaitDurable(dataFile.commit());
+		while (walFile.length() == emptyLength) {
+			Thread.sleep(1);
+		}
+		dataFile.close();
+
+		handler = new RecordingHandler();
+		dataFile = open(dbFile, config, handler);
+		assertEquals(Arrays.asList("put 1 0 100"), handler.operations);
+		assertContent(dataFile, 0, record(1, 100));
+		dataFile.close();
+	}
+
+	private void testCloseWithWriters(EntityDBConfig config) throws Exception {
+		EntityDB edb = EntityDB.connect(dbFile, config);
+		final DB db = edb.getDB();
+		final ConcurrentLinkedQueue<Long> stored = new ConcurrentLinkedQueue<>();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> writers = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final String kind = "Kind" + t;
+			writers.add(new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (long i = 0; ; i++) {
+							Entity entity = new Entity(kind);
+							entity.putAttribute("n", i);
+							db.put(entity);
+							stored.add(entity.getId());
+						}
+					} catch (IllegalStateException ex) {
+						// the database is closed
+					} catch (Throwable ex) {
+						error.compareAndSet(null, ex);
+					}
+				}
+			});
+		}
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		while (stored.size() < 500 && error.get() == null) {
+			Thread.sleep(1);
+		}
+		// the writers are waiting for the locks and the id counter while the database is closed
+		edb.close(false);
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertTrue(edb.isClosed());
+
+		// every entity which is put before the close is stored
+		edb = EntityDB.connect(dbFile, config);
+		DB reopened = edb.getDB();
+		for (long id : stored) {
+			assertNotNull(reopened.get(id));
+		}
+		edb.close();
+	}
+
+	@Test(timeout = 60000)
+	public void testCloseWithWritersSync() throws Exception {
+		testCloseWithWriters(new EntityDBConfig());
+	}
+
+	@Test(timeout = 60000)
+	public void testCloseWithWritersGroupCommit() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setDurability(EntityDBConfig.EDurability.GROUP_COMMIT);
+		config.setSnapshotSize(16 * 1024);
+		testCloseWithWriters(config);
+	}
+
+	@Test(timeout = 60000)
+	public void testCloseWithWritersLogStorage() throws Exception {
+		EntityDBConfig config = new EntityDBConfig();
+		config.setStorageEngine(EntityDBConfig.EStorageEngine.LOG);
+		config.setSegmentSize(64 * 1024);
+		config.setDurability(EntityDBConfig.EDurability.ASYNC);
+		testCloseWithWriters(config);
+	}
+}